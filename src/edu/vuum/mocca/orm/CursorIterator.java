@@ -0,0 +1,81 @@
+
+package edu.vuum.mocca.orm;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.database.Cursor;
+
+/**
+ * Lazy, read-only Iterator over the rows of a Cursor.
+ * <p>
+ * Each row is converted by the RowMapper only when next() reaches it, so only
+ * the Cursor's current window is held in memory rather than one ORM object per
+ * row. The Cursor is closed once the last row has been returned; callers that
+ * stop early must call close() themselves.
+ * 
+ * @param <T>
+ *            the ORM type produced
+ */
+public class CursorIterator<T> implements Iterator<T>, Closeable {
+
+	private final Cursor cursor;
+	private final RowMapper<T> mapper;
+	private boolean hasNext;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param cursor
+	 *            the Cursor to iterate over, may be null (no rows)
+	 * @param mapper
+	 *            a RowMapper created for this Cursor, may be null only if the
+	 *            cursor is
+	 */
+	public CursorIterator(Cursor cursor, RowMapper<T> mapper) {
+		this.cursor = cursor;
+		this.mapper = mapper;
+		hasNext = (cursor != null) && cursor.moveToFirst();
+		if (hasNext == false) {
+			close();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	@Override
+	public T next() {
+		if (hasNext == false) {
+			throw new NoSuchElementException();
+		}
+		T rValue = mapper.map();
+		hasNext = cursor.moveToNext();
+		if (hasNext == false) {
+			close();
+		}
+		return rValue;
+	}
+
+	/**
+	 * Not supported, this Iterator is read-only.
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("read-only iterator");
+	}
+
+	/**
+	 * Stop iterating and release the Cursor. Safe to call more than once.
+	 */
+	@Override
+	public void close() {
+		hasNext = false;
+		if (cursor != null && cursor.isClosed() == false) {
+			cursor.close();
+		}
+	}
+}
@@ -2,28 +2,41 @@
 package edu.vuum.mocca.orm;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
-import android.app.Activity;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.OperationApplicationException;
+import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.DeadObjectException;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import edu.vuum.mocca.provider.MoocMediaStore;
 import edu.vuum.mocca.provider.MoocSchema;
 
 /**
  * encapsulation of the ContentResolver for a single URI
  * <p>
- * Uses ContentResolver instead of ContentProviderClient or other mechanism to
- * simplify code and to make this object thread safe. Future revisions to the
- * code could have ContentProviderClient (which takes 50% of the time during
- * access, once setup, than ContentResolver( did independent testing to find
- * this out.))
+ * Uses ContentResolver by default, to simplify code and to make this object
+ * thread safe. useProviderClient() switches to ContentProviderClient (which
+ * takes 50% of the time during access, once setup, than ContentResolver( did
+ * independent testing to find this out.)), held until release(). Each thread
+ * gets its own ContentProviderClient, as those are not thread safe, so this
+ * object stays thread safe in either mode.
  * 
  * @author Michael A. Walker
  * 
@@ -35,14 +48,567 @@ public class MoocResolver {
 	private Uri storyURI = MoocSchema.Story.CONTENT_URI;
 	private Uri tagsURI = MoocSchema.Tags.CONTENT_URI;
 
+	// the media blobs, stored in this app's files directory
+	private final MoocMediaStore mediaStore;
+
+	// most change journal entries read to invalidate a row ID cache; a
+	// longer list of changes drops the whole cache instead
+	private static final int MAX_JOURNAL_INVALIDATION = 256;
+
+	// optional row ID caches, see enableRowCache()
+	private volatile RowIdCache<StoryData> storyCache;
+	private volatile RowIdCache<TagsData> tagsCache;
+	private ContentObserver storyObserver;
+	private ContentObserver tagsObserver;
+
+	// ContentProviderClient mode, see useProviderClient(). Each thread uses
+	// its own client; 'holders' tracks all of them, for release(). Both
+	// 'useClient' changes and the holders' state are guarded by 'holders'.
+	private volatile boolean useClient = false;
+	private final Set<ClientHolder> holders = new HashSet<ClientHolder>();
+	private final ThreadLocal<ClientHolder> threadClient = new ThreadLocal<ClientHolder>();
+
 	/**
 	 * Constructor
 	 * 
-	 * @param activity
-	 *            The Activity to get the ContentResolver from.
+	 * @param context
+	 *            The Context (usually the Activity) to get the
+	 *            ContentResolver from.
+	 */
+	public MoocResolver(Context context) {
+		cr = context.getContentResolver();
+		mediaStore = new MoocMediaStore(context.getFilesDir());
+	}
+
+	/**
+	 * Cache the results of getStoryDataViaRowID() and getTagsDataViaRowID()
+	 * in memory, so repeated lookups of the same rows do not query the
+	 * ContentProvider. Each table gets its own LRU cache of about maxBytes,
+	 * invalidated by the ContentProvider's change notifications: a whole
+	 * table notification only drops the rows the change journal
+	 * (MoocSchema.Changes) lists as changed. Call release() when done with
+	 * this MoocResolver.
+	 * 
+	 * @param maxBytes
+	 *            approximate memory budget of each cache
+	 */
+	public synchronized void enableRowCache(final int maxBytes) {
+		if (storyCache != null) {
+			return;
+		}
+		final RowIdCache<StoryData> newStoryCache = RowIdCache
+				.forStory(maxBytes);
+		final RowIdCache<TagsData> newTagsCache = RowIdCache.forTags(maxBytes);
+		final long sequence = latestChange();
+		storyObserver = new InvalidatingObserver(newStoryCache,
+				MoocSchema.Story.TABLE_NAME, sequence);
+		tagsObserver = new InvalidatingObserver(newTagsCache,
+				MoocSchema.Tags.TABLE_NAME, sequence);
+		cr.registerContentObserver(storyURI, true, storyObserver);
+		cr.registerContentObserver(tagsURI, true, tagsObserver);
+		storyCache = newStoryCache;
+		tagsCache = newTagsCache;
+	}
+
+	/**
+	 * The StoryData row ID cache, for reading its hitCount(), missCount() and
+	 * evictionCount().
+	 * 
+	 * @return the cache, or null if enableRowCache() was not called
+	 */
+	public RowIdCache<StoryData> getStoryCache() {
+		return storyCache;
+	}
+
+	/**
+	 * The TagsData row ID cache, for reading its hitCount(), missCount() and
+	 * evictionCount().
+	 * 
+	 * @return the cache, or null if enableRowCache() was not called
+	 */
+	public RowIdCache<TagsData> getTagsCache() {
+		return tagsCache;
+	}
+
+	/**
+	 * Access the ContentProvider through ContentProviderClient(s), acquired on
+	 * first use by each thread and held until release(), instead of the
+	 * ContentResolver.
+	 * <p>
+	 * From Jelly Bean the clients are unstable, so that this process survives
+	 * the ContentProvider's process dying. A query (or getType, or opening a
+	 * file for reading) that fails because of it is retried once on a new
+	 * client. A write is not, as the ContentProvider may have committed it
+	 * before dying: its DeadObjectException is thrown, and the next call uses
+	 * a new client.
 	 */
-	public MoocResolver(Activity activity) {
-		cr = activity.getContentResolver();
+	public void useProviderClient() {
+		useClient = true;
+	}
+
+	/**
+	 * Release what this MoocResolver holds on to: the ContentProviderClient(s)
+	 * of useProviderClient(), the row ID caches and their change observers.
+	 * The MoocResolver can still be used afterwards, through the
+	 * ContentResolver and without caching.
+	 * <p>
+	 * The clients no thread is using are released now. A thread in the
+	 * middle of a call on its client releases it when that call returns.
+	 */
+	public synchronized void release() {
+		final ArrayList<ClientHolder> idle = new ArrayList<ClientHolder>();
+		synchronized (holders) {
+			useClient = false;
+			final Iterator<ClientHolder> iterator = holders.iterator();
+			while (iterator.hasNext()) {
+				final ClientHolder holder = iterator.next();
+				if (holder.calls == 0) {
+					iterator.remove();
+					holder.released = true;
+					idle.add(holder);
+				} else {
+					holder.releaseWhenIdle = true;
+				}
+			}
+		}
+		for (ClientHolder holder : idle) {
+			holder.client.release();
+		}
+		if (storyCache != null) {
+			cr.unregisterContentObserver(storyObserver);
+			cr.unregisterContentObserver(tagsObserver);
+			storyCache.evictAll();
+			tagsCache.evictAll();
+			storyCache = null;
+			tagsCache = null;
+			storyObserver = null;
+			tagsObserver = null;
+		}
+	}
+
+	/*
+	 * A thread's ContentProviderClient, and how many calls on it that thread
+	 * is in the middle of (more than one if a change notification made a
+	 * nested call). The counters and flags are guarded by 'holders'.
+	 */
+	private static class ClientHolder {
+		final ContentProviderClient client;
+		int calls = 0;
+		// release() released the client
+		boolean released = false;
+		// release() found the client in use: release it after the last call
+		boolean releaseWhenIdle = false;
+
+		ClientHolder(ContentProviderClient client) {
+			this.client = client;
+		}
+	}
+
+	/*
+	 * The calling thread's ContentProviderClient, acquiring it if needed, or
+	 * null to go through the ContentResolver. A non-null client is in use
+	 * until the matching doneWithClient().
+	 */
+	private ContentProviderClient client() {
+		final ClientHolder holder = threadClient.get();
+		if (holder != null) {
+			synchronized (holders) {
+				if (holder.released == false) {
+					holder.calls++;
+					return holder.client;
+				}
+			}
+			threadClient.remove();
+		}
+		if (useClient == false) {
+			return null;
+		}
+		final ContentProviderClient client = acquireClient();
+		if (client == null) {
+			// no such ContentProvider, let the ContentResolver report it
+			return null;
+		}
+		final ClientHolder newHolder = new ClientHolder(client);
+		synchronized (holders) {
+			if (useClient == false) {
+				// release() ran meanwhile
+				client.release();
+				return null;
+			}
+			newHolder.calls = 1;
+			holders.add(newHolder);
+		}
+		threadClient.set(newHolder);
+		return client;
+	}
+
+	/*
+	 * A call on the client of client() returned: release the client if
+	 * release() asked for it while the call was running.
+	 */
+	private void doneWithClient() {
+		final ClientHolder holder = threadClient.get();
+		if (holder == null) {
+			// dropped as dead
+			return;
+		}
+		synchronized (holders) {
+			if (holder.calls > 0) {
+				holder.calls--;
+			}
+			if (holder.calls > 0 || holder.releaseWhenIdle == false
+					|| holder.released) {
+				return;
+			}
+			holders.remove(holder);
+			holder.released = true;
+		}
+		threadClient.remove();
+		holder.client.release();
+	}
+
+	/*
+	 * A new ContentProviderClient. Unstable where the platform has them:
+	 * with a stable client, this process would be killed along with the
+	 * ContentProvider's.
+	 */
+	private ContentProviderClient acquireClient() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return cr.acquireUnstableContentProviderClient(MoocSchema.AUTHORITY);
+		}
+		return cr.acquireContentProviderClient(MoocSchema.AUTHORITY);
+	}
+
+	/*
+	 * Release the calling thread's ContentProviderClient, if it has one.
+	 */
+	private void dropThreadClient() {
+		final ClientHolder holder = threadClient.get();
+		if (holder == null) {
+			return;
+		}
+		threadClient.remove();
+		synchronized (holders) {
+			holders.remove(holder);
+			if (holder.released) {
+				return;
+			}
+			holder.released = true;
+		}
+		holder.client.release();
+	}
+
+	/*
+	 * The ContentProvider behind the thread's client died: drop that client
+	 * and return a new one for the retry (or null to retry through the
+	 * ContentResolver), in use for as many calls as the dead one was.
+	 */
+	private ContentProviderClient replaceDeadClient() {
+		final ClientHolder dead = threadClient.get();
+		int calls = 1;
+		if (dead != null) {
+			synchronized (holders) {
+				calls = Math.max(1, dead.calls);
+			}
+		}
+		dropThreadClient();
+		final ContentProviderClient client = client();
+		if (client != null) {
+			final ClientHolder holder = threadClient.get();
+			synchronized (holders) {
+				holder.calls = calls;
+			}
+		}
+		return client;
+	}
+
+	/*
+	 * ContentProvider access, through the thread's ContentProviderClient or
+	 * the ContentResolver. Reads that fail because the provider died are
+	 * retried once on a new client; writes drop the dead client and throw,
+	 * as the provider may have applied them before dying. Each call through
+	 * a client ends in doneWithClient(), which releases it if release() ran
+	 * in the meantime.
+	 */
+
+	private Cursor providerQuery(final Uri uri, final String[] projection,
+			final String selection, final String[] selectionArgs,
+			final String sortOrder) throws RemoteException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.query(uri, projection, selection, selectionArgs,
+					sortOrder);
+		}
+		try {
+			return client.query(uri, projection, selection, selectionArgs,
+					sortOrder);
+		} catch (DeadObjectException e) {
+			client = replaceDeadClient();
+			if (client == null) {
+				return cr.query(uri, projection, selection, selectionArgs,
+						sortOrder);
+			}
+			return client.query(uri, projection, selection, selectionArgs,
+					sortOrder);
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	private Uri providerInsert(final Uri uri, final ContentValues values)
+			throws RemoteException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.insert(uri, values);
+		}
+		try {
+			return client.insert(uri, values);
+		} catch (DeadObjectException e) {
+			dropThreadClient();
+			throw e;
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	private int providerBulkInsert(final Uri uri, final ContentValues[] values)
+			throws RemoteException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.bulkInsert(uri, values);
+		}
+		try {
+			return client.bulkInsert(uri, values);
+		} catch (DeadObjectException e) {
+			dropThreadClient();
+			throw e;
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	private int providerDelete(final Uri uri, final String selection,
+			final String[] selectionArgs) throws RemoteException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.delete(uri, selection, selectionArgs);
+		}
+		try {
+			return client.delete(uri, selection, selectionArgs);
+		} catch (DeadObjectException e) {
+			dropThreadClient();
+			throw e;
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	private int providerUpdate(final Uri uri, final ContentValues values,
+			final String selection, final String[] selectionArgs)
+			throws RemoteException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.update(uri, values, selection, selectionArgs);
+		}
+		try {
+			return client.update(uri, values, selection, selectionArgs);
+		} catch (DeadObjectException e) {
+			dropThreadClient();
+			throw e;
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	private String providerGetType(final Uri uri) throws RemoteException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.getType(uri);
+		}
+		try {
+			return client.getType(uri);
+		} catch (DeadObjectException e) {
+			client = replaceDeadClient();
+			return (client == null) ? cr.getType(uri) : client.getType(uri);
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	private ContentProviderResult[] providerApplyBatch(
+			final ArrayList<ContentProviderOperation> operations)
+			throws RemoteException, OperationApplicationException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.applyBatch(MoocSchema.AUTHORITY, operations);
+		}
+		try {
+			return client.applyBatch(operations);
+		} catch (DeadObjectException e) {
+			dropThreadClient();
+			throw e;
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	private ParcelFileDescriptor providerOpenFile(final Uri uri,
+			final String mode) throws RemoteException, FileNotFoundException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.openFileDescriptor(uri, mode);
+		}
+		try {
+			return client.openFile(uri, mode);
+		} catch (DeadObjectException e) {
+			if (isReadOnly(mode) == false) {
+				dropThreadClient();
+				throw e;
+			}
+			client = replaceDeadClient();
+			return (client == null) ? cr.openFileDescriptor(uri, mode)
+					: client.openFile(uri, mode);
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	private AssetFileDescriptor providerOpenAssetFile(final Uri uri,
+			final String mode) throws RemoteException, FileNotFoundException {
+		ContentProviderClient client = client();
+		if (client == null) {
+			return cr.openAssetFileDescriptor(uri, mode);
+		}
+		try {
+			return client.openAssetFile(uri, mode);
+		} catch (DeadObjectException e) {
+			if (isReadOnly(mode) == false) {
+				dropThreadClient();
+				throw e;
+			}
+			client = replaceDeadClient();
+			return (client == null) ? cr.openAssetFileDescriptor(uri, mode)
+					: client.openAssetFile(uri, mode);
+		} finally {
+			doneWithClient();
+		}
+	}
+
+	/*
+	 * If opening a file in this mode only reads it, so may be retried.
+	 */
+	private static boolean isReadOnly(final String mode) {
+		return "r".equals(mode);
+	}
+
+	/*
+	 * Drop a whole row ID cache, if enabled, ahead of a write through this
+	 * MoocResolver: the ContentProvider's change notification may only arrive
+	 * after the next read.
+	 */
+	private static void invalidate(final RowIdCache<?> cache) {
+		if (cache != null) {
+			cache.invalidate((Uri) null);
+		}
+	}
+
+	/*
+	 * The sequence number of the latest change journal entry, 0 if there is
+	 * none or the journal cannot be read.
+	 */
+	private long latestChange() {
+		try {
+			final Cursor cursor = providerQuery(
+					MoocSchema.Changes.CONTENT_URI,
+					new String[] { "MAX(" + MoocSchema.Changes.Cols.SEQUENCE
+							+ ")" }, null, null, null);
+			try {
+				return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+			} finally {
+				cursor.close();
+			}
+		} catch (RemoteException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * ContentObserver dropping the entries of a RowIdCache on change
+	 * notifications: the row of a single row URI, else the rows the change
+	 * journal lists after the last entry it read. If the journal lists too
+	 * many (or was compacted past that entry), everything.
+	 */
+	private class InvalidatingObserver extends ContentObserver {
+		private final RowIdCache<?> cache;
+		private final String table;
+		// the last journal entry read, guarded by 'this'
+		private long sequence;
+
+		InvalidatingObserver(RowIdCache<?> cache, String table, long sequence) {
+			// no Handler: invalidate on the notifying thread, right away
+			super(null);
+			this.cache = cache;
+			this.table = table;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void onChange(boolean selfChange) {
+			onChange(selfChange, null);
+		}
+
+		@Override
+		public void onChange(boolean selfChange, Uri uri) {
+			if (uri != null && uri.getPathSegments().size() == 2) {
+				cache.invalidate(uri);
+			} else {
+				invalidateFromJournal();
+			}
+		}
+
+		private synchronized void invalidateFromJournal() {
+			final ArrayList<Long> rowIDs = new ArrayList<Long>();
+			boolean all = false;
+			try {
+				final Cursor cursor = providerQuery(
+						MoocSchema.Changes.uriForChangesSince(sequence)
+								.buildUpon()
+								.appendQueryParameter(
+										MoocSchema.QUERY_PARAMETER_LIMIT,
+										String.valueOf(MAX_JOURNAL_INVALIDATION))
+								.build(),
+						new String[] { MoocSchema.Changes.Cols.SEQUENCE,
+								MoocSchema.Changes.Cols.ROW_ID,
+								MoocSchema.Changes.Cols.OPERATION },
+						MoocSchema.Changes.Cols.TABLE + " IN (?, '')",
+						new String[] { table }, null);
+				try {
+					while (cursor.moveToNext()) {
+						if (MoocSchema.Changes.OPERATION_RESET.equals(cursor
+								.getString(2))) {
+							all |= cursor.getLong(1) > sequence;
+						} else {
+							rowIDs.add(Long.valueOf(cursor.getLong(1)));
+						}
+						sequence = cursor.getLong(0);
+					}
+					// a full page: there may be more, drop everything
+					all |= cursor.getCount() >= MAX_JOURNAL_INVALIDATION;
+				} finally {
+					cursor.close();
+				}
+				if (all) {
+					sequence = latestChange();
+				}
+			} catch (RemoteException e) {
+				all = true;
+			}
+			if (all) {
+				cache.invalidate((Uri) null);
+			} else {
+				cache.invalidate(rowIDs);
+			}
+		}
 	}
 
 	/**
@@ -56,7 +622,9 @@ public class MoocResolver {
 	public ContentProviderResult[] applyBatch(
 			final ArrayList<ContentProviderOperation> operations)
 			throws RemoteException, OperationApplicationException {
-		return cr.applyBatch(MoocSchema.AUTHORITY, operations);
+		invalidate(storyCache);
+		invalidate(tagsCache);
+		return providerApplyBatch(operations);
 	}
 
 	/*
@@ -81,7 +649,7 @@ public class MoocResolver {
 			values[index] = story.getCV();
 			++index;
 		}
-		return cr.bulkInsert(storyURI, values);
+		return providerBulkInsert(storyURI, values);
 	}
 
 	/**
@@ -101,7 +669,85 @@ public class MoocResolver {
 			values[index] = tags.getCV();
 			++index;
 		}
-		return cr.bulkInsert(tagsURI, values);
+		return providerBulkInsert(tagsURI, values);
+	}
+
+	/*
+	 * Upsert for each ORM Data Type
+	 */
+
+	/**
+	 * Insert or update a group of StoryData all at once, in one transaction.
+	 * A story whose (loginId, storyId) is already stored replaces that row,
+	 * keeping its KEY_ID, so re-syncing the same stories does not duplicate
+	 * them.
+	 * 
+	 * @param data
+	 *            what is to be upserted into the ContentProvider
+	 * @return number of rows inserted or updated
+	 * @throws RemoteException
+	 */
+	public int upsertStory(final ArrayList<StoryData> data)
+			throws RemoteException {
+		ContentValues[] values = new ContentValues[data.size()];
+		int index = 0;
+		for (StoryData story : data) {
+			values[index] = story.getCV();
+			++index;
+		}
+		invalidate(storyCache);
+		return providerBulkInsert(MoocSchema.Story.UPSERT_URI, values);
+	}
+
+	/**
+	 * Insert a group of TagsData all at once, in one transaction, skipping
+	 * those whose (tag, storyId, loginId) is already stored.
+	 * 
+	 * @param data
+	 *            what is to be upserted into the ContentProvider
+	 * @return number of rows inserted or already present
+	 * @throws RemoteException
+	 */
+	public int upsertTags(final ArrayList<TagsData> data)
+			throws RemoteException {
+		ContentValues[] values = new ContentValues[data.size()];
+		int index = 0;
+		for (TagsData tags : data) {
+			values[index] = tags.getCV();
+			++index;
+		}
+		return providerBulkInsert(MoocSchema.Tags.UPSERT_URI, values);
+	}
+
+	/**
+	 * Insert a StoryData object into the ContentProvider, or update the stored
+	 * story with the same (loginId, storyId).
+	 * 
+	 * @param storyObject
+	 *            object to be upserted
+	 * @return URI of the inserted or updated StoryData in the ContentProvider
+	 * @throws RemoteException
+	 */
+	public Uri upsert(final StoryData storyObject) throws RemoteException {
+		ContentValues tempCV = storyObject.getCV();
+		tempCV.remove(MoocSchema.Story.Cols.ID);
+		invalidate(storyCache);
+		return providerInsert(MoocSchema.Story.UPSERT_URI, tempCV);
+	}
+
+	/**
+	 * Insert a TagsData object into the ContentProvider, unless the same
+	 * (tag, storyId, loginId) is already stored.
+	 * 
+	 * @param tagsObject
+	 *            object to be upserted
+	 * @return URI of the new or existing TagsData in the ContentProvider
+	 * @throws RemoteException
+	 */
+	public Uri upsert(final TagsData tagsObject) throws RemoteException {
+		ContentValues tempCV = tagsObject.getCV();
+		tempCV.remove(MoocSchema.Tags.Cols.ID);
+		return providerInsert(MoocSchema.Tags.UPSERT_URI, tempCV);
 	}
 
 	/*
@@ -118,7 +764,8 @@ public class MoocResolver {
 	 */
 	public int deleteStoryData(final String selection,
 			final String[] selectionArgs) throws RemoteException {
-		return cr.delete(storyURI, selection, selectionArgs);
+		invalidate(storyCache);
+		return providerDelete(storyURI, selection, selectionArgs);
 	}
 
 	/**
@@ -132,7 +779,8 @@ public class MoocResolver {
 	 */
 	public int deleteTagsData(final String selection,
 			final String[] selectionArgs) throws RemoteException {
-		return cr.delete(tagsURI, selection, selectionArgs);
+		invalidate(tagsCache);
+		return providerDelete(tagsURI, selection, selectionArgs);
 	}
 
 	/**
@@ -143,7 +791,7 @@ public class MoocResolver {
 	 * @throws RemoteException
 	 */
 	public String getType(Uri uri) throws RemoteException {
-		return cr.getType(uri);
+		return providerGetType(uri);
 	}
 
 	/*
@@ -161,13 +809,13 @@ public class MoocResolver {
 	public Uri insert(final StoryData storyObject) throws RemoteException {
 		ContentValues tempCV = storyObject.getCV();
 		tempCV.remove(MoocSchema.Story.Cols.ID);
-		return cr.insert(storyURI, tempCV);
+		return providerInsert(storyURI, tempCV);
 	}
 
 	public Uri insert(final TagsData tagsObject) throws RemoteException {
 		ContentValues tempCV = tagsObject.getCV();
 		tempCV.remove(MoocSchema.Tags.Cols.ID);
-		return cr.insert(tagsURI, tempCV);
+		return providerInsert(tagsURI, tempCV);
 	}
 
 	/**
@@ -179,10 +827,10 @@ public class MoocResolver {
 	 * @throws RemoteException
 	 * @throws FileNotFoundException
 	 */
-	// public AssetFileDescriptor openAssetFileDescriptor(final Uri uri,
-	// final String mode) throws RemoteException, FileNotFoundException {
-	// return cr.openAssetFileDescriptor(uri, mode);
-	// }
+	public AssetFileDescriptor openAssetFileDescriptor(final Uri uri,
+			final String mode) throws RemoteException, FileNotFoundException {
+		return providerOpenAssetFile(uri, mode);
+	}
 
 	/**
 	 * Access files from the content provider, getting a AssetFileDescriptor
@@ -195,7 +843,118 @@ public class MoocResolver {
 	 */
 	public ParcelFileDescriptor openFileDescriptor(final Uri uri,
 			final String mode) throws RemoteException, FileNotFoundException {
-		return cr.openFileDescriptor(uri, mode);
+		return providerOpenFile(uri, mode);
+	}
+
+	/*
+	 * Media blobs
+	 */
+
+	/**
+	 * Store a media file (audio, video or image) in the content-addressed
+	 * media store. Storing the same content twice keeps one copy. Put the
+	 * returned URI in a StoryData audioLink, videoLink or imageLink to
+	 * reference it, and read it back with openFileDescriptor(uri, "r").
+	 * 
+	 * @param in
+	 *            the content, not closed
+	 * @return the URI of the stored blob (MoocSchema.Media.uriForHash())
+	 * @throws IOException
+	 * @throws RemoteException
+	 */
+	public Uri putMedia(final InputStream in) throws IOException,
+			RemoteException {
+		return putMedia(null, in);
+	}
+
+	/**
+	 * Store a media file like putMedia(InputStream), letting other readers
+	 * stream it while it is being written, from
+	 * MoocSchema.Media.uriForUpload(uploadId) (see openFileDescriptor()).
+	 * 
+	 * @param uploadId
+	 *            name of the upload, unique while it runs, or null
+	 * @param in
+	 *            the content, not closed
+	 * @return the URI of the stored blob (MoocSchema.Media.uriForHash())
+	 * @throws IOException
+	 * @throws RemoteException
+	 */
+	public Uri putMedia(final String uploadId, final InputStream in)
+			throws IOException, RemoteException {
+		final String hash = mediaStore.put(uploadId, in);
+		final ContentValues values = new ContentValues();
+		values.put(MoocSchema.Media.Cols.HASH, hash);
+		return providerInsert(MoocSchema.Media.CONTENT_URI, values);
+	}
+
+	/**
+	 * Open part of a stored media blob, e.g. to seek into a large video
+	 * without reading what comes before.
+	 * 
+	 * @param mediaUri
+	 *            URI of the blob (as held by the Story link columns)
+	 * @param offset
+	 *            first byte
+	 * @param length
+	 *            number of bytes, or -1 for the rest of the blob
+	 * @return AssetFileDescriptor over just that range
+	 * @throws RemoteException
+	 * @throws FileNotFoundException
+	 */
+	public AssetFileDescriptor openMediaRange(final Uri mediaUri,
+			final long offset, final long length) throws RemoteException,
+			FileNotFoundException {
+		return providerOpenAssetFile(MoocSchema.Media.uriForRange(
+				mediaUri.getLastPathSegment(), offset, length), "r");
+	}
+
+	/**
+	 * Open the thumbnail (a downscaled JPEG) of a stored image blob, for
+	 * lists that should not decode the original.
+	 *
+	 * @param mediaUri
+	 *            URI of the blob (as held by the Story link columns)
+	 * @param size
+	 *            one of MoocSchema.Media.THUMBNAIL_SIZES
+	 * @return ParcelFileDescriptor of the thumbnail
+	 * @throws RemoteException
+	 * @throws FileNotFoundException
+	 *             if the blob is not stored, or is not an image
+	 */
+	public ParcelFileDescriptor openThumbnail(final Uri mediaUri,
+			final int size) throws RemoteException, FileNotFoundException {
+		return providerOpenFile(MoocSchema.Media.uriForThumbnail(
+				mediaUri.getLastPathSegment(), size), "r");
+	}
+
+	/**
+	 * Memory-map part of a stored media blob, to read it in place. Only for
+	 * blobs of this app's own media store.
+	 * 
+	 * @param mediaUri
+	 *            URI of the blob (as held by the Story link columns)
+	 * @param offset
+	 *            first byte
+	 * @param length
+	 *            number of bytes, or -1 for the rest of the blob
+	 * @return a read-only MappedByteBuffer
+	 * @throws IOException
+	 */
+	public MappedByteBuffer mapMedia(final Uri mediaUri, final long offset,
+			final long length) throws IOException {
+		return mediaStore.map(mediaUri.getLastPathSegment(), offset, length);
+	}
+
+	/**
+	 * Delete the media blobs no story links to anymore (after a grace
+	 * period, see MoocMediaStore.GC_GRACE_MILLIS).
+	 * 
+	 * @return number of blobs deleted
+	 * @throws RemoteException
+	 */
+	public int collectMediaGarbage() throws RemoteException {
+		return providerDelete(MoocSchema.Media.CONTENT_URI, null, null);
 	}
 
 	/*
@@ -217,17 +976,298 @@ public class MoocResolver {
 			final String selection, final String[] selectionArgs,
 			final String sortOrder) throws RemoteException {
 		// query the C.P.
-		Cursor result = cr.query(storyURI, projection, selection,
+		Cursor result = providerQuery(storyURI, projection, selection,
 				selectionArgs, sortOrder);
-		// make return object
-		ArrayList<StoryData> rValue = new ArrayList<StoryData>();
-		// convert cursor to reutrn object
-		rValue.addAll(StoryCreator.getStoryDataArrayListFromCursor(result));
-		result.close();
+		// convert cursor to return object
+		ArrayList<StoryData> rValue = StoryCreator
+				.getStoryDataArrayListFromCursor(result);
+		if (result != null) {
+			result.close();
+		}
 		// return 'return object'
 		return rValue;
 	}
 
+	/**
+	 * Lazy query for StoryData, Similar to standard Content Provider query, but
+	 * each row is only converted when the returned iterator reaches it, so
+	 * the results never have to fit in memory at once.
+	 * <p>
+	 * The iterator closes its Cursor after the last row; close() it yourself
+	 * if you stop early.
+	 * 
+	 * @param projection
+	 * @param selection
+	 * @param selectionArgs
+	 * @param sortOrder
+	 * @return a CursorIterator of StoryData objects
+	 * @throws RemoteException
+	 */
+	public CursorIterator<StoryData> iterateStoryData(
+			final String[] projection,
+			final String selection, final String[] selectionArgs,
+			final String sortOrder) throws RemoteException {
+		// query the C.P.
+		Cursor result = providerQuery(storyURI, projection, selection,
+				selectionArgs, sortOrder);
+		return StoryCreator.getStoryDataIteratorFromCursor(result);
+	}
+
+	/**
+	 * Query for lightweight StoryView(s): only StoryView.PROJECTION, plus the
+	 * given extra columns, is requested from the ContentProvider. The other
+	 * columns (BODY and the media links) are loaded by each view on first
+	 * access.
+	 * 
+	 * @param extraColumns
+	 *            StoryView.LAZY_COLUMNS to read up front, or null
+	 * @param selection
+	 * @param selectionArgs
+	 * @param sortOrder
+	 * @return an ArrayList of StoryView objects
+	 * @throws RemoteException
+	 */
+	public ArrayList<StoryView> queryStoryViews(final String[] extraColumns,
+			final String selection, final String[] selectionArgs,
+			final String sortOrder) throws RemoteException {
+		ArrayList<StoryView> rValue = new ArrayList<StoryView>();
+		CursorIterator<StoryView> views = iterateStoryViews(extraColumns,
+				selection, selectionArgs, sortOrder);
+		try {
+			while (views.hasNext()) {
+				rValue.add(views.next());
+			}
+		} finally {
+			views.close();
+		}
+		return rValue;
+	}
+
+	/**
+	 * Build a column-oriented StorySnapshot of every story, with its tags
+	 * from tags_table, for aggregating over all of them without one StoryData
+	 * per row.
+	 * 
+	 * @return the StorySnapshot
+	 * @throws RemoteException
+	 */
+	public StorySnapshot getStorySnapshot() throws RemoteException {
+		Cursor result = providerQuery(MoocSchema.Story.TAGGED_URI,
+				StorySnapshot.PROJECTION,
+				null, null, null);
+		try {
+			return StorySnapshot.fromCursor(result);
+		} finally {
+			if (result != null) {
+				result.close();
+			}
+		}
+	}
+
+	/**
+	 * Lazy query for lightweight StoryView(s), see queryStoryViews() and
+	 * iterateStoryData().
+	 * 
+	 * @param extraColumns
+	 *            StoryView.LAZY_COLUMNS to read up front, or null
+	 * @param selection
+	 * @param selectionArgs
+	 * @param sortOrder
+	 * @return a CursorIterator of StoryView objects
+	 * @throws RemoteException
+	 */
+	public CursorIterator<StoryView> iterateStoryViews(
+			final String[] extraColumns, final String selection,
+			final String[] selectionArgs, final String sortOrder)
+			throws RemoteException {
+		String[] projection = StoryView.PROJECTION;
+		if (extraColumns != null && extraColumns.length > 0) {
+			projection = new String[StoryView.PROJECTION.length
+					+ extraColumns.length];
+			System.arraycopy(StoryView.PROJECTION, 0, projection, 0,
+					StoryView.PROJECTION.length);
+			System.arraycopy(extraColumns, 0, projection,
+					StoryView.PROJECTION.length, extraColumns.length);
+		}
+		Cursor result = providerQuery(storyURI, projection, selection,
+				selectionArgs, sortOrder);
+		return new CursorIterator<StoryView>(result, (result == null) ? null
+				: new StoryViewRowMapper(result, this));
+	}
+
+	/**
+	 * Full-text search of the StoryData TITLE, BODY and TAGS, best matches
+	 * first.
+	 * 
+	 * @param query
+	 *            SQLite FTS MATCH expression, e.g. "beach OR lake"
+	 * @param limit
+	 *            maximum number of StoryData returned
+	 * @return an ArrayList of the matching StoryData objects
+	 * @throws RemoteException
+	 */
+	public ArrayList<StoryData> searchStoryData(final String query,
+			final int limit) throws RemoteException {
+		Uri searchURI = MoocSchema.Story.SEARCH_URI
+				.buildUpon()
+				.appendQueryParameter(MoocSchema.Story.QUERY_PARAMETER_SEARCH,
+						query)
+				.appendQueryParameter(MoocSchema.QUERY_PARAMETER_LIMIT,
+						String.valueOf(limit)).build();
+		Cursor result = providerQuery(searchURI, null, null, null, null);
+		ArrayList<StoryData> rValue = StoryCreator
+				.getStoryDataArrayListFromCursor(result);
+		if (result != null) {
+			result.close();
+		}
+		return rValue;
+	}
+
+	/**
+	 * Get the StoryData carrying any, or all, of the given tags (as stored in
+	 * the tags table), in one query.
+	 * 
+	 * @param tags
+	 *            the tags to look for
+	 * @param matchAll
+	 *            true: only StoryData with all the tags, false: with any of them
+	 * @param sortOrder
+	 * @return an ArrayList of the matching StoryData objects
+	 * @throws RemoteException
+	 */
+	public ArrayList<StoryData> queryStoryDataByTags(final String[] tags,
+			final boolean matchAll, final String sortOrder)
+			throws RemoteException {
+		Uri.Builder builder = MoocSchema.Story.TAGGED_URI.buildUpon()
+				.appendQueryParameter(
+						MoocSchema.Story.QUERY_PARAMETER_MATCH,
+						matchAll ? MoocSchema.Story.MATCH_ALL
+								: MoocSchema.Story.MATCH_ANY);
+		for (String tag : tags) {
+			builder.appendQueryParameter(MoocSchema.Story.QUERY_PARAMETER_TAG,
+					tag);
+		}
+		Cursor result = providerQuery(builder.build(), null, null, null, sortOrder);
+		ArrayList<StoryData> rValue = StoryCreator
+				.getStoryDataArrayListFromCursor(result);
+		if (result != null) {
+			result.close();
+		}
+		return rValue;
+	}
+
+	/**
+	 * Get the StoryData located within radiusMeters of a point, nearest first.
+	 * 
+	 * @param latitude
+	 * @param longitude
+	 * @param radiusMeters
+	 * @param limit
+	 *            maximum number of StoryData returned
+	 * @return an ArrayList of the StoryData objects near the point
+	 * @throws RemoteException
+	 */
+	public ArrayList<StoryData> queryStoryDataNear(final double latitude,
+			final double longitude, final double radiusMeters, final int limit)
+			throws RemoteException {
+		Uri geoURI = MoocSchema.Story.GEO_URI
+				.buildUpon()
+				.appendQueryParameter(
+						MoocSchema.Story.QUERY_PARAMETER_LATITUDE,
+						String.valueOf(latitude))
+				.appendQueryParameter(
+						MoocSchema.Story.QUERY_PARAMETER_LONGITUDE,
+						String.valueOf(longitude))
+				.appendQueryParameter(MoocSchema.Story.QUERY_PARAMETER_RADIUS,
+						String.valueOf(radiusMeters))
+				.appendQueryParameter(MoocSchema.QUERY_PARAMETER_LIMIT,
+						String.valueOf(limit)).build();
+		Cursor result = providerQuery(geoURI, null, null, null, null);
+		ArrayList<StoryData> rValue = StoryCreator
+				.getStoryDataArrayListFromCursor(result);
+		if (result != null) {
+			result.close();
+		}
+		return rValue;
+	}
+
+	/**
+	 * Query one page of StoryData, newest STORY_TIME first. Pass the last
+	 * StoryData of the previous page as 'after' to get the next page, or null
+	 * for the first page; a page with fewer than pageSize entries is the last.
+	 * <p>
+	 * Pages are fetched by keyset (continuing from the previous page's
+	 * STORY_TIME and _id), so later pages are as cheap as the first. The
+	 * projection must include _id and STORY_TIME, or be null.
+	 * 
+	 * @param projection
+	 * @param selection
+	 * @param selectionArgs
+	 * @param after
+	 *            last StoryData of the previous page, or null
+	 * @param pageSize
+	 *            maximum number of StoryData returned
+	 * @return an ArrayList of at most pageSize StoryData objects
+	 * @throws RemoteException
+	 */
+	public ArrayList<StoryData> queryStoryDataPage(final String[] projection,
+			final String selection, final String[] selectionArgs,
+			final StoryData after, final int pageSize) throws RemoteException {
+		Uri.Builder builder = storyURI.buildUpon().appendQueryParameter(
+				MoocSchema.QUERY_PARAMETER_LIMIT, String.valueOf(pageSize));
+		if (after != null) {
+			builder.appendQueryParameter(
+					MoocSchema.Story.QUERY_PARAMETER_AFTER_TIME,
+					String.valueOf(after.storyTime));
+			builder.appendQueryParameter(MoocSchema.QUERY_PARAMETER_AFTER_ID,
+					String.valueOf(after.KEY_ID));
+		}
+		Cursor result = providerQuery(builder.build(), projection, selection,
+				selectionArgs, null);
+		ArrayList<StoryData> rValue = StoryCreator
+				.getStoryDataArrayListFromCursor(result);
+		if (result != null) {
+			result.close();
+		}
+		return rValue;
+	}
+
+	/**
+	 * Query one page of TagsData, in _id order. Pass the last TagsData of the
+	 * previous page as 'after' to get the next page, or null for the first
+	 * page; a page with fewer than pageSize entries is the last.
+	 * <p>
+	 * The projection must include _id, or be null.
+	 * 
+	 * @param projection
+	 * @param selection
+	 * @param selectionArgs
+	 * @param after
+	 *            last TagsData of the previous page, or null
+	 * @param pageSize
+	 *            maximum number of TagsData returned
+	 * @return an ArrayList of at most pageSize TagsData objects
+	 * @throws RemoteException
+	 */
+	public ArrayList<TagsData> queryTagsDataPage(final String[] projection,
+			final String selection, final String[] selectionArgs,
+			final TagsData after, final int pageSize) throws RemoteException {
+		Uri.Builder builder = tagsURI.buildUpon().appendQueryParameter(
+				MoocSchema.QUERY_PARAMETER_LIMIT, String.valueOf(pageSize));
+		if (after != null) {
+			builder.appendQueryParameter(MoocSchema.QUERY_PARAMETER_AFTER_ID,
+					String.valueOf(after.KEY_ID));
+		}
+		Cursor result = providerQuery(builder.build(), projection, selection,
+				selectionArgs, null);
+		ArrayList<TagsData> rValue = TagsCreator
+				.getTagsDataArrayListFromCursor(result);
+		if (result != null) {
+			result.close();
+		}
+		return rValue;
+	}
+
 	/**
 	 * Query for each ORM TagsData, Similar to standard Content Provider query,
 	 * just different return type
@@ -243,17 +1283,42 @@ public class MoocResolver {
 			final String selection, final String[] selectionArgs,
 			final String sortOrder) throws RemoteException {
 		// query the C.P.
-		Cursor result = cr.query(tagsURI, projection, selection, selectionArgs,
+		Cursor result = providerQuery(tagsURI, projection, selection, selectionArgs,
 				sortOrder);
-		// make return object
-		ArrayList<TagsData> rValue = new ArrayList<TagsData>();
-		// convert cursor to reutrn object
-		rValue.addAll(TagsCreator.getTagsDataArrayListFromCursor(result));
-		result.close();
+		// convert cursor to return object
+		ArrayList<TagsData> rValue = TagsCreator
+				.getTagsDataArrayListFromCursor(result);
+		if (result != null) {
+			result.close();
+		}
 		// return 'return object'
 		return rValue;
 	}
 
+	/**
+	 * Lazy query for TagsData, Similar to standard Content Provider query, but
+	 * each row is only converted when the returned iterator reaches it, so
+	 * the results never have to fit in memory at once.
+	 * <p>
+	 * The iterator closes its Cursor after the last row; close() it yourself
+	 * if you stop early.
+	 * 
+	 * @param projection
+	 * @param selection
+	 * @param selectionArgs
+	 * @param sortOrder
+	 * @return a CursorIterator of TagsData objects
+	 * @throws RemoteException
+	 */
+	public CursorIterator<TagsData> iterateTagsData(final String[] projection,
+			final String selection, final String[] selectionArgs,
+			final String sortOrder) throws RemoteException {
+		// query the C.P.
+		Cursor result = providerQuery(tagsURI, projection, selection, selectionArgs,
+				sortOrder);
+		return TagsCreator.getTagsDataIteratorFromCursor(result);
+	}
+
 	/*
 	 * Update for each ORM Data Type
 	 */
@@ -270,7 +1335,8 @@ public class MoocResolver {
 	 */
 	public int updateStoryData(final StoryData values, final String selection,
 			final String[] selectionArgs) throws RemoteException {
-		return cr.update(storyURI, values.getCV(), selection, selectionArgs);
+		invalidate(storyCache);
+		return providerUpdate(storyURI, values.getCV(), selection, selectionArgs);
 	}
 
 	/**
@@ -285,7 +1351,8 @@ public class MoocResolver {
 	 */
 	public int updateTagsData(final TagsData values, final String selection,
 			final String[] selectionArgs) throws RemoteException {
-		return cr.update(tagsURI, values.getCV(), selection, selectionArgs);
+		invalidate(tagsCache);
+		return providerUpdate(tagsURI, values.getCV(), selection, selectionArgs);
 	}
 
 	/*
@@ -303,6 +1370,30 @@ public class MoocResolver {
 		return queryStoryData(null, null, null, null);
 	}
 
+	/**
+	 * Iterate over all the StoryData objects currently stored in the Content
+	 * Provider, without holding them all in memory (unlike getAllStoryData()).
+	 * 
+	 * @return a CursorIterator over all the StoryData objects
+	 * @throws RemoteException
+	 */
+	public CursorIterator<StoryData> iterateAllStoryData()
+			throws RemoteException {
+		return iterateStoryData(null, null, null, null);
+	}
+
+	/**
+	 * Iterate over all the TagsData objects currently stored in the Content
+	 * Provider, without holding them all in memory (unlike getAllTagsData()).
+	 * 
+	 * @return a CursorIterator over all the TagsData objects
+	 * @throws RemoteException
+	 */
+	public CursorIterator<TagsData> iterateAllTagsData()
+			throws RemoteException {
+		return iterateTagsData(null, null, null, null);
+	}
+
 	/**
 	 * Get all the TagsData objects currently stored in the Content Provider
 	 * 
@@ -322,10 +1413,22 @@ public class MoocResolver {
 	 */
 	public StoryData getStoryDataViaRowID(final long rowID)
 			throws RemoteException {
+		final RowIdCache<StoryData> cache = storyCache;
+		long generation = 0;
+		if (cache != null) {
+			StoryData cached = cache.getCopy(rowID);
+			if (cached != null) {
+				return cached;
+			}
+			generation = cache.generation();
+		}
 		String[] selectionArgs = { String.valueOf(rowID) };
 		ArrayList<StoryData> results = queryStoryData(null,
 				MoocSchema.Story.Cols.ID + "= ?", selectionArgs, null);
 		if (results.size() > 0) {
+			if (cache != null) {
+				cache.put(rowID, results.get(0), generation);
+			}
 			return results.get(0);
 		} else {
 			return null;
@@ -341,10 +1444,22 @@ public class MoocResolver {
 	 */
 	public TagsData getTagsDataViaRowID(final long rowID)
 			throws RemoteException {
+		final RowIdCache<TagsData> cache = tagsCache;
+		long generation = 0;
+		if (cache != null) {
+			TagsData cached = cache.getCopy(rowID);
+			if (cached != null) {
+				return cached;
+			}
+			generation = cache.generation();
+		}
 		String[] selectionArgs = { String.valueOf(rowID) };
 		ArrayList<TagsData> results = queryTagsData(null,
 				MoocSchema.Tags.Cols.ID + "= ?", selectionArgs, null);
 		if (results.size() > 0) {
+			if (cache != null) {
+				cache.put(rowID, results.get(0), generation);
+			}
 			return results.get(0);
 		} else {
 			return null;
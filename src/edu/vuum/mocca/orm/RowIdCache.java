@@ -0,0 +1,185 @@
+
+package edu.vuum.mocca.orm;
+
+import java.util.Collection;
+import java.util.List;
+
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+/**
+ * Bounded LRU cache of ORM objects by row ID, sized by the approximate number
+ * of bytes each object holds (so a few stories with a large BODY cannot push
+ * out everything else).
+ * <p>
+ * Callers get their own copy of a cached object, since the ORM classes have
+ * public mutable fields. Hit, miss and eviction counts are available from the
+ * LruCache methods (hitCount(), missCount(), evictionCount()...).
+ *
+ * @param <T>
+ *            the ORM type cached
+ */
+public abstract class RowIdCache<T> extends LruCache<Long, T> {
+
+	// approximate size of an object and its String headers, in bytes
+	private static final int OBJECT_OVERHEAD = 64;
+
+	// bumped on every invalidation, see put(long, Object, long)
+	private long generation = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxBytes
+	 *            approximate memory budget of the cache
+	 */
+	protected RowIdCache(int maxBytes) {
+		super(maxBytes);
+	}
+
+	/**
+	 * Approximate number of bytes held by the value.
+	 */
+	protected abstract int weightOf(T value);
+
+	/**
+	 * An independent copy of the value, including its row ID.
+	 */
+	protected abstract T copyOf(T value);
+
+	@Override
+	protected int sizeOf(Long key, T value) {
+		return weightOf(value);
+	}
+
+	/**
+	 * Get a copy of the cached object for a row ID.
+	 *
+	 * @param rowID
+	 * @return a copy of the cached object, or null on a miss
+	 */
+	public T getCopy(final long rowID) {
+		T value = get(rowID);
+		return (value == null) ? null : copyOf(value);
+	}
+
+	/**
+	 * The current generation, to read before querying the ContentProvider for
+	 * a value that will be put().
+	 *
+	 * @return the current generation
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Cache a copy of the value queried for a row ID, unless the cache was
+	 * invalidated since 'generation' was read (the value may be stale).
+	 *
+	 * @param rowID
+	 * @param value
+	 * @param generation
+	 *            generation() read before the query
+	 */
+	public synchronized void put(final long rowID, final T value,
+			final long generation) {
+		if (generation == this.generation) {
+			put(rowID, copyOf(value));
+		}
+	}
+
+	/**
+	 * Drop the entries affected by a change notification: only that row for
+	 * a single row URI (.../table/ID), everything otherwise.
+	 *
+	 * @param uri
+	 *            the changed URI, may be null
+	 */
+	public synchronized void invalidate(final Uri uri) {
+		generation++;
+		if (uri != null) {
+			List<String> segments = uri.getPathSegments();
+			if (segments.size() == 2) {
+				try {
+					remove(Long.valueOf(segments.get(1)));
+					return;
+				} catch (NumberFormatException e) {
+					// not a row URI, fall through
+				}
+			}
+		}
+		evictAll();
+	}
+
+	/**
+	 * Drop the entries of the given row IDs, e.g. the rows a change journal
+	 * lists as changed.
+	 *
+	 * @param rowIDs
+	 */
+	public synchronized void invalidate(final Collection<Long> rowIDs) {
+		generation++;
+		for (Long rowID : rowIDs) {
+			remove(rowID);
+		}
+	}
+
+	/**
+	 * Create a RowIdCache for StoryData.
+	 *
+	 * @param maxBytes
+	 *            approximate memory budget of the cache
+	 * @return the new RowIdCache
+	 */
+	public static RowIdCache<StoryData> forStory(int maxBytes) {
+		return new RowIdCache<StoryData>(maxBytes) {
+			@Override
+			protected int weightOf(StoryData value) {
+				// 14 fields plus 2 bytes per char of each String
+				return OBJECT_OVERHEAD * 9
+						+ 2
+						* (length(value.title) + length(value.body)
+								+ length(value.audioLink)
+								+ length(value.videoLink)
+								+ length(value.imageName)
+								+ length(value.imageLink) + length(value.tags));
+			}
+
+			@Override
+			protected StoryData copyOf(StoryData value) {
+				return new StoryData(value.KEY_ID, value.loginId,
+						value.storyId, value.title, value.body,
+						value.audioLink, value.videoLink, value.imageName,
+						value.imageLink, value.tags, value.creationTime,
+						value.storyTime, value.latitude, value.longitude);
+			}
+		};
+	}
+
+	/**
+	 * Create a RowIdCache for TagsData.
+	 *
+	 * @param maxBytes
+	 *            approximate memory budget of the cache
+	 * @return the new RowIdCache
+	 */
+	public static RowIdCache<TagsData> forTags(int maxBytes) {
+		return new RowIdCache<TagsData>(maxBytes) {
+			@Override
+			protected int weightOf(TagsData value) {
+				return OBJECT_OVERHEAD * 2 + 2 * length(value.tag);
+			}
+
+			@Override
+			protected TagsData copyOf(TagsData value) {
+				return new TagsData(value.KEY_ID, value.loginId,
+						value.storyId, value.tag);
+			}
+		};
+	}
+
+	private static int length(String value) {
+		return (value == null) ? 0 : value.length();
+	}
+}
@@ -0,0 +1,23 @@
+
+package edu.vuum.mocca.orm;
+
+/**
+ * Converts the current row of the Cursor it was created for into an ORM
+ * object.
+ * <p>
+ * Implementations look up the column indices once, when they are created, so
+ * mapping each row is only the typed reads off the Cursor. Create a new
+ * RowMapper for each Cursor.
+ * 
+ * @param <T>
+ *            the ORM type produced
+ */
+public interface RowMapper<T> {
+
+	/**
+	 * Build an object from the row the Cursor is currently positioned on.
+	 * 
+	 * @return the ORM object for the current row
+	 */
+	public T map();
+}
@@ -0,0 +1,472 @@
+
+package edu.vuum.mocca.orm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.vuum.mocca.orm.StorySnapshot.Histogram;
+
+/**
+ * Runs aggregates over a StorySnapshot on several threads.
+ * <p>
+ * The snapshot's rows are split into contiguous ranges, one task per range;
+ * each task folds its rows into its own accumulator with a Reducer, and the
+ * accumulators are then combined in range order. Since the split only
+ * depends on the snapshot size and the parallelism, and the combining order
+ * never depends on which task finished first, a given snapshot always gives
+ * the same result, whatever the thread count or scheduling.
+ * <p>
+ * Built-in Reducers count stories per login, per time bucket, per day, per
+ * geo cell and per tag; their accumulators are Counts, turned into a
+ * Histogram with Counts.toHistogram().
+ */
+public class StoryAggregator {
+
+	// below this many rows per task, splitting costs more than it saves
+	private static final int MIN_ROWS_PER_TASK = 1024;
+
+	/**
+	 * Folds rows into an accumulator of type A.
+	 *
+	 * @param <A>
+	 *            the accumulator type
+	 */
+	public interface Reducer<A> {
+		/**
+		 * @return a new, empty accumulator
+		 */
+		A create();
+
+		/**
+		 * Add one row of the snapshot to the accumulator.
+		 */
+		void accumulate(A accumulator, StorySnapshot snapshot, int row);
+
+		/**
+		 * Merge two accumulators, 'left' holding the earlier rows. May return
+		 * (and modify) either one.
+		 */
+		A combine(A left, A right);
+	}
+
+	private final ExecutorService executor;
+	private final int parallelism;
+	private final boolean ownsExecutor;
+
+	/**
+	 * Constructor, using one thread per available processor.
+	 */
+	public StoryAggregator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor, using a pool of the given number of threads.
+	 *
+	 * @param parallelism
+	 *            number of threads (and tasks) to split aggregates over
+	 */
+	public StoryAggregator(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+		this.executor = (this.parallelism > 1) ? Executors
+				.newFixedThreadPool(this.parallelism) : null;
+		this.ownsExecutor = true;
+	}
+
+	/**
+	 * Constructor, using an existing ExecutorService (not shut down by
+	 * shutdown()).
+	 *
+	 * @param executor
+	 * @param parallelism
+	 *            number of tasks to split aggregates into
+	 */
+	public StoryAggregator(ExecutorService executor, int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+		this.executor = executor;
+		this.ownsExecutor = false;
+	}
+
+	/**
+	 * @return number of tasks aggregates are split into
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Stop the thread pool created by this StoryAggregator.
+	 */
+	public void shutdown() {
+		if (ownsExecutor && executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Fold every row of the snapshot with the reducer.
+	 *
+	 * @param snapshot
+	 * @param reducer
+	 * @return the combined accumulator
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the tasks
+	 */
+	public <A> A aggregate(final StorySnapshot snapshot,
+			final Reducer<A> reducer) throws InterruptedException {
+		final int size = snapshot.size();
+		final int tasks = Math.max(1,
+				Math.min(parallelism, size / MIN_ROWS_PER_TASK));
+		if (tasks == 1 || executor == null) {
+			return fold(snapshot, reducer, 0, size);
+		}
+
+		final List<Future<A>> parts = new ArrayList<Future<A>>(tasks);
+		for (int task = 0; task < tasks; task++) {
+			final int from = (int) ((long) size * task / tasks);
+			final int to = (int) ((long) size * (task + 1) / tasks);
+			parts.add(executor.submit(new Callable<A>() {
+				@Override
+				public A call() {
+					return fold(snapshot, reducer, from, to);
+				}
+			}));
+		}
+
+		A rValue = null;
+		try {
+			for (Future<A> part : parts) {
+				rValue = (rValue == null) ? part.get() : reducer.combine(
+						rValue, part.get());
+			}
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			for (Future<A> part : parts) {
+				part.cancel(true);
+			}
+		}
+		return rValue;
+	}
+
+	private static <A> A fold(final StorySnapshot snapshot,
+			final Reducer<A> reducer, final int from, final int to) {
+		final A accumulator = reducer.create();
+		for (int row = from; row < to; row++) {
+			reducer.accumulate(accumulator, snapshot, row);
+		}
+		return accumulator;
+	}
+
+	/*
+	 * Built-in Reducers
+	 */
+
+	/**
+	 * Stories per LOGIN_ID.
+	 */
+	public static Reducer<Counts> perLogin() {
+		return new CountsReducer() {
+			@Override
+			public void accumulate(Counts counts, StorySnapshot snapshot,
+					int row) {
+				counts.add(snapshot.getLoginId(row), 1);
+			}
+		};
+	}
+
+	/**
+	 * Stories per fixed-size time bucket.
+	 *
+	 * @param timeColumn
+	 *            MoocSchema.Story.Cols.CREATION_TIME or STORY_TIME
+	 * @param bucketMillis
+	 *            bucket length; keys are floor(time / bucketMillis)
+	 */
+	public static Reducer<Counts> perTimeBucket(final String timeColumn,
+			final long bucketMillis) {
+		if (bucketMillis <= 0) {
+			throw new IllegalArgumentException("bucketMillis: " + bucketMillis);
+		}
+		return new CountsReducer() {
+			@Override
+			public void accumulate(Counts counts, StorySnapshot snapshot,
+					int row) {
+				final long time = snapshot.timeColumn(timeColumn)[row];
+				final long bucket = time / bucketMillis;
+				counts.add((time % bucketMillis < 0) ? bucket - 1 : bucket, 1);
+			}
+		};
+	}
+
+	/**
+	 * Stories per calendar day, see StorySnapshot.countByDay().
+	 *
+	 * @param timeColumn
+	 *            MoocSchema.Story.Cols.CREATION_TIME or STORY_TIME
+	 * @param timeZone
+	 *            where the days start and end
+	 */
+	public static Reducer<Counts> perDay(final String timeColumn,
+			final TimeZone timeZone) {
+		return new CountsReducer() {
+			@Override
+			public void accumulate(Counts counts, StorySnapshot snapshot,
+					int row) {
+				counts.add(StorySnapshot.dayOf(
+						snapshot.timeColumn(timeColumn)[row], timeZone), 1);
+			}
+		};
+	}
+
+	/**
+	 * Stories per square geo cell, keyed by geoCellKey().
+	 *
+	 * @param cellDegrees
+	 *            width and height of a cell, in degrees
+	 */
+	public static Reducer<Counts> perGeoCell(final double cellDegrees) {
+		if (cellDegrees <= 0) {
+			throw new IllegalArgumentException("cellDegrees: " + cellDegrees);
+		}
+		return new CountsReducer() {
+			@Override
+			public void accumulate(Counts counts, StorySnapshot snapshot,
+					int row) {
+				counts.add(
+						geoCellKey(snapshot.getLatitude(row),
+								snapshot.getLongitude(row), cellDegrees), 1);
+			}
+		};
+	}
+
+	/**
+	 * Key of the geo cell holding a location: the cell's row (from latitude
+	 * -90) in the high 32 bits, its column (from longitude -180) in the low
+	 * 32 bits.
+	 */
+	public static long geoCellKey(final double latitude,
+			final double longitude, final double cellDegrees) {
+		final long row = (long) Math.floor((latitude + 90) / cellDegrees);
+		final long column = (long) Math.floor((longitude + 180) / cellDegrees);
+		return (row << 32) | (column & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return the southern edge of a geoCellKey() cell
+	 */
+	public static double geoCellSouth(final long key, final double cellDegrees) {
+		return (key >> 32) * cellDegrees - 90;
+	}
+
+	/**
+	 * @return the western edge of a geoCellKey() cell
+	 */
+	public static double geoCellWest(final long key, final double cellDegrees) {
+		return ((int) key) * cellDegrees - 180;
+	}
+
+	/**
+	 * Stories per tag of their tags_table rows (the snapshot's TAG_LIST), as
+	 * MoocSchema.Story.TAGGED_URI matches them. Keys are indices into
+	 * TagReducer.getTag().
+	 *
+	 * @param snapshot
+	 *            the snapshot the reducer will be used with
+	 */
+	public static TagReducer perTag(final StorySnapshot snapshot) {
+		return new TagReducer(snapshot);
+	}
+
+	/**
+	 * Reducer counting stories per tag. The TAG_LIST of each dictionary code
+	 * is split once, up front, so rows are counted without parsing.
+	 */
+	public static class TagReducer extends CountsReducer {
+		private final ArrayList<String> tags = new ArrayList<String>();
+		// tag indices of each TAG_LIST dictionary code
+		private final int[][] tagsOfCode;
+
+		TagReducer(StorySnapshot snapshot) {
+			final HashMap<String, Integer> index = new HashMap<String, Integer>();
+			tagsOfCode = new int[snapshot.getTagListDictionarySize()][];
+			for (int code = 0; code < tagsOfCode.length; code++) {
+				final String value = snapshot.getTagListForCode(code);
+				final ArrayList<Integer> ids = new ArrayList<Integer>();
+				if (value != null) {
+					for (String tag : value.split(",")) {
+						tag = tag.trim();
+						if (tag.length() == 0) {
+							continue;
+						}
+						Integer id = index.get(tag);
+						if (id == null) {
+							id = Integer.valueOf(tags.size());
+							tags.add(tag);
+							index.put(tag, id);
+						}
+						if (ids.contains(id) == false) {
+							ids.add(id);
+						}
+					}
+				}
+				tagsOfCode[code] = new int[ids.size()];
+				for (int i = 0; i < ids.size(); i++) {
+					tagsOfCode[code][i] = ids.get(i).intValue();
+				}
+			}
+		}
+
+		@Override
+		public void accumulate(Counts counts, StorySnapshot snapshot, int row) {
+			for (int id : tagsOfCode[snapshot.getTagListCode(row)]) {
+				counts.add(id, 1);
+			}
+		}
+
+		/**
+		 * @param key
+		 *            a key of this reducer's Counts
+		 * @return the tag
+		 */
+		public String getTag(final long key) {
+			return tags.get((int) key);
+		}
+	}
+
+	/**
+	 * Base of the Reducers producing Counts.
+	 */
+	public abstract static class CountsReducer implements Reducer<Counts> {
+		@Override
+		public Counts create() {
+			return new Counts();
+		}
+
+		@Override
+		public Counts combine(Counts left, Counts right) {
+			left.addAll(right);
+			return left;
+		}
+	}
+
+	/**
+	 * Accumulator of counts per long key: an open-addressing hash table of
+	 * primitives, so adding to an existing key allocates nothing.
+	 */
+	public static class Counts {
+		private static final int EMPTY = 0;
+
+		private long[] keys = new long[64];
+		private int[] counts = new int[64];
+		// counts[i] == EMPTY marks a free slot, so keys with a count of 0 are
+		// never stored
+		private int size = 0;
+
+		/**
+		 * Add n (not negative) to the count of key.
+		 */
+		public void add(final long key, final int n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("n: " + n);
+			} else if (n == 0) {
+				return;
+			}
+			int slot = slot(keys, counts, key);
+			if (counts[slot] == EMPTY) {
+				if ((size + 1) * 2 > keys.length) {
+					grow();
+					slot = slot(keys, counts, key);
+				}
+				keys[slot] = key;
+				size++;
+			}
+			counts[slot] += n;
+		}
+
+		/**
+		 * Add every count of another Counts.
+		 */
+		public void addAll(final Counts other) {
+			for (int i = 0; i < other.keys.length; i++) {
+				if (other.counts[i] != EMPTY) {
+					add(other.keys[i], other.counts[i]);
+				}
+			}
+		}
+
+		/**
+		 * @return the count of key, 0 if never added
+		 */
+		public int get(final long key) {
+			return counts[slot(keys, counts, key)];
+		}
+
+		/**
+		 * @return number of distinct keys
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return the counts as a Histogram, keys in ascending order
+		 */
+		public Histogram toHistogram() {
+			final long[] sortedKeys = new long[size];
+			int index = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (counts[i] != EMPTY) {
+					sortedKeys[index++] = keys[i];
+				}
+			}
+			Arrays.sort(sortedKeys);
+			final int[] sortedCounts = new int[size];
+			for (int i = 0; i < size; i++) {
+				sortedCounts[i] = get(sortedKeys[i]);
+			}
+			return new Histogram(sortedKeys, sortedCounts);
+		}
+
+		private void grow() {
+			final long[] oldKeys = keys;
+			final int[] oldCounts = counts;
+			keys = new long[oldKeys.length * 2];
+			counts = new int[oldCounts.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldCounts[i] != EMPTY) {
+					final int slot = slot(keys, counts, oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+				}
+			}
+		}
+
+		/*
+		 * The slot holding key, or the free slot it would go in (linear
+		 * probing; the table is never more than half full).
+		 */
+		private static int slot(final long[] keys, final int[] counts,
+				final long key) {
+			final int mask = keys.length - 1;
+			long hash = key * 0x9E3779B97F4A7C15L;
+			int slot = (int) (hash ^ (hash >>> 32)) & mask;
+			while (counts[slot] != EMPTY && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+}
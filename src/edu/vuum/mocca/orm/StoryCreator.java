@@ -53,8 +53,10 @@ public class StoryCreator {
 		ArrayList<StoryData> rValue = new ArrayList<StoryData>();
 		if (cursor != null) {
 			if (cursor.moveToFirst()) {
+				// column indices are resolved once for the whole cursor
+				final StoryRowMapper mapper = new StoryRowMapper(cursor);
 				do {
-					rValue.add(getStoryDataFromCursor(cursor));
+					rValue.add(mapper.map());
 				} while (cursor.moveToNext() == true);
 			}
 		}
@@ -62,48 +64,31 @@ public class StoryCreator {
 	}
 
 	/**
-	 * Get the first StoryData from the passed in cursor.
+	 * Get a lazy Iterator over the StoryData of the passed in cursor. Rows are only
+	 * converted as they are reached, and the cursor is closed by the iterator
+	 * (at the end, or by calling its close()).
+	 * 
+	 * @param cursor
+	 *            passed in cursor, may be null
+	 * @return CursorIterator<StoryData\> over the rows of the cursor
+	 */
+	public static CursorIterator<StoryData> getStoryDataIteratorFromCursor(
+			Cursor cursor) {
+		return new CursorIterator<StoryData>(cursor, (cursor == null) ? null
+				: new StoryRowMapper(cursor));
+	}
+
+	/**
+	 * Get the StoryData at the current position of the passed in cursor.
+	 * <p>
+	 * When mapping several rows of the same cursor, use a StoryRowMapper instead,
+	 * so the column indices are looked up only once.
 	 * 
 	 * @param cursor
 	 *            passed in cursor
 	 * @return StoryData object
 	 */
 	public static StoryData getStoryDataFromCursor(Cursor cursor) {
-
-		long rowID = cursor.getLong(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.ID));
-		long loginId = cursor.getLong(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.LOGIN_ID));
-		long storyId = cursor.getLong(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.STORY_ID));
-		String title = cursor.getString(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.TITLE));
-		String body = cursor.getString(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.BODY));
-		String audioLink = cursor.getString(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.AUDIO_LINK));
-		String videoLink = cursor.getString(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.VIDEO_LINK));
-		String imageName = cursor.getString(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.IMAGE_NAME));
-		String imageMetaData = cursor.getString(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.IMAGE_LINK));
-		String tags = cursor.getString(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.TAGS));
-		long creationTime = cursor.getLong(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.CREATION_TIME));
-		long storyTime = cursor.getLong(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.STORY_TIME));
-		double latitude = cursor.getDouble(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.LATITUDE));
-		double longitude = cursor.getDouble(cursor
-				.getColumnIndex(MoocSchema.Story.Cols.LONGITUDE));
-
-		// construct the returned object
-		StoryData rValue = new StoryData(rowID, loginId, storyId, title, body,
-				audioLink, videoLink, imageName, imageMetaData, tags,
-				creationTime, storyTime, latitude, longitude);
-
-		return rValue;
+		return new StoryRowMapper(cursor).map();
 	}
 }
@@ -0,0 +1,78 @@
+
+package edu.vuum.mocca.orm;
+
+import android.database.Cursor;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * RowMapper for StoryData, resolving the column indices of the Cursor once.
+ * <p>
+ * Columns left out of the Cursor's projection are not read: the field gets -1
+ * for KEY_ID, 0 for numbers and null for Strings.
+ */
+public class StoryRowMapper implements RowMapper<StoryData> {
+
+	private final Cursor cursor;
+
+	private final int rowID;
+	private final int loginId;
+	private final int storyId;
+	private final int title;
+	private final int body;
+	private final int audioLink;
+	private final int videoLink;
+	private final int imageName;
+	private final int imageLink;
+	private final int tags;
+	private final int creationTime;
+	private final int storyTime;
+	private final int latitude;
+	private final int longitude;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param cursor
+	 *            the Cursor whose rows will be mapped
+	 */
+	public StoryRowMapper(Cursor cursor) {
+		this.cursor = cursor;
+		rowID = cursor.getColumnIndex(MoocSchema.Story.Cols.ID);
+		loginId = cursor.getColumnIndex(MoocSchema.Story.Cols.LOGIN_ID);
+		storyId = cursor.getColumnIndex(MoocSchema.Story.Cols.STORY_ID);
+		title = cursor.getColumnIndex(MoocSchema.Story.Cols.TITLE);
+		body = cursor.getColumnIndex(MoocSchema.Story.Cols.BODY);
+		audioLink = cursor.getColumnIndex(MoocSchema.Story.Cols.AUDIO_LINK);
+		videoLink = cursor.getColumnIndex(MoocSchema.Story.Cols.VIDEO_LINK);
+		imageName = cursor.getColumnIndex(MoocSchema.Story.Cols.IMAGE_NAME);
+		imageLink = cursor.getColumnIndex(MoocSchema.Story.Cols.IMAGE_LINK);
+		tags = cursor.getColumnIndex(MoocSchema.Story.Cols.TAGS);
+		creationTime = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.CREATION_TIME);
+		storyTime = cursor.getColumnIndex(MoocSchema.Story.Cols.STORY_TIME);
+		latitude = cursor.getColumnIndex(MoocSchema.Story.Cols.LATITUDE);
+		longitude = cursor.getColumnIndex(MoocSchema.Story.Cols.LONGITUDE);
+	}
+
+	@Override
+	public StoryData map() {
+		return new StoryData((rowID < 0) ? -1 : cursor.getLong(rowID),
+				getLong(loginId), getLong(storyId), getString(title),
+				getString(body), getString(audioLink), getString(videoLink),
+				getString(imageName), getString(imageLink), getString(tags),
+				getLong(creationTime), getLong(storyTime),
+				getDouble(latitude), getDouble(longitude));
+	}
+
+	private long getLong(int index) {
+		return (index < 0) ? 0 : cursor.getLong(index);
+	}
+
+	private double getDouble(int index) {
+		return (index < 0) ? 0 : cursor.getDouble(index);
+	}
+
+	private String getString(int index) {
+		return (index < 0) ? null : cursor.getString(index);
+	}
+}
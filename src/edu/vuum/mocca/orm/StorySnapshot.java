@@ -0,0 +1,520 @@
+
+package edu.vuum.mocca.orm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+import android.database.Cursor;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * Read-only, column-oriented copy of the story table for analytics scans.
+ * <p>
+ * Each numeric column is held in one primitive array (long[] or double[])
+ * indexed by row, and TAGS and TAG_LIST are dictionary-encoded: an int code
+ * per row into a table of the distinct values. Scanning the snapshot, through the per-row
+ * accessors, scan() or the built-in aggregates, therefore allocates nothing
+ * per row, unlike a list with one StoryData per story. The aggregates only
+ * allocate their (per-key) results and one scratch array.
+ * <p>
+ * A snapshot does not follow later changes to the ContentProvider; build a
+ * new one (MoocResolver.getStorySnapshot()) when they matter.
+ */
+public class StorySnapshot {
+
+	/**
+	 * The columns a snapshot is built from, queried from
+	 * MoocSchema.Story.TAGGED_URI: TAG_LIST holds the story's tags_table
+	 * rows, TAGS the free-form string stored with the story.
+	 */
+	public static final String[] PROJECTION = { MoocSchema.Story.Cols.ID,
+			MoocSchema.Story.Cols.LOGIN_ID, MoocSchema.Story.Cols.STORY_ID,
+			MoocSchema.Story.Cols.TAGS, MoocSchema.Story.TAG_LIST,
+			MoocSchema.Story.Cols.CREATION_TIME,
+			MoocSchema.Story.Cols.STORY_TIME, MoocSchema.Story.Cols.LATITUDE,
+			MoocSchema.Story.Cols.LONGITUDE };
+
+	/**
+	 * loginId argument of the aggregates meaning every login.
+	 */
+	public static final long ALL_LOGINS = Long.MIN_VALUE;
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Visitor of the rows of a snapshot, see scan().
+	 */
+	public interface RowVisitor {
+		/**
+		 * Called once per row, read its values with the snapshot's accessors.
+		 *
+		 * @param snapshot
+		 * @param row
+		 *            index of the row, from 0 to size() - 1
+		 */
+		void visit(StorySnapshot snapshot, int row);
+	}
+
+	/**
+	 * Counts per key of an aggregate, keys in ascending order.
+	 */
+	public static class Histogram {
+		public final long[] keys;
+		public final int[] counts;
+
+		Histogram(long[] keys, int[] counts) {
+			this.keys = keys;
+			this.counts = counts;
+		}
+
+		/**
+		 * @return number of distinct keys
+		 */
+		public int size() {
+			return keys.length;
+		}
+
+		/**
+		 * @param key
+		 * @return the count for the key, 0 if it does not occur
+		 */
+		public int countOf(final long key) {
+			final int index = Arrays.binarySearch(keys, key);
+			return (index < 0) ? 0 : counts[index];
+		}
+
+		/**
+		 * @return sum of all the counts
+		 */
+		public long total() {
+			long total = 0;
+			for (int count : counts) {
+				total += count;
+			}
+			return total;
+		}
+	}
+
+	private final int size;
+	private final long[] rowId;
+	private final long[] loginId;
+	private final long[] storyId;
+	private final long[] creationTime;
+	private final long[] storyTime;
+	private final double[] latitude;
+	private final double[] longitude;
+	// TAGS: code per row, and the value of each code (code 0 is null)
+	private final int[] tagsCode;
+	private final String[] tagsDictionary;
+	// TAG_LIST, likewise
+	private final int[] tagListCode;
+	private final String[] tagListDictionary;
+
+	private StorySnapshot(long[] rowId, long[] loginId, long[] storyId,
+			long[] creationTime, long[] storyTime, double[] latitude,
+			double[] longitude, int[] tagsCode, String[] tagsDictionary,
+			int[] tagListCode, String[] tagListDictionary) {
+		this.size = rowId.length;
+		this.rowId = rowId;
+		this.loginId = loginId;
+		this.storyId = storyId;
+		this.creationTime = creationTime;
+		this.storyTime = storyTime;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.tagsCode = tagsCode;
+		this.tagsDictionary = tagsDictionary;
+		this.tagListCode = tagListCode;
+		this.tagListDictionary = tagListDictionary;
+	}
+
+	/**
+	 * Build a snapshot from every row of a Cursor holding the PROJECTION
+	 * columns. Missing columns read as 0 (null for TAGS and TAG_LIST). The
+	 * Cursor is not closed.
+	 *
+	 * @param cursor
+	 *            may be null (empty snapshot)
+	 * @return the new StorySnapshot
+	 */
+	public static StorySnapshot fromCursor(final Cursor cursor) {
+		final int size = (cursor == null) ? 0 : cursor.getCount();
+		final long[] rowId = new long[size];
+		final long[] loginId = new long[size];
+		final long[] storyId = new long[size];
+		final long[] creationTime = new long[size];
+		final long[] storyTime = new long[size];
+		final double[] latitude = new double[size];
+		final double[] longitude = new double[size];
+		final int[] tagsCode = new int[size];
+		final Dictionary dictionary = new Dictionary();
+		final int[] tagListCode = new int[size];
+		final Dictionary tagListDictionary = new Dictionary();
+		if (cursor == null || cursor.moveToFirst() == false) {
+			return new StorySnapshot(rowId, loginId, storyId, creationTime,
+					storyTime, latitude, longitude, tagsCode,
+					dictionary.toArray(), tagListCode,
+					tagListDictionary.toArray());
+		}
+
+		final int rowIdIndex = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.ID);
+		final int loginIdIndex = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.LOGIN_ID);
+		final int storyIdIndex = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.STORY_ID);
+		final int tagsIndex = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.TAGS);
+		final int tagListIndex = cursor
+				.getColumnIndex(MoocSchema.Story.TAG_LIST);
+		final int creationTimeIndex = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.CREATION_TIME);
+		final int storyTimeIndex = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.STORY_TIME);
+		final int latitudeIndex = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.LATITUDE);
+		final int longitudeIndex = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.LONGITUDE);
+
+		int row = 0;
+		do {
+			rowId[row] = getLong(cursor, rowIdIndex);
+			loginId[row] = getLong(cursor, loginIdIndex);
+			storyId[row] = getLong(cursor, storyIdIndex);
+			creationTime[row] = getLong(cursor, creationTimeIndex);
+			storyTime[row] = getLong(cursor, storyTimeIndex);
+			latitude[row] = getDouble(cursor, latitudeIndex);
+			longitude[row] = getDouble(cursor, longitudeIndex);
+			tagsCode[row] = dictionary.codeOf((tagsIndex < 0) ? null
+					: cursor.getString(tagsIndex));
+			tagListCode[row] = tagListDictionary.codeOf((tagListIndex < 0) ? null
+					: cursor.getString(tagListIndex));
+			row++;
+		} while (row < size && cursor.moveToNext());
+		return new StorySnapshot(rowId, loginId, storyId, creationTime,
+				storyTime, latitude, longitude, tagsCode, dictionary.toArray(),
+				tagListCode, tagListDictionary.toArray());
+	}
+
+	/*
+	 * Growable table of the distinct values of a String column, code 0
+	 * reserved for null.
+	 */
+	private static class Dictionary {
+		private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		private String[] values = new String[16];
+		private int size = 1;
+
+		/*
+		 * The code of the value, added if it is new.
+		 */
+		int codeOf(final String value) {
+			if (value == null) {
+				return 0;
+			}
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = Integer.valueOf(add(value));
+				codes.put(value, code);
+			}
+			return code.intValue();
+		}
+
+		private int add(final String value) {
+			if (size == values.length) {
+				final String[] grown = new String[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size] = value;
+			return size++;
+		}
+
+		String[] toArray() {
+			final String[] rValue = new String[size];
+			System.arraycopy(values, 0, rValue, 0, size);
+			return rValue;
+		}
+	}
+
+	private static long getLong(final Cursor cursor, final int index) {
+		return (index < 0) ? 0 : cursor.getLong(index);
+	}
+
+	private static double getDouble(final Cursor cursor, final int index) {
+		return (index < 0) ? 0 : cursor.getDouble(index);
+	}
+
+	/*
+	 * Per-row accessors
+	 */
+
+	/**
+	 * @return number of rows (stories)
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long getRowId(final int row) {
+		return rowId[row];
+	}
+
+	public long getLoginId(final int row) {
+		return loginId[row];
+	}
+
+	public long getStoryId(final int row) {
+		return storyId[row];
+	}
+
+	public long getCreationTime(final int row) {
+		return creationTime[row];
+	}
+
+	public long getStoryTime(final int row) {
+		return storyTime[row];
+	}
+
+	public double getLatitude(final int row) {
+		return latitude[row];
+	}
+
+	public double getLongitude(final int row) {
+		return longitude[row];
+	}
+
+	/**
+	 * @param row
+	 * @return dictionary code of the row's TAGS, 0 for null
+	 */
+	public int getTagsCode(final int row) {
+		return tagsCode[row];
+	}
+
+	/**
+	 * @param row
+	 * @return the row's TAGS (shared with every row with the same value)
+	 */
+	public String getTags(final int row) {
+		return tagsDictionary[tagsCode[row]];
+	}
+
+	/**
+	 * @return number of TAGS dictionary codes, including 0 (null)
+	 */
+	public int getTagsDictionarySize() {
+		return tagsDictionary.length;
+	}
+
+	/**
+	 * @param code
+	 * @return the TAGS value of a dictionary code
+	 */
+	public String getTagsForCode(final int code) {
+		return tagsDictionary[code];
+	}
+
+	/**
+	 * @param row
+	 * @return dictionary code of the row's TAG_LIST, 0 for null (no tags)
+	 */
+	public int getTagListCode(final int row) {
+		return tagListCode[row];
+	}
+
+	/**
+	 * @return number of TAG_LIST dictionary codes, including 0 (null)
+	 */
+	public int getTagListDictionarySize() {
+		return tagListDictionary.length;
+	}
+
+	/**
+	 * @param code
+	 * @return the TAG_LIST value of a dictionary code
+	 */
+	public String getTagListForCode(final int code) {
+		return tagListDictionary[code];
+	}
+
+	/**
+	 * @param tags
+	 *            a TAGS value
+	 * @return its dictionary code, or -1 if no row has it
+	 */
+	public int getCodeForTags(final String tags) {
+		if (tags == null) {
+			return 0;
+		}
+		for (int code = 1; code < tagsDictionary.length; code++) {
+			if (tags.equals(tagsDictionary[code])) {
+				return code;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Scans and aggregates
+	 */
+
+	/**
+	 * Visit every row, in order.
+	 *
+	 * @param visitor
+	 */
+	public void scan(final RowVisitor visitor) {
+		scan(visitor, 0, size);
+	}
+
+	/**
+	 * Visit the rows from 'from' (inclusive) to 'to' (exclusive), in order.
+	 *
+	 * @param visitor
+	 * @param from
+	 * @param to
+	 */
+	public void scan(final RowVisitor visitor, final int from, final int to) {
+		for (int row = from; row < to; row++) {
+			visitor.visit(this, row);
+		}
+	}
+
+	/**
+	 * Number of stories per day of CREATION_TIME or STORY_TIME.
+	 *
+	 * @param timeColumn
+	 *            MoocSchema.Story.Cols.CREATION_TIME or STORY_TIME
+	 * @param timeZone
+	 *            where the days start and end
+	 * @param loginId
+	 *            only count this login's stories, or ALL_LOGINS
+	 * @return Histogram keyed by day number (days since 1970-01-01 in
+	 *         timeZone)
+	 */
+	public Histogram countByDay(final String timeColumn,
+			final TimeZone timeZone, final long loginId) {
+		final long[] times = timeColumn(timeColumn);
+		final long[] days = new long[size];
+		int count = 0;
+		for (int row = 0; row < size; row++) {
+			if (loginId == ALL_LOGINS || this.loginId[row] == loginId) {
+				days[count++] = dayOf(times[row], timeZone);
+			}
+		}
+		return histogram(days, count);
+	}
+
+	/**
+	 * Number of stories per login.
+	 *
+	 * @return Histogram keyed by LOGIN_ID
+	 */
+	public Histogram countByLogin() {
+		final long[] logins = new long[size];
+		System.arraycopy(loginId, 0, logins, 0, size);
+		return histogram(logins, size);
+	}
+
+	/**
+	 * Number of stories per TAGS value.
+	 *
+	 * @return Histogram keyed by TAGS dictionary code (see getTagsForCode())
+	 */
+	public Histogram countByTags() {
+		final int[] counts = new int[tagsDictionary.length];
+		for (int row = 0; row < size; row++) {
+			counts[tagsCode[row]]++;
+		}
+		int distinct = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				distinct++;
+			}
+		}
+		final long[] keys = new long[distinct];
+		final int[] values = new int[distinct];
+		int index = 0;
+		for (int code = 0; code < counts.length; code++) {
+			if (counts[code] > 0) {
+				keys[index] = code;
+				values[index] = counts[code];
+				index++;
+			}
+		}
+		return new Histogram(keys, values);
+	}
+
+	/**
+	 * Bounding box of the story locations.
+	 *
+	 * @param loginId
+	 *            only this login's stories, or ALL_LOGINS
+	 * @return { minLatitude, maxLatitude, minLongitude, maxLongitude }, or
+	 *         null if there is no such story
+	 */
+	public double[] boundingBox(final long loginId) {
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		boolean found = false;
+		for (int row = 0; row < size; row++) {
+			if (loginId == ALL_LOGINS || this.loginId[row] == loginId) {
+				found = true;
+				minLat = Math.min(minLat, latitude[row]);
+				maxLat = Math.max(maxLat, latitude[row]);
+				minLon = Math.min(minLon, longitude[row]);
+				maxLon = Math.max(maxLon, longitude[row]);
+			}
+		}
+		return found ? new double[] { minLat, maxLat, minLon, maxLon } : null;
+	}
+
+	/*
+	 * The time column with the given MoocSchema.Story.Cols name.
+	 */
+	long[] timeColumn(final String column) {
+		if (MoocSchema.Story.Cols.CREATION_TIME.equals(column)) {
+			return creationTime;
+		} else if (MoocSchema.Story.Cols.STORY_TIME.equals(column)) {
+			return storyTime;
+		}
+		throw new IllegalArgumentException("Not a time column: " + column);
+	}
+
+	/*
+	 * Day number (days since 1970-01-01, in timeZone) of a time in millis.
+	 */
+	static long dayOf(final long millis, final TimeZone timeZone) {
+		final long local = millis + timeZone.getOffset(millis);
+		// floor division, for times before 1970
+		final long day = local / MILLIS_PER_DAY;
+		return (local % MILLIS_PER_DAY < 0) ? day - 1 : day;
+	}
+
+	/*
+	 * Histogram of the first 'count' values, which are sorted in place.
+	 */
+	static Histogram histogram(final long[] values, final int count) {
+		Arrays.sort(values, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || values[i] != values[i - 1]) {
+				distinct++;
+			}
+		}
+		final long[] keys = new long[distinct];
+		final int[] counts = new int[distinct];
+		int index = -1;
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || values[i] != values[i - 1]) {
+				keys[++index] = values[i];
+			}
+			counts[index]++;
+		}
+		return new Histogram(keys, counts);
+	}
+}
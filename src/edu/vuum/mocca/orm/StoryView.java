@@ -0,0 +1,215 @@
+
+package edu.vuum.mocca.orm;
+
+import java.util.ArrayList;
+
+import android.os.RemoteException;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * Lightweight, read-only view of a stored story, for list screens.
+ * <p>
+ * Only the small columns of PROJECTION (plus any extra columns asked for in
+ * the query) are read up front. The potentially large ones, BODY and the
+ * media link Strings, are queried from the ContentProvider for this row the
+ * first time their getter is called, so a list showing titles and times never
+ * reads a BODY. Lazy getters run a query, so call them off the UI thread, or
+ * call hydrate() once to load every remaining column in one query.
+ * <p>
+ * Instances are created by MoocResolver.queryStoryViews() and
+ * iterateStoryViews().
+ */
+public class StoryView {
+
+	/**
+	 * The columns every StoryView is queried with.
+	 */
+	public static final String[] PROJECTION = { MoocSchema.Story.Cols.ID,
+			MoocSchema.Story.Cols.LOGIN_ID, MoocSchema.Story.Cols.STORY_ID,
+			MoocSchema.Story.Cols.TITLE, MoocSchema.Story.Cols.CREATION_TIME,
+			MoocSchema.Story.Cols.STORY_TIME, MoocSchema.Story.Cols.LATITUDE,
+			MoocSchema.Story.Cols.LONGITUDE };
+
+	/**
+	 * The columns loaded on first access, unless the query asked for them.
+	 */
+	public static final String[] LAZY_COLUMNS = { MoocSchema.Story.Cols.BODY,
+			MoocSchema.Story.Cols.AUDIO_LINK, MoocSchema.Story.Cols.VIDEO_LINK,
+			MoocSchema.Story.Cols.IMAGE_NAME, MoocSchema.Story.Cols.IMAGE_LINK,
+			MoocSchema.Story.Cols.TAGS };
+
+	// indices into LAZY_COLUMNS
+	private static final int BODY = 0;
+	private static final int AUDIO_LINK = 1;
+	private static final int VIDEO_LINK = 2;
+	private static final int IMAGE_NAME = 3;
+	private static final int IMAGE_LINK = 4;
+	private static final int TAGS = 5;
+
+	private final MoocResolver resolver;
+
+	public final long KEY_ID;
+	public final long loginId;
+	public final long storyId;
+	public final String title;
+	public final long creationTime;
+	public final long storyTime;
+	public final double latitude;
+	public final double longitude;
+
+	// values of LAZY_COLUMNS, valid where loaded[] is true
+	private final String[] lazyValues = new String[LAZY_COLUMNS.length];
+	private final boolean[] loaded = new boolean[LAZY_COLUMNS.length];
+
+	/**
+	 * Constructor, see StoryViewRowMapper.
+	 *
+	 * @param resolver
+	 *            MoocResolver the lazy columns are queried through
+	 */
+	StoryView(MoocResolver resolver, long KEY_ID, long loginId, long storyId,
+			String title, long creationTime, long storyTime, double latitude,
+			double longitude) {
+		this.resolver = resolver;
+		this.KEY_ID = KEY_ID;
+		this.loginId = loginId;
+		this.storyId = storyId;
+		this.title = title;
+		this.creationTime = creationTime;
+		this.storyTime = storyTime;
+		this.latitude = latitude;
+		this.longitude = longitude;
+	}
+
+	/*
+	 * Set the value of LAZY_COLUMNS[index], read with the rest of the row.
+	 */
+	void preload(final int index, final String value) {
+		lazyValues[index] = value;
+		loaded[index] = true;
+	}
+
+	public String getBody() throws RemoteException {
+		return lazy(BODY);
+	}
+
+	public String getAudioLink() throws RemoteException {
+		return lazy(AUDIO_LINK);
+	}
+
+	public String getVideoLink() throws RemoteException {
+		return lazy(VIDEO_LINK);
+	}
+
+	public String getImageName() throws RemoteException {
+		return lazy(IMAGE_NAME);
+	}
+
+	public String getImageLink() throws RemoteException {
+		return lazy(IMAGE_LINK);
+	}
+
+	public String getTags() throws RemoteException {
+		return lazy(TAGS);
+	}
+
+	/**
+	 * If the column has been read (with the row or by a lazy getter).
+	 *
+	 * @param column
+	 *            one of LAZY_COLUMNS
+	 * @return if the column's getter returns without a query
+	 */
+	public synchronized boolean isLoaded(final String column) {
+		for (int i = 0; i < LAZY_COLUMNS.length; i++) {
+			if (LAZY_COLUMNS[i].equals(column)) {
+				return loaded[i];
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Load every column not read yet, in a single query.
+	 *
+	 * @throws RemoteException
+	 */
+	public synchronized void hydrate() throws RemoteException {
+		final ArrayList<String> columns = new ArrayList<String>();
+		for (int i = 0; i < LAZY_COLUMNS.length; i++) {
+			if (loaded[i] == false) {
+				columns.add(LAZY_COLUMNS[i]);
+			}
+		}
+		if (columns.isEmpty() == false) {
+			load(columns.toArray(new String[columns.size()]));
+		}
+	}
+
+	/**
+	 * The full StoryData of this story, hydrating it first.
+	 *
+	 * @return a new StoryData
+	 * @throws RemoteException
+	 */
+	public synchronized StoryData toStoryData() throws RemoteException {
+		hydrate();
+		return new StoryData(KEY_ID, loginId, storyId, title,
+				lazyValues[BODY], lazyValues[AUDIO_LINK],
+				lazyValues[VIDEO_LINK], lazyValues[IMAGE_NAME],
+				lazyValues[IMAGE_LINK], lazyValues[TAGS], creationTime,
+				storyTime, latitude, longitude);
+	}
+
+	@Override
+	public String toString() {
+		return "StoryView [KEY_ID=" + KEY_ID + ", loginId=" + loginId
+				+ ", storyId=" + storyId + ", title=" + title
+				+ ", creationTime=" + creationTime + ", storyTime="
+				+ storyTime + ", latitude=" + latitude + ", longitude="
+				+ longitude + "]";
+	}
+
+	private synchronized String lazy(final int index) throws RemoteException {
+		if (loaded[index] == false) {
+			load(new String[] { LAZY_COLUMNS[index] });
+		}
+		return lazyValues[index];
+	}
+
+	/*
+	 * Query the given LAZY_COLUMNS of this row. A row deleted since the view
+	 * was read leaves them null.
+	 */
+	private void load(final String[] columns) throws RemoteException {
+		final ArrayList<StoryData> rows = resolver.queryStoryData(columns,
+				MoocSchema.Story.Cols.ID + " = ?",
+				new String[] { String.valueOf(KEY_ID) }, null);
+		final StoryData row = rows.isEmpty() ? null : rows.get(0);
+		for (int i = 0; i < LAZY_COLUMNS.length; i++) {
+			for (String column : columns) {
+				if (LAZY_COLUMNS[i].equals(column)) {
+					lazyValues[i] = (row == null) ? null : valueOf(row, i);
+					loaded[i] = true;
+				}
+			}
+		}
+	}
+
+	private static String valueOf(final StoryData row, final int index) {
+		switch (index) {
+		case BODY:
+			return row.body;
+		case AUDIO_LINK:
+			return row.audioLink;
+		case VIDEO_LINK:
+			return row.videoLink;
+		case IMAGE_NAME:
+			return row.imageName;
+		case IMAGE_LINK:
+			return row.imageLink;
+		default:
+			return row.tags;
+		}
+	}
+}
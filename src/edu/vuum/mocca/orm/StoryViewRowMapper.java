@@ -0,0 +1,76 @@
+
+package edu.vuum.mocca.orm;
+
+import android.database.Cursor;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * RowMapper for StoryView, resolving the column indices of the Cursor once.
+ * <p>
+ * The Cursor should hold StoryView.PROJECTION; any of StoryView.LAZY_COLUMNS
+ * it also holds are preloaded into the view instead of being queried later.
+ */
+public class StoryViewRowMapper implements RowMapper<StoryView> {
+
+	private final Cursor cursor;
+	private final MoocResolver resolver;
+
+	private final int rowID;
+	private final int loginId;
+	private final int storyId;
+	private final int title;
+	private final int creationTime;
+	private final int storyTime;
+	private final int latitude;
+	private final int longitude;
+	// index in the Cursor of each StoryView.LAZY_COLUMNS, -1 if not there
+	private final int[] lazy = new int[StoryView.LAZY_COLUMNS.length];
+
+	/**
+	 * Constructor
+	 *
+	 * @param cursor
+	 *            the Cursor whose rows will be mapped
+	 * @param resolver
+	 *            MoocResolver the views load their lazy columns through
+	 */
+	public StoryViewRowMapper(Cursor cursor, MoocResolver resolver) {
+		this.cursor = cursor;
+		this.resolver = resolver;
+		rowID = cursor.getColumnIndex(MoocSchema.Story.Cols.ID);
+		loginId = cursor.getColumnIndex(MoocSchema.Story.Cols.LOGIN_ID);
+		storyId = cursor.getColumnIndex(MoocSchema.Story.Cols.STORY_ID);
+		title = cursor.getColumnIndex(MoocSchema.Story.Cols.TITLE);
+		creationTime = cursor
+				.getColumnIndex(MoocSchema.Story.Cols.CREATION_TIME);
+		storyTime = cursor.getColumnIndex(MoocSchema.Story.Cols.STORY_TIME);
+		latitude = cursor.getColumnIndex(MoocSchema.Story.Cols.LATITUDE);
+		longitude = cursor.getColumnIndex(MoocSchema.Story.Cols.LONGITUDE);
+		for (int i = 0; i < lazy.length; i++) {
+			lazy[i] = cursor.getColumnIndex(StoryView.LAZY_COLUMNS[i]);
+		}
+	}
+
+	@Override
+	public StoryView map() {
+		final StoryView view = new StoryView(resolver,
+				(rowID < 0) ? -1 : cursor.getLong(rowID), getLong(loginId),
+				getLong(storyId), (title < 0) ? null : cursor.getString(title),
+				getLong(creationTime), getLong(storyTime),
+				getDouble(latitude), getDouble(longitude));
+		for (int i = 0; i < lazy.length; i++) {
+			if (lazy[i] >= 0) {
+				view.preload(i, cursor.getString(lazy[i]));
+			}
+		}
+		return view;
+	}
+
+	private long getLong(int index) {
+		return (index < 0) ? 0 : cursor.getLong(index);
+	}
+
+	private double getDouble(int index) {
+		return (index < 0) ? 0 : cursor.getDouble(index);
+	}
+}
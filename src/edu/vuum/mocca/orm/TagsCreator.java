@@ -43,8 +43,10 @@ public class TagsCreator {
 		ArrayList<TagsData> rValue = new ArrayList<TagsData>();
 		if (cursor != null) {
 			if (cursor.moveToFirst()) {
+				// column indices are resolved once for the whole cursor
+				final TagsRowMapper mapper = new TagsRowMapper(cursor);
 				do {
-					rValue.add(getTagsDataFromCursor(cursor));
+					rValue.add(mapper.map());
 				} while (cursor.moveToNext() == true);
 			}
 		}
@@ -52,26 +54,31 @@ public class TagsCreator {
 	}
 
 	/**
-	 * Get the first TagsData from the passed in cursor.
+	 * Get a lazy Iterator over the TagsData of the passed in cursor. Rows are only
+	 * converted as they are reached, and the cursor is closed by the iterator
+	 * (at the end, or by calling its close()).
+	 * 
+	 * @param cursor
+	 *            passed in cursor, may be null
+	 * @return CursorIterator<TagsData\> over the rows of the cursor
+	 */
+	public static CursorIterator<TagsData> getTagsDataIteratorFromCursor(
+			Cursor cursor) {
+		return new CursorIterator<TagsData>(cursor, (cursor == null) ? null
+				: new TagsRowMapper(cursor));
+	}
+
+	/**
+	 * Get the TagsData at the current position of the passed in cursor.
+	 * <p>
+	 * When mapping several rows of the same cursor, use a TagsRowMapper instead,
+	 * so the column indices are looked up only once.
 	 * 
 	 * @param cursor
 	 *            passed in cursor
 	 * @return TagsData object
 	 */
 	public static TagsData getTagsDataFromCursor(Cursor cursor) {
-
-		long rowID = cursor.getLong(cursor
-				.getColumnIndex(MoocSchema.Tags.Cols.ID));
-		long loginId = cursor.getLong(cursor
-				.getColumnIndex(MoocSchema.Tags.Cols.LOGIN_ID));
-		long storyId = cursor.getLong(cursor
-				.getColumnIndex(MoocSchema.Tags.Cols.STORY_ID));
-		String tag = cursor.getString(cursor
-				.getColumnIndex(MoocSchema.Tags.Cols.TAG));
-
-		// construct the returned object
-		TagsData rValue = new TagsData(rowID, loginId, storyId, tag);
-
-		return rValue;
+		return new TagsRowMapper(cursor).map();
 	}
 }
@@ -0,0 +1,43 @@
+
+package edu.vuum.mocca.orm;
+
+import android.database.Cursor;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * RowMapper for TagsData, resolving the column indices of the Cursor once.
+ * <p>
+ * Columns left out of the Cursor's projection are not read: the field gets -1
+ * for KEY_ID, 0 for numbers and null for Strings.
+ */
+public class TagsRowMapper implements RowMapper<TagsData> {
+
+	private final Cursor cursor;
+
+	private final int rowID;
+	private final int loginId;
+	private final int storyId;
+	private final int tag;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param cursor
+	 *            the Cursor whose rows will be mapped
+	 */
+	public TagsRowMapper(Cursor cursor) {
+		this.cursor = cursor;
+		rowID = cursor.getColumnIndex(MoocSchema.Tags.Cols.ID);
+		loginId = cursor.getColumnIndex(MoocSchema.Tags.Cols.LOGIN_ID);
+		storyId = cursor.getColumnIndex(MoocSchema.Tags.Cols.STORY_ID);
+		tag = cursor.getColumnIndex(MoocSchema.Tags.Cols.TAG);
+	}
+
+	@Override
+	public TagsData map() {
+		return new TagsData((rowID < 0) ? -1 : cursor.getLong(rowID),
+				(loginId < 0) ? 0 : cursor.getLong(loginId),
+				(storyId < 0) ? 0 : cursor.getLong(storyId),
+				(tag < 0) ? null : cursor.getString(tag));
+	}
+}
@@ -0,0 +1,236 @@
+
+package edu.vuum.mocca.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Coalesces the change notifications sent by MoocProvider.
+ * <p>
+ * Instead of one ContentResolver.notifyChange() per written row, changed URIs
+ * are buffered, either until the batch running on the writing thread
+ * completes (beginBatch()/endBatch()) or, outside a batch, for a short time
+ * window. The buffered URIs are then reduced to the narrowest URI covering
+ * them per table (a single row's URI if only that row changed, otherwise the
+ * longest common path, e.g. the table's CONTENT_URI) and each is sent once.
+ * Observers of a row URI are still notified through its table URI.
+ * <p>
+ * Counts of requested and dispatched notifications are kept so the saving can
+ * be measured.
+ */
+public class ChangeNotifier {
+
+    private static final String LOG_TAG = ChangeNotifier.class
+            .getCanonicalName();
+
+    private final ContentResolver mResolver;
+    private final long mWindowMillis;
+    private final Handler mHandler;
+
+    // URIs changed by the batch running on this thread, null if no batch is
+    // running
+    private final ThreadLocal<Set<Uri>> mBatch = new ThreadLocal<Set<Uri>>();
+
+    // URIs changed outside a batch, waiting for the window to close
+    private final Set<Uri> mPending = new LinkedHashSet<Uri>();
+    private boolean mFlushScheduled = false;
+
+    private final AtomicLong mRequested = new AtomicLong();
+    private final AtomicLong mDispatched = new AtomicLong();
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param resolver
+     *            the ContentResolver to send notifications with
+     * @param windowMillis
+     *            how long notifications outside a batch are buffered, 0 to
+     *            send them immediately
+     */
+    public ChangeNotifier(ContentResolver resolver, long windowMillis) {
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+        mHandler = (windowMillis > 0) ? new Handler(Looper.getMainLooper())
+                : null;
+    }
+
+    /**
+     * Record a change to the given URI.
+     *
+     * @param uri
+     */
+    public void notifyChange(final Uri uri) {
+        mRequested.incrementAndGet();
+        final Set<Uri> batch = mBatch.get();
+        if (batch != null) {
+            batch.add(uri);
+            return;
+        }
+        if (mHandler == null) {
+            dispatch(uri);
+            return;
+        }
+        synchronized (this) {
+            mPending.add(uri);
+            if (mFlushScheduled == false) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlush, mWindowMillis);
+            }
+        }
+    }
+
+    /**
+     * Start buffering the changes made by this thread. Batches may nest, only
+     * the outermost one (the call that returned true) must call endBatch().
+     *
+     * @return true if this call started the batch
+     */
+    public boolean beginBatch() {
+        if (mBatch.get() != null) {
+            return false;
+        }
+        mBatch.set(new LinkedHashSet<Uri>());
+        return true;
+    }
+
+    /**
+     * End this thread's batch, sending its coalesced changes if it was
+     * committed, or dropping them if it was rolled back.
+     *
+     * @param committed
+     */
+    public void endBatch(final boolean committed) {
+        final Set<Uri> batch = mBatch.get();
+        mBatch.remove();
+        if (batch != null && committed) {
+            for (Uri uri : coalesce(batch)) {
+                dispatch(uri);
+            }
+        }
+    }
+
+    /**
+     * Send the coalesced changes buffered outside of batches now.
+     */
+    public void flush() {
+        final List<Uri> pending;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mHandler != null) {
+                mHandler.removeCallbacks(mFlush);
+            }
+            pending = coalesce(mPending);
+            mPending.clear();
+        }
+        for (Uri uri : pending) {
+            dispatch(uri);
+        }
+    }
+
+    /**
+     * @return number of changes recorded through notifyChange()
+     */
+    public long getRequestedCount() {
+        return mRequested.get();
+    }
+
+    /**
+     * @return number of notifications actually sent to the ContentResolver
+     */
+    public long getDispatchedCount() {
+        return mDispatched.get();
+    }
+
+    /**
+     * @return number of notifications saved by coalescing (or dropped with a
+     *         rolled back batch), not counting those still buffered
+     */
+    public long getSuppressedCount() {
+        final long pending;
+        synchronized (this) {
+            pending = mPending.size();
+        }
+        return Math.max(0, mRequested.get() - mDispatched.get() - pending);
+    }
+
+    private void dispatch(final Uri uri) {
+        mDispatched.incrementAndGet();
+        mResolver.notifyChange(uri, null);
+    }
+
+    /**
+     * Reduce a set of changed URIs to the narrowest URI per table that covers
+     * them all: the URI itself when it is the only one for its table, the
+     * longest common path otherwise.
+     *
+     * @param uris
+     * @return the URIs to notify, in first-changed order
+     */
+    static List<Uri> coalesce(final Collection<Uri> uris) {
+        // group by authority and first path segment (the table)
+        final Map<String, List<Uri>> groups = new LinkedHashMap<String, List<Uri>>();
+        for (Uri uri : uris) {
+            final List<String> segments = uri.getPathSegments();
+            final String key = uri.getAuthority() + "/"
+                    + (segments.isEmpty() ? "" : segments.get(0));
+            List<Uri> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Uri>();
+                groups.put(key, group);
+            }
+            group.add(uri);
+        }
+
+        final List<Uri> rValue = new ArrayList<Uri>();
+        for (List<Uri> group : groups.values()) {
+            final Uri first = group.get(0);
+            if (group.size() == 1) {
+                rValue.add(first);
+                continue;
+            }
+            List<String> common = first.getPathSegments();
+            for (Uri uri : group) {
+                common = commonPrefix(common, uri.getPathSegments());
+            }
+            final Uri.Builder builder = new Uri.Builder().scheme(
+                    first.getScheme()).authority(first.getAuthority());
+            for (String segment : common) {
+                builder.appendPath(segment);
+            }
+            rValue.add(builder.build());
+        }
+        if (rValue.size() < uris.size()) {
+            Log.d(LOG_TAG, "coalesced " + uris.size() + " changes into "
+                    + rValue.size());
+        }
+        return rValue;
+    }
+
+    private static List<String> commonPrefix(final List<String> a,
+            final List<String> b) {
+        int length = 0;
+        while (length < a.size() && length < b.size()
+                && a.get(length).equals(b.get(length))) {
+            length++;
+        }
+        return a.subList(0, length);
+    }
+}
@@ -2,13 +2,26 @@
 
 package edu.vuum.mocca.provider;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 
@@ -24,7 +37,13 @@ public class MoocDataDBAdapter {
     static final String DATABASE_TABLE_TAGS = MoocSchema.Tags.TABLE_NAME;
     // ST:databaseTableVariableDeclaration:finish
 
-    static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = MoocDataDBMigrations.LATEST_VERSION;
+
+    // most compiled write statements kept open, see statement(String)
+    private static final int MAX_CACHED_STATEMENTS = 32;
+
+    // wider location queries match GEO_BAND by range instead of listing bands
+    private static final int MAX_GEO_BANDS_IN_LIST = 64;
 
     // The SHORT name of each column in your table
     // ST:createShortVariables:start
@@ -42,6 +61,7 @@ public class MoocDataDBAdapter {
     private static final String Story_StoryTime = MoocSchema.Story.Cols.STORY_TIME;
     private static final String Story_Latitude = MoocSchema.Story.Cols.LATITUDE;
     private static final String Story_Longitude = MoocSchema.Story.Cols.LONGITUDE;
+    private static final String Story_GeoBand = MoocSchema.Story.Cols.GEO_BAND;
     private static final String Tags_KEY_ID = MoocSchema.Tags.Cols.ID;
     private static final String Tags_LoginId = MoocSchema.Tags.Cols.LOGIN_ID;
     private static final String Tags_StoryId = MoocSchema.Tags.Cols.STORY_ID;
@@ -91,6 +111,24 @@ public class MoocDataDBAdapter {
     private myDbHelper dbHelper;
     // if the DB is in memory or to file.
     private boolean MEMORY_ONLY_DB = false;
+    // if write-ahead logging (parallel readers) is enabled.
+    private volatile boolean mConcurrentReads = false;
+    // compiled INSERT/UPDATE/DELETE (and key lookup) statements by SQL, least recently used
+    // first; only touched while holding its lock
+    private final LinkedHashMap<String, SQLiteStatement> mStatements = new LinkedHashMap<String, SQLiteStatement>(
+            MAX_CACHED_STATEMENTS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, SQLiteStatement> eldest) {
+            if (size() > MAX_CACHED_STATEMENTS) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
 
     /**
      * constructor that accepts the context to be associated with
@@ -138,9 +176,41 @@ public class MoocDataDBAdapter {
         } catch (SQLException ex) {
             db = dbHelper.getReadableDatabase();
         }
+        enableConcurrentReads();
         return this;
     }
 
+    /**
+     * Switch the DB into write-ahead logging mode where the platform supports
+     * it. SQLiteDatabase then keeps a pool of connections so that queries from
+     * several threads run in parallel with each other and with a writer,
+     * instead of all sharing the single connection. Writes are still
+     * serialized (by SQLite, and by the writer lock in MoocProvider).
+     * <p>
+     * Not available for memory only DBs, or before Honeycomb.
+     * 
+     * @return if write-ahead logging is now enabled
+     */
+    private boolean enableConcurrentReads() {
+        if (MEMORY_ONLY_DB == true || db.isReadOnly()
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return false;
+        }
+        mConcurrentReads = db.enableWriteAheadLogging();
+        Log.d(LOG_TAG, "write-ahead logging enabled: " + mConcurrentReads);
+        return mConcurrentReads;
+    }
+
+    /**
+     * Tells you if queries against this DB can run concurrently (write-ahead
+     * logging is enabled), or are serialized on a single connection.
+     * 
+     * @return boolean true/false of if concurrent reads are enabled
+     */
+    public boolean isConcurrentReadsEnabled() {
+        return mConcurrentReads;
+    }
+
     /**
      * Remove a row of the DB where the rowIndex matches.
      * 
@@ -150,8 +220,16 @@ public class MoocDataDBAdapter {
      */
     public int delete(final String table, long _id) {
         Log.d(LOG_TAG, "delete(" + _id + ") ");
-        return db.delete(table, android.provider.BaseColumns._ID + " = " + _id,
-                null);
+        if (canExecuteUpdateDelete() == false) {
+            return db.delete(table, android.provider.BaseColumns._ID + " = "
+                    + _id, null);
+        }
+        synchronized (mStatements) {
+            final SQLiteStatement statement = statement("DELETE FROM " + table
+                    + " WHERE " + android.provider.BaseColumns._ID + " = ?");
+            statement.bindLong(1, _id);
+            return statement.executeUpdateDelete();
+        }
     }
 
     /**
@@ -167,12 +245,85 @@ public class MoocDataDBAdapter {
     public int delete(final String table, final String whereClause,
             final String[] whereArgs) {
         Log.d(LOG_TAG, "delete(" + whereClause + ") ");
-        return db.delete(table, whereClause, whereArgs);
+        if (canExecuteUpdateDelete() == false) {
+            return db.delete(table, whereClause, whereArgs);
+        }
+        // "WHERE 1" like SQLiteDatabase.delete(), so the count is returned
+        final String sql = "DELETE FROM " + table + " WHERE "
+                + (isEmpty(whereClause) ? "1" : whereClause);
+        synchronized (mStatements) {
+            final SQLiteStatement statement = statement(sql);
+            bindArgs(statement, 1, whereArgs);
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Record a MoocSchema.Deleted tombstone for each Story or Tags row that
+     * matches the whereClause and is known to the server (VERSION > 0), before
+     * those rows are deleted. Run it in the transaction of the delete.
+     *
+     * @param table
+     *            MoocSchema.Story.TABLE_NAME or MoocSchema.Tags.TABLE_NAME
+     * @param whereClause
+     * @param whereArgs
+     */
+    public void insertTombstones(final String table, final String whereClause,
+            final String[] whereArgs) {
+        final String tag = MoocSchema.Tags.TABLE_NAME.equals(table) ? MoocSchema.Tags.Cols.TAG
+                : "NULL";
+        final String sql = "INSERT INTO " + MoocSchema.Deleted.TABLE_NAME
+                + " (" + MoocSchema.Deleted.Cols.TABLE + ", "
+                + MoocSchema.Deleted.Cols.LOGIN_ID + ", "
+                + MoocSchema.Deleted.Cols.STORY_ID + ", "
+                + MoocSchema.Deleted.Cols.TAG + ", "
+                + MoocSchema.Deleted.Cols.VERSION + ") SELECT ?, "
+                + MoocSchema.Story.Cols.LOGIN_ID + ", "
+                + MoocSchema.Story.Cols.STORY_ID + ", " + tag + ", "
+                + MoocSchema.Story.Cols.VERSION + " FROM " + table + " WHERE "
+                + MoocSchema.Story.Cols.VERSION + " > 0"
+                + (isEmpty(whereClause) ? "" : " AND (" + whereClause + ")");
+        synchronized (mStatements) {
+            final SQLiteStatement statement = statement(sql);
+            statement.clearBindings();
+            statement.bindString(1, table);
+            bindArgs(statement, 2, whereArgs);
+            statement.execute();
+        }
+    }
+
+    /**
+     * Compact the MoocSchema.Changes journal now, rather than at its next
+     * multiple of MoocDataDBMigrations.JOURNAL_COMPACT_EVERY.
+     *
+     * @return the number of entries removed
+     */
+    public int compactJournal() {
+        Log.d(LOG_TAG, "compactJournal()");
+        db.beginTransaction();
+        try {
+            final long before = DatabaseUtils.queryNumEntries(db,
+                    MoocSchema.Changes.TABLE_NAME);
+            final long newest = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MAX(" + MoocSchema.Changes.Cols.SEQUENCE
+                            + "), 0) FROM " + MoocSchema.Changes.TABLE_NAME,
+                    null);
+            for (String sql : MoocDataDBMigrations.compactJournal(String
+                    .valueOf(newest))) {
+                db.execSQL(sql);
+            }
+            final long after = DatabaseUtils.queryNumEntries(db,
+                    MoocSchema.Changes.TABLE_NAME);
+            db.setTransactionSuccessful();
+            return (int) Math.max(0, before - after);
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
      * Query the Database with the provided specifics.
-     * 
+     *
      * @param projection
      * @param selection
      * @param selectionArgs
@@ -188,11 +339,270 @@ public class MoocDataDBAdapter {
     	
     }
 
+    /**
+     * Query the Database with the provided specifics, returning at most limit
+     * rows.
+     * 
+     * @param projection
+     * @param selection
+     * @param selectionArgs
+     * @param sortOrder
+     * @param limit
+     * @return Cursor of results
+     */
+    public Cursor query(final String table, final String[] projection,
+            final String selection, final String[] selectionArgs,
+            final String sortOrder, final int limit) {
+        return db.query(table, projection, selection, selectionArgs, null,
+                null, sortOrder, String.valueOf(limit));
+    }
+
+    /**
+     * Full-text search of the stories, best matches first.
+     * <p>
+     * The match is run against the FTS index (MoocSchema.Story.FTS_TABLE_NAME)
+     * and joined back to the story table, so the projection and selection
+     * refer to the story columns, plus MoocSchema.Story.SEARCH_SNIPPET.
+     * Results are ranked by how often the terms occur in the story.
+     * 
+     * @param projection
+     *            story columns and/or SEARCH_SNIPPET, or null for all
+     * @param match
+     *            SQLite FTS MATCH expression
+     * @param selection
+     * @param selectionArgs
+     * @param limit
+     *            maximum number of rows, or a negative number for no limit
+     * @return Cursor of results
+     */
+    public Cursor searchStory(final String[] projection, final String match,
+            final String selection, final String[] selectionArgs,
+            final int limit) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (projection == null) {
+            sql.append(DATABASE_TABLE_STORY).append(".*, ")
+                    .append(MoocSchema.Story.SEARCH_SNIPPET);
+        } else {
+            for (int i = 0; i < projection.length; i++) {
+                sql.append((i > 0) ? ", " : "").append(projection[i]);
+            }
+        }
+        // rank: offsets() lists 4 numbers per matching term occurrence, so
+        // its length grows with the number of hits
+        sql.append(" FROM ").append(DATABASE_TABLE_STORY)
+                .append(" JOIN (SELECT docid, snippet(")
+                .append(MoocSchema.Story.FTS_TABLE_NAME)
+                .append(", '<b>', '</b>', '...') AS ")
+                .append(MoocSchema.Story.SEARCH_SNIPPET)
+                .append(", length(offsets(")
+                .append(MoocSchema.Story.FTS_TABLE_NAME)
+                .append(")) AS search_rank FROM ")
+                .append(MoocSchema.Story.FTS_TABLE_NAME).append(" WHERE ")
+                .append(MoocSchema.Story.FTS_TABLE_NAME)
+                .append(" MATCH ?) ON ").append(Story_KEY_ID)
+                .append(" = docid");
+        if (selection != null && selection.length() > 0) {
+            sql.append(" WHERE (").append(selection).append(")");
+        }
+        sql.append(" ORDER BY search_rank DESC");
+        if (limit >= 0) {
+            sql.append(" LIMIT ").append(limit);
+        }
+
+        final int extraArgs = (selectionArgs == null) ? 0
+                : selectionArgs.length;
+        final String[] args = new String[1 + extraArgs];
+        args[0] = match;
+        if (extraArgs > 0) {
+            System.arraycopy(selectionArgs, 0, args, 1, extraArgs);
+        }
+        return db.rawQuery(sql.toString(), args);
+    }
+
+    /**
+     * Query the stories together with their tags, optionally only those
+     * carrying any or all of the given tags.
+     * <p>
+     * Stories and tags are joined on (LOGIN_ID, STORY_ID). Matching tags are
+     * found through the unique (TAG, STORY_ID, LOGIN_ID) tags index, their
+     * stories through the (LOGIN_ID, STORY_ID) story index, and TAG_LIST
+     * through the (STORY_ID, LOGIN_ID) tags index, so no table is scanned.
+     * The key is unique: a local story has a provisional STORY_ID of its own
+     * (MoocSchema.Story.localStoryId()). Tags at STORY_ID 0, left from before
+     * stories were keyed so, belong to no one story and are left out.
+     * 
+     * @param projection
+     *            story columns and/or MoocSchema.Story.TAG_LIST, or null for
+     *            all
+     * @param selection
+     * @param selectionArgs
+     * @param sortOrder
+     * @param tags
+     *            tags to match, or null/empty for every story
+     * @param matchAll
+     *            true: stories must carry all the tags, false: any of them
+     * @return Cursor of results
+     */
+    public Cursor queryStoryWithTags(final String[] projection,
+            final String selection, final String[] selectionArgs,
+            final String sortOrder, final String[] tags, final boolean matchAll) {
+        final String sameStory = Tags_StoryId + " = " + DATABASE_TABLE_STORY
+                + "." + Story_StoryId + " AND " + Tags_LoginId + " = "
+                + DATABASE_TABLE_STORY + "." + Story_LoginId + " AND "
+                + Tags_StoryId + " != 0";
+
+        StringBuilder inner = new StringBuilder("SELECT ")
+                .append(DATABASE_TABLE_STORY).append(".*, (SELECT group_concat(")
+                .append(Tags_Tag).append(", ',') FROM ")
+                .append(DATABASE_TABLE_TAGS).append(" WHERE ")
+                .append(sameStory).append(") AS ")
+                .append(MoocSchema.Story.TAG_LIST).append(" FROM ")
+                .append(DATABASE_TABLE_STORY);
+
+        final int tagCount = (tags == null) ? 0 : tags.length;
+        if (tagCount > 0) {
+            // the (LOGIN_ID, STORY_ID) of stories with enough matching tags;
+            // the unique tags key means a story counts each tag once
+            inner.append(" JOIN (SELECT ").append(Tags_StoryId).append(", ")
+                    .append(Tags_LoginId).append(" FROM ")
+                    .append(DATABASE_TABLE_TAGS).append(" WHERE ")
+                    .append(Tags_StoryId).append(" != 0 AND ")
+                    .append(Tags_Tag).append(" IN (");
+            for (int i = 0; i < tagCount; i++) {
+                inner.append((i > 0) ? ",?" : "?");
+            }
+            inner.append(") GROUP BY ").append(Tags_StoryId).append(", ")
+                    .append(Tags_LoginId).append(" HAVING COUNT(*) >= ")
+                    .append(matchAll ? distinctCount(tags) : 1)
+                    .append(") AS matched ON matched.").append(Tags_StoryId)
+                    .append(" = ").append(DATABASE_TABLE_STORY).append(".")
+                    .append(Story_StoryId).append(" AND matched.")
+                    .append(Tags_LoginId).append(" = ")
+                    .append(DATABASE_TABLE_STORY).append(".")
+                    .append(Story_LoginId);
+        }
+
+        // wrap, so projection, selection and sortOrder can use plain column
+        // names
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (projection == null) {
+            sql.append("*");
+        } else {
+            for (int i = 0; i < projection.length; i++) {
+                sql.append((i > 0) ? ", " : "").append(projection[i]);
+            }
+        }
+        sql.append(" FROM (").append(inner).append(")");
+        if (selection != null && selection.length() > 0) {
+            sql.append(" WHERE (").append(selection).append(")");
+        }
+        if (sortOrder != null && sortOrder.length() > 0) {
+            sql.append(" ORDER BY ").append(sortOrder);
+        }
+
+        final int extraArgs = (selectionArgs == null) ? 0
+                : selectionArgs.length;
+        final String[] args = new String[tagCount + extraArgs];
+        for (int i = 0; i < tagCount; i++) {
+            args[i] = tags[i];
+        }
+        if (extraArgs > 0) {
+            System.arraycopy(selectionArgs, 0, args, tagCount, extraArgs);
+        }
+        return db.rawQuery(sql.toString(), args);
+    }
+
+    /*
+     * Number of different Strings in the array.
+     */
+    private static int distinctCount(final String[] values) {
+        return new HashSet<String>(Arrays.asList(values)).size();
+    }
+
+    /**
+     * Query the stories located inside a latitude/longitude box, nearest to
+     * (centerLat, centerLon) first, optionally keeping only those within
+     * radiusDegrees of it.
+     * <p>
+     * The box is looked up through the (GEO_BAND, LONGITUDE) index: one index
+     * range on LONGITUDE per latitude band the box covers, instead of a scan
+     * of every row. Distances are equirectangular, which is accurate enough
+     * for ordering and filtering at city scale.
+     * 
+     * @param projection
+     * @param selection
+     * @param selectionArgs
+     * @param minLat
+     * @param maxLat
+     * @param minLon
+     * @param maxLon
+     * @param centerLat
+     * @param centerLon
+     * @param radiusDegrees
+     *            maximum distance in degrees of latitude, or a negative number
+     *            to keep the whole box
+     * @param limit
+     *            maximum number of rows, or a negative number for no limit
+     * @return Cursor of results
+     */
+    public Cursor queryStoryByLocation(final String[] projection,
+            final String selection, final String[] selectionArgs,
+            final double minLat, final double maxLat, final double minLon,
+            final double maxLon, final double centerLat,
+            final double centerLon, final double radiusDegrees,
+            final int limit) {
+        final int minBand = MoocSchema.Story.geoBand(minLat);
+        final int maxBand = MoocSchema.Story.geoBand(maxLat);
+
+        StringBuilder where = new StringBuilder();
+        if (maxBand - minBand < MAX_GEO_BANDS_IN_LIST) {
+            // equality on each band lets the index also seek on LONGITUDE
+            where.append(Story_GeoBand).append(" IN (");
+            for (int band = minBand; band <= maxBand; band++) {
+                where.append((band > minBand) ? "," : "").append(band);
+            }
+            where.append(")");
+        } else {
+            where.append(Story_GeoBand).append(" BETWEEN ").append(minBand)
+                    .append(" AND ").append(maxBand);
+        }
+        where.append(" AND ").append(Story_Longitude).append(" BETWEEN ")
+                .append(minLon).append(" AND ").append(maxLon);
+        where.append(" AND ").append(Story_Latitude).append(" BETWEEN ")
+                .append(minLat).append(" AND ").append(maxLat);
+
+        // squared distance in degrees of latitude; a degree of longitude
+        // shrinks by cos(latitude)
+        final double cosLat = Math.cos(Math.toRadians(centerLat));
+        final String distance = "((" + Story_Latitude + " - " + centerLat
+                + ") * (" + Story_Latitude + " - " + centerLat + ") + ("
+                + Story_Longitude + " - " + centerLon + ") * ("
+                + Story_Longitude + " - " + centerLon + ") * "
+                + (cosLat * cosLat) + ")";
+        if (radiusDegrees >= 0) {
+            where.append(" AND ").append(distance).append(" <= ")
+                    .append(radiusDegrees * radiusDegrees);
+        }
+        if (selection != null && selection.length() > 0) {
+            where.append(" AND (").append(selection).append(")");
+        }
+
+        return db.query(DATABASE_TABLE_STORY, projection, where.toString(),
+                selectionArgs, null, null, distance,
+                (limit < 0) ? null : String.valueOf(limit));
+    }
+
     /**
      * close the DB.
      */
     public void close() {
         Log.d(LOG_TAG, "close()");
+        synchronized (mStatements) {
+            for (SQLiteStatement statement : mStatements.values()) {
+                statement.close();
+            }
+            mStatements.clear();
+        }
         db.close();
     }
 
@@ -204,6 +614,14 @@ public class MoocDataDBAdapter {
         db.beginTransaction();
     }
 
+    /**
+     * Mark the current transaction as successful, so that endTransaction()
+     * commits it instead of rolling it back.
+     */
+    public void setTransactionSuccessful() {
+        db.setTransactionSuccessful();
+    }
+
     /**
      * End a transaction.
      */
@@ -229,7 +647,93 @@ public class MoocDataDBAdapter {
      */
     public long insert(final String table, final ContentValues cv) {
         Log.d(LOG_TAG, "insert(CV)");
-        return db.insert(table, null, cv);
+        if (cv == null || cv.size() == 0) {
+            return db.insert(table, null, cv);
+        }
+        final String[] columns = sortedColumns(cv);
+        synchronized (mStatements) {
+            final SQLiteStatement statement = statement(insertSql(table,
+                    columns));
+            try {
+                return bindAndInsert(statement, columns, cv);
+            } catch (SQLException ex) {
+                // same as SQLiteDatabase.insert()
+                Log.e(LOG_TAG, "insert() failed: " + ex.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Compile an INSERT statement for the given columns of a table, so that it
+     * can be bound and executed repeatedly (see bindAndInsert) without the SQL
+     * being rebuilt and recompiled for every row.
+     * <p>
+     * The caller owns the returned statement and must close() it.
+     * 
+     * @param table
+     * @param columns
+     *            the columns to insert, in bind order
+     * @return the compiled SQLiteStatement
+     */
+    public SQLiteStatement compileInsert(final String table,
+            final String[] columns) {
+        final String sql = insertSql(table, columns);
+        Log.d(LOG_TAG, "compileInsert(" + sql + ")");
+        return db.compileStatement(sql);
+    }
+
+    /*
+     * INSERT INTO table (columns...) VALUES (?...)
+     */
+    private static String insertSql(final String table, final String[] columns) {
+        return insertSql("INSERT", table, columns);
+    }
+
+    /*
+     * <verb> INTO table (columns...) VALUES (?...), where verb is INSERT or
+     * INSERT OR <conflict algorithm>
+     */
+    private static String insertSql(final String verb, final String table,
+            final String[] columns) {
+        StringBuilder sql = new StringBuilder();
+        sql.append(verb).append(" INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append((i > 0) ? "," : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append((i > 0) ? ",?" : "?");
+        }
+        sql.append(")");
+        return sql.toString();
+    }
+
+    /**
+     * Bind a ContentValues to a statement created by compileInsert() and
+     * execute it.
+     * 
+     * @param statement
+     *            statement from compileInsert()
+     * @param columns
+     *            the same columns the statement was compiled with
+     * @param cv
+     * @return row's '_id' of the newly inserted ContentValues, or -1
+     */
+    public long bindAndInsert(final SQLiteStatement statement,
+            final String[] columns, final ContentValues cv) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1,
+                    cv.get(columns[i]));
+        }
+        try {
+            return statement.executeInsert();
+        } catch (SQLiteConstraintException ex) {
+            // same as insert(): a row violating a constraint is skipped
+            Log.d(LOG_TAG, "bindAndInsert() skipped row: " + ex.getMessage());
+            return -1;
+        }
     }
 
     /**
@@ -242,7 +746,221 @@ public class MoocDataDBAdapter {
      */
     public int update(final String table, final ContentValues values,
             final String whereClause, final String[] whereArgs) {
-        return db.update(table, values, whereClause, whereArgs);
+        if (canExecuteUpdateDelete() == false || values == null
+                || values.size() == 0) {
+            return db.update(table, values, whereClause, whereArgs);
+        }
+        final String[] columns = sortedColumns(values);
+        StringBuilder sql = new StringBuilder();
+        sql.append("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append((i > 0) ? "," : "").append(columns[i]).append("=?");
+        }
+        if (isEmpty(whereClause) == false) {
+            sql.append(" WHERE ").append(whereClause);
+        }
+        synchronized (mStatements) {
+            final SQLiteStatement statement = statement(sql.toString());
+            statement.clearBindings();
+            for (int i = 0; i < columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1,
+                        values.get(columns[i]));
+            }
+            bindArgs(statement, columns.length + 1, whereArgs);
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Update Value(s) of the row with the given '_id'.
+     * 
+     * @param _id
+     * @param values
+     * @return number of rows changed.
+     */
+    public int update(final String table, final long _id,
+            final ContentValues values) {
+        return update(table, values, android.provider.BaseColumns._ID
+                + " = ?", new String[] { String.valueOf(_id) });
+    }
+
+    /**
+     * Insert the row unless a row with the same key already exists, as a
+     * single INSERT OR IGNORE. Only for keys backed by a unique index, and
+     * where an existing row is to be kept as it is: MoocSchema.Tags (the key
+     * is every column, tags_key_idx) and MoocSchema.Media (HASH).
+     * 
+     * @param table
+     * @param keyClause
+     *            the table's ALL_KEY_CLAUSE
+     * @param keyColumns
+     *            the table's ALL_KEY_COLUMNS, in keyClause order
+     * @param cv
+     * @return row's '_id' of the new or existing row, or -1
+     */
+    public long insertOrIgnore(final String table, final String keyClause,
+            final String[] keyColumns, final ContentValues cv) {
+        final String[] columns = sortedColumns(cv);
+        synchronized (mStatements) {
+            final SQLiteStatement statement = statement(insertSql(
+                    "INSERT OR IGNORE", table, columns));
+            final long rowID;
+            try {
+                rowID = bindAndInsert(statement, columns, cv);
+            } catch (SQLException ex) {
+                Log.e(LOG_TAG, "insertOrIgnore() failed: " + ex.getMessage());
+                return -1;
+            }
+            // -1: ignored, the key is already there
+            return (rowID >= 0) ? rowID : findByKey(table, keyClause,
+                    keyColumns, cv);
+        }
+    }
+
+    /**
+     * Update the row with the same key as cv, or insert cv if there is none,
+     * in one transaction. The row keeps its '_id' when it is updated.
+     * <p>
+     * The key is looked up through an index on keyColumns. (SQLite's own
+     * INSERT ... ON CONFLICT DO UPDATE needs a far newer SQLite than this
+     * app's platforms ship, and INSERT OR REPLACE would give the row a new
+     * '_id'.)
+     * 
+     * @param table
+     * @param keyClause
+     *            the table's ALL_KEY_CLAUSE
+     * @param keyColumns
+     *            the table's ALL_KEY_COLUMNS, in keyClause order
+     * @param cv
+     *            the row, must contain every key column
+     * @return row's '_id' of the updated or inserted row, or -1
+     */
+    public long upsert(final String table, final String keyClause,
+            final String[] keyColumns, final ContentValues cv) {
+        db.beginTransaction();
+        try {
+            final long rowID;
+            synchronized (mStatements) {
+                final long existing = findByKey(table, keyClause, keyColumns,
+                        cv);
+                if (existing >= 0) {
+                    update(table, existing, cv);
+                    rowID = existing;
+                } else {
+                    rowID = insert(table, cv);
+                }
+            }
+            // a failed insert wrote nothing; committing keeps an enclosing
+            // transaction (bulk upserts) from being rolled back with it
+            db.setTransactionSuccessful();
+            return rowID;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * The '_id' the next row inserted into an AUTOINCREMENT table gets, if it
+     * is not given one: one past the larger of the table's sqlite_sequence
+     * value and its largest '_id' (the end of the primary key). It only holds
+     * for a caller that keeps other writers out until it has inserted.
+     * 
+     * @param table
+     * @return the next row's '_id'
+     */
+    public long nextRowId(final String table) {
+        synchronized (mStatements) {
+            final SQLiteStatement statement = statement("SELECT MAX(IFNULL("
+                    + "(SELECT seq FROM sqlite_sequence WHERE name = ?), 0), "
+                    + "IFNULL((SELECT MAX(" + android.provider.BaseColumns._ID
+                    + ") FROM " + table + "), 0)) + 1");
+            statement.clearBindings();
+            statement.bindString(1, table);
+            return statement.simpleQueryForLong();
+        }
+    }
+
+    /*
+     * '_id' of the first row matching the key values of cv, or -1. Callers
+     * must hold the mStatements lock.
+     */
+    private long findByKey(final String table, final String keyClause,
+            final String[] keyColumns, final ContentValues cv) {
+        final SQLiteStatement statement = statement("SELECT "
+                + android.provider.BaseColumns._ID + " FROM " + table
+                + " WHERE " + keyClause + " LIMIT 1");
+        statement.clearBindings();
+        for (int i = 0; i < keyColumns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1,
+                    cv.get(keyColumns[i]));
+        }
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException ex) {
+            // no such row
+            return -1;
+        }
+    }
+
+    /*
+     * The compiled statement for the SQL, compiled now if it is not cached.
+     * Callers must hold the mStatements lock until they are done binding and
+     * executing it.
+     */
+    private SQLiteStatement statement(final String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            Log.d(LOG_TAG, "compiling(" + sql + ")");
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /*
+     * Bind String arguments from index 'first' on, like the whereArgs of the
+     * SQLiteDatabase convenience methods.
+     */
+    private static void bindArgs(final SQLiteStatement statement,
+            final int first, final String[] args) {
+        if (first == 1) {
+            statement.clearBindings();
+        }
+        if (args == null) {
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null) {
+                statement.bindNull(first + i);
+            } else {
+                statement.bindString(first + i, args[i]);
+            }
+        }
+    }
+
+    /*
+     * The columns of a ContentValues in a stable order, so the same shape of
+     * write always maps to the same cached statement.
+     */
+    private static String[] sortedColumns(final ContentValues values) {
+        final List<String> columns = new ArrayList<String>(values.size());
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            columns.add(entry.getKey());
+        }
+        Collections.sort(columns);
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /*
+     * SQLiteStatement.executeUpdateDelete() is only available from Honeycomb,
+     * before that update/delete go through the SQLiteDatabase methods.
+     */
+    private static boolean canExecuteUpdateDelete() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    private static boolean isEmpty(final String value) {
+        return value == null || value.length() == 0;
     }
 
     @Override
@@ -290,16 +1008,27 @@ public class MoocDataDBAdapter {
             db.execSQL(DATABASE_CREATE_TAGS);
             // ST:createTable:finish
 
+            // bring the base tables up to the current schema
+            MoocDataDBMigrations.migrate(db, MoocDataDBMigrations.BASE_VERSION,
+                    DATABASE_VERSION);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             // Log version upgrade.
             Log.w(LOG_TAG + "DBHelper", "Upgrading from version " + oldVersion
-                    + " to " + newVersion + ", which will destroy all old data");
+                    + " to " + newVersion);
+
+            if (oldVersion >= MoocDataDBMigrations.BASE_VERSION) {
+                // step through each schema change, keeping existing data
+                MoocDataDBMigrations.migrate(db, oldVersion, newVersion);
+                return;
+            }
 
             // **** Upgrade DB ****
-            // drop old DB
+            // there is no migration path from before BASE_VERSION, drop old DB
+            Log.w(LOG_TAG + "DBHelper", "No migration from version "
+                    + oldVersion + ", which will destroy all old data");
 
             // ST:dropTableIfExists:start
             db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_STORY);
@@ -0,0 +1,561 @@
+
+package edu.vuum.mocca.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * The ordered list of schema changes applied on top of the base tables created
+ * by MoocDataDBAdapter.
+ * <p>
+ * Migration i takes the DB from version (BASE_VERSION + i) to version
+ * (BASE_VERSION + i + 1). A new DB is created at BASE_VERSION and then
+ * migrated forward exactly like an existing one, so there is a single
+ * definition of every schema change. To change the schema, append a
+ * Migration to ALL; never edit or reorder one that has shipped.
+ */
+final class MoocDataDBMigrations {
+
+    private static final String LOG_TAG = MoocDataDBMigrations.class
+            .getCanonicalName();
+
+    // The version produced by the DATABASE_CREATE_* strings.
+    static final int BASE_VERSION = 2;
+
+    private static final String STORY = MoocSchema.Story.TABLE_NAME;
+    private static final String TAGS = MoocSchema.Tags.TABLE_NAME;
+    private static final String STORY_FTS = MoocSchema.Story.FTS_TABLE_NAME;
+    // SQL for the MoocSchema.Story.Cols.GEO_BAND of a row, as
+    // MoocSchema.Story.geoBand()
+    static final String GEO_BAND_OF_LATITUDE = geoBandOf(MoocSchema.Story.Cols.LATITUDE);
+    private static final String MEDIA = MoocSchema.Media.TABLE_NAME;
+    private static final String DELETED = MoocSchema.Deleted.TABLE_NAME;
+    private static final String JOURNAL = MoocSchema.Changes.TABLE_NAME;
+    // the journal is compacted each time its sequence reaches a multiple of
+    // JOURNAL_COMPACT_EVERY, down to at most JOURNAL_MAX_ENTRIES entries
+    static final int JOURNAL_COMPACT_EVERY = 1000;
+    static final int JOURNAL_MAX_ENTRIES = 10000;
+    // the Story columns that may hold a MoocSchema.Media.LINK_PREFIX link
+    private static final String[] MEDIA_LINK_COLUMNS = {
+            MoocSchema.Story.Cols.AUDIO_LINK, MoocSchema.Story.Cols.VIDEO_LINK,
+            MoocSchema.Story.Cols.IMAGE_LINK };
+    private static final String NOW_MILLIS = "CAST(strftime('%s', 'now') AS INTEGER) * 1000";
+    // in a subquery of TAGS: the stories of the tag's login without a
+    // STORY_ID
+    private static final String UNKEYED_STORY_OF_TAG = STORY + "."
+            + MoocSchema.Story.Cols.LOGIN_ID + " = " + TAGS + "."
+            + MoocSchema.Tags.Cols.LOGIN_ID + " AND " + STORY + "."
+            + MoocSchema.Story.Cols.STORY_ID + " = 0";
+    private static final String STORY_FTS_COLUMNS = MoocSchema.Story.Cols.TITLE
+            + ", " + MoocSchema.Story.Cols.BODY + ", "
+            + MoocSchema.Story.Cols.TAGS;
+
+    /**
+     * One step of the schema history. apply() runs inside the transaction
+     * SQLiteOpenHelper opens for onCreate()/onUpgrade(), so a step either
+     * completes or leaves the DB untouched.
+     */
+    abstract static class Migration {
+        final String description;
+
+        Migration(final String description) {
+            this.description = description;
+        }
+
+        abstract void apply(SQLiteDatabase db);
+    }
+
+    /**
+     * A Migration made only of SQL statements, run in order.
+     */
+    static class SqlMigration extends Migration {
+        private final String[] statements;
+
+        SqlMigration(final String description, final String... statements) {
+            super(description);
+            this.statements = statements;
+        }
+
+        @Override
+        void apply(SQLiteDatabase db) {
+            for (String sql : statements) {
+                db.execSQL(sql);
+            }
+        }
+    }
+
+    static final Migration[] ALL = {
+            // version 3
+            new SqlMigration(
+                    "secondary indexes, unique tags key",
+                    // story lookups by owner, and owner timelines
+                    "CREATE INDEX IF NOT EXISTS story_login_story_idx ON "
+                            + STORY + " (" + MoocSchema.Story.Cols.LOGIN_ID
+                            + ", " + MoocSchema.Story.Cols.STORY_ID + ")",
+                    "CREATE INDEX IF NOT EXISTS story_login_time_idx ON "
+                            + STORY + " (" + MoocSchema.Story.Cols.LOGIN_ID
+                            + ", " + MoocSchema.Story.Cols.STORY_TIME + ")",
+                    "CREATE INDEX IF NOT EXISTS story_time_idx ON " + STORY
+                            + " (" + MoocSchema.Story.Cols.STORY_TIME + ")",
+                    // drop duplicate tags (keeping the oldest row) so that
+                    // the unique key below can be built
+                    "DELETE FROM " + TAGS + " WHERE "
+                            + MoocSchema.Tags.Cols.ID + " NOT IN (SELECT MIN("
+                            + MoocSchema.Tags.Cols.ID + ") FROM " + TAGS
+                            + " GROUP BY " + MoocSchema.Tags.Cols.TAG + ", "
+                            + MoocSchema.Tags.Cols.STORY_ID + ", "
+                            + MoocSchema.Tags.Cols.LOGIN_ID + ")",
+                    // MoocSchema.Tags.ALL_KEY_CLAUSE
+                    "CREATE UNIQUE INDEX IF NOT EXISTS tags_key_idx ON " + TAGS
+                            + " (" + MoocSchema.Tags.Cols.TAG + ", "
+                            + MoocSchema.Tags.Cols.STORY_ID + ", "
+                            + MoocSchema.Tags.Cols.LOGIN_ID + ")",
+                    // tags of a given story
+                    "CREATE INDEX IF NOT EXISTS tags_story_idx ON " + TAGS
+                            + " (" + MoocSchema.Tags.Cols.STORY_ID + ", "
+                            + MoocSchema.Tags.Cols.LOGIN_ID + ")"),
+            // version 4
+            new SqlMigration(
+                    "full-text index over story TITLE, BODY, TAGS",
+                    // FTS3 rather than FTS4, which needs SQLite 3.7.4
+                    // (Honeycomb)
+                    "CREATE VIRTUAL TABLE " + STORY_FTS + " USING fts3("
+                            + MoocSchema.Story.Cols.TITLE + ", "
+                            + MoocSchema.Story.Cols.BODY + ", "
+                            + MoocSchema.Story.Cols.TAGS
+                            + ", tokenize=porter)",
+                    "INSERT INTO " + STORY_FTS + " (docid, "
+                            + STORY_FTS_COLUMNS + ") SELECT "
+                            + MoocSchema.Story.Cols.ID + ", "
+                            + STORY_FTS_COLUMNS + " FROM " + STORY,
+                    // keep the index in step with every write to STORY
+                    "CREATE TRIGGER story_fts_insert AFTER INSERT ON " + STORY
+                            + " BEGIN INSERT INTO " + STORY_FTS + " (docid, "
+                            + STORY_FTS_COLUMNS + ") VALUES (new."
+                            + MoocSchema.Story.Cols.ID + ", new."
+                            + MoocSchema.Story.Cols.TITLE + ", new."
+                            + MoocSchema.Story.Cols.BODY + ", new."
+                            + MoocSchema.Story.Cols.TAGS + "); END",
+                    "CREATE TRIGGER story_fts_update AFTER UPDATE OF "
+                            + STORY_FTS_COLUMNS + " ON " + STORY
+                            + " BEGIN UPDATE " + STORY_FTS + " SET "
+                            + MoocSchema.Story.Cols.TITLE + " = new."
+                            + MoocSchema.Story.Cols.TITLE + ", "
+                            + MoocSchema.Story.Cols.BODY + " = new."
+                            + MoocSchema.Story.Cols.BODY + ", "
+                            + MoocSchema.Story.Cols.TAGS + " = new."
+                            + MoocSchema.Story.Cols.TAGS
+                            + " WHERE docid = old."
+                            + MoocSchema.Story.Cols.ID + "; END",
+                    "CREATE TRIGGER story_fts_delete AFTER DELETE ON " + STORY
+                            + " BEGIN DELETE FROM " + STORY_FTS
+                            + " WHERE docid = old." + MoocSchema.Story.Cols.ID
+                            + "; END"),
+            // version 5
+            new SqlMigration(
+                    "location index on story GEO_BAND, LONGITUDE",
+                    "ALTER TABLE " + STORY + " ADD COLUMN "
+                            + MoocSchema.Story.Cols.GEO_BAND + " INTEGER",
+                    "UPDATE " + STORY + " SET " + MoocSchema.Story.Cols.GEO_BAND
+                            + " = " + GEO_BAND_OF_LATITUDE,
+                    "CREATE INDEX story_geo_idx ON " + STORY + " ("
+                            + MoocSchema.Story.Cols.GEO_BAND + ", "
+                            + MoocSchema.Story.Cols.LONGITUDE + ")",
+                    // keep GEO_BAND in step with LATITUDE on every write
+                    "CREATE TRIGGER story_geo_insert AFTER INSERT ON " + STORY
+                            + " BEGIN UPDATE " + STORY + " SET "
+                            + MoocSchema.Story.Cols.GEO_BAND + " = "
+                            + GEO_BAND_OF_LATITUDE + " WHERE "
+                            + MoocSchema.Story.Cols.ID + " = new."
+                            + MoocSchema.Story.Cols.ID + "; END",
+                    "CREATE TRIGGER story_geo_update AFTER UPDATE OF "
+                            + MoocSchema.Story.Cols.LATITUDE + " ON " + STORY
+                            + " BEGIN UPDATE " + STORY + " SET "
+                            + MoocSchema.Story.Cols.GEO_BAND + " = "
+                            + GEO_BAND_OF_LATITUDE + " WHERE "
+                            + MoocSchema.Story.Cols.ID + " = new."
+                            + MoocSchema.Story.Cols.ID + "; END"),
+            // version 6
+            new Migration("media blob table, reference counts from story links") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + MEDIA + " ("
+                            + MoocSchema.Media.Cols.ID
+                            + " integer primary key autoincrement, "
+                            + MoocSchema.Media.Cols.HASH
+                            + " TEXT NOT NULL UNIQUE, "
+                            + MoocSchema.Media.Cols.SIZE
+                            + " INTEGER NOT NULL DEFAULT 0, "
+                            + MoocSchema.Media.Cols.REF_COUNT
+                            + " INTEGER NOT NULL DEFAULT 0, "
+                            + MoocSchema.Media.Cols.CREATION_TIME
+                            + " INTEGER)");
+                    // count the links already stored
+                    final StringBuilder refCount = new StringBuilder("0");
+                    for (String column : MEDIA_LINK_COLUMNS) {
+                        db.execSQL("INSERT OR IGNORE INTO " + MEDIA + " ("
+                                + MoocSchema.Media.Cols.HASH + ", "
+                                + MoocSchema.Media.Cols.CREATION_TIME
+                                + ") SELECT " + hashOfLink(column) + ", "
+                                + NOW_MILLIS + " FROM " + STORY + " WHERE "
+                                + isMediaLink(column));
+                        refCount.append(" + (SELECT COUNT(*) FROM ")
+                                .append(STORY).append(" WHERE ").append(column)
+                                .append(" = '")
+                                .append(MoocSchema.Media.LINK_PREFIX)
+                                .append("' || ")
+                                .append(MoocSchema.Media.Cols.HASH)
+                                .append(")");
+                    }
+                    db.execSQL("UPDATE " + MEDIA + " SET "
+                            + MoocSchema.Media.Cols.REF_COUNT + " = "
+                            + refCount);
+                    // keep REF_COUNT in step with every write to STORY
+                    db.execSQL("CREATE TRIGGER media_ref_insert AFTER INSERT ON "
+                            + STORY + " BEGIN " + addMediaRefs("new.", 1)
+                            + "END");
+                    db.execSQL("CREATE TRIGGER media_ref_update AFTER UPDATE OF "
+                            + MEDIA_LINK_COLUMNS[0] + ", "
+                            + MEDIA_LINK_COLUMNS[1] + ", "
+                            + MEDIA_LINK_COLUMNS[2] + " ON " + STORY
+                            + " BEGIN " + addMediaRefs("old.", -1)
+                            + addMediaRefs("new.", 1) + "END");
+                    db.execSQL("CREATE TRIGGER media_ref_delete AFTER DELETE ON "
+                            + STORY + " BEGIN " + addMediaRefs("old.", -1)
+                            + "END");
+                }
+            },
+            // version 7
+            new SqlMigration(
+                    "sync state: DIRTY and VERSION columns, deleted tombstones",
+                    // rows from before sync have never been sent: all DIRTY
+                    "ALTER TABLE " + STORY + " ADD COLUMN "
+                            + MoocSchema.Story.Cols.DIRTY
+                            + " INTEGER NOT NULL DEFAULT 0",
+                    "ALTER TABLE " + STORY + " ADD COLUMN "
+                            + MoocSchema.Story.Cols.VERSION
+                            + " INTEGER NOT NULL DEFAULT 0",
+                    "UPDATE " + STORY + " SET " + MoocSchema.Story.Cols.DIRTY
+                            + " = 1",
+                    "CREATE INDEX story_dirty_idx ON " + STORY + " ("
+                            + MoocSchema.Story.Cols.DIRTY + ")",
+                    "ALTER TABLE " + TAGS + " ADD COLUMN "
+                            + MoocSchema.Tags.Cols.DIRTY
+                            + " INTEGER NOT NULL DEFAULT 0",
+                    "ALTER TABLE " + TAGS + " ADD COLUMN "
+                            + MoocSchema.Tags.Cols.VERSION
+                            + " INTEGER NOT NULL DEFAULT 0",
+                    "UPDATE " + TAGS + " SET " + MoocSchema.Tags.Cols.DIRTY
+                            + " = 1",
+                    "CREATE INDEX tags_dirty_idx ON " + TAGS + " ("
+                            + MoocSchema.Tags.Cols.DIRTY + ")",
+                    "CREATE TABLE " + DELETED + " ("
+                            + MoocSchema.Deleted.Cols.ID
+                            + " integer primary key autoincrement, "
+                            + MoocSchema.Deleted.Cols.TABLE + " TEXT NOT NULL, "
+                            + MoocSchema.Deleted.Cols.LOGIN_ID + " INTEGER, "
+                            + MoocSchema.Deleted.Cols.STORY_ID + " INTEGER, "
+                            + MoocSchema.Deleted.Cols.TAG + " TEXT, "
+                            + MoocSchema.Deleted.Cols.VERSION + " INTEGER)"),
+            // version 8
+            new Migration("change journal of story and tags writes") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // AUTOINCREMENT: sequence numbers are never reused, even
+                    // after compaction
+                    db.execSQL("CREATE TABLE " + JOURNAL + " ("
+                            + MoocSchema.Changes.Cols.SEQUENCE
+                            + " integer primary key autoincrement, "
+                            + MoocSchema.Changes.Cols.TABLE + " TEXT NOT NULL, "
+                            + MoocSchema.Changes.Cols.ROW_ID
+                            + " INTEGER NOT NULL, "
+                            + MoocSchema.Changes.Cols.OPERATION
+                            + " TEXT NOT NULL, "
+                            + MoocSchema.Changes.Cols.LOCAL
+                            + " INTEGER NOT NULL DEFAULT 0)");
+                    // the user-written columns as of this version
+                    createJournalTriggers(db, STORY, new String[] {
+                            MoocSchema.Story.Cols.LOGIN_ID,
+                            MoocSchema.Story.Cols.STORY_ID,
+                            MoocSchema.Story.Cols.TITLE,
+                            MoocSchema.Story.Cols.BODY,
+                            MoocSchema.Story.Cols.AUDIO_LINK,
+                            MoocSchema.Story.Cols.VIDEO_LINK,
+                            MoocSchema.Story.Cols.IMAGE_NAME,
+                            MoocSchema.Story.Cols.IMAGE_LINK,
+                            MoocSchema.Story.Cols.TAGS,
+                            MoocSchema.Story.Cols.CREATION_TIME,
+                            MoocSchema.Story.Cols.STORY_TIME,
+                            MoocSchema.Story.Cols.LATITUDE,
+                            MoocSchema.Story.Cols.LONGITUDE });
+                    createJournalTriggers(db, TAGS, new String[] {
+                            MoocSchema.Tags.Cols.LOGIN_ID,
+                            MoocSchema.Tags.Cols.STORY_ID,
+                            MoocSchema.Tags.Cols.TAG });
+                    final StringBuilder compact = new StringBuilder(
+                            "CREATE TRIGGER journal_compact AFTER INSERT ON "
+                                    + JOURNAL + " WHEN new."
+                                    + MoocSchema.Changes.Cols.SEQUENCE + " % "
+                                    + JOURNAL_COMPACT_EVERY + " = 0 BEGIN ");
+                    for (String sql : compactJournal("new."
+                            + MoocSchema.Changes.Cols.SEQUENCE)) {
+                        compact.append(sql).append("; ");
+                    }
+                    db.execSQL(compact.append("END").toString());
+                }
+            },
+            // version 9
+            new SqlMigration(
+                    "media sync state: UPLOADED column",
+                    // blobs from before sync have never been sent
+                    "ALTER TABLE " + MEDIA + " ADD COLUMN "
+                            + MoocSchema.Media.Cols.UPLOADED
+                            + " INTEGER NOT NULL DEFAULT 0"),
+            // version 10
+            new SqlMigration(
+                    "story GEO_BAND set by MoocProvider",
+                    // every insert now writes GEO_BAND itself
+                    "DROP TRIGGER IF EXISTS story_geo_insert",
+                    // as does every update of LATITUDE; the trigger only
+                    // corrects an update that did not
+                    "DROP TRIGGER IF EXISTS story_geo_update",
+                    "CREATE TRIGGER story_geo_update AFTER UPDATE OF "
+                            + MoocSchema.Story.Cols.LATITUDE + " ON " + STORY
+                            + " WHEN new." + MoocSchema.Story.Cols.GEO_BAND
+                            + " IS NOT " + geoBandOf("new."
+                            + MoocSchema.Story.Cols.LATITUDE)
+                            + " BEGIN UPDATE " + STORY + " SET "
+                            + MoocSchema.Story.Cols.GEO_BAND + " = "
+                            + GEO_BAND_OF_LATITUDE + " WHERE "
+                            + MoocSchema.Story.Cols.ID + " = new."
+                            + MoocSchema.Story.Cols.ID + "; END"),
+            // version 11
+            new SqlMigration(
+                    "provisional STORY_ID of local stories",
+                    // the tags of a login's only story without a STORY_ID
+                    // are that story's; those of a login with several are
+                    // left at 0, belonging to none of them
+                    "UPDATE " + TAGS + " SET " + MoocSchema.Tags.Cols.STORY_ID
+                            + " = -(SELECT " + MoocSchema.Story.Cols.ID
+                            + " FROM " + STORY + " WHERE "
+                            + UNKEYED_STORY_OF_TAG + ") WHERE "
+                            + MoocSchema.Tags.Cols.STORY_ID + " = 0 AND (SELECT "
+                            + "COUNT(*) FROM " + STORY + " WHERE "
+                            + UNKEYED_STORY_OF_TAG + ") = 1",
+                    // MoocSchema.Story.localStoryId()
+                    "UPDATE " + STORY + " SET " + MoocSchema.Story.Cols.STORY_ID
+                            + " = -" + MoocSchema.Story.Cols.ID + " WHERE "
+                            + MoocSchema.Story.Cols.STORY_ID + " = 0"),
+            // version 12
+            new SqlMigration(
+                    "media LINKED_AS column, for the order of transfers",
+                    "ALTER TABLE " + MEDIA + " ADD COLUMN "
+                            + MoocSchema.Media.Cols.LINKED_AS
+                            + " INTEGER NOT NULL DEFAULT "
+                            + MoocSchema.Media.LINKED_AS_OTHER,
+                    // the links already stored, once
+                    "UPDATE " + MEDIA + " SET "
+                            + MoocSchema.Media.Cols.LINKED_AS + " = "
+                            + MoocSchema.Media.LINKED_AS_AUDIO + " WHERE "
+                            + MoocSchema.Media.Cols.HASH + " IN (SELECT "
+                            + hashOfLink(MoocSchema.Story.Cols.AUDIO_LINK)
+                            + " FROM " + STORY + " WHERE "
+                            + isMediaLink(MoocSchema.Story.Cols.AUDIO_LINK)
+                            + ")",
+                    "UPDATE " + MEDIA + " SET "
+                            + MoocSchema.Media.Cols.LINKED_AS + " = "
+                            + MoocSchema.Media.LINKED_AS_IMAGE + " WHERE "
+                            + MoocSchema.Media.Cols.HASH + " IN (SELECT "
+                            + hashOfLink(MoocSchema.Story.Cols.IMAGE_LINK)
+                            + " FROM " + STORY + " WHERE "
+                            + isMediaLink(MoocSchema.Story.Cols.IMAGE_LINK)
+                            + ")",
+                    // the blobs still to be sent or received, by LINKED_AS
+                    "CREATE INDEX media_pending_idx ON " + MEDIA + " ("
+                            + MoocSchema.Media.Cols.UPLOADED + ", "
+                            + MoocSchema.Media.Cols.LINKED_AS + ", "
+                            + MoocSchema.Media.Cols.ID + ")",
+                    // and every link written from now on
+                    "DROP TRIGGER IF EXISTS media_ref_insert",
+                    "CREATE TRIGGER media_ref_insert AFTER INSERT ON " + STORY
+                            + " BEGIN " + addMediaRefs("new.", 1)
+                            + setLinkedAs("new.") + "END",
+                    "DROP TRIGGER IF EXISTS media_ref_update",
+                    "CREATE TRIGGER media_ref_update AFTER UPDATE OF "
+                            + MEDIA_LINK_COLUMNS[0] + ", "
+                            + MEDIA_LINK_COLUMNS[1] + ", "
+                            + MEDIA_LINK_COLUMNS[2] + " ON " + STORY
+                            + " BEGIN " + addMediaRefs("old.", -1)
+                            + addMediaRefs("new.", 1) + setLinkedAs("new.")
+                            + "END") };
+
+    // The version after every Migration has been applied.
+    static final int LATEST_VERSION = BASE_VERSION + ALL.length;
+
+    private MoocDataDBMigrations() {
+    }
+
+    /*
+     * SQL for the MoocSchema.Story.Cols.GEO_BAND of the given latitude
+     * expression; LATITUDE + 90 is never negative, so the CAST truncation is
+     * a floor
+     */
+    private static String geoBandOf(final String latitude) {
+        return "CAST((" + latitude + " + 90) * "
+                + MoocSchema.Story.GEO_BANDS_PER_DEGREE + " AS INTEGER)";
+    }
+
+    /*
+     * Trigger body statements adding 'delta' to the REF_COUNT of the blob
+     * linked from each of the MEDIA_LINK_COLUMNS of the trigger row 'row'
+     * ("new." or "old."), creating the MEDIA rows of blobs not seen before.
+     */
+    private static String addMediaRefs(final String row, final int delta) {
+        final StringBuilder sql = new StringBuilder();
+        for (String column : MEDIA_LINK_COLUMNS) {
+            final String link = row + column;
+            if (delta > 0) {
+                sql.append("INSERT OR IGNORE INTO ").append(MEDIA).append(" (")
+                        .append(MoocSchema.Media.Cols.HASH).append(", ")
+                        .append(MoocSchema.Media.Cols.CREATION_TIME)
+                        .append(") SELECT ").append(hashOfLink(link))
+                        .append(", ").append(NOW_MILLIS).append(" WHERE ")
+                        .append(isMediaLink(link)).append("; ");
+            }
+            sql.append("UPDATE ").append(MEDIA).append(" SET ")
+                    .append(MoocSchema.Media.Cols.REF_COUNT).append(" = ")
+                    .append(MoocSchema.Media.Cols.REF_COUNT)
+                    .append((delta > 0) ? " + " : " - ")
+                    .append(Math.abs(delta)).append(" WHERE ")
+                    .append(isMediaLink(link)).append(" AND ")
+                    .append(MoocSchema.Media.Cols.HASH).append(" = ")
+                    .append(hashOfLink(link)).append("; ");
+        }
+        return sql.toString();
+    }
+
+    /*
+     * SQL statements lowering the MoocSchema.Media.Cols.LINKED_AS of the
+     * blobs the image and audio links of a row ("new.") refer to
+     */
+    private static String setLinkedAs(final String row) {
+        return lowerLinkedAs(row + MoocSchema.Story.Cols.IMAGE_LINK,
+                MoocSchema.Media.LINKED_AS_IMAGE)
+                + lowerLinkedAs(row + MoocSchema.Story.Cols.AUDIO_LINK,
+                        MoocSchema.Media.LINKED_AS_AUDIO);
+    }
+
+    private static String lowerLinkedAs(final String link, final int linkedAs) {
+        return "UPDATE " + MEDIA + " SET " + MoocSchema.Media.Cols.LINKED_AS
+                + " = " + linkedAs + " WHERE "
+                + MoocSchema.Media.Cols.LINKED_AS + " > " + linkedAs + " AND "
+                + isMediaLink(link) + " AND " + MoocSchema.Media.Cols.HASH
+                + " = " + hashOfLink(link) + "; ";
+    }
+
+    /*
+     * Journal every insert, delete, and update of the columns of
+     * 'columnNames' (not the DB maintained ones, such as GEO_BAND, nor the
+     * sync state) of a table.
+     */
+    private static void createJournalTriggers(final SQLiteDatabase db,
+            final String table, final String[] columnNames) {
+        final StringBuilder columns = new StringBuilder();
+        for (String column : columnNames) {
+            columns.append((columns.length() == 0) ? "" : ", ").append(column);
+        }
+        db.execSQL("CREATE TRIGGER " + table + "_journal_insert AFTER INSERT ON "
+                + table + " BEGIN "
+                + journalEntry(table, "new.", MoocSchema.Changes.OPERATION_INSERT)
+                + " END");
+        db.execSQL("CREATE TRIGGER " + table + "_journal_update AFTER UPDATE OF "
+                + columns + " ON " + table + " BEGIN "
+                + journalEntry(table, "new.", MoocSchema.Changes.OPERATION_UPDATE)
+                + " END");
+        db.execSQL("CREATE TRIGGER " + table + "_journal_delete AFTER DELETE ON "
+                + table + " BEGIN "
+                + journalEntry(table, "old.", MoocSchema.Changes.OPERATION_DELETE)
+                + " END");
+    }
+
+    /*
+     * Trigger body statement adding the journal entry of the trigger row
+     * 'row' ("new." or "old.").
+     */
+    private static String journalEntry(final String table, final String row,
+            final String operation) {
+        return "INSERT INTO " + JOURNAL + " (" + MoocSchema.Changes.Cols.TABLE
+                + ", " + MoocSchema.Changes.Cols.ROW_ID + ", "
+                + MoocSchema.Changes.Cols.OPERATION + ", "
+                + MoocSchema.Changes.Cols.LOCAL + ") VALUES ('" + table + "', "
+                + row + MoocSchema.Story.Cols.ID + ", '" + operation + "', "
+                + (MoocSchema.Changes.OPERATION_DELETE.equals(operation) ? "0"
+                        : row + MoocSchema.Story.Cols.DIRTY + " > 0") + ");";
+    }
+
+    /**
+     * The statements compacting the journal (see MoocSchema.Changes): drop
+     * all but the latest entry of each row, then the entries more than
+     * JOURNAL_MAX_ENTRIES before 'newest', recording the last one dropped in
+     * an OPERATION_RESET entry.
+     *
+     * @param newest
+     *            SQL for the newest sequence number, which must not change
+     *            while the statements run
+     * @return the statements, to run in order
+     */
+    static String[] compactJournal(final String newest) {
+        final String seq = MoocSchema.Changes.Cols.SEQUENCE;
+        final String dropped = seq + " <= " + newest + " - "
+                + JOURNAL_MAX_ENTRIES;
+        return new String[] {
+                "DELETE FROM " + JOURNAL + " WHERE " + seq
+                        + " NOT IN (SELECT MAX(" + seq + ") FROM " + JOURNAL
+                        + " GROUP BY " + MoocSchema.Changes.Cols.TABLE + ", "
+                        + MoocSchema.Changes.Cols.ROW_ID + ")",
+                "INSERT INTO " + JOURNAL + " (" + MoocSchema.Changes.Cols.TABLE
+                        + ", " + MoocSchema.Changes.Cols.ROW_ID + ", "
+                        + MoocSchema.Changes.Cols.OPERATION + ") SELECT '', (SELECT MAX("
+                        + seq + ") FROM " + JOURNAL + " WHERE " + dropped
+                        + "), '" + MoocSchema.Changes.OPERATION_RESET
+                        + "' WHERE EXISTS (SELECT 1 FROM " + JOURNAL
+                        + " WHERE " + dropped + ")",
+                "DELETE FROM " + JOURNAL + " WHERE " + dropped };
+    }
+
+    /*
+     * SQL true when the link expression is to a stored blob, see
+     * MoocSchema.Media.hashOfLink()
+     */
+    private static String isMediaLink(final String link) {
+        return "substr(" + link + ", 1, "
+                + MoocSchema.Media.LINK_PREFIX.length() + ") = '"
+                + MoocSchema.Media.LINK_PREFIX + "'";
+    }
+
+    /*
+     * SQL for the HASH of the blob a link expression is to
+     */
+    private static String hashOfLink(final String link) {
+        return "substr(" + link + ", "
+                + (MoocSchema.Media.LINK_PREFIX.length() + 1) + ")";
+    }
+
+    /**
+     * Apply, in order, every Migration needed to go from oldVersion to
+     * newVersion.
+     *
+     * @param db
+     * @param oldVersion
+     *            must be at least BASE_VERSION
+     * @param newVersion
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            final Migration step = ALL[version - BASE_VERSION];
+            Log.d(LOG_TAG, "migrating " + version + " -> " + (version + 1)
+                    + ": " + step.description);
+            step.apply(db);
+        }
+    }
+}
@@ -0,0 +1,543 @@
+
+package edu.vuum.mocca.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Content-addressed file storage for the media blobs of MoocSchema.Media.
+ * <p>
+ * A blob is stored once, under the lower case hex SHA-256 of its content, in
+ * a directory sharded on the first two pairs of hex digits
+ * (media/ab/cd/abcd...), so no directory grows to hold every file. Blobs are
+ * immutable: storing the same content again returns the same hash without
+ * writing a second copy.
+ * <p>
+ * The files live in the app's files directory, which (unlike the cache
+ * directory) the system does not clear. Whether a blob is still needed is
+ * decided by the REF_COUNT of its MoocSchema.Media row, see
+ * collectGarbage().
+ * <p>
+ * Stored blobs can be read in place, by range (see
+ * MoocProvider.openAssetFile()) or memory-mapped with map(). A blob still
+ * being written by put(uploadId, in) can be followed as it grows with
+ * streamUpload().
+ * <p>
+ * A blob received from the server a piece at a time is kept in its
+ * partialFileFor() file until completePartial() stores it.
+ */
+public class MoocMediaStore {
+
+    private static final String LOG_TAG = MoocMediaStore.class
+            .getCanonicalName();
+
+    private static final String MEDIA_DIRECTORY = "media";
+    private static final String TEMP_DIRECTORY = "tmp";
+    private static final String PARTIAL_DIRECTORY = "partial";
+    private static final int HASH_LENGTH = 64;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * How long a blob (or an unfinished write) is kept without references, so
+     * that a blob stored but not linked from a story yet is not collected.
+     */
+    public static final long GC_GRACE_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * How long a partial blob is kept without being added to, so that a
+     * download interrupted for a while can still be resumed.
+     */
+    public static final long PARTIAL_GRACE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    private final File root;
+    private final File temp;
+    private final File partial;
+
+    // the puts in progress that readers may follow, by upload id; shared by
+    // every store of the process, as MoocResolver puts through its own store
+    // what MoocProvider streams from another
+    private static final Map<String, Upload> uploads = new HashMap<String, Upload>();
+
+    /*
+     * A put() in progress: its temp file and how much of it is written.
+     */
+    private static class Upload {
+        final File file;
+        long written = 0;
+        boolean done = false;
+
+        Upload(File file) {
+            this.file = file;
+        }
+
+        synchronized void wrote(final long count) {
+            written += count;
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            done = true;
+            notifyAll();
+        }
+
+        /*
+         * Wait until more than 'position' bytes are written, returning how
+         * many are, or -1 once the upload is done with no more bytes.
+         */
+        synchronized long awaitBeyond(final long position)
+                throws InterruptedException {
+            while (written <= position && !done) {
+                wait();
+            }
+            return (written > position) ? written : -1;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param filesDir
+     *            the app's files directory (Context.getFilesDir())
+     */
+    public MoocMediaStore(File filesDir) {
+        root = new File(filesDir, MEDIA_DIRECTORY);
+        temp = new File(root, TEMP_DIRECTORY);
+        partial = new File(root, PARTIAL_DIRECTORY);
+    }
+
+    /**
+     * If the String is a hash as used by this store (which also keeps it
+     * from being used to reach outside of the store's directory).
+     *
+     * @param hash
+     * @return if it is HASH_LENGTH lower case hex digits
+     */
+    public static boolean isValidHash(final String hash) {
+        if (hash == null || hash.length() != HASH_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            final char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The file of a blob, whether or not it is stored.
+     *
+     * @param hash
+     *            a valid hash
+     * @return the blob's File
+     */
+    public File fileFor(final String hash) {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Invalid media hash: " + hash);
+        }
+        return new File(new File(new File(root, hash.substring(0, 2)),
+                hash.substring(2, 4)), hash);
+    }
+
+    /**
+     * If the blob is stored.
+     *
+     * @param hash
+     * @return if the blob's file exists
+     */
+    public boolean contains(final String hash) {
+        return isValidHash(hash) && fileFor(hash).isFile();
+    }
+
+    /**
+     * The file a blob is received into, a piece at a time, before
+     * completePartial() checks and stores it. Its length is how much of the
+     * blob was received, so a download cut off can go on from there.
+     *
+     * @param hash
+     *            a valid hash
+     * @return the partial blob's File, its directory created
+     * @throws IOException
+     */
+    public File partialFileFor(final String hash) throws IOException {
+        if (!isValidHash(hash)) {
+            throw new IllegalArgumentException("Invalid media hash: " + hash);
+        }
+        if (!partial.isDirectory() && !partial.mkdirs()) {
+            throw new IOException("Unable to create " + partial);
+        }
+        return new File(partial, hash);
+    }
+
+    /**
+     * Store a partial blob received in full: it is moved to its place if its
+     * content has the hash, and deleted (to be received again) if it does not.
+     *
+     * @param hash
+     * @return if the blob is now stored
+     * @throws IOException
+     */
+    public boolean completePartial(final String hash) throws IOException {
+        final File file = partialFileFor(hash);
+        final MessageDigest digest = sha256();
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        if (!hash.equals(toHex(digest.digest()))) {
+            Log.w(LOG_TAG, "completePartial() content does not match " + hash);
+            file.delete();
+            return false;
+        }
+        moveToPlace(file, hash);
+        if (file.exists()) {
+            file.delete();
+        }
+        return true;
+    }
+
+    /**
+     * Store the content of the stream (which is not closed). It is written to
+     * a temporary file while being hashed, then moved to its place, unless an
+     * identical blob is already stored.
+     *
+     * @param in
+     * @return the hash of the stored blob
+     * @throws IOException
+     */
+    public String put(final InputStream in) throws IOException {
+        return put(null, in);
+    }
+
+    /**
+     * If the String can name an upload: 1 to 64 letters, digits, '-' or '_'.
+     *
+     * @param uploadId
+     * @return if it is a valid upload id
+     */
+    public static boolean isValidUploadId(final String uploadId) {
+        if (uploadId == null || uploadId.length() == 0
+                || uploadId.length() > 64) {
+            return false;
+        }
+        for (int i = 0; i < uploadId.length(); i++) {
+            final char c = uploadId.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Store the content of the stream, like put(InputStream), letting readers
+     * follow it with streamUpload(uploadId, ...) while it is written.
+     *
+     * @param uploadId
+     *            a name for the upload, unique while it runs (see
+     *            isValidUploadId()), or null
+     * @param in
+     * @return the hash of the stored blob
+     * @throws IOException
+     */
+    public String put(final String uploadId, final InputStream in)
+            throws IOException {
+        if (uploadId != null && !isValidUploadId(uploadId)) {
+            throw new IllegalArgumentException("Invalid upload id: "
+                    + uploadId);
+        }
+        final MessageDigest digest = sha256();
+        if (!temp.isDirectory() && !temp.mkdirs()) {
+            throw new IOException("Unable to create " + temp);
+        }
+        final File tempFile = File.createTempFile("put", null, temp);
+        final Upload upload = new Upload(tempFile);
+        if (uploadId != null) {
+            synchronized (uploads) {
+                if (uploads.containsKey(uploadId)) {
+                    tempFile.delete();
+                    throw new IllegalStateException("Upload " + uploadId
+                            + " is already running");
+                }
+                uploads.put(uploadId, upload);
+            }
+        }
+        try {
+            final FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    out.flush();
+                    upload.wrote(count);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+                upload.finish();
+                if (uploadId != null) {
+                    synchronized (uploads) {
+                        uploads.remove(uploadId);
+                    }
+                }
+            }
+
+            final String hash = toHex(digest.digest());
+            moveToPlace(tempFile, hash);
+            return hash;
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Copy an upload in progress to 'out' as it is written, returning once
+     * all of it has been copied. Readers keep their open file even after the
+     * finished upload is moved to its place.
+     *
+     * @param uploadId
+     * @param out
+     *            not closed
+     * @return false if no such upload is running
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean streamUpload(final String uploadId, final OutputStream out)
+            throws IOException, InterruptedException {
+        final Upload upload;
+        final FileInputStream in;
+        synchronized (uploads) {
+            upload = uploads.get(uploadId);
+            if (upload == null) {
+                return false;
+            }
+            // opened while the upload is registered, so the file is there
+            in = new FileInputStream(upload.file);
+        }
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            while (upload.awaitBeyond(position) >= 0) {
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                    position += count;
+                }
+                out.flush();
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Memory-map part of a stored blob, for reading it in place without
+     * copying it through a stream.
+     *
+     * @param hash
+     * @param offset
+     *            first byte mapped
+     * @param length
+     *            number of bytes mapped, or -1 for the rest of the blob
+     * @return a read-only MappedByteBuffer
+     * @throws IOException
+     *             e.g. if the blob is not stored
+     */
+    public MappedByteBuffer map(final String hash, final long offset,
+            final long length) throws IOException {
+        final FileInputStream in = new FileInputStream(fileFor(hash));
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (offset < 0 || offset > size) {
+                throw new IOException("Offset " + offset + " outside of "
+                        + hash);
+            }
+            final long mapped = (length < 0) ? size - offset : Math.min(
+                    length, size - offset);
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, mapped);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete the blobs no story refers to anymore: those whose
+     * MoocSchema.Media row has no references and is older than the grace
+     * period, and files with no row at all (e.g. left behind by a crash). The
+     * caller must serialize this with other writes to the DB.
+     *
+     * @param db
+     * @param now
+     *            current time in millis
+     * @return number of blobs deleted
+     */
+    public int collectGarbage(final MoocDataDBAdapter db, final long now) {
+        final long cutoff = now - GC_GRACE_MILLIS;
+        int deleted = 0;
+
+        // unreferenced rows
+        final List<String> unreferenced = new ArrayList<String>();
+        final Cursor candidates = db.query(MoocSchema.Media.TABLE_NAME,
+                new String[] { MoocSchema.Media.Cols.HASH },
+                MoocSchema.Media.Cols.REF_COUNT + " <= 0 AND ("
+                        + MoocSchema.Media.Cols.CREATION_TIME + " IS NULL OR "
+                        + MoocSchema.Media.Cols.CREATION_TIME + " < ?)",
+                new String[] { String.valueOf(cutoff) }, null);
+        try {
+            while (candidates.moveToNext()) {
+                unreferenced.add(candidates.getString(0));
+            }
+        } finally {
+            candidates.close();
+        }
+        for (String hash : unreferenced) {
+            // only if still unreferenced, then the file
+            final int removed = db.delete(MoocSchema.Media.TABLE_NAME,
+                    MoocSchema.Media.Cols.HASH + " = ? AND "
+                            + MoocSchema.Media.Cols.REF_COUNT + " <= 0",
+                    new String[] { hash });
+            if (removed > 0 && isValidHash(hash) && fileFor(hash).delete()) {
+                deleted++;
+            }
+        }
+
+        // files without a row, and unfinished writes
+        final Set<String> known = new HashSet<String>();
+        final Cursor rows = db.query(MoocSchema.Media.TABLE_NAME,
+                new String[] { MoocSchema.Media.Cols.HASH }, null, null, null);
+        try {
+            while (rows.moveToNext()) {
+                known.add(rows.getString(0));
+            }
+        } finally {
+            rows.close();
+        }
+        final File[] shards = root.listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                if (shard.equals(temp)) {
+                    deleted += deleteOlderThan(shard.listFiles(), cutoff, null);
+                    continue;
+                }
+                if (shard.equals(partial)) {
+                    deleted += deleteOlderThan(shard.listFiles(), now
+                            - PARTIAL_GRACE_MILLIS, null);
+                    continue;
+                }
+                final File[] subShards = shard.listFiles();
+                if (subShards == null) {
+                    continue;
+                }
+                for (File subShard : subShards) {
+                    deleted += deleteOlderThan(subShard.listFiles(), cutoff,
+                            known);
+                }
+            }
+        }
+        Log.d(LOG_TAG, "collectGarbage() deleted " + deleted + " blobs");
+        return deleted;
+    }
+
+    /**
+     * The values registering a stored blob in MoocSchema.Media.
+     *
+     * @param hash
+     * @return ContentValues for the blob's row
+     */
+    public ContentValues valuesFor(final String hash) {
+        final ContentValues values = new ContentValues();
+        values.put(MoocSchema.Media.Cols.HASH, hash);
+        values.put(MoocSchema.Media.Cols.SIZE, fileFor(hash).length());
+        values.put(MoocSchema.Media.Cols.CREATION_TIME,
+                System.currentTimeMillis());
+        return values;
+    }
+
+    /*
+     * Move a file with the content of a blob to the blob's place, unless the
+     * blob is already stored (then the file is left for the caller).
+     */
+    private void moveToPlace(final File from, final String hash)
+            throws IOException {
+        final File file = fileFor(hash);
+        if (file.isFile()) {
+            Log.d(LOG_TAG, "deduplicated " + hash);
+            return;
+        }
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        if (!from.renameTo(file) && !file.isFile()) {
+            throw new IOException("Unable to move blob to " + file);
+        }
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 unavailable");
+        }
+    }
+
+    /*
+     * Delete the files last modified before cutoff whose name is not in
+     * 'keep' (null: keep none), returning how many were deleted.
+     */
+    private static int deleteOlderThan(final File[] files, final long cutoff,
+            final Set<String> keep) {
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File file : files) {
+            if ((keep == null || !keep.contains(file.getName()))
+                    && file.lastModified() < cutoff && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(digits[(b >> 4) & 0xF]).append(digits[b & 0xF]);
+        }
+        return hex.toString();
+    }
+}
@@ -4,16 +4,26 @@ package edu.vuum.mocca.provider;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
@@ -25,6 +35,13 @@ public class MoocProvider extends ContentProvider {
     // Local backend DB
     MoocDataDBAdapter mDB;
 
+    // Serializes writers. Readers take no lock: with write-ahead logging
+    // enabled in MoocDataDBAdapter each query runs on its own pooled
+    // connection against the last committed snapshot, in parallel with other
+    // queries and with the (single) writer. Reentrant so that applyBatch can
+    // call insert/update/delete while holding it.
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+
     // shorten variable names for easier readability
 
     // ST:createShortContentURIforRelations:begin
@@ -39,10 +56,52 @@ public class MoocProvider extends ContentProvider {
     public static final int STORY_SINGLE_ROW = MoocSchema.Story.PATH_FOR_ID_TOKEN;
     public static final int TAGS_ALL_ROWS = MoocSchema.Tags.PATH_TOKEN;
     public static final int TAGS_SINGLE_ROW = MoocSchema.Tags.PATH_FOR_ID_TOKEN;
+    public static final int STORY_SEARCH = MoocSchema.Story.SEARCH_PATH_TOKEN;
+    public static final int STORY_GEO = MoocSchema.Story.GEO_PATH_TOKEN;
+    public static final int STORY_TAGGED = MoocSchema.Story.TAGGED_PATH_TOKEN;
+    public static final int MEDIA_ALL_ROWS = MoocSchema.Media.PATH_TOKEN;
+    public static final int MEDIA_SINGLE_ROW = MoocSchema.Media.PATH_FOR_ID_TOKEN;
+    public static final int MEDIA_UPLOAD = MoocSchema.Media.UPLOAD_PATH_FOR_ID_TOKEN;
+    public static final int MEDIA_THUMBNAIL = MoocSchema.Media.THUMBNAIL_PATH_FOR_ID_TOKEN;
+    public static final int DELETED_ALL_ROWS = MoocSchema.Deleted.PATH_TOKEN;
+    public static final int DELETED_SINGLE_ROW = MoocSchema.Deleted.PATH_FOR_ID_TOKEN;
+    public static final int CHANGES = MoocSchema.Changes.PATH_TOKEN;
     // ST:createShortURIMatchingTokens:finish
 
+    // meters per degree of latitude
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    // how long single writes outside a batch are held back, so that bursts
+    // of them reach observers as one notification
+    private static final long NOTIFY_WINDOW_MILLIS = 100;
+
+    // disk budget of the cached thumbnails of media blobs
+    private static final long THUMBNAIL_CACHE_BYTES = 8 * 1024 * 1024;
+
     private static final UriMatcher uriMatcher = MoocSchema.URI_MATCHER;
 
+    // columns bound by the compiled bulk insert statements (all but _id,
+    // the sync state, and a story's GEO_BAND)
+    private static final String[] STORY_INSERT_COLUMNS = withColumns(
+            withoutId(MoocSchema.Story.ALL_COLUMN_NAMES),
+            MoocSchema.Story.Cols.DIRTY, MoocSchema.Story.Cols.VERSION,
+            MoocSchema.Story.Cols.GEO_BAND);
+    private static final String[] TAGS_INSERT_COLUMNS = withColumns(
+            withoutId(MoocSchema.Tags.ALL_COLUMN_NAMES),
+            MoocSchema.Tags.Cols.DIRTY, MoocSchema.Tags.Cols.VERSION);
+
+    // coalesces the change notifications of writes
+    private ChangeNotifier mNotifier;
+
+    // files of the MoocSchema.Media blobs
+    private MoocMediaStore mMedia;
+
+    // downscaled copies of the image blobs, for MoocSchema.Media thumbnails
+    private MoocThumbnailCache mThumbnails;
+
+    // the last DIRTY value given to a locally edited row, see nextDirtyStamp()
+    private long mLastDirtyStamp = 0;
+
     @Override
     /**
      * Implement this to initialize your content provider on startup.
@@ -54,6 +113,11 @@ public class MoocProvider extends ContentProvider {
         Log.d(LOG_TAG, "onCreate()");
         mDB = new MoocDataDBAdapter(getContext());
         mDB.open();
+        mNotifier = new ChangeNotifier(getContext().getContentResolver(),
+                NOTIFY_WINDOW_MILLIS);
+        mMedia = new MoocMediaStore(getContext().getFilesDir());
+        mThumbnails = new MoocThumbnailCache(new File(getContext()
+                .getCacheDir(), "thumbnails"), mMedia, THUMBNAIL_CACHE_BYTES);
         return true;
     }
 
@@ -64,7 +128,7 @@ public class MoocProvider extends ContentProvider {
      * or vnd.android.cursor.dir/ for multiple items. This method can be called from multiple 
      * threads, as described in Processes and Threads.
      */
-    synchronized public String getType(Uri uri) {
+    public String getType(Uri uri) {
         Log.d(LOG_TAG, "getType()");
         switch (uriMatcher.match(uri)) {
 
@@ -73,11 +137,29 @@ public class MoocProvider extends ContentProvider {
             return MoocSchema.Story.CONTENT_TYPE_DIR;
         case STORY_SINGLE_ROW:
             return MoocSchema.Story.CONTENT_ITEM_TYPE;
+        case STORY_SEARCH:
+        case STORY_GEO:
+        case STORY_TAGGED:
+            return MoocSchema.Story.CONTENT_TYPE_DIR;
         case TAGS_ALL_ROWS:
             return MoocSchema.Tags.CONTENT_TYPE_DIR;
         case TAGS_SINGLE_ROW:
             return MoocSchema.Tags.CONTENT_ITEM_TYPE;
             // ST:createContentTypeReturnsforRelations:finish
+        case MEDIA_ALL_ROWS:
+            return MoocSchema.Media.CONTENT_TYPE_DIR;
+        case MEDIA_SINGLE_ROW:
+            return MoocSchema.Media.CONTENT_ITEM_TYPE;
+        case MEDIA_UPLOAD:
+            return MoocSchema.Media.UPLOAD_MIME_TYPE;
+        case MEDIA_THUMBNAIL:
+            return MoocSchema.Media.THUMBNAIL_MIME_TYPE;
+        case DELETED_ALL_ROWS:
+            return MoocSchema.Deleted.CONTENT_TYPE_DIR;
+        case DELETED_SINGLE_ROW:
+            return MoocSchema.Deleted.CONTENT_ITEM_TYPE;
+        case CHANGES:
+            return MoocSchema.Changes.CONTENT_TYPE_DIR;
 
         default:
             throw new UnsupportedOperationException("URI " + uri
@@ -90,31 +172,93 @@ public class MoocProvider extends ContentProvider {
      * Retrieve data from your provider. Use the arguments to select the table to query,
      * the rows and columns to return, and the sort order of the result. Return the data as a Cursor object.
      */
-    synchronized public Cursor query(final Uri uri, final String[] projection,
+    public Cursor query(final Uri uri, final String[] projection,
             final String selection, final String[] selectionArgs,
             final String sortOrder) {
         Log.d(LOG_TAG, "query()");
         String modifiedSelection = selection;
+        String[] modifiedArgs = selectionArgs;
         switch (uriMatcher.match(uri)) {
 
         // ST:createPublicQueryforRelations:begin
         case STORY_SINGLE_ROW: {
-            modifiedSelection = modifiedSelection + MoocSchema.Story.Cols.ID
-                    + " = " + uri.getLastPathSegment();
+            modifiedSelection = andSelection(modifiedSelection,
+                    MoocSchema.Story.Cols.ID + " = ?");
+            modifiedArgs = appendArgs(modifiedArgs,
+                    new String[] { uri.getLastPathSegment() });
         }
         case STORY_ALL_ROWS: {
             return query(uri, MoocSchema.Story.TABLE_NAME, projection,
-                    modifiedSelection, selectionArgs, sortOrder);
+                    modifiedSelection, modifiedArgs, sortOrder);
         }
         case TAGS_SINGLE_ROW: {
-            modifiedSelection = modifiedSelection + MoocSchema.Tags.Cols.ID
-                    + " = " + uri.getLastPathSegment();
+            modifiedSelection = andSelection(modifiedSelection,
+                    MoocSchema.Tags.Cols.ID + " = ?");
+            modifiedArgs = appendArgs(modifiedArgs,
+                    new String[] { uri.getLastPathSegment() });
         }
         case TAGS_ALL_ROWS: {
             return query(uri, MoocSchema.Tags.TABLE_NAME, projection,
-                    modifiedSelection, selectionArgs, sortOrder);
+                    modifiedSelection, modifiedArgs, sortOrder);
         }
         // ST:createPublicQueryforRelations:finish
+        case MEDIA_SINGLE_ROW: {
+            modifiedSelection = andSelection(modifiedSelection,
+                    MoocSchema.Media.Cols.HASH + " = ?");
+            modifiedArgs = appendArgs(modifiedArgs,
+                    new String[] { uri.getLastPathSegment() });
+        }
+        case MEDIA_ALL_ROWS: {
+            return query(uri, MoocSchema.Media.TABLE_NAME, projection,
+                    modifiedSelection, modifiedArgs, sortOrder);
+        }
+        case DELETED_SINGLE_ROW: {
+            modifiedSelection = andSelection(modifiedSelection,
+                    MoocSchema.Deleted.Cols.ID + " = ?");
+            modifiedArgs = appendArgs(modifiedArgs,
+                    new String[] { uri.getLastPathSegment() });
+        }
+        case DELETED_ALL_ROWS: {
+            return mDB.query(MoocSchema.Deleted.TABLE_NAME, projection,
+                    modifiedSelection, modifiedArgs, sortOrder);
+        }
+        case CHANGES: {
+            return queryChanges(uri, projection, selection, selectionArgs,
+                    sortOrder);
+        }
+        case STORY_SEARCH: {
+            final String match = uri
+                    .getQueryParameter(MoocSchema.Story.QUERY_PARAMETER_SEARCH);
+            if (match == null || match.trim().length() == 0) {
+                throw new IllegalArgumentException("Missing "
+                        + MoocSchema.Story.QUERY_PARAMETER_SEARCH
+                        + " in search URI " + uri);
+            }
+            final Long limit = parsePagingParameter(uri,
+                    MoocSchema.QUERY_PARAMETER_LIMIT);
+            return mDB.searchStory(projection, match, selection,
+                    selectionArgs, (limit == null) ? -1 : limit.intValue());
+        }
+
+        case STORY_GEO: {
+            return queryByLocation(uri, projection, selection, selectionArgs);
+        }
+        case STORY_TAGGED: {
+            final List<String> tags = uri
+                    .getQueryParameters(MoocSchema.Story.QUERY_PARAMETER_TAG);
+            final String match = uri
+                    .getQueryParameter(MoocSchema.Story.QUERY_PARAMETER_MATCH);
+            if (match != null && !MoocSchema.Story.MATCH_ALL.equals(match)
+                    && !MoocSchema.Story.MATCH_ANY.equals(match)) {
+                throw new IllegalArgumentException("Invalid "
+                        + MoocSchema.Story.QUERY_PARAMETER_MATCH + " in URI "
+                        + uri);
+            }
+            return mDB.queryStoryWithTags(projection, selection,
+                    selectionArgs, sortOrder,
+                    tags.toArray(new String[tags.size()]),
+                    MoocSchema.Story.MATCH_ALL.equals(match));
+        }
 
         default:
             return null;
@@ -122,19 +266,221 @@ public class MoocProvider extends ContentProvider {
 
     }
 
+    /*
+     * Private query for the MoocSchema.Changes journal entries after the
+     * QUERY_PARAMETER_SINCE sequence number, found through the primary key.
+     */
+    private Cursor queryChanges(final Uri uri, final String[] projection,
+            final String selection, final String[] selectionArgs,
+            final String sortOrder) {
+        final Long since = parsePagingParameter(uri,
+                MoocSchema.Changes.QUERY_PARAMETER_SINCE);
+        final Long limit = parsePagingParameter(uri,
+                MoocSchema.QUERY_PARAMETER_LIMIT);
+        final String changesSelection = andSelection(
+                MoocSchema.Changes.Cols.SEQUENCE + " > ?", selection);
+        final String[] changesArgs = appendArgs(
+                new String[] { String.valueOf((since == null) ? 0 : since
+                        .longValue()) }, selectionArgs);
+        final String order = (sortOrder == null) ? MoocSchema.Changes.SORT_ORDER
+                : sortOrder;
+        if (limit == null) {
+            return mDB.query(MoocSchema.Changes.TABLE_NAME, projection,
+                    changesSelection, changesArgs, order);
+        }
+        return mDB.query(MoocSchema.Changes.TABLE_NAME, projection,
+                changesSelection, changesArgs, order, limit.intValue());
+    }
+
+    /*
+     * Private query for the MoocSchema.Story.GEO_URI location queries, either
+     * by radius around a point or by bounding box.
+     */
+    private Cursor queryByLocation(final Uri uri, final String[] projection,
+            final String selection, final String[] selectionArgs) {
+        final Long limit = parsePagingParameter(uri,
+                MoocSchema.QUERY_PARAMETER_LIMIT);
+        final int rowLimit = (limit == null) ? -1 : limit.intValue();
+        final Double radius = parseDoubleParameter(uri,
+                MoocSchema.Story.QUERY_PARAMETER_RADIUS);
+        if (radius != null) {
+            final double lat = requireDoubleParameter(uri,
+                    MoocSchema.Story.QUERY_PARAMETER_LATITUDE);
+            final double lon = requireDoubleParameter(uri,
+                    MoocSchema.Story.QUERY_PARAMETER_LONGITUDE);
+            final double latRadius = radius.doubleValue() / METERS_PER_DEGREE;
+            // degrees of longitude grow toward the poles, cap at the whole
+            // circle
+            final double cosLat = Math.cos(Math.toRadians(lat));
+            final double lonRadius = (cosLat * 360 <= latRadius) ? 180
+                    : latRadius / cosLat;
+            return mDB.queryStoryByLocation(projection, selection,
+                    selectionArgs, Math.max(-90, lat - latRadius),
+                    Math.min(90, lat + latRadius),
+                    Math.max(-180, lon - lonRadius),
+                    Math.min(180, lon + lonRadius), lat, lon, latRadius,
+                    rowLimit);
+        }
+        final double minLat = requireDoubleParameter(uri,
+                MoocSchema.Story.QUERY_PARAMETER_MIN_LATITUDE);
+        final double maxLat = requireDoubleParameter(uri,
+                MoocSchema.Story.QUERY_PARAMETER_MAX_LATITUDE);
+        final double minLon = requireDoubleParameter(uri,
+                MoocSchema.Story.QUERY_PARAMETER_MIN_LONGITUDE);
+        final double maxLon = requireDoubleParameter(uri,
+                MoocSchema.Story.QUERY_PARAMETER_MAX_LONGITUDE);
+        if (minLat > maxLat || minLon > maxLon) {
+            throw new IllegalArgumentException("Empty bounding box in URI "
+                    + uri);
+        }
+        return mDB.queryStoryByLocation(projection, selection, selectionArgs,
+                minLat, maxLat, minLon, maxLon, (minLat + maxLat) / 2,
+                (minLon + maxLon) / 2, -1, rowLimit);
+    }
+
+    /*
+     * The value of a decimal query parameter, or null if absent.
+     */
+    private static Double parseDoubleParameter(final Uri uri,
+            final String name) {
+        final String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return null;
+        }
+        final Double number;
+        try {
+            number = Double.valueOf(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid " + name + " in URI "
+                    + uri);
+        }
+        if (number.isNaN() || number.isInfinite()) {
+            throw new IllegalArgumentException("Invalid " + name + " in URI "
+                    + uri);
+        }
+        return number;
+    }
+
+    /*
+     * The value of a decimal query parameter that must be present.
+     */
+    private static double requireDoubleParameter(final Uri uri,
+            final String name) {
+        final Double value = parseDoubleParameter(uri, name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name + " in URI "
+                    + uri);
+        }
+        return value.doubleValue();
+    }
+
     /*
      * Private query that does the actual query based on the table
      */
 
-    synchronized private Cursor query(final Uri uri, final String tableName,
+    private Cursor query(final Uri uri, final String tableName,
             final String[] projection, final String selection,
             final String[] selectionArgs, final String sortOrder) {
 
+        if (uri.getQueryParameter(MoocSchema.QUERY_PARAMETER_LIMIT) != null) {
+            return queryPage(uri, tableName, projection, selection,
+                    selectionArgs);
+        }
+
         // Perform a query on the database with the given parameters
     	return mDB.query(tableName, projection, selection, selectionArgs, sortOrder);
     
     }
 
+    /*
+     * Private query for one page of a keyset paged query (see
+     * MoocSchema.QUERY_PARAMETER_LIMIT). Rather than skipping OFFSET rows, the
+     * page starts right after the previous page's last row, found through the
+     * index on the sort columns, so every page costs the same.
+     */
+    private Cursor queryPage(final Uri uri, final String tableName,
+            final String[] projection, final String selection,
+            final String[] selectionArgs) {
+        final int limit = parsePagingParameter(uri,
+                MoocSchema.QUERY_PARAMETER_LIMIT).intValue();
+        final Long afterID = parsePagingParameter(uri,
+                MoocSchema.QUERY_PARAMETER_AFTER_ID);
+
+        String keysetSelection = null;
+        String[] keysetArgs = null;
+        final String sortOrder;
+        if (MoocSchema.Story.TABLE_NAME.equals(tableName)) {
+            sortOrder = MoocSchema.Story.PAGE_SORT_ORDER;
+            final Long afterTime = parsePagingParameter(uri,
+                    MoocSchema.Story.QUERY_PARAMETER_AFTER_TIME);
+            if (afterTime != null && afterID != null) {
+                // (STORY_TIME, _id) < (afterTime, afterID), written so the
+                // first term is a range on the STORY_TIME index
+                keysetSelection = MoocSchema.Story.Cols.STORY_TIME
+                        + " <= ? AND (" + MoocSchema.Story.Cols.STORY_TIME
+                        + " < ? OR " + MoocSchema.Story.Cols.ID + " < ?)";
+                keysetArgs = new String[] { afterTime.toString(),
+                        afterTime.toString(), afterID.toString() };
+            }
+        } else {
+            sortOrder = MoocSchema.Tags.PAGE_SORT_ORDER;
+            if (afterID != null) {
+                keysetSelection = MoocSchema.Tags.Cols.ID + " > ?";
+                keysetArgs = new String[] { afterID.toString() };
+            }
+        }
+
+        return mDB.query(tableName, projection,
+                andSelection(selection, keysetSelection),
+                appendArgs(selectionArgs, keysetArgs), sortOrder, limit);
+    }
+
+    /*
+     * The value of a numeric paging query parameter, or null if absent.
+     */
+    private static Long parsePagingParameter(final Uri uri, final String name) {
+        final String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid " + name + " in URI "
+                    + uri);
+        }
+    }
+
+    /*
+     * Combine two optional selections with AND.
+     */
+    private static String andSelection(final String first, final String second) {
+        if (first == null || first.length() == 0) {
+            return second;
+        }
+        if (second == null || second.length() == 0) {
+            return first;
+        }
+        return "(" + first + ") AND (" + second + ")";
+    }
+
+    /*
+     * Concatenate two optional selection argument arrays.
+     */
+    private static String[] appendArgs(final String[] first,
+            final String[] second) {
+        if (first == null || first.length == 0) {
+            return second;
+        }
+        if (second == null || second.length == 0) {
+            return first;
+        }
+        final String[] args = new String[first.length + second.length];
+        System.arraycopy(first, 0, args, 0, first.length);
+        System.arraycopy(second, 0, args, first.length, second.length);
+        return args;
+    }
+
     @Override
     /**
      * Implement this to handle requests to insert a new row. As a courtesy,
@@ -144,7 +490,7 @@ public class MoocProvider extends ContentProvider {
      * (non-Javadoc)
      * @see android.content.ContentProvider#insert(android.net.Uri, android.content.ContentValues)
      */
-    synchronized public Uri insert(Uri uri, ContentValues assignedValues) {
+    public Uri insert(Uri uri, ContentValues assignedValues) {
 
         Log.d(LOG_TAG, "query()");
         final int match = uriMatcher.match(uri);
@@ -155,37 +501,34 @@ public class MoocProvider extends ContentProvider {
             final ContentValues values = MoocSchema.Story
                     .initializeWithDefault(assignedValues);
             values.remove(MoocSchema.Story.Cols.ID);
+            stampSyncState(uri, values, !isUpsert(uri));
 
-            final long rowID = mDB.insert(MoocSchema.Story.TABLE_NAME, values);
-            if (rowID < 0) {
-                Log.d(LOG_TAG, "query()");
-                return null;
+            if (isUpsert(uri)) {
+                return upsertAndNotify(uri, match, values, STORY_CONTENT_URI);
             }
-            final Uri insertedID = ContentUris.withAppendedId(
-                    STORY_CONTENT_URI, rowID);
-            getContext().getContentResolver().notifyChange(insertedID, null);
-            return ContentUris.withAppendedId(STORY_CONTENT_URI, rowID);
+            return insertAndNotify(uri, MoocSchema.Story.TABLE_NAME, values,
+                    STORY_CONTENT_URI);
         }
         case TAGS_ALL_ROWS: {
             final ContentValues values = MoocSchema.Tags
                     .initializeWithDefault(assignedValues);
             values.remove(MoocSchema.Tags.Cols.ID);
+            stampSyncState(uri, values, !isUpsert(uri));
 
-            final long rowID = mDB.insert(MoocSchema.Tags.TABLE_NAME, values);
-            if (rowID < 0) {
-                Log.d(LOG_TAG, "query()");
-                return null;
-            }
-            final Uri insertedID = ContentUris.withAppendedId(TAGS_CONTENT_URI,
-                    rowID);
-            getContext().getContentResolver().notifyChange(insertedID, null);
-            return ContentUris.withAppendedId(TAGS_CONTENT_URI, rowID);
+            // a tag is all key (tags_key_idx), so inserting one that is
+            // already there returns the existing row, as an upsert does,
+            // instead of failing (which would roll back an applyBatch)
+            return upsertAndNotify(uri, match, values, TAGS_CONTENT_URI);
         }
         // ST:createUpsertForRelations:finish
+        case MEDIA_ALL_ROWS: {
+            return registerMedia(uri, assignedValues);
+        }
 
         // breaks intentionally omitted
         case STORY_SINGLE_ROW:
-        case TAGS_SINGLE_ROW: {
+        case TAGS_SINGLE_ROW:
+        case MEDIA_SINGLE_ROW: {
             throw new IllegalArgumentException(
                     "Unsupported URI, unable to insert into specific row: "
                             + uri);
@@ -196,11 +539,239 @@ public class MoocProvider extends ContentProvider {
         }
     }
 
+    /*
+     * Private method to both attempt the insert command, and then to notify of
+     * the changes
+     */
+    private Uri insertAndNotify(final Uri uri, final String tableName,
+            final ContentValues values, final Uri contentUri) {
+        final long rowID;
+        mWriteLock.lock();
+        try {
+            mDB.startTransaction();
+            try {
+                final long keyedAs = MoocSchema.Story.TABLE_NAME
+                        .equals(tableName) ? keyLocalStory(uri, values) : -1;
+                rowID = mDB.insert(tableName, values);
+                checkKeyedAs(keyedAs, rowID);
+                mDB.setTransactionSuccessful();
+            } finally {
+                mDB.endTransaction();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+        if (rowID < 0) {
+            Log.d(LOG_TAG, "insert() failed for " + contentUri);
+            return null;
+        }
+        final Uri insertedID = ContentUris.withAppendedId(contentUri, rowID);
+        notifyChange(insertedID);
+        return insertedID;
+    }
+
+    /*
+     * Register a blob already written by MoocMediaStore.put(), given its
+     * MoocSchema.Media.Cols.HASH. A blob already registered (e.g. because a
+     * story linked to it first) keeps its row and references. The sync
+     * adapter may also set UPLOADED, for a blob received from the server.
+     */
+    private Uri registerMedia(final Uri uri, final ContentValues assignedValues) {
+        final String hash = (assignedValues == null) ? null : assignedValues
+                .getAsString(MoocSchema.Media.Cols.HASH);
+        if (!mMedia.contains(hash)) {
+            throw new IllegalArgumentException("No stored media blob for "
+                    + MoocSchema.Media.Cols.HASH + " " + hash);
+        }
+        final ContentValues values = mMedia.valuesFor(hash);
+        final ContentValues size = new ContentValues();
+        size.put(MoocSchema.Media.Cols.SIZE,
+                values.getAsLong(MoocSchema.Media.Cols.SIZE));
+        if (isSyncAdapter(uri)
+                && assignedValues.containsKey(MoocSchema.Media.Cols.UPLOADED)) {
+            size.put(MoocSchema.Media.Cols.UPLOADED,
+                    assignedValues.getAsInteger(MoocSchema.Media.Cols.UPLOADED));
+        }
+        final long rowID;
+        mWriteLock.lock();
+        try {
+            rowID = mDB.insertOrIgnore(MoocSchema.Media.TABLE_NAME,
+                    MoocSchema.Media.Cols.HASH + " = ?",
+                    new String[] { MoocSchema.Media.Cols.HASH }, values);
+            if (rowID >= 0) {
+                // a row created by a link before the blob was stored has no
+                // SIZE yet
+                mDB.update(MoocSchema.Media.TABLE_NAME, rowID, size);
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+        if (rowID < 0) {
+            return null;
+        }
+        // make the thumbnails while nothing is waiting for them, so that
+        // lists showing the image never decode the original
+        mThumbnails.prefetch(hash);
+        final Uri mediaUri = MoocSchema.Media.uriForHash(hash);
+        notifyChange(mediaUri);
+        return mediaUri;
+    }
+
+    /*
+     * Private method to both attempt the upsert command, and then to notify of
+     * the changes
+     */
+    private Uri upsertAndNotify(final Uri uri, final int match,
+            final ContentValues values, final Uri contentUri) {
+        final long rowID;
+        mWriteLock.lock();
+        try {
+            mDB.startTransaction();
+            try {
+                rowID = upsertRow(uri, match, values);
+                mDB.setTransactionSuccessful();
+            } finally {
+                mDB.endTransaction();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+        if (rowID < 0) {
+            Log.d(LOG_TAG, "upsert() failed for " + contentUri);
+            return null;
+        }
+        final Uri upsertedID = ContentUris.withAppendedId(contentUri, rowID);
+        notifyChange(upsertedID);
+        return upsertedID;
+    }
+
+    /*
+     * Upsert one row keyed on the table's ALL_KEY_COLUMNS: tags are all key,
+     * so an existing tag is left as it is (INSERT OR IGNORE against the
+     * unique tags_key_idx); a story is updated in place or inserted. The
+     * caller holds mWriteLock, in a transaction.
+     */
+    private long upsertRow(final Uri uri, final int match,
+            final ContentValues values) {
+        if (match == STORY_ALL_ROWS) {
+            // a provisional key is new, so the story is inserted
+            final long keyedAs = keyLocalStory(uri, values);
+            final long rowID = mDB.upsert(MoocSchema.Story.TABLE_NAME,
+                    MoocSchema.Story.ALL_KEY_CLAUSE,
+                    MoocSchema.Story.ALL_KEY_COLUMNS, values);
+            checkKeyedAs(keyedAs, rowID);
+            return rowID;
+        }
+        return mDB.insertOrIgnore(MoocSchema.Tags.TABLE_NAME,
+                MoocSchema.Tags.ALL_KEY_CLAUSE,
+                MoocSchema.Tags.ALL_KEY_COLUMNS, values);
+    }
+
+    /*
+     * Give a story about to be written locally without a STORY_ID (0) the
+     * provisional one, MoocSchema.Story.localStoryId(), so that it has a key
+     * of its own until the sync adapter stores the one the server assigns.
+     * The STORY_ID is that of the next '_id', so the row is written, and
+     * journaled, once. Returns that '_id', or -1 if the story keeps its
+     * STORY_ID. The caller holds mWriteLock, in the transaction of the write.
+     */
+    private long keyLocalStory(final Uri uri, final ContentValues values) {
+        return keyLocalStory(uri, values, -1);
+    }
+
+    /*
+     * keyLocalStory() for the next of several inserts: nextRowId is the
+     * '_id' the story is to get, or -1 to look it up.
+     */
+    private long keyLocalStory(final Uri uri, final ContentValues values,
+            final long nextRowId) {
+        if (isSyncAdapter(uri)) {
+            return -1;
+        }
+        final Long storyId = values.getAsLong(MoocSchema.Story.Cols.STORY_ID);
+        if (storyId != null && storyId.longValue() != 0) {
+            return -1;
+        }
+        final long rowID = (nextRowId > 0) ? nextRowId : mDB
+                .nextRowId(MoocSchema.Story.TABLE_NAME);
+        values.put(MoocSchema.Story.Cols.STORY_ID,
+                MoocSchema.Story.localStoryId(rowID));
+        return rowID;
+    }
+
+    /*
+     * Fail the write (rolling back its transaction) if a story keyed by
+     * keyLocalStory() was written as another '_id' than its STORY_ID is of.
+     */
+    private static void checkKeyedAs(final long keyedAs, final long rowID) {
+        if (keyedAs > 0 && rowID >= 0 && rowID != keyedAs) {
+            throw new IllegalStateException("Story keyed as _id " + keyedAs
+                    + " was written as " + rowID);
+        }
+    }
+
+    /*
+     * If a write comes from the sync adapter
+     * (MoocSchema.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER)
+     */
+    private static boolean isSyncAdapter(final Uri uri) {
+        return "true".equals(uri
+                .getQueryParameter(MoocSchema.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER));
+    }
+
+    /*
+     * Set the sync state columns of a Story or Tags write. A local edit marks
+     * the row DIRTY, and only a new row gets a VERSION (0, never on the
+     * server); the sync adapter's writes keep the VERSION it gives, and are
+     * clean unless it says otherwise.
+     */
+    private void stampSyncState(final Uri uri, final ContentValues values,
+            final boolean newRow) {
+        if (values == null) {
+            return;
+        }
+        if (isSyncAdapter(uri)) {
+            if (newRow && !values.containsKey(MoocSchema.Story.Cols.DIRTY)) {
+                values.put(MoocSchema.Story.Cols.DIRTY, 0);
+            }
+            if (newRow && !values.containsKey(MoocSchema.Story.Cols.VERSION)) {
+                values.put(MoocSchema.Story.Cols.VERSION, 0);
+            }
+            return;
+        }
+        values.put(MoocSchema.Story.Cols.DIRTY, nextDirtyStamp());
+        if (newRow) {
+            values.put(MoocSchema.Story.Cols.VERSION, 0);
+        } else {
+            values.remove(MoocSchema.Story.Cols.VERSION);
+        }
+    }
+
+    /*
+     * A DIRTY value greater than any given before: the time of the edit,
+     * made unique, so that the sync adapter can clear DIRTY only if the row
+     * was not edited again while it was being sent.
+     */
+    private synchronized long nextDirtyStamp() {
+        mLastDirtyStamp = Math.max(System.currentTimeMillis(),
+                mLastDirtyStamp + 1);
+        return mLastDirtyStamp;
+    }
+
+    /*
+     * If an insert URI asks for an upsert (MoocSchema.QUERY_PARAMETER_UPSERT)
+     */
+    private static boolean isUpsert(final Uri uri) {
+        return "true".equals(uri
+                .getQueryParameter(MoocSchema.QUERY_PARAMETER_UPSERT));
+    }
+
     @Override
     /**
      * Override this to handle requests to open a file blob.
      */
-    public ParcelFileDescriptor openFile(Uri uri, String mode) {
+    public ParcelFileDescriptor openFile(Uri uri, String mode)
+            throws FileNotFoundException {
         int imode = 0;
         try {
             if (mode.contains("w")) {
@@ -215,70 +786,225 @@ public class MoocProvider extends ContentProvider {
         } finally {
         }
 
-        int token = MoocSchema.URI_MATCHER.match(uri);
-        File imageDirectory = getContext().getCacheDir();
-        switch (token) {
-        case MoocSchema.Story.PATH_FOR_ID_TOKEN: {
+        switch (uriMatcher.match(uri)) {
+        case STORY_SINGLE_ROW: {
             final List<String> segments = uri.getPathSegments();
-            final File storyFile = new File(imageDirectory, "story"
-                    + segments.get(1));
-            try {
-                if (!storyFile.exists()) {
-                    storyFile.createNewFile();
-                }
-                return ParcelFileDescriptor.open(storyFile, imode);
-            } catch (FileNotFoundException ex) {
-            } catch (IOException ex) {
-            }
+            return openRowFile("story" + segments.get(1), imode);
         }
-        case MoocSchema.Tags.PATH_FOR_ID_TOKEN: {
+        case TAGS_SINGLE_ROW: {
             final List<String> segments = uri.getPathSegments();
-            final File tagsFile = new File(imageDirectory, "tags"
-                    + segments.get(1));
-            try {
-                if (!tagsFile.exists()) {
-                    tagsFile.createNewFile();
-                }
-                return ParcelFileDescriptor.open(tagsFile, imode);
-            } catch (FileNotFoundException ex) {
-            } catch (IOException ex) {
+            return openRowFile("tags" + segments.get(1), imode);
+        }
+        case MEDIA_SINGLE_ROW: {
+            // blobs are immutable, they are added with MoocMediaStore.put()
+            if (!"r".equals(mode)) {
+                throw new FileNotFoundException("Media is read-only: " + uri);
+            }
+            final String hash = uri.getLastPathSegment();
+            if (!mMedia.contains(hash)) {
+                throw new FileNotFoundException("No such media: " + uri);
             }
+            return ParcelFileDescriptor.open(mMedia.fileFor(hash),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        case MEDIA_UPLOAD: {
+            return openUploadPipe(uri, mode);
+        }
+        case MEDIA_THUMBNAIL: {
+            return openThumbnail(uri, mode);
         }
-            break;
         default: {
             throw new UnsupportedOperationException("URI: " + uri
                     + " not supported.");
         }
         }
-        return null;
+    }
+
+    /*
+     * openFile() of a thumbnail: the cached file, or one made now (waiting
+     * for the thumbnail thread) if it was not prefetched or was evicted.
+     */
+    private ParcelFileDescriptor openThumbnail(final Uri uri, final String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Thumbnails are read-only: " + uri);
+        }
+        final Long size = parsePagingParameter(uri,
+                MoocSchema.Media.QUERY_PARAMETER_SIZE);
+        final int pixels = (size == null) ? MoocSchema.Media.THUMBNAIL_SIZE_SMALL
+                : size.intValue();
+        if (!MoocThumbnailCache.isSupportedSize(pixels)) {
+            throw new IllegalArgumentException("Unsupported "
+                    + MoocSchema.Media.QUERY_PARAMETER_SIZE + " in URI " + uri);
+        }
+        final String hash = uri.getLastPathSegment();
+        // a blob collected since its thumbnail was made is gone
+        if (!mMedia.contains(hash)) {
+            throw new FileNotFoundException("No such media: " + uri);
+        }
+        return ParcelFileDescriptor.open(mThumbnails.get(hash, pixels),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    /**
+     * Ranged reads of media blobs: for BASE_URI/media/* with an offset and/or
+     * length (MoocSchema.Media.QUERY_PARAMETER_OFFSET/LENGTH), the returned
+     * AssetFileDescriptor covers only that part of the blob's file, so a
+     * reader can start anywhere without copying the part before it. Other
+     * URIs are as openFile().
+     */
+    public AssetFileDescriptor openAssetFile(Uri uri, String mode)
+            throws FileNotFoundException {
+        final Long offset = parsePagingParameter(uri,
+                MoocSchema.Media.QUERY_PARAMETER_OFFSET);
+        final Long length = parsePagingParameter(uri,
+                MoocSchema.Media.QUERY_PARAMETER_LENGTH);
+        if (uriMatcher.match(uri) != MEDIA_SINGLE_ROW
+                || (offset == null && length == null)) {
+            return super.openAssetFile(uri, mode);
+        }
+        if ((offset != null && offset.longValue() < 0)
+                || (length != null && length.longValue() < 0)) {
+            throw new IllegalArgumentException("Invalid range in URI " + uri);
+        }
+        final ParcelFileDescriptor pfd = openFile(uri, mode);
+        final long size = pfd.getStatSize();
+        final long start = (offset == null) ? 0 : offset.longValue();
+        if (start > size) {
+            try {
+                pfd.close();
+            } catch (IOException ex) {
+            }
+            throw new FileNotFoundException("Offset " + start
+                    + " beyond the end of " + uri);
+        }
+        final long available = size - start;
+        return new AssetFileDescriptor(pfd, start, (length == null) ? available
+                : Math.min(length.longValue(), available));
+    }
+
+    /*
+     * openFile() of an upload in progress: a pipe fed by a background thread
+     * following the upload (MoocMediaStore.streamUpload()). Pipes need
+     * Honeycomb.
+     */
+    private ParcelFileDescriptor openUploadPipe(final Uri uri,
+            final String mode) throws FileNotFoundException {
+        final String uploadId = uri.getLastPathSegment();
+        if (!"r".equals(mode) || !MoocMediaStore.isValidUploadId(uploadId)) {
+            throw new FileNotFoundException("Unsupported upload access: "
+                    + uri + " mode " + mode);
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            throw new FileNotFoundException(
+                    "Streaming uploads needs Honeycomb or newer");
+        }
+        return openPipeHelper(uri, null, null, uploadId,
+                new PipeDataWriter<String>() {
+                    public void writeDataToPipe(ParcelFileDescriptor output,
+                            Uri uri, String mimeType, Bundle opts,
+                            String uploadId) {
+                        final FileOutputStream out = new FileOutputStream(
+                                output.getFileDescriptor());
+                        try {
+                            if (!mMedia.streamUpload(uploadId, out)) {
+                                Log.d(LOG_TAG, "No upload running: " + uri);
+                            }
+                        } catch (IOException ex) {
+                            // reader went away
+                            Log.d(LOG_TAG, "Upload stream closed: " + uri);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            try {
+                                out.close();
+                            } catch (IOException ex) {
+                            }
+                        }
+                    }
+                });
+    }
+
+    /*
+     * Open (creating it if needed) the file attached to a single story or
+     * tags row. These live in the files directory, which the system does not
+     * clear; a file left in the cache directory by older versions is moved
+     * over first.
+     */
+    private ParcelFileDescriptor openRowFile(final String name, final int imode)
+            throws FileNotFoundException {
+        final File rowFile = new File(getContext().getFilesDir(), name);
+        final File oldFile = new File(getContext().getCacheDir(), name);
+        try {
+            if (!rowFile.exists() && oldFile.exists()) {
+                oldFile.renameTo(rowFile);
+            }
+            if (!rowFile.exists()) {
+                rowFile.createNewFile();
+            }
+        } catch (IOException ex) {
+            throw new FileNotFoundException("Unable to create " + rowFile
+                    + ": " + ex.getMessage());
+        }
+        return ParcelFileDescriptor.open(rowFile, imode);
     }
 
     @Override
     /**
      * Implement this to handle requests to delete one or more rows.
      */
-    synchronized public int delete(Uri uri, String whereClause,
+    public int delete(Uri uri, String whereClause,
             String[] whereArgs) {
 
         switch (uriMatcher.match(uri)) {
         // ST:createDeleteforRelations:begin
         case STORY_SINGLE_ROW:
-            whereClause = whereClause + MoocSchema.Story.Cols.ID + " = "
-                    + uri.getLastPathSegment();
+            whereClause = andSelection(whereClause, MoocSchema.Story.Cols.ID
+                    + " = ?");
+            whereArgs = appendArgs(whereArgs,
+                    new String[] { uri.getLastPathSegment() });
             // no break here on purpose
         case STORY_ALL_ROWS: {
             return deleteAndNotify(uri, MoocSchema.Story.TABLE_NAME,
-                    whereClause, whereArgs);
+                    whereClause, whereArgs, !isSyncAdapter(uri));
         }
         case TAGS_SINGLE_ROW:
-            whereClause = whereClause + MoocSchema.Tags.Cols.ID + " = "
-                    + uri.getLastPathSegment();
+            whereClause = andSelection(whereClause, MoocSchema.Tags.Cols.ID
+                    + " = ?");
+            whereArgs = appendArgs(whereArgs,
+                    new String[] { uri.getLastPathSegment() });
             // no break here on purpose
         case TAGS_ALL_ROWS: {
             return deleteAndNotify(uri, MoocSchema.Tags.TABLE_NAME,
-                    whereClause, whereArgs);
+                    whereClause, whereArgs, !isSyncAdapter(uri));
         }
         // ST:createDeleteforRelations:finish
+        case DELETED_SINGLE_ROW:
+            whereClause = andSelection(whereClause, MoocSchema.Deleted.Cols.ID
+                    + " = ?");
+            whereArgs = appendArgs(whereArgs,
+                    new String[] { uri.getLastPathSegment() });
+            // no break here on purpose
+        case DELETED_ALL_ROWS: {
+            return deleteAndNotify(uri, MoocSchema.Deleted.TABLE_NAME,
+                    whereClause, whereArgs, false);
+        }
+        case CHANGES: {
+            // the journal is append only: delete() compacts it
+            mWriteLock.lock();
+            try {
+                return mDB.compactJournal();
+            } finally {
+                mWriteLock.unlock();
+            }
+        }
+        case MEDIA_ALL_ROWS: {
+            return collectMediaGarbage(uri);
+        }
+        case MEDIA_SINGLE_ROW: {
+            return deleteMedia(uri);
+        }
 
         default:
             throw new IllegalArgumentException("Unsupported URI: " + uri);
@@ -286,15 +1012,79 @@ public class MoocProvider extends ContentProvider {
 
     }
 
+    /*
+     * delete() of the media table: delete every blob no story refers to
+     * anymore (see MoocMediaStore.collectGarbage()).
+     */
+    private int collectMediaGarbage(final Uri uri) {
+        final int count;
+        mWriteLock.lock();
+        try {
+            count = mMedia.collectGarbage(mDB, System.currentTimeMillis());
+        } finally {
+            mWriteLock.unlock();
+        }
+        if (count > 0) {
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    /*
+     * delete() of a single blob, only done if no story refers to it.
+     */
+    private int deleteMedia(final Uri uri) {
+        final String hash = uri.getLastPathSegment();
+        if (!MoocMediaStore.isValidHash(hash)) {
+            return 0;
+        }
+        final int count;
+        mWriteLock.lock();
+        try {
+            count = mDB.delete(MoocSchema.Media.TABLE_NAME,
+                    MoocSchema.Media.Cols.HASH + " = ? AND "
+                            + MoocSchema.Media.Cols.REF_COUNT + " <= 0",
+                    new String[] { hash });
+            if (count > 0) {
+                mMedia.fileFor(hash).delete();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+        if (count > 0) {
+            notifyChange(uri);
+        }
+        return count;
+    }
+
     /*
      * Private method to both attempt the delete command, and then to notify of
      * the changes
      */
     private int deleteAndNotify(final Uri uri, final String tableName,
-            final String whereClause, final String[] whereArgs) {
-        int count = mDB.delete(tableName, whereClause, whereArgs);
+            final String whereClause, final String[] whereArgs,
+            final boolean tombstones) {
+        final int count;
+        mWriteLock.lock();
+        try {
+            if (!tombstones) {
+                count = mDB.delete(tableName, whereClause, whereArgs);
+            } else {
+                // the server has to be told about deleted rows it has
+                mDB.startTransaction();
+                try {
+                    mDB.insertTombstones(tableName, whereClause, whereArgs);
+                    count = mDB.delete(tableName, whereClause, whereArgs);
+                    mDB.setTransactionSuccessful();
+                } finally {
+                    mDB.endTransaction();
+                }
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
         if (count > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
@@ -303,7 +1093,7 @@ public class MoocProvider extends ContentProvider {
     /**
      * Implement this to handle requests to update one or more rows.
      */
-    synchronized public int update(Uri uri, ContentValues values,
+    public int update(Uri uri, ContentValues values,
             String whereClause, String[] whereArgs) {
         Log.d(LOG_TAG, "query()");
 
@@ -311,22 +1101,46 @@ public class MoocProvider extends ContentProvider {
 
         // ST:createUpdateForRelations:begin
         case STORY_SINGLE_ROW:
-            whereClause = whereClause + MoocSchema.Story.Cols.ID + " = "
-                    + uri.getLastPathSegment();
+            whereClause = andSelection(whereClause, MoocSchema.Story.Cols.ID
+                    + " = ?");
+            whereArgs = appendArgs(whereArgs,
+                    new String[] { uri.getLastPathSegment() });
         case STORY_ALL_ROWS: {
+            stampSyncState(uri, values, false);
+            MoocSchema.Story.putGeoBand(values);
             return updateAndNotify(uri, MoocSchema.Story.TABLE_NAME, values,
                     whereClause, whereArgs);
 
         }
         case TAGS_SINGLE_ROW:
-            whereClause = whereClause + MoocSchema.Tags.Cols.ID + " = "
-                    + uri.getLastPathSegment();
+            whereClause = andSelection(whereClause, MoocSchema.Tags.Cols.ID
+                    + " = ?");
+            whereArgs = appendArgs(whereArgs,
+                    new String[] { uri.getLastPathSegment() });
         case TAGS_ALL_ROWS: {
+            stampSyncState(uri, values, false);
             return updateAndNotify(uri, MoocSchema.Tags.TABLE_NAME, values,
                     whereClause, whereArgs);
 
         }
         // ST:createUpdateForRelations:finish
+        case MEDIA_SINGLE_ROW:
+            whereClause = andSelection(whereClause, MoocSchema.Media.Cols.HASH
+                    + " = ?");
+            whereArgs = appendArgs(whereArgs,
+                    new String[] { uri.getLastPathSegment() });
+        case MEDIA_ALL_ROWS: {
+            // the other columns are kept by registerMedia() and the DB
+            if (!isSyncAdapter(uri)
+                    || values.size() != 1
+                    || !values.containsKey(MoocSchema.Media.Cols.UPLOADED)) {
+                throw new IllegalArgumentException(
+                        "Only the sync adapter may update media rows, and only "
+                                + MoocSchema.Media.Cols.UPLOADED + ": " + uri);
+            }
+            return updateAndNotify(uri, MoocSchema.Media.TABLE_NAME, values,
+                    whereClause, whereArgs);
+        }
 
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
@@ -340,10 +1154,218 @@ public class MoocProvider extends ContentProvider {
     private int updateAndNotify(final Uri uri, final String tableName,
             final ContentValues values, final String whereClause,
             final String[] whereArgs) {
-        int count = mDB.update(tableName, values, whereClause, whereArgs);
+        final int count;
+        mWriteLock.lock();
+        try {
+            count = mDB.update(tableName, values, whereClause, whereArgs);
+        } finally {
+            mWriteLock.unlock();
+        }
         if (count > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
+
+    @Override
+    /**
+     * Insert all the given rows inside a single transaction, binding each row
+     * to one compiled insert statement, and send one change notification for
+     * the table once the batch is committed.
+     * <p>
+     * (non-Javadoc)
+     * @see android.content.ContentProvider#bulkInsert(android.net.Uri, android.content.ContentValues[])
+     */
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        Log.d(LOG_TAG, "bulkInsert()");
+        final String tableName;
+        final String[] columns;
+        final Uri contentUri;
+        final int match = uriMatcher.match(uri);
+        switch (match) {
+        case STORY_ALL_ROWS:
+            tableName = MoocSchema.Story.TABLE_NAME;
+            columns = STORY_INSERT_COLUMNS;
+            contentUri = STORY_CONTENT_URI;
+            break;
+        case TAGS_ALL_ROWS:
+            tableName = MoocSchema.Tags.TABLE_NAME;
+            columns = TAGS_INSERT_COLUMNS;
+            contentUri = TAGS_CONTENT_URI;
+            break;
+        case STORY_SINGLE_ROW:
+        case TAGS_SINGLE_ROW:
+            throw new IllegalArgumentException(
+                    "Unsupported URI, unable to insert into specific row: "
+                            + uri);
+        default:
+            throw new IllegalArgumentException("Unsupported URI: " + uri);
+        }
+
+        if (isUpsert(uri)) {
+            return bulkUpsert(uri, match, values, contentUri);
+        }
+
+        int count = 0;
+        mWriteLock.lock();
+        try {
+            mDB.startTransaction();
+            final SQLiteStatement statement = mDB.compileInsert(tableName,
+                    columns);
+            try {
+                // the '_id' of the next story, looked up once: each insert
+                // takes the one after the last
+                long nextRowId = (match == STORY_ALL_ROWS) ? mDB
+                        .nextRowId(tableName) : -1;
+                for (ContentValues assignedValues : values) {
+                    final ContentValues cv = (match == STORY_ALL_ROWS) ? MoocSchema.Story
+                            .initializeWithDefault(assignedValues) : MoocSchema.Tags
+                            .initializeWithDefault(assignedValues);
+                    stampSyncState(uri, cv, true);
+                    final long keyedAs = (match == STORY_ALL_ROWS) ? keyLocalStory(
+                            uri, cv, nextRowId) : -1;
+                    final long rowID = mDB.bindAndInsert(statement, columns,
+                            cv);
+                    if (rowID >= 0) {
+                        checkKeyedAs(keyedAs, rowID);
+                        nextRowId = rowID + 1;
+                        count++;
+                    }
+                }
+                mDB.setTransactionSuccessful();
+            } finally {
+                statement.close();
+                mDB.endTransaction();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+
+        if (count > 0) {
+            notifyChange(contentUri);
+        }
+        return count;
+    }
+
+    /*
+     * bulkInsert() for an upsert URI: every row upserted inside a single
+     * transaction, one change notification for the table.
+     */
+    private int bulkUpsert(final Uri uri, final int match,
+            final ContentValues[] values, final Uri contentUri) {
+        int count = 0;
+        mWriteLock.lock();
+        try {
+            mDB.startTransaction();
+            try {
+                for (ContentValues assignedValues : values) {
+                    final ContentValues cv = (match == STORY_ALL_ROWS) ? MoocSchema.Story
+                            .initializeWithDefault(assignedValues) : MoocSchema.Tags
+                            .initializeWithDefault(assignedValues);
+                    cv.remove(MoocSchema.Story.Cols.ID);
+                    stampSyncState(uri, cv, false);
+                    if (upsertRow(uri, match, cv) >= 0) {
+                        count++;
+                    }
+                }
+                mDB.setTransactionSuccessful();
+            } finally {
+                mDB.endTransaction();
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+
+        if (count > 0) {
+            notifyChange(contentUri);
+        }
+        return count;
+    }
+
+    @Override
+    /**
+     * Apply all the operations inside a single transaction. Any failing
+     * operation rolls back the whole batch. Change notifications raised by the
+     * individual operations are held back by the ChangeNotifier and sent,
+     * coalesced, once the batch is committed.
+     * <p>
+     * (non-Javadoc)
+     * @see android.content.ContentProvider#applyBatch(java.util.ArrayList)
+     */
+    public ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        Log.d(LOG_TAG, "applyBatch()");
+        final boolean outermost = mNotifier.beginBatch();
+        final ContentProviderResult[] results;
+        boolean committed = false;
+        mWriteLock.lock();
+        try {
+            mDB.startTransaction();
+            try {
+                results = super.applyBatch(operations);
+                mDB.setTransactionSuccessful();
+            } finally {
+                mDB.endTransaction();
+            }
+            committed = true;
+        } finally {
+            mWriteLock.unlock();
+            if (outermost) {
+                mNotifier.endBatch(committed);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The ChangeNotifier this provider sends its change notifications
+     * through, e.g. to read how many were coalesced away.
+     * 
+     * @return the ChangeNotifier
+     */
+    public ChangeNotifier getChangeNotifier() {
+        return mNotifier;
+    }
+
+    /**
+     * If this provider's queries run concurrently, on write-ahead logging
+     * connections of their own (see MoocDataDBAdapter).
+     * 
+     * @return boolean true/false of if concurrent reads are enabled
+     */
+    public boolean isConcurrentReadsEnabled() {
+        return mDB.isConcurrentReadsEnabled();
+    }
+
+    /*
+     * Notify observers of a change to the given URI (see ChangeNotifier).
+     */
+    private void notifyChange(final Uri uri) {
+        mNotifier.notifyChange(uri);
+    }
+
+    /*
+     * Copy of the given column names with the _id column removed.
+     */
+    private static String[] withoutId(final String[] columnNames) {
+        final ArrayList<String> columns = new ArrayList<String>();
+        for (String column : columnNames) {
+            if (!MoocSchema.Story.Cols.ID.equals(column)) {
+                columns.add(column);
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /*
+     * Copy of the given column names with the extra columns added.
+     */
+    private static String[] withColumns(final String[] columnNames,
+            final String... extra) {
+        final String[] columns = new String[columnNames.length + extra.length];
+        System.arraycopy(columnNames, 0, columns, 0, columnNames.length);
+        System.arraycopy(extra, 0, columns, columnNames.length, extra.length);
+        return columns;
+    }
 }
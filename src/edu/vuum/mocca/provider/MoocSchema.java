@@ -26,6 +26,44 @@ public class MoocSchema {
     private static final Uri BASE_URI = Uri.parse("content://" + AUTHORITY);
     public static final UriMatcher URI_MATCHER = buildUriMatcher();
 
+    /**
+     * Keyset paging, as query parameters on an entity's CONTENT_URI:
+     * LIMIT rows are returned in the entity's PAGE_SORT_ORDER, starting after
+     * the row given by the AFTER_* parameters (the last row of the previous
+     * page). Leave out the AFTER_* parameters for the first page.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /**
+     * Upsert, as a query parameter (=true) on an entity's CONTENT_URI for
+     * insert() and bulkInsert(): a row whose ALL_KEY_COLUMNS match an
+     * existing row replaces that row (keeping its _id) instead of being added
+     * next to it. See each entity's UPSERT_URI.
+     */
+    public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+    /**
+     * Sync adapter writes, as a query parameter (=true) on any URI written
+     * to: the write comes from the server, so it neither marks the row DIRTY
+     * nor records a Deleted tombstone, and the VERSION given is kept. Writes
+     * without it are local edits, to be sent to the server. See
+     * asSyncAdapter().
+     */
+    public static final String QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER = "caller_is_sync_adapter";
+
+    /**
+     * The given URI, for writes by the sync adapter.
+     * 
+     * @param uri
+     * @return uri with QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER
+     */
+    public static Uri asSyncAdapter(final Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER,
+                        "true").build();
+    }
+
     // register identifying URIs for Restaurant entity
     // the TOKEN value is associated with each URI registered
     private static UriMatcher buildUriMatcher() {
@@ -36,9 +74,24 @@ public class MoocSchema {
         // Story URIs
         matcher.addURI(AUTHORITY, Story.PATH, Story.PATH_TOKEN);
         matcher.addURI(AUTHORITY, Story.PATH_FOR_ID, Story.PATH_FOR_ID_TOKEN);
+        matcher.addURI(AUTHORITY, Story.SEARCH_PATH, Story.SEARCH_PATH_TOKEN);
+        matcher.addURI(AUTHORITY, Story.GEO_PATH, Story.GEO_PATH_TOKEN);
+        matcher.addURI(AUTHORITY, Story.TAGGED_PATH, Story.TAGGED_PATH_TOKEN);
         // Tags URIs
         matcher.addURI(AUTHORITY, Tags.PATH, Tags.PATH_TOKEN);
         matcher.addURI(AUTHORITY, Tags.PATH_FOR_ID, Tags.PATH_FOR_ID_TOKEN);
+        // Media URIs
+        matcher.addURI(AUTHORITY, Media.PATH, Media.PATH_TOKEN);
+        matcher.addURI(AUTHORITY, Media.PATH_FOR_ID, Media.PATH_FOR_ID_TOKEN);
+        matcher.addURI(AUTHORITY, Media.UPLOAD_PATH_FOR_ID,
+                Media.UPLOAD_PATH_FOR_ID_TOKEN);
+        matcher.addURI(AUTHORITY, Media.THUMBNAIL_PATH_FOR_ID,
+                Media.THUMBNAIL_PATH_FOR_ID_TOKEN);
+        // Deleted URIs
+        matcher.addURI(AUTHORITY, Deleted.PATH, Deleted.PATH_TOKEN);
+        matcher.addURI(AUTHORITY, Deleted.PATH_FOR_ID, Deleted.PATH_FOR_ID_TOKEN);
+        // Changes URIs
+        matcher.addURI(AUTHORITY, Changes.PATH, Changes.PATH_TOKEN);
         // ST:addMatcherURIs:complete
         return matcher;
 
@@ -66,8 +119,84 @@ public class MoocSchema {
         public static final Uri CONTENT_URI = BASE_URI.buildUpon()
                 .appendPath(PATH).build();
 
+        // BASE_URI/story_search?q=... - full-text search over TITLE, BODY
+        // and TAGS, best matches first. The QUERY_PARAMETER_SEARCH value uses
+        // the SQLite FTS MATCH syntax, and QUERY_PARAMETER_LIMIT caps the
+        // number of results. The selection applies to the story columns.
+        public static final String SEARCH_PATH = "story_search";
+        public static final int SEARCH_PATH_TOKEN = 130;
+        public static final Uri SEARCH_URI = BASE_URI.buildUpon()
+                .appendPath(SEARCH_PATH).build();
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+        // extra column of search results: matched text with the matching
+        // terms wrapped in <b></b>
+        public static final String SEARCH_SNIPPET = "SNIPPET";
+        // the full-text index behind SEARCH_URI, docid = story _id
+        public static final String FTS_TABLE_NAME = "story_fts";
+
+        // BASE_URI/story_geo - stories by location, nearest first. Either
+        // a radius query: QUERY_PARAMETER_LATITUDE, QUERY_PARAMETER_LONGITUDE
+        // and QUERY_PARAMETER_RADIUS (meters), or a bounding box:
+        // QUERY_PARAMETER_MIN_LATITUDE ... QUERY_PARAMETER_MAX_LONGITUDE
+        // (ordered by distance to the box center). QUERY_PARAMETER_LIMIT caps
+        // the number of results. Boxes crossing the 180th meridian are not
+        // supported.
+        public static final String GEO_PATH = "story_geo";
+        public static final int GEO_PATH_TOKEN = 140;
+        public static final Uri GEO_URI = BASE_URI.buildUpon()
+                .appendPath(GEO_PATH).build();
+        public static final String QUERY_PARAMETER_LATITUDE = "lat";
+        public static final String QUERY_PARAMETER_LONGITUDE = "lon";
+        public static final String QUERY_PARAMETER_RADIUS = "radius";
+        public static final String QUERY_PARAMETER_MIN_LATITUDE = "min_lat";
+        public static final String QUERY_PARAMETER_MAX_LATITUDE = "max_lat";
+        public static final String QUERY_PARAMETER_MIN_LONGITUDE = "min_lon";
+        public static final String QUERY_PARAMETER_MAX_LONGITUDE = "max_lon";
+        // BASE_URI/story_tagged - stories joined with their tags_table rows:
+        // each row has the story columns plus TAG_LIST, the story's tags
+        // separated by ','. Repeat QUERY_PARAMETER_TAG to only return stories
+        // with any (QUERY_PARAMETER_MATCH=MATCH_ANY, the default) or all
+        // (MATCH_ALL) of the given tags.
+        public static final String TAGGED_PATH = "story_tagged";
+        public static final int TAGGED_PATH_TOKEN = 150;
+        public static final Uri TAGGED_URI = BASE_URI.buildUpon()
+                .appendPath(TAGGED_PATH).build();
+        public static final String QUERY_PARAMETER_TAG = "tag";
+        public static final String QUERY_PARAMETER_MATCH = "match";
+        public static final String MATCH_ANY = "any";
+        public static final String MATCH_ALL = "all";
+        public static final String TAG_LIST = "TAG_LIST";
+
+        // height of a Cols.GEO_BAND latitude band is 1 / GEO_BANDS_PER_DEGREE
+        // degrees (about 11km)
+        public static final int GEO_BANDS_PER_DEGREE = 10;
+
+        // CONTENT_URI with QUERY_PARAMETER_UPSERT, keyed on ALL_KEY_COLUMNS
+        public static final Uri UPSERT_URI = CONTENT_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_UPSERT, "true").build();
+
         public static final String CONTENT_TOPIC = "topic/edu.vanderbilt.story";
 
+        // a story is identified by its owner and the owner's story id
+        // (indexed by story_login_story_idx); a story inserted locally
+        // without a STORY_ID gets a provisional one (see localStoryId())
+        public static final String ALL_KEY_CLAUSE;
+        static {
+            ALL_KEY_CLAUSE = new StringBuilder().append('"')
+                    .append(Cols.LOGIN_ID).append('"').append("=?")
+                    .append(" AND ").append('"').append(Cols.STORY_ID)
+                    .append('"').append("=?").toString();
+        };
+
+        public static final String[] ALL_KEY_COLUMNS = new String[] {
+                Cols.LOGIN_ID, Cols.STORY_ID };
+
+        // paging (see QUERY_PARAMETER_LIMIT): newest story first, the
+        // continuation is the STORY_TIME and _id of the previous page's last row
+        public static final String QUERY_PARAMETER_AFTER_TIME = "after_time";
+        public static final String PAGE_SORT_ORDER = Cols.STORY_TIME
+                + " DESC, " + Cols.ID + " DESC";
+
         private final static String MIME_TYPE_END = "story";
 
         // define the MIME type of data in the content provider
@@ -131,9 +260,69 @@ public class MoocSchema {
             if (!setValues.containsKey(Cols.LONGITUDE)) {
                 setValues.put(Cols.LONGITUDE, 0);
             }
+            putGeoBand(setValues);
             return setValues;
         }
 
+        /**
+         * The Cols.GEO_BAND a latitude falls in. LATITUDE + 90 is never
+         * negative, so the cast truncation is a floor.
+         * 
+         * @param latitude
+         * @return the band, from 0 at the south pole
+         */
+        public static int geoBand(final double latitude) {
+            return (int) ((latitude + 90) * GEO_BANDS_PER_DEGREE);
+        }
+
+        /**
+         * Set the Cols.GEO_BAND of a story write from the Cols.LATITUDE it
+         * writes, or leave it out if LATITUDE is not written, so that the two
+         * never disagree.
+         * 
+         * @param values
+         *            the columns to insert or update
+         */
+        public static void putGeoBand(final ContentValues values) {
+            if (!values.containsKey(Cols.LATITUDE)) {
+                values.remove(Cols.GEO_BAND);
+                return;
+            }
+            final Double latitude = values.getAsDouble(Cols.LATITUDE);
+            if (latitude == null) {
+                values.putNull(Cols.GEO_BAND);
+            } else {
+                values.put(Cols.GEO_BAND, geoBand(latitude.doubleValue()));
+            }
+        }
+
+        /**
+         * The provisional Cols.STORY_ID MoocProvider gives a story inserted
+         * locally with none (0), from its _id: unique on this device, as
+         * _ids are never reused, and negative, so never one the server
+         * assigns. The story's tags are to use it too. The sync adapter
+         * replaces it, in the story and its tags, with the STORY_ID the
+         * server gives the story.
+         * 
+         * @param rowId
+         *            the story's _id
+         * @return the provisional STORY_ID
+         */
+        public static long localStoryId(final long rowId) {
+            return -rowId;
+        }
+
+        /**
+         * If a Cols.STORY_ID is a provisional one (see localStoryId()), of a
+         * story the server has not seen yet.
+         * 
+         * @param storyId
+         * @return true for a provisional STORY_ID
+         */
+        public static boolean isLocalStoryId(final long storyId) {
+            return storyId < 0;
+        }
+
         // a static class to store columns in entity
         public static class Cols {
             public static final String ID = BaseColumns._ID; // convention
@@ -153,6 +342,19 @@ public class MoocSchema {
             public static final String LATITUDE = "LATITUDE";
             public static final String LONGITUDE = "LONGITUDE";
             // ST:getColumnDeclaration:complete
+
+            // latitude band of the row (see geoBand()), set by MoocProvider
+            // on every write of LATITUDE and indexed with LONGITUDE for
+            // location queries. Not part of StoryData or ALL_COLUMN_NAMES.
+            public static final String GEO_BAND = "GEO_BAND";
+
+            // sync state, maintained by MoocProvider (see
+            // QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER); not part of StoryData
+            // or ALL_COLUMN_NAMES. DIRTY is 0 once the row is on the server,
+            // else when it was last edited locally; VERSION is the server's
+            // version of the row, 0 if the server has never seen it.
+            public static final String DIRTY = "DIRTY";
+            public static final String VERSION = "VERSION";
         }
     }
 
@@ -177,8 +379,19 @@ public class MoocSchema {
         public static final Uri CONTENT_URI = BASE_URI.buildUpon()
                 .appendPath(PATH).build();
 
+        // CONTENT_URI with QUERY_PARAMETER_UPSERT, keyed on ALL_KEY_COLUMNS.
+        // Every column is key, so a tag is never duplicated: an insert() of a
+        // tag already there returns that row, with or without this parameter,
+        // and a bulkInsert() without it skips (and does not count) the row.
+        public static final Uri UPSERT_URI = CONTENT_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_UPSERT, "true").build();
+
         public static final String CONTENT_TOPIC = "topic/edu.vanderbilt.tags";
 
+        // paging (see QUERY_PARAMETER_LIMIT): in _id order, the continuation
+        // is the _id of the previous page's last row
+        public static final String PAGE_SORT_ORDER = Cols.ID + " ASC";
+
         // ST:relationKeyClause:inline
         public static final String ALL_KEY_CLAUSE;
         static {
@@ -235,6 +448,295 @@ public class MoocSchema {
             public static final String STORY_ID = "STORY_ID";
             public static final String TAG = "TAG";
             // ST:getColumnDeclaration:complete
+
+            // sync state, as Story.Cols.DIRTY and Story.Cols.VERSION
+            public static final String DIRTY = "DIRTY";
+            public static final String VERSION = "VERSION";
+        }
+    }
+
+    // Media blobs (audio, video, images) referenced by the Story AUDIO_LINK,
+    // VIDEO_LINK and IMAGE_LINK columns. Blobs are immutable and addressed by
+    // the SHA-256 of their content, so identical files are stored once; the
+    // table counts the story references to each blob, so that blobs no story
+    // refers to anymore can be garbage collected.
+    public static class Media {
+
+        public static final String TABLE_NAME = "media_table";
+
+        // BASE_URI/media - for list of media; insert() registers a blob
+        // already written by MoocMediaStore.put(), delete() collects the
+        // unreferenced blobs, update() (by the sync adapter) sets UPLOADED
+        // BASE_URI/media/* - a blob by hash, openFile() reads it
+        public static final String PATH = "media";
+        public static final int PATH_TOKEN = 310;
+
+        public static final String PATH_FOR_ID = "media/*";
+        public static final int PATH_FOR_ID_TOKEN = 320;
+
+        public static final Uri CONTENT_URI = BASE_URI.buildUpon()
+                .appendPath(PATH).build();
+
+        // ranged reads: openAssetFile() of BASE_URI/media/*?offset=&length=
+        // returns just that part of the blob (length defaults to the rest)
+        public static final String QUERY_PARAMETER_OFFSET = "offset";
+        public static final String QUERY_PARAMETER_LENGTH = "length";
+
+        // BASE_URI/media_upload/* - openFile() streams, through a pipe, a
+        // blob still being written by MoocMediaStore.put(uploadId, ...),
+        // as it is written
+        public static final String UPLOAD_PATH = "media_upload";
+        public static final String UPLOAD_PATH_FOR_ID = "media_upload/*";
+        public static final int UPLOAD_PATH_FOR_ID_TOKEN = 330;
+        // the blob's type is not recorded, so uploads are plain bytes
+        public static final String UPLOAD_MIME_TYPE = "application/octet-stream";
+
+        // BASE_URI/media_thumb/*?size= - openFile() reads a JPEG of an image
+        // blob scaled down to fit size x size, one of THUMBNAIL_SIZES
+        // (default THUMBNAIL_SIZE_SMALL), made once and then cached
+        public static final String THUMBNAIL_PATH = "media_thumb";
+        public static final String THUMBNAIL_PATH_FOR_ID = "media_thumb/*";
+        public static final int THUMBNAIL_PATH_FOR_ID_TOKEN = 340;
+
+        public static final String QUERY_PARAMETER_SIZE = "size";
+        public static final int THUMBNAIL_SIZE_SMALL = 96;
+        public static final int THUMBNAIL_SIZE_MEDIUM = 256;
+        public static final int[] THUMBNAIL_SIZES = { THUMBNAIL_SIZE_SMALL,
+                THUMBNAIL_SIZE_MEDIUM };
+
+        public static final String THUMBNAIL_MIME_TYPE = "image/jpeg";
+
+        // what a Story link column holds for a stored blob: LINK_PREFIX
+        // followed by the blob's HASH, i.e. the blob's URI
+        public static final String LINK_PREFIX = "content://" + AUTHORITY
+                + "/" + PATH + "/";
+
+        // a blob's Cols.LINKED_AS: referred to by an IMAGE_LINK, else by an
+        // AUDIO_LINK, else by other links only; the order the sync adapter
+        // moves blobs in
+        public static final int LINKED_AS_IMAGE = 0;
+        public static final int LINKED_AS_AUDIO = 1;
+        public static final int LINKED_AS_OTHER = 2;
+
+        private final static String MIME_TYPE_END = "media";
+
+        // define the MIME type of data in the content provider
+        public static final String CONTENT_TYPE_DIR = ORGANIZATIONAL_NAME
+                + ".cursor.dir/" + ORGANIZATIONAL_NAME + "." + MIME_TYPE_END;
+        public static final String CONTENT_ITEM_TYPE = ORGANIZATIONAL_NAME
+                + ".cursor.item/" + ORGANIZATIONAL_NAME + "." + MIME_TYPE_END;
+
+        // the names and order of ALL columns, including internal use ones
+        public static final String[] ALL_COLUMN_NAMES = { Cols.ID, Cols.HASH,
+                Cols.SIZE, Cols.REF_COUNT, Cols.CREATION_TIME, Cols.UPLOADED,
+                Cols.LINKED_AS };
+
+        /**
+         * The URI of a blob, which is also the value its links hold.
+         * 
+         * @param hash
+         * @return the blob's URI
+         */
+        public static Uri uriForHash(final String hash) {
+            return Uri.parse(LINK_PREFIX + hash);
+        }
+
+        /**
+         * The URI streaming an upload in progress.
+         * 
+         * @param uploadId
+         * @return the upload's URI
+         */
+        public static Uri uriForUpload(final String uploadId) {
+            return BASE_URI.buildUpon().appendPath(UPLOAD_PATH)
+                    .appendPath(uploadId).build();
+        }
+
+        /**
+         * The URI of the thumbnail of an image blob.
+         * 
+         * @param hash
+         * @param size
+         *            one of THUMBNAIL_SIZES
+         * @return the thumbnail's URI
+         */
+        public static Uri uriForThumbnail(final String hash, final int size) {
+            return BASE_URI.buildUpon().appendPath(THUMBNAIL_PATH)
+                    .appendPath(hash)
+                    .appendQueryParameter(QUERY_PARAMETER_SIZE,
+                            String.valueOf(size)).build();
+        }
+
+        /**
+         * The URI of part of a blob, for openAssetFile().
+         * 
+         * @param hash
+         * @param offset
+         * @param length
+         *            or -1 for the rest of the blob
+         * @return the ranged URI
+         */
+        public static Uri uriForRange(final String hash, final long offset,
+                final long length) {
+            final Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendPath(hash)
+                    .appendQueryParameter(QUERY_PARAMETER_OFFSET,
+                            String.valueOf(offset));
+            if (length >= 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_LENGTH,
+                        String.valueOf(length));
+            }
+            return builder.build();
+        }
+
+        /**
+         * The HASH of the blob a Story link refers to.
+         * 
+         * @param link
+         *            value of a link column
+         * @return the HASH, or null if the link is not to a stored blob
+         */
+        public static String hashOfLink(final String link) {
+            if (link == null || !link.startsWith(LINK_PREFIX)) {
+                return null;
+            }
+            return link.substring(LINK_PREFIX.length());
+        }
+
+        // a static class to store columns in entity
+        public static class Cols {
+            public static final String ID = BaseColumns._ID; // convention
+            // lower case hex SHA-256 of the content
+            public static final String HASH = "HASH";
+            // bytes, 0 until the blob is stored locally
+            public static final String SIZE = "SIZE";
+            // number of Story link columns referring to the blob, maintained
+            // by the DB
+            public static final String REF_COUNT = "REF_COUNT";
+            public static final String CREATION_TIME = "CREATION_TIME";
+            // 1 once the server has the blob (sent to it, or received from
+            // it), set by the sync adapter only
+            public static final String UPLOADED = "UPLOADED";
+            // the first of LINKED_AS_IMAGE, LINKED_AS_AUDIO and
+            // LINKED_AS_OTHER any Story link to the blob was, since its row
+            // was created, maintained by the DB
+            public static final String LINKED_AS = "LINKED_AS";
+        }
+    }
+
+    // Tombstones of the Story and Tags rows deleted locally after they had
+    // reached the server (VERSION > 0), kept until the sync adapter has sent
+    // the deletions. Rows are added by MoocProvider, never by insert().
+    public static class Deleted {
+
+        public static final String TABLE_NAME = "deleted_table";
+
+        // BASE_URI/deleted - for list of tombstones
+        // BASE_URI/deleted/* - a tombstone by id, deleted once sent
+        public static final String PATH = "deleted";
+        public static final int PATH_TOKEN = 410;
+
+        public static final String PATH_FOR_ID = "deleted/*";
+        public static final int PATH_FOR_ID_TOKEN = 420;
+
+        public static final Uri CONTENT_URI = BASE_URI.buildUpon()
+                .appendPath(PATH).build();
+
+        private final static String MIME_TYPE_END = "deleted";
+
+        // define the MIME type of data in the content provider
+        public static final String CONTENT_TYPE_DIR = ORGANIZATIONAL_NAME
+                + ".cursor.dir/" + ORGANIZATIONAL_NAME + "." + MIME_TYPE_END;
+        public static final String CONTENT_ITEM_TYPE = ORGANIZATIONAL_NAME
+                + ".cursor.item/" + ORGANIZATIONAL_NAME + "." + MIME_TYPE_END;
+
+        // the names and order of ALL columns, including internal use ones
+        public static final String[] ALL_COLUMN_NAMES = { Cols.ID,
+                Cols.TABLE, Cols.LOGIN_ID, Cols.STORY_ID, Cols.TAG,
+                Cols.VERSION };
+
+        // a static class to store columns in entity
+        public static class Cols {
+            public static final String ID = BaseColumns._ID; // convention
+            // Story.TABLE_NAME or Tags.TABLE_NAME
+            public static final String TABLE = "SOURCE_TABLE";
+            // the ALL_KEY_COLUMNS of the deleted row (TAG null for a story)
+            public static final String LOGIN_ID = "LOGIN_ID";
+            public static final String STORY_ID = "STORY_ID";
+            public static final String TAG = "TAG";
+            // VERSION of the deleted row
+            public static final String VERSION = "VERSION";
+        }
+    }
+
+    // Journal of the changes to the Story and Tags rows, in the order they
+    // were made, kept by the DB itself. Each entry has a sequence number
+    // higher than any before it, so a reader remembers the last one it saw
+    // and asks for the entries after it.
+    // The journal is compacted: only the latest entry of each row is kept
+    // (so an entry tells what became of the row, not the first change to
+    // it), and the oldest entries beyond a maximum are dropped, leaving an
+    // OPERATION_RESET entry whose ROW_ID is the last sequence number dropped.
+    // A reader that saw less than that has missed changes, and has to
+    // re-read everything.
+    public static class Changes {
+
+        public static final String TABLE_NAME = "change_journal";
+
+        // BASE_URI/changes?since= - the entries after sequence number 'since'
+        // (default 0), in order; QUERY_PARAMETER_LIMIT caps their number.
+        // delete() compacts the journal.
+        public static final String PATH = "changes";
+        public static final int PATH_TOKEN = 510;
+
+        public static final Uri CONTENT_URI = BASE_URI.buildUpon()
+                .appendPath(PATH).build();
+
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        // the OPERATION of an entry
+        public static final String OPERATION_INSERT = "insert";
+        public static final String OPERATION_UPDATE = "update";
+        public static final String OPERATION_DELETE = "delete";
+        public static final String OPERATION_RESET = "reset";
+
+        // the order entries are read in
+        public static final String SORT_ORDER = Cols.SEQUENCE + " ASC";
+
+        private final static String MIME_TYPE_END = "changes";
+
+        // define the MIME type of data in the content provider
+        public static final String CONTENT_TYPE_DIR = ORGANIZATIONAL_NAME
+                + ".cursor.dir/" + ORGANIZATIONAL_NAME + "." + MIME_TYPE_END;
+
+        // the names and order of ALL columns, including internal use ones
+        public static final String[] ALL_COLUMN_NAMES = { Cols.SEQUENCE,
+                Cols.TABLE, Cols.ROW_ID, Cols.OPERATION, Cols.LOCAL };
+
+        /**
+         * The URI of the journal entries after a sequence number.
+         * 
+         * @param sequence
+         *            the last sequence number already seen, 0 for all
+         * @return the journal URI
+         */
+        public static Uri uriForChangesSince(final long sequence) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE,
+                            String.valueOf(sequence)).build();
+        }
+
+        // a static class to store columns in entity
+        public static class Cols {
+            // the sequence number (the _id, by convention)
+            public static final String SEQUENCE = BaseColumns._ID;
+            // Story.TABLE_NAME or Tags.TABLE_NAME ('' for OPERATION_RESET)
+            public static final String TABLE = "SOURCE_TABLE";
+            // the _id of the row changed
+            public static final String ROW_ID = "ROW_ID";
+            public static final String OPERATION = "OPERATION";
+            // 1 if the row was left DIRTY, i.e. a local edit to be synced
+            public static final String LOCAL = "LOCAL";
         }
     }
     // ST:createRelationMetaData:complete
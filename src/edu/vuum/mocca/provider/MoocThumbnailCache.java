@@ -0,0 +1,329 @@
+
+package edu.vuum.mocca.provider;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Size-bounded disk cache of downscaled copies (thumbnails) of the image
+ * blobs in a MoocMediaStore, in the MoocSchema.Media.THUMBNAIL_SIZES.
+ * <p>
+ * Thumbnails are decoded and written on a single background thread (one
+ * decode at a time keeps the memory use of large originals bounded), and
+ * requests for a thumbnail already being made wait for that one instead of
+ * decoding the original again. Once the files exceed the byte budget, the
+ * least recently used are deleted; the order survives restarts through the
+ * files' modification times.
+ */
+public class MoocThumbnailCache {
+
+    private static final String LOG_TAG = MoocThumbnailCache.class
+            .getCanonicalName();
+
+    private static final int JPEG_QUALITY = 85;
+
+    private final File directory;
+    private final MoocMediaStore media;
+    private final long maxBytes;
+
+    private final ExecutorService executor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "MoocThumbnailCache");
+                }
+            });
+
+    // guarded by 'this': thumbnail files by name, least recently used first,
+    // with their sizes; null until the directory has been scanned
+    private LinkedHashMap<String, Long> entries = null;
+    private long totalBytes = 0;
+    // thumbnails being made, by file name
+    private final Map<String, Future<File>> pending = new HashMap<String, Future<File>>();
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            where the thumbnails are kept (under the cache directory:
+     *            they can always be made again)
+     * @param media
+     *            the store of the originals
+     * @param maxBytes
+     *            disk budget of the thumbnails
+     */
+    public MoocThumbnailCache(File directory, MoocMediaStore media,
+            long maxBytes) {
+        this.directory = directory;
+        this.media = media;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * If the size is one of MoocSchema.Media.THUMBNAIL_SIZES.
+     *
+     * @param size
+     * @return if thumbnails are made in that size
+     */
+    public static boolean isSupportedSize(final int size) {
+        for (int supported : MoocSchema.Media.THUMBNAIL_SIZES) {
+            if (supported == size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The thumbnail of a blob, made now (on the background thread, waiting
+     * for it) if it is not cached.
+     *
+     * @param hash
+     *            of an image blob
+     * @param size
+     *            one of MoocSchema.Media.THUMBNAIL_SIZES
+     * @return the thumbnail's file
+     * @throws FileNotFoundException
+     *             if the blob is not stored, or is not an image
+     */
+    public File get(final String hash, final int size)
+            throws FileNotFoundException {
+        final String name = nameOf(hash, size);
+        final File cached = touch(name);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            return request(hash, size).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundException("Interrupted making " + name);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof FileNotFoundException) {
+                throw (FileNotFoundException) cause;
+            }
+            throw new FileNotFoundException("Unable to make " + name + ": "
+                    + cause);
+        }
+    }
+
+    /**
+     * Start making every size of thumbnail of a blob in the background, e.g.
+     * as soon as the blob is stored, so that later requests find them cached.
+     * Blobs which are not images are skipped.
+     *
+     * @param hash
+     */
+    public void prefetch(final String hash) {
+        for (int size : MoocSchema.Media.THUMBNAIL_SIZES) {
+            if (touch(nameOf(hash, size)) == null) {
+                request(hash, size);
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread, letting a thumbnail in progress finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /*
+     * The Future of the thumbnail, submitting it unless it is already being
+     * made.
+     */
+    private synchronized Future<File> request(final String hash,
+            final int size) {
+        final String name = nameOf(hash, size);
+        Future<File> future = pending.get(name);
+        if (future == null) {
+            future = executor.submit(new Callable<File>() {
+                public File call() throws IOException {
+                    try {
+                        return make(hash, size, name);
+                    } finally {
+                        synchronized (MoocThumbnailCache.this) {
+                            pending.remove(name);
+                        }
+                    }
+                }
+            });
+            pending.put(name, future);
+        }
+        return future;
+    }
+
+    /*
+     * Decode the original, scaled down to fit size x size, and write it as a
+     * JPEG. Runs on the background thread.
+     */
+    private File make(final String hash, final int size, final String name)
+            throws IOException {
+        final File cached = touch(name);
+        if (cached != null) {
+            return cached;
+        }
+        if (!media.contains(hash)) {
+            throw new FileNotFoundException("No such media: " + hash);
+        }
+        final String original = media.fileFor(hash).getPath();
+
+        // read the dimensions only, then decode at the largest power of two
+        // reduction still at least 'size', which is much cheaper than
+        // decoding the full resolution
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(original, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new FileNotFoundException("Not an image: " + hash);
+        }
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight)
+                / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final Bitmap sampled = BitmapFactory.decodeFile(original, options);
+        if (sampled == null) {
+            throw new FileNotFoundException("Unable to decode: " + hash);
+        }
+
+        final float scale = Math.min(1f,
+                (float) size / Math.max(sampled.getWidth(), sampled.getHeight()));
+        final Bitmap thumbnail = (scale < 1f) ? Bitmap.createScaledBitmap(
+                sampled, Math.max(1, Math.round(sampled.getWidth() * scale)),
+                Math.max(1, Math.round(sampled.getHeight() * scale)), true)
+                : sampled;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        final File temp = new File(directory, name + ".tmp");
+        final File file = new File(directory, name);
+        try {
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY,
+                        out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to move thumbnail to " + file);
+            }
+        } finally {
+            temp.delete();
+            if (thumbnail != sampled) {
+                thumbnail.recycle();
+            }
+            sampled.recycle();
+        }
+        added(name, file.length());
+        Log.d(LOG_TAG, "made " + name + " from 1/" + sampleSize + " sample");
+        return file;
+    }
+
+    /*
+     * The cached thumbnail file, marked as most recently used, or null.
+     */
+    private synchronized File touch(final String name) {
+        load();
+        if (!entries.containsKey(name)) {
+            return null;
+        }
+        final File file = new File(directory, name);
+        if (!file.isFile()) {
+            totalBytes -= entries.remove(name).longValue();
+            return null;
+        }
+        // get() moves the entry to the most recently used end
+        entries.get(name);
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /*
+     * Record a new thumbnail, then evict the least recently used ones beyond
+     * the budget.
+     */
+    private synchronized void added(final String name, final long bytes) {
+        load();
+        final Long previous = entries.put(name, Long.valueOf(bytes));
+        totalBytes += bytes - ((previous == null) ? 0 : previous.longValue());
+        final Iterator<Map.Entry<String, Long>> eldest = entries.entrySet()
+                .iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(name)) {
+                // never evict the one just made
+                continue;
+            }
+            new File(directory, entry.getKey()).delete();
+            totalBytes -= entry.getValue().longValue();
+            eldest.remove();
+        }
+    }
+
+    /*
+     * Read the thumbnails already on disk, oldest use first, on first use
+     * (not in the constructor, which runs in MoocProvider.onCreate()).
+     */
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        totalBytes = 0;
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                final long difference = a.lastModified() - b.lastModified();
+                return (difference < 0) ? -1 : (difference > 0) ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), Long.valueOf(file.length()));
+            totalBytes += file.length();
+        }
+    }
+
+    private static String nameOf(final String hash, final int size) {
+        if (!MoocMediaStore.isValidHash(hash)) {
+            throw new IllegalArgumentException("Invalid media hash: " + hash);
+        }
+        return hash + "_" + size + ".jpg";
+    }
+}
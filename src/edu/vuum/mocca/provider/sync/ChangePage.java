@@ -0,0 +1,24 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.util.List;
+
+/**
+ * One page of the server's changes, from SyncRemote.getChanges().
+ */
+public class ChangePage {
+
+    // in the order the server made them
+    public final List<RemoteChange> changes;
+    // the change token to ask for the changes after this page with
+    public final String nextToken;
+    // if the server has more changes after this page
+    public final boolean hasMore;
+
+    public ChangePage(List<RemoteChange> changes, String nextToken,
+            boolean hasMore) {
+        this.changes = changes;
+        this.nextToken = nextToken;
+        this.hasMore = hasMore;
+    }
+}
@@ -0,0 +1,110 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import org.apache.http.auth.AuthenticationException;
+
+/**
+ * A WireTransport over HTTP(S): a request with a body is a POST, one without
+ * a GET, to the server's base URL followed by the path and the parameters,
+ * with the auth token as a Bearer Authorization header. A 401 or 403 answer
+ * is an AuthenticationException, any other one but 2xx an IOException.
+ */
+public class HttpWireTransport implements WireTransport {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    private final String baseUrl;
+
+    /**
+     * Constructor
+     *
+     * @param baseUrl
+     *            the server's URL, the paths are relative to
+     */
+    public HttpWireTransport(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    public InputStream exchange(final String path, final String authToken,
+            final Map<String, String> parameters, final byte[] body,
+            final Map<String, String> responseHeaders) throws IOException,
+            AuthenticationException {
+        final StringBuilder url = new StringBuilder(baseUrl).append(path);
+        char separator = '?';
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            url.append(separator)
+                    .append(URLEncoder.encode(parameter.getKey(), "UTF-8"))
+                    .append('=')
+                    .append(URLEncoder.encode(parameter.getValue(), "UTF-8"));
+            separator = '&';
+        }
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                url.toString()).openConnection();
+        boolean opened = false;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestProperty("Authorization", "Bearer "
+                    + authToken);
+            connection.setRequestProperty("Accept", CONTENT_TYPE);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+                connection.setFixedLengthStreamingMode(body.length);
+                final OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+            final int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_UNAUTHORIZED
+                    || status == HttpURLConnection.HTTP_FORBIDDEN) {
+                throw new AuthenticationException(
+                        "Server refused the auth token: HTTP " + status);
+            }
+            if (status / 100 != 2) {
+                throw new IOException("HTTP " + status + " from " + baseUrl
+                        + path);
+            }
+            for (String header : new String[] { HEADER_CHANGE_TOKEN,
+                    HEADER_HAS_MORE }) {
+                final String value = connection.getHeaderField(header);
+                if (value != null) {
+                    responseHeaders.put(header, value);
+                }
+            }
+            final InputStream in = new FilterInputStream(
+                    connection.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        connection.disconnect();
+                    }
+                }
+            };
+            opened = true;
+            return in;
+        } finally {
+            if (!opened) {
+                connection.disconnect();
+            }
+        }
+    }
+}
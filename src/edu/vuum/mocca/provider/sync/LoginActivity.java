@@ -67,10 +67,11 @@ public class LoginActivity extends AccountAuthenticatorActivity {
                 .toLowerCase(Locale.ENGLISH);
         String password = mPassword.getText().toString().trim()
                 .toLowerCase(Locale.ENGLISH);
+        String server = mServerIP.getText().toString().trim();
 
         if (user.length() > 0 && password.length() > 0) {
             LoginTask t = new LoginTask(LoginActivity.this);
-            t.execute(user, password);
+            t.execute(user, password, server);
         }
     }
 
@@ -102,6 +103,7 @@ public class LoginActivity extends AccountAuthenticatorActivity {
             Log.d(LOG_TAG, "LoginTask.doInBackground() called");
             String user = params[0];
             String pass = params[1];
+            String server = params[2];
 
             // TODO:Do something internetty HERE
             try {
@@ -115,7 +117,13 @@ public class LoginActivity extends AccountAuthenticatorActivity {
             Account account = new Account(user,
                     mContext.getString(R.string.ACCOUNT_TYPE));
             AccountManager am = AccountManager.get(mContext);
-            if (am.addAccountExplicitly(account, pass, null)) {
+            // the server the SampleSyncAdapter syncs the account with
+            Bundle userData = new Bundle();
+            if (server.length() > 0) {
+                userData.putString(SampleSyncAdapter.KEY_SERVER_URL,
+                        server.contains("://") ? server : "https://" + server);
+            }
+            if (am.addAccountExplicitly(account, pass, userData)) {
                 result = new Bundle();
                 result.putString(AccountManager.KEY_ACCOUNT_NAME, account.name);
                 result.putString(AccountManager.KEY_ACCOUNT_TYPE, account.type);
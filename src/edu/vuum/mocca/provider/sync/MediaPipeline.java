@@ -0,0 +1,487 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.auth.AuthenticationException;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * Moves the media blobs of a sync through a MediaTransfer on a few worker
+ * threads, while the SyncEngine goes on with the rows.
+ * <p>
+ * A feeder thread reads the MoocSchema.Media rows not UPLOADED yet, and
+ * queues a transfer for each: an upload if the blob is stored, a download if
+ * it is only linked. It reads again when poke()d, e.g. after rows linking new
+ * blobs were written, and once more when close()d.
+ * <ul>
+ * <li>At most 'workers' transfers run at a time.</li>
+ * <li>Queued transfers run by priority, the blob's LINKED_AS: the blobs
+ * linked as a story's IMAGE_LINK first (so that their thumbnails can be made
+ * and shown soon), then AUDIO_LINK ones, then the rest; the smaller first
+ * among those of the same priority.</li>
+ * <li>At most 'maxQueued' transfers are queued or running: the feeder waits
+ * for one to finish before it queues another, so a long list of blobs is not
+ * read into memory all at once.</li>
+ * <li>A transfer failing with an IOException (e.g. a dropped connection) is
+ * tried again up to MAX_ATTEMPTS times, after a backoff doubling each time,
+ * with random jitter so that the retries of transfers cut off together do not
+ * hit the server together. Each attempt goes on from the MediaTransfer's
+ * checkpoint.</li>
+ * </ul>
+ * Each of the pipeline's threads reads and writes the media rows through a
+ * ContentProviderClient of its own, as those are not thread safe.
+ * <p>
+ * finish() waits for the queued transfers and adds their counts to the
+ * SyncResult.
+ */
+public class MediaPipeline {
+
+    private static final String LOG_TAG = MediaPipeline.class
+            .getCanonicalName();
+
+    public static final int DEFAULT_WORKERS = 3;
+    public static final int DEFAULT_MAX_QUEUED = 16;
+
+    // attempts at a transfer, the first included
+    public static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_BASE_MILLIS = 1000;
+    private static final long RETRY_MAX_MILLIS = 30 * 1000;
+
+    // the priorities of transfers, first to run first: the blobs'
+    // MoocSchema.Media.Cols.LINKED_AS
+    public static final int PRIORITY_IMAGE = MoocSchema.Media.LINKED_AS_IMAGE;
+    public static final int PRIORITY_AUDIO = MoocSchema.Media.LINKED_AS_AUDIO;
+    public static final int PRIORITY_OTHER = MoocSchema.Media.LINKED_AS_OTHER;
+    private static final int PRIORITIES = PRIORITY_OTHER + 1;
+
+    private final ContentResolver resolver;
+    private final MediaTransfer transfer;
+    private final String authToken;
+    private final int pageSize;
+    private final int maxQueued;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService retries;
+    // a permit for each transfer queued, running or waiting for a retry
+    private final Semaphore slots;
+    private final Thread feeder;
+    private final Random random = new Random();
+    // each pipeline thread's own client, held while the thread runs
+    private final ThreadLocal<ContentProviderClient> threadProvider = new ThreadLocal<ContentProviderClient>();
+
+    // feeder thread only: the blobs queued this sync, and the _id each
+    // priority's rows were read up to in the current read
+    private final Set<String> queued = new HashSet<String>();
+    private final long[] readTo = new long[PRIORITIES];
+
+    // guarded by 'this': if the rows are to be read again, if no more
+    // pokes will come
+    private boolean rescan = true;
+    private boolean closed = false;
+
+    private volatile boolean cancelled = false;
+    private final AtomicLong order = new AtomicLong();
+
+    // the outcome, added to the SyncResult by finish()
+    private final AtomicInteger moved = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean databaseError = false;
+    private volatile AuthenticationException authFailure = null;
+
+    /*
+     * The transfer of one blob.
+     */
+    private class Task implements Runnable, Comparable<Task> {
+        final String hash;
+        final boolean upload;
+        // bytes, 0 if not known (a blob not stored yet)
+        final long size;
+        final int priority;
+        // ties broken first in, first out
+        final long sequence = order.getAndIncrement();
+        int attempts = 0;
+
+        Task(String hash, boolean upload, long size, int priority) {
+            this.hash = hash;
+            this.upload = upload;
+            this.size = size;
+            this.priority = priority;
+        }
+
+        public int compareTo(final Task other) {
+            if (priority != other.priority) {
+                return (priority < other.priority) ? -1 : 1;
+            }
+            if (size != other.size) {
+                return (size < other.size) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1
+                    : (sequence == other.sequence) ? 0 : 1;
+        }
+
+        public void run() {
+            boolean done = true;
+            try {
+                if (!cancelled) {
+                    attempts++;
+                    move(this);
+                }
+            } catch (IOException e) {
+                if (cancelled) {
+                    // interrupted: goes on from its checkpoint next sync
+                } else if (attempts >= MAX_ATTEMPTS) {
+                    Log.w(LOG_TAG, "giving up on " + hash + " after "
+                            + attempts + " attempts", e);
+                    failed.incrementAndGet();
+                } else {
+                    Log.d(LOG_TAG, "retrying " + hash + ": " + e);
+                    done = !retryLater(this);
+                }
+            } catch (AuthenticationException e) {
+                // no transfer can succeed with the token
+                authFailure = e;
+                cancel();
+            } catch (RemoteException e) {
+                Log.e(LOG_TAG, "provider failed recording " + hash, e);
+                databaseError = true;
+            } finally {
+                if (done) {
+                    slots.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param resolver
+     *            to acquire each pipeline thread's client of the MoocProvider
+     *            synced
+     * @param transfer
+     *            moves the blobs
+     * @param authToken
+     * @param pageSize
+     *            most media rows read at a time
+     * @param workers
+     *            most transfers running at a time
+     * @param maxQueued
+     *            most transfers queued or running at a time
+     */
+    public MediaPipeline(ContentResolver resolver, MediaTransfer transfer, String authToken, int pageSize,
+            int workers, int maxQueued) {
+        if (workers <= 0 || maxQueued < workers) {
+            throw new IllegalArgumentException("workers: " + workers
+                    + ", maxQueued: " + maxQueued);
+        }
+        this.resolver = resolver;
+        this.transfer = transfer;
+        this.authToken = authToken;
+        this.pageSize = pageSize;
+        this.maxQueued = maxQueued;
+        slots = new Semaphore(maxQueued);
+        final ThreadFactory threads = backgroundThreads();
+        executor = new ThreadPoolExecutor(workers, workers, 0,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                threads);
+        retries = Executors.newSingleThreadScheduledExecutor(threads);
+        feeder = threads.newThread(new Runnable() {
+            public void run() {
+                feed();
+            }
+        });
+    }
+
+    /**
+     * Start reading the media rows and moving the blobs.
+     */
+    public void start() {
+        feeder.start();
+    }
+
+    /**
+     * Have the media rows read again, for blobs linked since they were last
+     * read.
+     */
+    public synchronized void poke() {
+        rescan = true;
+        notifyAll();
+    }
+
+    /**
+     * Have the media rows read one last time, and nothing more queued after
+     * that.
+     */
+    public synchronized void close() {
+        closed = true;
+        rescan = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop: queue nothing more, drop what is queued, and interrupt what is
+     * running. Each interrupted transfer goes on from its checkpoint in a
+     * later sync.
+     */
+    public void cancel() {
+        cancelled = true;
+        feeder.interrupt();
+        // the dropped transfers give back their permits
+        slots.release(executor.shutdownNow().size());
+        slots.release(retries.shutdownNow().size());
+    }
+
+    /**
+     * close(), wait for the transfers queued to finish, and add their
+     * outcome to the SyncResult: the blobs moved (numEntries), those the
+     * server does not have (numSkippedEntries) and those given up on
+     * (numIoExceptions, so the sync is tried again later).
+     *
+     * @param syncResult
+     * @throws AuthenticationException
+     *             if the server refused the auth token
+     */
+    public void finish(final SyncResult syncResult)
+            throws AuthenticationException {
+        close();
+        try {
+            feeder.join();
+            // every permit back: nothing queued, running or to be retried
+            slots.acquire(maxQueued);
+            slots.release(maxQueued);
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+            retries.shutdown();
+        }
+        syncResult.stats.numEntries += moved.get();
+        syncResult.stats.numSkippedEntries += skipped.get();
+        syncResult.stats.numIoExceptions += failed.get();
+        if (databaseError) {
+            syncResult.databaseError = true;
+        }
+        Log.d(LOG_TAG, "moved " + moved.get() + " blobs, skipped "
+                + skipped.get() + ", failed " + failed.get());
+        if (authFailure != null) {
+            throw authFailure;
+        }
+    }
+
+    /*
+     * The feeder thread: read the media rows each time a rescan is asked
+     * for, until closed.
+     */
+    private void feed() {
+        try {
+            while (awaitRescan()) {
+                for (int priority = 0; priority < PRIORITIES
+                        && !cancelled; priority++) {
+                    feed(priority);
+                }
+            }
+        } catch (InterruptedException e) {
+            // cancelled
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "provider failed listing media", e);
+            databaseError = true;
+        }
+    }
+
+    /*
+     * Wait for a rescan; each reads all the pending rows again, from the
+     * first _id.
+     */
+    private synchronized boolean awaitRescan() throws InterruptedException {
+        while (!rescan && !closed) {
+            wait();
+        }
+        if (!rescan || cancelled) {
+            return false;
+        }
+        rescan = false;
+        for (int priority = 0; priority < PRIORITIES; priority++) {
+            readTo[priority] = 0;
+        }
+        return true;
+    }
+
+    /*
+     * Queue the transfers of the pending media rows of a priority, a page at
+     * a time (through the (UPLOADED, LINKED_AS, _id) index), waiting for a
+     * free slot for each. Each page goes on from the _id the last one got
+     * to. A row may turn pending, or change priority, below that _id (a blob
+     * linked again, or linked by a later story), so each rescan starts over
+     * from the first _id; 'queued' keeps a blob from being queued twice.
+     */
+    private void feed(final int priority) throws RemoteException,
+            InterruptedException {
+        final String selection = MoocSchema.Media.Cols.UPLOADED + " = 0 AND "
+                + MoocSchema.Media.Cols.LINKED_AS + " = ? AND "
+                + MoocSchema.Media.Cols.REF_COUNT + " > 0 AND "
+                + MoocSchema.Media.Cols.ID + " > ?";
+        while (!cancelled) {
+            final List<Task> tasks = new ArrayList<Task>();
+            int read = 0;
+            final Cursor cursor = provider().query(
+                    MoocSchema.Media.CONTENT_URI,
+                    new String[] { MoocSchema.Media.Cols.ID,
+                            MoocSchema.Media.Cols.HASH,
+                            MoocSchema.Media.Cols.SIZE }, selection,
+                    new String[] { String.valueOf(priority),
+                            String.valueOf(readTo[priority]) },
+                    MoocSchema.Media.Cols.ID + " ASC");
+            try {
+                while (read < pageSize && cursor.moveToNext()) {
+                    read++;
+                    readTo[priority] = cursor.getLong(0);
+                    final String hash = cursor.getString(1);
+                    final long size = cursor.getLong(2);
+                    if (queued.add(hash)) {
+                        // SIZE is 0 both for a blob not stored and for an
+                        // empty one
+                        tasks.add(new Task(hash, transfer.isStored(hash),
+                                size, priority));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            for (Task task : tasks) {
+                slots.acquire();
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // cancelled
+                    slots.release();
+                    return;
+                }
+            }
+            if (read < pageSize) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Move one blob, and record it in the provider.
+     */
+    private void move(final Task task) throws IOException,
+            AuthenticationException, RemoteException {
+        if (task.upload) {
+            transfer.upload(authToken, task.hash);
+            final ContentValues values = new ContentValues();
+            values.put(MoocSchema.Media.Cols.UPLOADED, 1);
+            provider().update(MoocSchema.asSyncAdapter(MoocSchema.Media
+                    .uriForHash(task.hash)), values, null, null);
+        } else {
+            if (!transfer.download(authToken, task.hash)) {
+                skipped.incrementAndGet();
+                return;
+            }
+            final ContentValues values = new ContentValues();
+            values.put(MoocSchema.Media.Cols.HASH, task.hash);
+            values.put(MoocSchema.Media.Cols.UPLOADED, 1);
+            provider().insert(
+                    MoocSchema.asSyncAdapter(MoocSchema.Media.CONTENT_URI),
+                    values);
+        }
+        moved.incrementAndGet();
+    }
+
+    /*
+     * Queue a task again after its backoff: RETRY_BASE_MILLIS doubled for
+     * each attempt made, up to RETRY_MAX_MILLIS, of which a random half is
+     * taken off. Returns false if cancelled meanwhile.
+     */
+    private boolean retryLater(final Task task) {
+        final long backoff = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS
+                << (task.attempts - 1));
+        final long delay;
+        synchronized (random) {
+            delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+        }
+        try {
+            retries.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        executor.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // cancelled
+                        slots.release();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /*
+     * The calling pipeline thread's client.
+     */
+    private ContentProviderClient provider() throws RemoteException {
+        final ContentProviderClient client = threadProvider.get();
+        if (client == null) {
+            // no MoocProvider to acquire
+            throw new RemoteException();
+        }
+        return client;
+    }
+
+    /*
+     * Background priority threads, each holding a client of the MoocProvider
+     * from the time it starts until it exits.
+     */
+    private ThreadFactory backgroundThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        final ContentProviderClient client = resolver
+                                .acquireContentProviderClient(MoocSchema.AUTHORITY);
+                        threadProvider.set(client);
+                        try {
+                            r.run();
+                        } finally {
+                            threadProvider.remove();
+                            if (client != null) {
+                                client.release();
+                            }
+                        }
+                    }
+                }, "MediaPipeline-" + count.incrementAndGet());
+            }
+        };
+    }
+}
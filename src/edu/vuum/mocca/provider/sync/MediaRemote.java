@@ -0,0 +1,77 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.auth.AuthenticationException;
+
+/**
+ * The server's store of media blobs, as seen by a MediaTransfer. A SyncRemote
+ * that also implements it has the blobs linked from story rows sent and
+ * received along with the rows.
+ * <p>
+ * Blobs are named by their hash (see MoocMediaStore) and sent in pieces, so
+ * that a transfer cut off (a dropped connection, a sync cancelled) goes on
+ * from the last piece the other side has, instead of from the start.
+ */
+public interface MediaRemote {
+
+    /**
+     * What getUploadOffset() returns for a blob the server has in full.
+     */
+    public static final long BLOB_COMPLETE = -1;
+
+    /**
+     * How much of a blob the server has.
+     *
+     * @param authToken
+     * @param hash
+     * @return the number of bytes received so far (0 for none), where an
+     *         upload is to go on from, or BLOB_COMPLETE
+     * @throws IOException
+     * @throws AuthenticationException
+     *             if the authToken is not (or no longer) valid
+     */
+    public long getUploadOffset(String authToken, String hash)
+            throws IOException, AuthenticationException;
+
+    /**
+     * Send the next piece of a blob. The server keeps every piece it
+     * acknowledged by returning, and checks the content against the hash
+     * once it has the last one.
+     *
+     * @param authToken
+     * @param hash
+     * @param offset
+     *            where the piece goes, the server's getUploadOffset()
+     * @param buffer
+     * @param count
+     *            the bytes of the piece, from the start of buffer
+     * @param last
+     *            if the piece is the end of the blob
+     * @throws IOException
+     *             also if the offset is not where the server expected it
+     * @throws AuthenticationException
+     */
+    public void uploadChunk(String authToken, String hash, long offset,
+            byte[] buffer, int count, boolean last) throws IOException,
+            AuthenticationException;
+
+    /**
+     * Read a blob from an offset on.
+     *
+     * @param authToken
+     * @param hash
+     * @param offset
+     *            bytes of the blob already received, and not sent again
+     * @return the rest of the blob; reading it may fail with an IOException
+     *         if the connection drops
+     * @throws java.io.FileNotFoundException
+     *             if the server does not have the blob (yet)
+     * @throws IOException
+     * @throws AuthenticationException
+     */
+    public InputStream openDownload(String authToken, String hash,
+            long offset) throws IOException, AuthenticationException;
+}
@@ -0,0 +1,188 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.auth.AuthenticationException;
+
+import android.util.Log;
+import edu.vuum.mocca.provider.MoocMediaStore;
+
+/**
+ * Resumable transfer of single media blobs, by hash, between a
+ * MoocMediaStore and a MediaRemote, a chunk at a time.
+ * <p>
+ * Each chunk is a checkpoint kept on the receiving side: the server's
+ * getUploadOffset() for an upload, and the length of the store's partial
+ * file (synced to disk after each chunk) for a download. A transfer that is
+ * cut off loses at most the chunk it was in, and the next one of the same
+ * blob goes on from the checkpoint.
+ */
+public class MediaTransfer {
+
+    private static final String LOG_TAG = MediaTransfer.class
+            .getCanonicalName();
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final MoocMediaStore store;
+    private final MediaRemote remote;
+    private final int chunkSize;
+
+    /**
+     * Constructor
+     *
+     * @param store
+     *            the local blobs
+     * @param remote
+     *            the server's blobs
+     * @param chunkSize
+     *            bytes sent, or received, between checkpoints
+     */
+    public MediaTransfer(MoocMediaStore store, MediaRemote remote,
+            int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize);
+        }
+        this.store = store;
+        this.remote = remote;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * If a blob is stored locally: whether its transfer is an upload rather
+     * than a download.
+     *
+     * @param hash
+     * @return if the store has the blob
+     */
+    public boolean isStored(final String hash) {
+        return store.contains(hash);
+    }
+
+    /**
+     * Send a stored blob, from what the server already has of it on.
+     *
+     * @param authToken
+     * @param hash
+     * @return the number of bytes sent (0 if the server had all of it)
+     * @throws IOException
+     * @throws AuthenticationException
+     */
+    public long upload(final String authToken, final String hash)
+            throws IOException, AuthenticationException {
+        final long offset = remote.getUploadOffset(authToken, hash);
+        if (offset == MediaRemote.BLOB_COMPLETE) {
+            return 0;
+        }
+        final File file = store.fileFor(hash);
+        final long length = file.length();
+        if (offset < 0 || offset > length) {
+            throw new IOException("Server has " + offset + " bytes of " + hash
+                    + ", of " + length);
+        }
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            skipFully(in, offset);
+            final byte[] buffer = new byte[chunkSize];
+            long position = offset;
+            // a blob sent in full still ends with a (maybe empty) last chunk
+            do {
+                final int count = readFully(in, buffer);
+                final boolean last = position + count >= length;
+                remote.uploadChunk(authToken, hash, position, buffer, count,
+                        last);
+                position += count;
+            } while (position < length);
+            Log.d(LOG_TAG, "sent " + (length - offset) + " bytes of " + hash
+                    + (offset > 0 ? ", resumed at " + offset : ""));
+            return length - offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Receive a blob into the store, from what was received of it before on.
+     *
+     * @param authToken
+     * @param hash
+     * @return true if the blob is now stored, false if the server does not
+     *         have it (yet) or sent content not matching the hash (to be
+     *         received again from the start)
+     * @throws IOException
+     *             if the transfer is cut off, after the last chunk received
+     *             was kept
+     * @throws AuthenticationException
+     */
+    public boolean download(final String authToken, final String hash)
+            throws IOException, AuthenticationException {
+        if (store.contains(hash)) {
+            return true;
+        }
+        final File file = store.partialFileFor(hash);
+        final long offset = file.length();
+        final InputStream in;
+        try {
+            in = remote.openDownload(authToken, hash, offset);
+        } catch (FileNotFoundException e) {
+            Log.d(LOG_TAG, "server has no blob " + hash);
+            return false;
+        }
+        long received = 0;
+        try {
+            final FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                final byte[] buffer = new byte[chunkSize];
+                int count;
+                while ((count = readFully(in, buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                    // the checkpoint: on disk before the next chunk is read
+                    out.flush();
+                    out.getFD().sync();
+                    received += count;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        Log.d(LOG_TAG, "received " + received + " bytes of " + hash
+                + (offset > 0 ? ", resumed at " + offset : ""));
+        return store.completePartial(hash);
+    }
+
+    /*
+     * Read until the buffer is full or the stream ends, returning the number
+     * of bytes read.
+     */
+    private static int readFully(final InputStream in, final byte[] buffer)
+            throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            final int count = in.read(buffer, read, buffer.length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    private static void skipFully(final InputStream in, long count)
+            throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Unable to skip to the resume offset");
+            }
+            count -= skipped;
+        }
+    }
+}
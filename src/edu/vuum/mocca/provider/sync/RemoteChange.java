@@ -0,0 +1,145 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import android.content.ContentValues;
+import edu.vuum.mocca.orm.StoryCreator;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.TagsCreator;
+import edu.vuum.mocca.orm.TagsData;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * One change to a Story or Tags row, as exchanged with a SyncRemote: the row
+ * is identified by its ALL_KEY_COLUMNS (LOGIN_ID, STORY_ID and, for tags,
+ * TAG), never by the local _id, and carries the server's VERSION of the row.
+ * A story new to the server has a provisional STORY_ID, which the server
+ * replaces (see SyncRemote.pushChanges()).
+ */
+public class RemoteChange {
+
+    // what kind of row changed
+    public static final int STORY = 1;
+    public static final int TAGS = 2;
+
+    // what happened to it
+    public static final int UPSERT = 1;
+    public static final int DELETE = 2;
+
+    public final int entity;
+    public final int operation;
+    // the server's version of the row: after the change for changes from the
+    // server, the one the change was made to for changes sent to it
+    public final long version;
+
+    public final long loginId;
+    public final long storyId;
+    // null for a story
+    public final String tag;
+
+    // the new row of an UPSERT (the one of the entity), else null
+    public final StoryData story;
+    public final TagsData tags;
+
+    private RemoteChange(int entity, int operation, long version,
+            long loginId, long storyId, String tag, StoryData story,
+            TagsData tags) {
+        this.entity = entity;
+        this.operation = operation;
+        this.version = version;
+        this.loginId = loginId;
+        this.storyId = storyId;
+        this.tag = tag;
+        this.story = story;
+        this.tags = tags;
+    }
+
+    public static RemoteChange upsertStory(final StoryData story,
+            final long version) {
+        return new RemoteChange(STORY, UPSERT, version, story.loginId,
+                story.storyId, null, story, null);
+    }
+
+    public static RemoteChange deleteStory(final long loginId,
+            final long storyId, final long version) {
+        return new RemoteChange(STORY, DELETE, version, loginId, storyId,
+                null, null, null);
+    }
+
+    public static RemoteChange upsertTags(final TagsData tags,
+            final long version) {
+        return new RemoteChange(TAGS, UPSERT, version, tags.loginId,
+                tags.storyId, tags.tag, null, tags);
+    }
+
+    public static RemoteChange deleteTags(final long loginId,
+            final long storyId, final String tag, final long version) {
+        return new RemoteChange(TAGS, DELETE, version, loginId, storyId, tag,
+                null, null);
+    }
+
+    /**
+     * The same change at another version, e.g. the one the server gave it.
+     *
+     * @param newVersion
+     * @return the RemoteChange at newVersion
+     */
+    public RemoteChange withVersion(final long newVersion) {
+        return new RemoteChange(entity, operation, newVersion, loginId,
+                storyId, tag, story, tags);
+    }
+
+    /**
+     * The values of the columns of an UPSERT's row, without sync state.
+     *
+     * @return ContentValues of the row
+     */
+    public ContentValues getCV() {
+        return (entity == STORY) ? StoryCreator.getCVfromStory(story)
+                : TagsCreator.getCVfromTags(tags);
+    }
+
+    /**
+     * The selection of the local row with the same key; see getKeyArgs().
+     *
+     * @return the entity's ALL_KEY_CLAUSE
+     */
+    public String getKeyClause() {
+        return (entity == STORY) ? MoocSchema.Story.ALL_KEY_CLAUSE
+                : MoocSchema.Tags.ALL_KEY_CLAUSE;
+    }
+
+    /**
+     * The arguments of getKeyClause().
+     *
+     * @return the key values, in the order of the entity's ALL_KEY_COLUMNS
+     */
+    public String[] getKeyArgs() {
+        if (entity == STORY) {
+            return new String[] { String.valueOf(loginId),
+                    String.valueOf(storyId) };
+        }
+        return new String[] { tag, String.valueOf(storyId),
+                String.valueOf(loginId) };
+    }
+
+    /**
+     * A String equal for, and only for, changes to the same row.
+     *
+     * @return the row's key
+     */
+    public String getKey() {
+        return key(entity, loginId, storyId, tag);
+    }
+
+    static String key(final int entity, final long loginId,
+            final long storyId, final String tag) {
+        return entity + "/" + loginId + "/" + storyId
+                + ((tag == null) ? "" : "/" + tag);
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteChange " + ((operation == UPSERT) ? "upsert " : "delete ")
+                + getKey() + " version: " + version;
+    }
+}
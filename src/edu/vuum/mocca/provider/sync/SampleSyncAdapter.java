@@ -14,18 +14,24 @@ import android.accounts.OperationCanceledException;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.net.ParseException;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.util.Log;
+import edu.vuum.mocca.provider.MoocMediaStore;
 
 /**
  * This is the SyncAdapater class that synchronizes the Local ContentProvider
  * with a remote data store.
  * <p>
- * Currently this is only a STUB implementation.
- * 
-
+ * The remote data store is a SyncRemote, given to the constructor, or else a
+ * WireSyncRemote over HTTP to the account's server (KEY_SERVER_URL, set up by
+ * the LoginActivity); the sync itself is done by a SyncEngine, which keeps its change token in the
+ * account's user data. A SyncRemote that is also a MediaRemote has the media
+ * blobs synced too, alongside the rows (see MediaPipeline); cancelling the
+ * sync interrupts them, to go on from their checkpoints next time.
  */
 public class SampleSyncAdapter extends AbstractThreadedSyncAdapter {
 
@@ -37,12 +43,35 @@ public class SampleSyncAdapter extends AbstractThreadedSyncAdapter {
     // and ContentProviders)
     private AccountManager mAccountManager;
 
+    // account user data key of the server's base URL
+    public static final String KEY_SERVER_URL = "server_url";
+
+    // account user data keys of the SyncEngine.TokenStore values
+    private static final String KEY_CHANGE_TOKEN = "change_token";
+    private static final String KEY_JOURNAL_SEQUENCE = "journal_sequence";
+
+    // the server, null to use the account's
+    private final SyncRemote mRemote;
+
     // constructor
     public SampleSyncAdapter(Context context, boolean autoInitialize) {
+        this(context, autoInitialize, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param context
+     * @param autoInitialize
+     * @param remote
+     *            the server to sync with (e.g. a fake one in tests)
+     */
+    public SampleSyncAdapter(Context context, boolean autoInitialize,
+            SyncRemote remote) {
         super(context, autoInitialize);
 
         mAccountManager = AccountManager.get(context);
-        // mContentResolver = context.getContentResolver();
+        mRemote = remote;
     }
 
     // This is where the actual sync occurs
@@ -50,22 +79,72 @@ public class SampleSyncAdapter extends AbstractThreadedSyncAdapter {
     public void onPerformSync(Account account, Bundle extras, String authority,
             ContentProviderClient provider, SyncResult syncResult) {
 
+        final SyncRemote remote = (mRemote != null) ? mRemote
+                : accountRemote(account);
+        if (remote == null) {
+            Log.w(LOG_TAG, "onPerformSync(): no server set up for "
+                    + account.name);
+            return;
+        }
         String authtoken = null;
         try {
             authtoken = mAccountManager.blockingGetAuthToken(account,
                     LoginActivity.PARAM_AUTHTOKEN_TYPE, true);
 
-            // Dummy sample. Do whatever you want in this method.
-            // List data = fetchData(authtoken);
-            //
-            // syncRemoteDeleted(data);
-            // syncFromServerToLocalStorage(data);
-            // syncDirtyToServer(authtoken, getDirtyList(mContentResolver));
+            final MediaTransfer media = (remote instanceof MediaRemote) ? new MediaTransfer(
+                    new MoocMediaStore(getContext().getFilesDir()),
+                    (MediaRemote) remote, MediaTransfer.DEFAULT_CHUNK_SIZE)
+                    : null;
+            new SyncEngine(provider, remote, tokenStore(account),
+                    SyncEngine.DEFAULT_PAGE_SIZE, media,
+                    getContext().getContentResolver()).sync(authtoken,
+                    syncResult);
         } catch (Exception e) {
             handleException(authtoken, e, syncResult);
         }
     }
 
+    /*
+     * The account's server, spoken to in the WireFormat, or null if it has
+     * none.
+     */
+    private SyncRemote accountRemote(final Account account) {
+        final String url = mAccountManager.getUserData(account, KEY_SERVER_URL);
+        return (url == null) ? null : new WireSyncRemote(new HttpWireTransport(
+                url));
+    }
+
+    /*
+     * The SyncEngine state of the account, kept in its user data.
+     */
+    private SyncEngine.TokenStore tokenStore(final Account account) {
+        return new SyncEngine.TokenStore() {
+            public String getChangeToken() {
+                return mAccountManager.getUserData(account, KEY_CHANGE_TOKEN);
+            }
+
+            public void setChangeToken(String changeToken) {
+                mAccountManager.setUserData(account, KEY_CHANGE_TOKEN,
+                        changeToken);
+            }
+
+            public long getJournalSequence() {
+                final String sequence = mAccountManager.getUserData(account,
+                        KEY_JOURNAL_SEQUENCE);
+                try {
+                    return (sequence == null) ? -1 : Long.parseLong(sequence);
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+
+            public void setJournalSequence(long sequence) {
+                mAccountManager.setUserData(account, KEY_JOURNAL_SEQUENCE,
+                        String.valueOf(sequence));
+            }
+        };
+    }
+
     // handle any exceptions....
     private void handleException(String authtoken, Exception e,
             SyncResult syncResult) {
@@ -92,6 +171,16 @@ public class SampleSyncAdapter extends AbstractThreadedSyncAdapter {
         } else if (e instanceof JSONException) {
             syncResult.stats.numParseExceptions++;
             Log.e(LOG_TAG, "JSONException", e);
+        } else if (e instanceof RemoteException
+                || e instanceof OperationApplicationException) {
+            // the provider failed, the page being written was rolled back
+            syncResult.databaseError = true;
+            Log.e(LOG_TAG, "provider failed", e);
+        } else {
+            // e.g. an SQLiteException or IllegalStateException from the
+            // provider or the media pipeline
+            syncResult.databaseError = true;
+            Log.e(LOG_TAG, "sync failed", e);
         }
     }
 }
@@ -0,0 +1,634 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.auth.AuthenticationException;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.StoryRowMapper;
+import edu.vuum.mocca.orm.TagsRowMapper;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * Incremental two-way sync of the Story and Tags rows of a MoocProvider with
+ * a SyncRemote.
+ * <p>
+ * Local edits are found through the DIRTY column and the Deleted tombstones
+ * the provider keeps, and sent first; the change journal (MoocSchema.Changes)
+ * tells whether any row was edited locally since the last sync, so that a
+ * sync with nothing to send does not look for DIRTY rows. Then the server's
+ * changes since the last sync's change token are read. Either way the work is done a page at
+ * a time, and each page is written to the provider in one applyBatch() (one
+ * transaction), so a sync costs in proportion to what changed, not to the
+ * size of the data. The change token is saved after each page, so an
+ * interrupted sync goes on from the last page written.
+ * <p>
+ * Conflicts are won by the server: a row edited both locally and on the
+ * server ends up as the server has it. Rows edited locally while a sync is
+ * running are left DIRTY for the next one.
+ * <p>
+ * A story created locally has a provisional STORY_ID (see
+ * MoocSchema.Story.localStoryId()) until it is sent; the server gives it one
+ * of its own, which replaces the provisional one in the story and its tags.
+ * Tags are only sent once their story has the server's STORY_ID.
+ * <p>
+ * Given a MediaTransfer, the media blobs the rows link to are synced too, by
+ * a MediaPipeline running alongside the rows, so that the rows never wait
+ * for a large file. The MoocSchema.Media rows themselves say which blobs are
+ * still to go, those stored but not UPLOADED, and those linked but not stored
+ * (SIZE 0), and each blob is sent or received a chunk at a time from where
+ * an earlier, interrupted sync left it. So every step of a sync resumes where
+ * it stopped.
+ */
+public class SyncEngine {
+
+    private static final String LOG_TAG = SyncEngine.class
+            .getCanonicalName();
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    // most rows looked up by key in one query (3 arguments each for tags,
+    // well under SQLite's limit of 999)
+    private static final int MAX_KEYS_PER_LOOKUP = 200;
+
+    /**
+     * Where the change token of the last page read, and the change journal
+     * sequence number local edits were last looked for at, are kept between
+     * syncs.
+     */
+    public interface TokenStore {
+        /**
+         * @return the saved change token, null before the first sync
+         */
+        public String getChangeToken();
+
+        /**
+         * @param changeToken
+         *            to save
+         */
+        public void setChangeToken(String changeToken);
+
+        /**
+         * @return the saved journal sequence number, -1 before the first
+         *         sync
+         */
+        public long getJournalSequence();
+
+        /**
+         * @param sequence
+         *            to save
+         */
+        public void setJournalSequence(long sequence);
+    }
+
+    private final ContentProviderClient provider;
+    private final SyncRemote remote;
+    private final TokenStore tokenStore;
+    private final int pageSize;
+    // null: the rows only
+    private final MediaTransfer media;
+    // for the MediaPipeline's own clients, null without media
+    private final ContentResolver resolver;
+
+    /**
+     * Constructor, syncing the rows only.
+     *
+     * @param provider
+     *            the MoocProvider to sync
+     * @param remote
+     *            the server
+     * @param tokenStore
+     *            keeps the change token
+     * @param pageSize
+     *            most rows read, sent or written at a time
+     */
+    public SyncEngine(ContentProviderClient provider, SyncRemote remote,
+            TokenStore tokenStore, int pageSize) {
+        this(provider, remote, tokenStore, pageSize, null, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param provider
+     *            the MoocProvider to sync
+     * @param remote
+     *            the server
+     * @param tokenStore
+     *            keeps the change token
+     * @param pageSize
+     *            most rows read, sent or written at a time
+     * @param media
+     *            moves the media blobs, or null to sync the rows only
+     * @param resolver
+     *            to acquire the MediaPipeline threads' own clients of the
+     *            MoocProvider, if media is not null
+     */
+    public SyncEngine(ContentProviderClient provider, SyncRemote remote,
+            TokenStore tokenStore, int pageSize, MediaTransfer media,
+            ContentResolver resolver) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize: " + pageSize);
+        }
+        this.provider = provider;
+        this.remote = remote;
+        this.tokenStore = tokenStore;
+        this.pageSize = pageSize;
+        this.media = media;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Send the local changes, then apply the server's changes, while the
+     * media blobs are moved; then wait for the blobs.
+     *
+     * @param authToken
+     * @param syncResult
+     *            counts the rows read and blobs moved (numEntries), rows
+     *            written (numInserts, numUpdates, numDeletes) and rows and
+     *            blobs left for later (numSkippedEntries)
+     * @throws IOException
+     * @throws AuthenticationException
+     * @throws RemoteException
+     * @throws OperationApplicationException
+     */
+    public void sync(final String authToken, final SyncResult syncResult)
+            throws IOException, AuthenticationException, RemoteException,
+            OperationApplicationException {
+        final MediaPipeline pipeline = (media != null) ? new MediaPipeline(
+                resolver, media, authToken, pageSize,
+                MediaPipeline.DEFAULT_WORKERS, MediaPipeline.DEFAULT_MAX_QUEUED)
+                : null;
+        if (pipeline != null) {
+            pipeline.start();
+        }
+        boolean rowsSynced = false;
+        try {
+            // read first: local edits made while sending are after it
+            final long sequence = latestChange();
+            pushDeleted(authToken, syncResult);
+            if (hasLocalEdits(tokenStore.getJournalSequence())) {
+                pushDirty(authToken, RemoteChange.STORY, syncResult);
+                pushDirty(authToken, RemoteChange.TAGS, syncResult);
+            }
+            tokenStore.setJournalSequence(sequence);
+            pull(authToken, syncResult, pipeline);
+            rowsSynced = true;
+        } finally {
+            if (pipeline != null && !rowsSynced) {
+                pipeline.cancel();
+            }
+        }
+        if (pipeline != null) {
+            pipeline.finish(syncResult);
+        }
+    }
+
+    /*
+     * The sequence number of the latest change journal entry.
+     */
+    private long latestChange() throws RemoteException {
+        final Cursor cursor = provider.query(MoocSchema.Changes.CONTENT_URI,
+                new String[] { "MAX(" + MoocSchema.Changes.Cols.SEQUENCE
+                        + ")" }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * If the journal has a local edit after the sequence number (the journal
+     * entries of the sync's own writes are not LOCAL). Always true before the
+     * first sync, or if the journal was compacted past the sequence number.
+     */
+    private boolean hasLocalEdits(final long sequence) throws RemoteException {
+        if (sequence < 0) {
+            return true;
+        }
+        final Cursor cursor = provider.query(MoocSchema.Changes
+                .uriForChangesSince(sequence).buildUpon()
+                .appendQueryParameter(MoocSchema.QUERY_PARAMETER_LIMIT, "1")
+                .build(),
+                new String[] { MoocSchema.Changes.Cols.SEQUENCE },
+                MoocSchema.Changes.Cols.LOCAL + " = 1 OR "
+                        + MoocSchema.Changes.Cols.OPERATION + " = ?",
+                new String[] { MoocSchema.Changes.OPERATION_RESET }, null);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Send the Deleted tombstones, and remove them once sent.
+     */
+    private void pushDeleted(final String authToken,
+            final SyncResult syncResult) throws IOException,
+            AuthenticationException, RemoteException,
+            OperationApplicationException {
+        long afterID = 0;
+        while (true) {
+            final ArrayList<Long> ids = new ArrayList<Long>();
+            final ArrayList<RemoteChange> changes = new ArrayList<RemoteChange>();
+            final Cursor cursor = provider.query(
+                    MoocSchema.Deleted.CONTENT_URI,
+                    MoocSchema.Deleted.ALL_COLUMN_NAMES,
+                    MoocSchema.Deleted.Cols.ID + " > ?",
+                    new String[] { String.valueOf(afterID) },
+                    MoocSchema.Deleted.Cols.ID + " ASC");
+            try {
+                while (changes.size() < pageSize && cursor.moveToNext()) {
+                    ids.add(Long.valueOf(cursor.getLong(0)));
+                    changes.add(tombstone(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            final List<RemoteChange> results = remote.pushChanges(authToken,
+                    changes);
+            final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+            for (int i = 0; i < changes.size(); i++) {
+                syncResult.stats.numEntries++;
+                operations.add(ContentProviderOperation.newDelete(
+                        MoocSchema.asSyncAdapter(ContentUris.withAppendedId(
+                                MoocSchema.Deleted.CONTENT_URI, ids.get(i))))
+                        .build());
+                final RemoteChange result = results.get(i);
+                if (result.operation == RemoteChange.UPSERT) {
+                    // the server kept the row: bring it back
+                    operations.add(ContentProviderOperation
+                            .newInsert(
+                                    MoocSchema.asSyncAdapter(upsertUri(result.entity)))
+                            .withValues(serverValues(result)).build());
+                    syncResult.stats.numInserts++;
+                }
+            }
+            provider.applyBatch(operations);
+            Log.d(LOG_TAG, "sent " + changes.size() + " deletions");
+
+            afterID = ids.get(ids.size() - 1).longValue();
+            if (changes.size() < pageSize) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * The RemoteChange of the Deleted tombstone at the Cursor's position.
+     */
+    private static RemoteChange tombstone(final Cursor cursor) {
+        final String table = cursor.getString(cursor
+                .getColumnIndex(MoocSchema.Deleted.Cols.TABLE));
+        final long loginId = cursor.getLong(cursor
+                .getColumnIndex(MoocSchema.Deleted.Cols.LOGIN_ID));
+        final long storyId = cursor.getLong(cursor
+                .getColumnIndex(MoocSchema.Deleted.Cols.STORY_ID));
+        final long version = cursor.getLong(cursor
+                .getColumnIndex(MoocSchema.Deleted.Cols.VERSION));
+        if (MoocSchema.Tags.TABLE_NAME.equals(table)) {
+            return RemoteChange.deleteTags(loginId, storyId,
+                    cursor.getString(cursor
+                            .getColumnIndex(MoocSchema.Deleted.Cols.TAG)),
+                    version);
+        }
+        return RemoteChange.deleteStory(loginId, storyId, version);
+    }
+
+    /*
+     * Send the DIRTY rows of one entity, and write back the server's state of
+     * each. A row edited again since it was read has a new DIRTY value, and
+     * is not written back (it is sent again next time), but a new story
+     * always takes the STORY_ID the server gave it, as do its tags.
+     */
+    private void pushDirty(final String authToken, final int entity,
+            final SyncResult syncResult) throws IOException,
+            AuthenticationException, RemoteException,
+            OperationApplicationException {
+        final Uri contentUri = contentUri(entity);
+        final String[] projection = withSyncState((entity == RemoteChange.STORY) ? MoocSchema.Story.ALL_COLUMN_NAMES
+                : MoocSchema.Tags.ALL_COLUMN_NAMES);
+        // tags of a story the server has not given a STORY_ID yet wait
+        final String selection = MoocSchema.Story.Cols.DIRTY + " > 0 AND "
+                + MoocSchema.Story.Cols.ID + " > ?"
+                + ((entity == RemoteChange.TAGS) ? " AND "
+                        + MoocSchema.Tags.Cols.STORY_ID + " > 0" : "");
+        long afterID = 0;
+        while (true) {
+            final ArrayList<Long> ids = new ArrayList<Long>();
+            final ArrayList<Long> dirty = new ArrayList<Long>();
+            final ArrayList<RemoteChange> changes = new ArrayList<RemoteChange>();
+            final Cursor cursor = provider.query(contentUri, projection,
+                    selection, new String[] { String.valueOf(afterID) },
+                    MoocSchema.Story.Cols.ID + " ASC");
+            try {
+                final int idColumn = cursor
+                        .getColumnIndex(MoocSchema.Story.Cols.ID);
+                final int dirtyColumn = cursor
+                        .getColumnIndex(MoocSchema.Story.Cols.DIRTY);
+                final int versionColumn = cursor
+                        .getColumnIndex(MoocSchema.Story.Cols.VERSION);
+                final StoryRowMapper stories = (entity == RemoteChange.STORY) ? new StoryRowMapper(
+                        cursor) : null;
+                final TagsRowMapper tags = (entity == RemoteChange.TAGS) ? new TagsRowMapper(
+                        cursor) : null;
+                while (changes.size() < pageSize && cursor.moveToNext()) {
+                    ids.add(Long.valueOf(cursor.getLong(idColumn)));
+                    dirty.add(Long.valueOf(cursor.getLong(dirtyColumn)));
+                    final long version = cursor.getLong(versionColumn);
+                    changes.add((stories != null) ? RemoteChange.upsertStory(
+                            stories.map(), version) : RemoteChange.upsertTags(
+                            tags.map(), version));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            final List<RemoteChange> results = remote.pushChanges(authToken,
+                    changes);
+            final Uri uri = MoocSchema.asSyncAdapter(contentUri);
+            final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+            for (int i = 0; i < changes.size(); i++) {
+                syncResult.stats.numEntries++;
+                final RemoteChange result = results.get(i);
+                if (result.storyId != changes.get(i).storyId) {
+                    rekeyStory(ids.get(i).longValue(), changes.get(i), result,
+                            operations);
+                }
+                final String rowSelection = MoocSchema.Story.Cols.ID
+                        + " = ? AND " + MoocSchema.Story.Cols.DIRTY + " = ?";
+                final String[] selectionArgs = new String[] {
+                        ids.get(i).toString(), dirty.get(i).toString() };
+                if (result.operation == RemoteChange.DELETE) {
+                    // deleted on the server meanwhile
+                    operations.add(ContentProviderOperation.newDelete(uri)
+                            .withSelection(rowSelection, selectionArgs)
+                            .build());
+                    syncResult.stats.numDeletes++;
+                } else {
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                            .withValues(serverValues(result))
+                            .withSelection(rowSelection, selectionArgs)
+                            .build());
+                    syncResult.stats.numUpdates++;
+                }
+            }
+            provider.applyBatch(operations);
+            Log.d(LOG_TAG, "sent " + changes.size() + " changed rows");
+
+            afterID = ids.get(ids.size() - 1).longValue();
+            if (changes.size() < pageSize) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * The operations giving a new story (row 'id', sent as 'sent') the
+     * STORY_ID the server gave it ('result'), and the server's VERSION, even
+     * if it was edited while being sent; and moving its tags (sent later, as
+     * still DIRTY) to that STORY_ID.
+     */
+    private static void rekeyStory(final long id, final RemoteChange sent,
+            final RemoteChange result,
+            final ArrayList<ContentProviderOperation> operations) {
+        if (sent.entity != RemoteChange.STORY
+                || !MoocSchema.Story.isLocalStoryId(sent.storyId)) {
+            throw new IllegalStateException("Server changed the key of "
+                    + sent + " to " + result.getKey());
+        }
+        operations.add(ContentProviderOperation
+                .newUpdate(
+                        MoocSchema.asSyncAdapter(ContentUris.withAppendedId(
+                                MoocSchema.Story.CONTENT_URI, id)))
+                .withValue(MoocSchema.Story.Cols.STORY_ID,
+                        Long.valueOf(result.storyId))
+                .withValue(MoocSchema.Story.Cols.VERSION,
+                        Long.valueOf(result.version)).build());
+        operations.add(ContentProviderOperation
+                .newUpdate(MoocSchema.asSyncAdapter(MoocSchema.Tags.CONTENT_URI))
+                .withValue(MoocSchema.Tags.Cols.STORY_ID,
+                        Long.valueOf(result.storyId))
+                .withSelection(MoocSchema.Tags.Cols.LOGIN_ID + " = ? AND "
+                        + MoocSchema.Tags.Cols.STORY_ID + " = ?",
+                        new String[] { String.valueOf(sent.loginId),
+                                String.valueOf(sent.storyId) }).build());
+    }
+
+    /*
+     * Read and apply the server's changes since the saved change token, a
+     * page (and a transaction) at a time, poking the pipeline (if any) when
+     * a page links to media blobs.
+     */
+    private void pull(final String authToken, final SyncResult syncResult,
+            final MediaPipeline pipeline) throws IOException, AuthenticationException, RemoteException,
+            OperationApplicationException {
+        String changeToken = tokenStore.getChangeToken();
+        while (true) {
+            final ChangePage page = remote.getChanges(authToken, changeToken,
+                    pageSize);
+            applyPage(page.changes, syncResult);
+            if (pipeline != null && linksMedia(page.changes)) {
+                pipeline.poke();
+            }
+            changeToken = page.nextToken;
+            tokenStore.setChangeToken(changeToken);
+            Log.d(LOG_TAG, "applied " + page.changes.size()
+                    + " server changes");
+            if (!page.hasMore || page.changes.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Apply one page of the server's changes in one applyBatch(). Rows
+     * DIRTY locally are skipped: they are sent next, and the server decides.
+     * So are changes the row already has (a page applied again after an
+     * interruption).
+     */
+    private void applyPage(final List<RemoteChange> changes,
+            final SyncResult syncResult) throws RemoteException,
+            OperationApplicationException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        final Map<String, long[]> local = lookUp(changes);
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (RemoteChange change : changes) {
+            syncResult.stats.numEntries++;
+            final String key = change.getKey();
+            // { DIRTY, VERSION } of the local row, null if there is none
+            final long[] state = local.get(key);
+            if (state != null && (state[0] != 0 || state[1] >= change.version)) {
+                syncResult.stats.numSkippedEntries++;
+                continue;
+            }
+            // the DIRTY = 0 guards against local edits made since lookUp()
+            final String selection = change.getKeyClause() + " AND "
+                    + MoocSchema.Story.Cols.DIRTY + " = 0";
+            final Uri uri = MoocSchema.asSyncAdapter(contentUri(change.entity));
+            if (change.operation == RemoteChange.DELETE) {
+                if (state != null) {
+                    operations.add(ContentProviderOperation.newDelete(uri)
+                            .withSelection(selection, change.getKeyArgs())
+                            .build());
+                    syncResult.stats.numDeletes++;
+                    local.remove(key);
+                }
+                continue;
+            }
+            if (state != null) {
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValues(serverValues(change))
+                        .withSelection(selection, change.getKeyArgs()).build());
+                syncResult.stats.numUpdates++;
+            } else {
+                operations.add(ContentProviderOperation
+                        .newInsert(
+                                MoocSchema.asSyncAdapter(upsertUri(change.entity)))
+                        .withValues(serverValues(change)).build());
+                syncResult.stats.numInserts++;
+            }
+            local.put(key, new long[] { 0, change.version });
+        }
+        if (!operations.isEmpty()) {
+            provider.applyBatch(operations);
+        }
+    }
+
+    /*
+     * The { DIRTY, VERSION } of the local rows the changes are to, by
+     * RemoteChange.getKey(), in a few queries by key.
+     */
+    private Map<String, long[]> lookUp(final List<RemoteChange> changes)
+            throws RemoteException {
+        final Map<String, long[]> local = new HashMap<String, long[]>();
+        final Map<String, RemoteChange> stories = new HashMap<String, RemoteChange>();
+        final Map<String, RemoteChange> tags = new HashMap<String, RemoteChange>();
+        for (RemoteChange change : changes) {
+            ((change.entity == RemoteChange.STORY) ? stories : tags).put(
+                    change.getKey(), change);
+        }
+        lookUp(RemoteChange.STORY, stories.values(), local);
+        lookUp(RemoteChange.TAGS, tags.values(), local);
+        return local;
+    }
+
+    private void lookUp(final int entity,
+            final Collection<RemoteChange> changes,
+            final Map<String, long[]> local) throws RemoteException {
+        final String[] projection = (entity == RemoteChange.STORY) ? new String[] {
+                MoocSchema.Story.Cols.LOGIN_ID, MoocSchema.Story.Cols.STORY_ID,
+                MoocSchema.Story.Cols.DIRTY, MoocSchema.Story.Cols.VERSION }
+                : new String[] { MoocSchema.Tags.Cols.LOGIN_ID,
+                        MoocSchema.Tags.Cols.STORY_ID,
+                        MoocSchema.Tags.Cols.DIRTY,
+                        MoocSchema.Tags.Cols.VERSION, MoocSchema.Tags.Cols.TAG };
+        final List<RemoteChange> all = new ArrayList<RemoteChange>(changes);
+        for (int start = 0; start < all.size(); start += MAX_KEYS_PER_LOOKUP) {
+            final int end = Math.min(all.size(), start + MAX_KEYS_PER_LOOKUP);
+            final StringBuilder selection = new StringBuilder();
+            final ArrayList<String> selectionArgs = new ArrayList<String>();
+            for (int i = start; i < end; i++) {
+                final RemoteChange change = all.get(i);
+                if (i > start) {
+                    selection.append(" OR ");
+                }
+                selection.append('(').append(change.getKeyClause()).append(')');
+                for (String arg : change.getKeyArgs()) {
+                    selectionArgs.add(arg);
+                }
+            }
+            final Cursor cursor = provider.query(contentUri(entity),
+                    projection, selection.toString(),
+                    selectionArgs.toArray(new String[selectionArgs.size()]),
+                    null);
+            try {
+                while (cursor.moveToNext()) {
+                    final String tag = (entity == RemoteChange.TAGS) ? cursor
+                            .getString(4) : null;
+                    local.put(RemoteChange.key(entity, cursor.getLong(0),
+                            cursor.getLong(1), tag),
+                            new long[] { cursor.getLong(2), cursor.getLong(3) });
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /*
+     * If a story of the changes links to a media blob.
+     */
+    private static boolean linksMedia(final List<RemoteChange> changes) {
+        for (RemoteChange change : changes) {
+            final StoryData story = change.story;
+            if (story != null
+                    && (isMediaLink(story.audioLink)
+                            || isMediaLink(story.videoLink) || isMediaLink(story.imageLink))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isMediaLink(final String link) {
+        return link != null && link.startsWith(MoocSchema.Media.LINK_PREFIX);
+    }
+
+    /*
+     * The values to write for the server's state of a row: clean, at the
+     * server's version.
+     */
+    private static ContentValues serverValues(final RemoteChange change) {
+        final ContentValues values = change.getCV();
+        values.put(MoocSchema.Story.Cols.DIRTY, 0);
+        values.put(MoocSchema.Story.Cols.VERSION, change.version);
+        return values;
+    }
+
+    private static Uri contentUri(final int entity) {
+        return (entity == RemoteChange.STORY) ? MoocSchema.Story.CONTENT_URI
+                : MoocSchema.Tags.CONTENT_URI;
+    }
+
+    private static Uri upsertUri(final int entity) {
+        return (entity == RemoteChange.STORY) ? MoocSchema.Story.UPSERT_URI
+                : MoocSchema.Tags.UPSERT_URI;
+    }
+
+    private static String[] withSyncState(final String[] columnNames) {
+        final String[] columns = new String[columnNames.length + 2];
+        System.arraycopy(columnNames, 0, columns, 0, columnNames.length);
+        columns[columnNames.length] = MoocSchema.Story.Cols.DIRTY;
+        columns[columnNames.length + 1] = MoocSchema.Story.Cols.VERSION;
+        return columns;
+    }
+}
@@ -0,0 +1,62 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.http.auth.AuthenticationException;
+
+/**
+ * The server side of a sync, as seen by the SyncEngine: a log of changes
+ * read from a change token onwards, and a way to send local changes. An
+ * implementation may talk to a real server or be an in-memory fake.
+ * <p>
+ * Change tokens are opaque to the client. The server hands out a new one
+ * with each page, and must accept it again later, so that a sync reads only
+ * the changes made after the previous one.
+ */
+public interface SyncRemote {
+
+    /**
+     * The server's changes after a change token.
+     *
+     * @param authToken
+     * @param changeToken
+     *            the nextToken of the last page read, or null to read every
+     *            row the server has
+     * @param limit
+     *            most changes to return
+     * @return the next page of changes
+     * @throws IOException
+     * @throws AuthenticationException
+     *             if the authToken is not (or no longer) valid
+     */
+    public ChangePage getChanges(String authToken, String changeToken,
+            int limit) throws IOException, AuthenticationException;
+
+    /**
+     * Send local changes, each made to the row at its RemoteChange.version (0
+     * for a row new to the server).
+     * <p>
+     * A change to a row still at that version is applied and the server
+     * gives the row a new version. A row changed on the server since then is
+     * left as the server has it (the server wins).
+     * <p>
+     * A story with a provisional storyId (see
+     * MoocSchema.Story.isLocalStoryId()) is new: the server gives it a
+     * storyId of its own, greater than 0, and returns it under that one. Its
+     * tags are only sent after that, with the new storyId.
+     *
+     * @param authToken
+     * @param changes
+     * @return for each change, in order, the state of the row on the server
+     *         afterwards: the change itself at its new version, or the
+     *         server's own row (or a DELETE) if the server won
+     * @throws IOException
+     * @throws AuthenticationException
+     *             if the authToken is not (or no longer) valid
+     */
+    public List<RemoteChange> pushChanges(String authToken,
+            List<RemoteChange> changes) throws IOException,
+            AuthenticationException;
+}
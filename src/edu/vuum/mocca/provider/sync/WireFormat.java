@@ -0,0 +1,77 @@
+
+package edu.vuum.mocca.provider.sync;
+
+/**
+ * The compact binary format of a stream of RemoteChange (and so StoryData and
+ * TagsData) records, written by WireWriter and read by WireReader.
+ * <p>
+ * A stream is a header (MAGIC, then VERSION), the records, then an END byte,
+ * so that a cut off stream is told apart from a complete one. Each record is
+ * a kind byte (STORY_UPSERT ...) followed by its fields:
+ * <ul>
+ * <li>VERSION, LOGIN_ID and STORY_ID as varints of the (zigzag) difference
+ * from the same field of the previous record, which sorted records keep
+ * small;</li>
+ * <li>CREATION_TIME likewise, and STORY_TIME as the difference from the
+ * record's CREATION_TIME;</li>
+ * <li>LATITUDE and LONGITUDE as 4 byte integers of 1e-7 degrees (about 1 cm);
+ * </li>
+ * <li>Strings as a varint of the UTF-8 length + 1 (0 for null) and the
+ * bytes;</li>
+ * <li>the TAG of a tag and the TAGS of a story interned: a varint of 0 for
+ * null, 1 for a new string that follows (and is given the next number, while
+ * fewer than MAX_INTERNED are), else 2 + the number of a string seen
+ * before.</li>
+ * </ul>
+ * The delta and intern state is per stream, so a stream can only be read
+ * from its start.
+ * <p>
+ * A stream may be GZIP compressed as a whole, as the text of the stories
+ * still compresses well; WireReader tells by the GZIP header, so the reading
+ * side needs no flag.
+ */
+public final class WireFormat {
+
+    public static final byte[] MAGIC = { 'M', 'O', 'C', 'W' };
+    public static final int VERSION = 1;
+
+    // record kinds
+    static final int END = 0;
+    static final int STORY_UPSERT = 1;
+    static final int STORY_DELETE = 2;
+    static final int TAGS_UPSERT = 3;
+    static final int TAGS_DELETE = 4;
+
+    // interned string references
+    static final int INTERNED_NULL = 0;
+    static final int INTERNED_NEW = 1;
+    static final int INTERNED_FIRST = 2;
+
+    // most strings interned per stream
+    static final int MAX_INTERNED = 4096;
+
+    // bytes buffered by the GZIP streams of a compressed stream
+    static final int COMPRESSION_BUFFER = 8 * 1024;
+
+    // LATITUDE and LONGITUDE units per degree
+    static final double COORDINATE_SCALE = 1e7;
+
+    private WireFormat() {
+    }
+
+    static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int toFixed(final double degrees) {
+        return (int) Math.round(degrees * COORDINATE_SCALE);
+    }
+
+    static double fromFixed(final int fixed) {
+        return fixed / COORDINATE_SCALE;
+    }
+}
@@ -0,0 +1,238 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.TagsData;
+
+/**
+ * Streaming decoder of the WireFormat written by WireWriter: one RemoteChange
+ * at a time, so a batch of any size takes the same memory (besides the
+ * interned strings).
+ */
+public class WireReader implements Closeable {
+
+    // longest String accepted, so that a corrupt length cannot exhaust memory
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    private final InputStream in;
+
+    // the previous record's fields, for the deltas
+    private long version = 0;
+    private long loginId = 0;
+    private long storyId = 0;
+    private long creationTime = 0;
+
+    // interned strings, by number
+    private final ArrayList<String> interned = new ArrayList<String>();
+
+    private boolean ended = false;
+
+    /**
+     * Constructor, reading and checking the header. A compressed stream is
+     * told by its GZIP header, and uncompressed as it is read.
+     *
+     * @param in
+     *            the stream, closed by close()
+     * @throws IOException
+     *             if it is not a stream of a supported WireFormat.VERSION
+     */
+    public WireReader(InputStream in) throws IOException {
+        this.in = uncompressed((in instanceof BufferedInputStream) ? in
+                : new BufferedInputStream(in));
+        for (byte expected : WireFormat.MAGIC) {
+            if (readByte() != (expected & 0xFF)) {
+                throw new IOException("Not a wire format stream");
+            }
+        }
+        final int streamVersion = readByte();
+        if (streamVersion != WireFormat.VERSION) {
+            throw new IOException("Unsupported wire format version "
+                    + streamVersion);
+        }
+    }
+
+    /**
+     * Read the next change.
+     *
+     * @return the change, or null at the end of the stream
+     * @throws EOFException
+     *             if the stream was cut off before its end
+     * @throws IOException
+     */
+    public RemoteChange read() throws IOException {
+        if (ended) {
+            return null;
+        }
+        final int kind = readByte();
+        if (kind == WireFormat.END) {
+            ended = true;
+            return null;
+        }
+        if (kind < WireFormat.STORY_UPSERT || kind > WireFormat.TAGS_DELETE) {
+            throw new IOException("Unknown wire format record " + kind);
+        }
+        version += readSignedVarint();
+        loginId += readSignedVarint();
+        storyId += readSignedVarint();
+
+        switch (kind) {
+        case WireFormat.STORY_UPSERT: {
+            final String title = readString();
+            final String body = readString();
+            final String audioLink = readString();
+            final String videoLink = readString();
+            final String imageName = readString();
+            final String imageLink = readString();
+            final String tags = readInterned();
+            creationTime += readSignedVarint();
+            final long storyTime = creationTime + readSignedVarint();
+            final double latitude = WireFormat.fromFixed(readFixed());
+            final double longitude = WireFormat.fromFixed(readFixed());
+            return RemoteChange.upsertStory(new StoryData(loginId, storyId,
+                    title, body, audioLink, videoLink, imageName, imageLink,
+                    tags, creationTime, storyTime, latitude, longitude),
+                    version);
+        }
+        case WireFormat.STORY_DELETE:
+            return RemoteChange.deleteStory(loginId, storyId, version);
+        case WireFormat.TAGS_UPSERT:
+            return RemoteChange.upsertTags(new TagsData(loginId, storyId,
+                    readInterned()), version);
+        default:
+            return RemoteChange.deleteTags(loginId, storyId, readInterned(),
+                    version);
+        }
+    }
+
+    /**
+     * Read the next story, skipping other records.
+     *
+     * @return the StoryData of the next story upsert, or null at the end
+     * @throws IOException
+     */
+    public StoryData readStory() throws IOException {
+        for (RemoteChange change = read(); change != null; change = read()) {
+            if (change.story != null) {
+                return change.story;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the next tag, skipping other records.
+     *
+     * @return the TagsData of the next tags upsert, or null at the end
+     * @throws IOException
+     */
+    public TagsData readTags() throws IOException {
+        for (RemoteChange change = read(); change != null; change = read()) {
+            if (change.tags != null) {
+                return change.tags;
+            }
+        }
+        return null;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /*
+     * The stream, uncompressed if it starts with the GZIP magic number.
+     */
+    private static InputStream uncompressed(final InputStream in)
+            throws IOException {
+        in.mark(2);
+        final int first = in.read();
+        final int second = in.read();
+        in.reset();
+        if (first == (GZIPInputStream.GZIP_MAGIC & 0xFF)
+                && second == (GZIPInputStream.GZIP_MAGIC >>> 8)) {
+            return new BufferedInputStream(new GZIPInputStream(in,
+                    WireFormat.COMPRESSION_BUFFER));
+        }
+        return in;
+    }
+
+    private int readByte() throws IOException {
+        final int value = in.read();
+        if (value < 0) {
+            throw new EOFException("Wire format stream cut off");
+        }
+        return value;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private long readSignedVarint() throws IOException {
+        return WireFormat.unzigzag(readVarint());
+    }
+
+    private int readFixed() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8)
+                | readByte();
+    }
+
+    private String readString() throws IOException {
+        final long length = readVarint();
+        if (length == 0) {
+            return null;
+        }
+        // a varint of 2^63 or more reads as negative
+        if (length < 1 || length - 1 > MAX_STRING_BYTES) {
+            throw new IOException("String of " + (length - 1)
+                    + " bytes in wire format stream");
+        }
+        final byte[] bytes = new byte[(int) (length - 1)];
+        int read = 0;
+        while (read < bytes.length) {
+            final int count = in.read(bytes, read, bytes.length - read);
+            if (count < 0) {
+                throw new EOFException("Wire format stream cut off");
+            }
+            read += count;
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private String readInterned() throws IOException {
+        final long reference = readVarint();
+        if (reference == WireFormat.INTERNED_NULL) {
+            return null;
+        }
+        if (reference == WireFormat.INTERNED_NEW) {
+            final String value = readString();
+            if (value == null) {
+                throw new IOException("Null interned string");
+            }
+            if (interned.size() < WireFormat.MAX_INTERNED) {
+                interned.add(value);
+            }
+            return value;
+        }
+        final long number = reference - WireFormat.INTERNED_FIRST;
+        if (number < 0 || number >= interned.size()) {
+            throw new IOException("Unknown interned string " + number);
+        }
+        return interned.get((int) number);
+    }
+}
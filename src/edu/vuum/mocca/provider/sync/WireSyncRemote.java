@@ -0,0 +1,136 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.auth.AuthenticationException;
+
+/**
+ * A SyncRemote speaking the WireFormat to the server through a
+ * WireTransport. The changes sent are one WireWriter stream, GZIP
+ * compressed by default; those received are read a record at a time by a
+ * WireReader, compressed or not.
+ */
+public class WireSyncRemote implements SyncRemote {
+
+    private final WireTransport transport;
+    private final boolean compress;
+
+    /**
+     * Constructor, compressing what is sent.
+     *
+     * @param transport
+     *            the way to the server
+     */
+    public WireSyncRemote(WireTransport transport) {
+        this(transport, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param transport
+     *            the way to the server
+     * @param compress
+     *            to GZIP the changes sent
+     */
+    public WireSyncRemote(WireTransport transport, boolean compress) {
+        this.transport = transport;
+        this.compress = compress;
+    }
+
+    public ChangePage getChanges(final String authToken,
+            final String changeToken, final int limit) throws IOException,
+            AuthenticationException {
+        final Map<String, String> parameters = new LinkedHashMap<String, String>();
+        if (changeToken != null) {
+            parameters.put(WireTransport.PARAMETER_CHANGE_TOKEN, changeToken);
+        }
+        parameters.put(WireTransport.PARAMETER_LIMIT, String.valueOf(limit));
+        final Map<String, String> headers = new HashMap<String, String>();
+        final List<RemoteChange> changes = decode(transport.exchange(
+                WireTransport.PATH_CHANGES, authToken, parameters, null,
+                headers));
+        final String nextToken = headers.get(WireTransport.HEADER_CHANGE_TOKEN);
+        if (nextToken == null) {
+            throw new IOException("No " + WireTransport.HEADER_CHANGE_TOKEN
+                    + " in the server's changes");
+        }
+        return new ChangePage(changes, nextToken, "true".equals(headers
+                .get(WireTransport.HEADER_HAS_MORE)));
+    }
+
+    public List<RemoteChange> pushChanges(final String authToken,
+            final List<RemoteChange> changes) throws IOException,
+            AuthenticationException {
+        final List<RemoteChange> results = decode(transport.exchange(
+                WireTransport.PATH_PUSH, authToken,
+                new HashMap<String, String>(), encode(changes, compress),
+                new HashMap<String, String>()));
+        if (results.size() != changes.size()) {
+            throw new IOException("Server answered " + changes.size()
+                    + " changes with " + results.size());
+        }
+        return results;
+    }
+
+    /**
+     * The WireFormat stream of some changes.
+     *
+     * @param changes
+     * @param compress
+     *            to GZIP the stream
+     * @return the stream's bytes
+     * @throws IOException
+     */
+    public static byte[] encode(final List<RemoteChange> changes,
+            final boolean compress) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final WireWriter writer = new WireWriter(bytes, compress);
+        try {
+            for (RemoteChange change : changes) {
+                writer.write(change);
+            }
+        } finally {
+            writer.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read every change of a WireFormat stream.
+     *
+     * @param in
+     *            the stream, closed when read
+     * @return the changes, in order
+     * @throws IOException
+     *             also if the stream is cut off
+     */
+    public static List<RemoteChange> decode(final InputStream in)
+            throws IOException {
+        final WireReader reader;
+        try {
+            reader = new WireReader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        try {
+            final List<RemoteChange> changes = new ArrayList<RemoteChange>();
+            for (RemoteChange change = reader.read(); change != null; change = reader
+                    .read()) {
+                changes.add(change);
+            }
+            return changes;
+        } finally {
+            reader.close();
+        }
+    }
+}
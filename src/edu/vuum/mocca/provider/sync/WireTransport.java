@@ -0,0 +1,52 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.http.auth.AuthenticationException;
+
+/**
+ * How a WireSyncRemote reaches the server: a request, with a WireFormat
+ * stream as its body or none, answered by a WireFormat stream. A page of
+ * changes carries its change token, and whether more follow, as response
+ * headers.
+ */
+public interface WireTransport {
+
+    // the requests
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_PUSH = "push";
+
+    // the parameters of a PATH_CHANGES request
+    public static final String PARAMETER_CHANGE_TOKEN = "token";
+    public static final String PARAMETER_LIMIT = "limit";
+
+    // the response headers of a PATH_CHANGES request
+    public static final String HEADER_CHANGE_TOKEN = "X-Change-Token";
+    public static final String HEADER_HAS_MORE = "X-Has-More";
+
+    /**
+     * Send a request, and open its response.
+     *
+     * @param path
+     *            PATH_CHANGES or PATH_PUSH
+     * @param authToken
+     * @param parameters
+     *            of the request, by name
+     * @param body
+     *            the request's WireFormat stream, or null
+     * @param responseHeaders
+     *            filled in with the response's HEADER_CHANGE_TOKEN and
+     *            HEADER_HAS_MORE, if it has them
+     * @return the response's WireFormat stream, closed by the caller
+     * @throws IOException
+     * @throws AuthenticationException
+     *             if the server refuses the authToken
+     */
+    public InputStream exchange(String path, String authToken,
+            Map<String, String> parameters, byte[] body,
+            Map<String, String> responseHeaders) throws IOException,
+            AuthenticationException;
+}
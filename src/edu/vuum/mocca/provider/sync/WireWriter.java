@@ -0,0 +1,216 @@
+
+package edu.vuum.mocca.provider.sync;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.TagsData;
+
+/**
+ * Streaming encoder of RemoteChange records in the WireFormat. Records are
+ * written as they are given, through a buffer, so a batch of any size takes
+ * the same memory (besides the interned strings).
+ */
+public class WireWriter implements Closeable {
+
+    private final OutputStream out;
+    // the compression under out, null if the stream is not compressed
+    private final GZIPOutputStream gzip;
+
+    // the previous record's fields, for the deltas
+    private long version = 0;
+    private long loginId = 0;
+    private long storyId = 0;
+    private long creationTime = 0;
+
+    // interned strings, by number
+    private final Map<String, Integer> interned = new HashMap<String, Integer>();
+
+    private boolean ended = false;
+
+    /**
+     * Constructor, writing the header of an uncompressed stream.
+     *
+     * @param out
+     *            where the stream goes, closed by close()
+     * @throws IOException
+     */
+    public WireWriter(OutputStream out) throws IOException {
+        this(out, false);
+    }
+
+    /**
+     * Constructor, writing the header.
+     *
+     * @param out
+     *            where the stream goes, closed by close()
+     * @param compress
+     *            to GZIP the stream, as it is written
+     * @throws IOException
+     */
+    public WireWriter(OutputStream out, boolean compress) throws IOException {
+        if (compress) {
+            gzip = new GZIPOutputStream(out, WireFormat.COMPRESSION_BUFFER);
+            this.out = new BufferedOutputStream(gzip);
+        } else {
+            gzip = null;
+            this.out = (out instanceof BufferedOutputStream) ? out
+                    : new BufferedOutputStream(out);
+        }
+        this.out.write(WireFormat.MAGIC);
+        this.out.write(WireFormat.VERSION);
+    }
+
+    /**
+     * Write a story, as an upsert at version 0.
+     *
+     * @param story
+     * @throws IOException
+     */
+    public void write(final StoryData story) throws IOException {
+        write(RemoteChange.upsertStory(story, 0));
+    }
+
+    /**
+     * Write a tag, as an upsert at version 0.
+     *
+     * @param tags
+     * @throws IOException
+     */
+    public void write(final TagsData tags) throws IOException {
+        write(RemoteChange.upsertTags(tags, 0));
+    }
+
+    /**
+     * Write a change.
+     *
+     * @param change
+     * @throws IOException
+     */
+    public void write(final RemoteChange change) throws IOException {
+        if (ended) {
+            throw new IllegalStateException("Stream already finished");
+        }
+        final boolean upsert = change.operation == RemoteChange.UPSERT;
+        if (change.entity == RemoteChange.STORY) {
+            out.write(upsert ? WireFormat.STORY_UPSERT
+                    : WireFormat.STORY_DELETE);
+        } else {
+            out.write(upsert ? WireFormat.TAGS_UPSERT : WireFormat.TAGS_DELETE);
+        }
+        writeSignedVarint(change.version - version);
+        version = change.version;
+        writeSignedVarint(change.loginId - loginId);
+        loginId = change.loginId;
+        writeSignedVarint(change.storyId - storyId);
+        storyId = change.storyId;
+
+        if (change.entity == RemoteChange.TAGS) {
+            writeInterned(change.tag);
+        } else if (upsert) {
+            final StoryData story = change.story;
+            writeString(story.title);
+            writeString(story.body);
+            writeString(story.audioLink);
+            writeString(story.videoLink);
+            writeString(story.imageName);
+            writeString(story.imageLink);
+            writeInterned(story.tags);
+            writeSignedVarint(story.creationTime - creationTime);
+            creationTime = story.creationTime;
+            writeSignedVarint(story.storyTime - story.creationTime);
+            writeFixed(WireFormat.toFixed(story.latitude));
+            writeFixed(WireFormat.toFixed(story.longitude));
+        }
+    }
+
+    /**
+     * Write the END of the stream (and of its compression) and flush it,
+     * leaving it open. Nothing may be written after it.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (!ended) {
+            out.write(WireFormat.END);
+            out.flush();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            ended = true;
+        }
+        out.flush();
+    }
+
+    /**
+     * finish(), then close the stream.
+     */
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private void writeSignedVarint(final long value) throws IOException {
+        writeVarint(WireFormat.zigzag(value));
+    }
+
+    private void writeFixed(final int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void writeString(final String value) throws IOException {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+        final byte[] bytes = utf8(value);
+        writeVarint(bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private void writeInterned(final String value) throws IOException {
+        if (value == null) {
+            writeVarint(WireFormat.INTERNED_NULL);
+            return;
+        }
+        final Integer number = interned.get(value);
+        if (number != null) {
+            writeVarint(WireFormat.INTERNED_FIRST + number.intValue());
+            return;
+        }
+        writeVarint(WireFormat.INTERNED_NEW);
+        writeString(value);
+        if (interned.size() < WireFormat.MAX_INTERNED) {
+            interned.put(value, Integer.valueOf(interned.size()));
+        }
+    }
+
+    private static byte[] utf8(final String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package edu.vuum.mocca.orm.test;
+
+import java.util.ArrayList;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+import edu.vuum.mocca.orm.MoocResolver;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.provider.MoocProvider;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * Benchmark of MoocResolver in its default ContentResolver mode against
+ * useProviderClient(): the same inserts, row ID lookups and queries through
+ * each, with the ratio of their times. The results are logged under the tag
+ * of this class.
+ */
+public class MoocResolverBenchmark extends ProviderTestCase2<MoocProvider> {
+
+	private static final String LOG_TAG = MoocResolverBenchmark.class
+			.getSimpleName();
+
+	private static final int INSERTS = 500;
+	private static final int LOOKUPS = 2000;
+	private static final int QUERIES = 500;
+	private static final int ROUNDS = 3;
+
+	public MoocResolverBenchmark() {
+		super(MoocProvider.class, MoocSchema.AUTHORITY);
+	}
+
+	public void testContentResolverAgainstProviderClient() throws Exception {
+		final MoocResolver resolver = new MoocResolver(getMockContext());
+		final MoocResolver clientResolver = new MoocResolver(getMockContext());
+		clientResolver.useProviderClient();
+		try {
+			// warm up both, and check they see the same rows
+			final long[] rowIDs = insertAll(resolver);
+			insertAll(clientResolver);
+			lookUpAll(resolver, rowIDs);
+			lookUpAll(clientResolver, rowIDs);
+			assertEquals(queryAll(resolver), queryAll(clientResolver));
+
+			long resolverNanos = 0;
+			long clientNanos = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				long started = System.nanoTime();
+				insertAll(resolver);
+				resolverNanos += log("insert", "ContentResolver", INSERTS,
+						System.nanoTime() - started);
+				started = System.nanoTime();
+				insertAll(clientResolver);
+				clientNanos += log("insert", "ProviderClient", INSERTS,
+						System.nanoTime() - started);
+
+				started = System.nanoTime();
+				lookUpAll(resolver, rowIDs);
+				resolverNanos += log("lookup", "ContentResolver", LOOKUPS,
+						System.nanoTime() - started);
+				started = System.nanoTime();
+				lookUpAll(clientResolver, rowIDs);
+				clientNanos += log("lookup", "ProviderClient", LOOKUPS,
+						System.nanoTime() - started);
+
+				started = System.nanoTime();
+				queryAll(resolver);
+				resolverNanos += log("query", "ContentResolver", QUERIES,
+						System.nanoTime() - started);
+				started = System.nanoTime();
+				queryAll(clientResolver);
+				clientNanos += log("query", "ProviderClient", QUERIES,
+						System.nanoTime() - started);
+			}
+			Log.i(LOG_TAG, "ProviderClient/ContentResolver time ratio: "
+					+ ((double) clientNanos / Math.max(1, resolverNanos)));
+		} finally {
+			clientResolver.release();
+			resolver.release();
+		}
+	}
+
+	private static long log(final String what, final String mode,
+			final int calls, final long nanos) {
+		Log.i(LOG_TAG, what + " via " + mode + ": " + (nanos / 1000 / calls)
+				+ " us/call");
+		return nanos;
+	}
+
+	/*
+	 * Insert INSERTS stories one at a time, returning their row IDs.
+	 */
+	private static long[] insertAll(final MoocResolver resolver)
+			throws Exception {
+		final long[] rowIDs = new long[INSERTS];
+		for (int i = 0; i < INSERTS; i++) {
+			final Uri uri = resolver.insert(new StoryData(1 + i % 4, 0,
+					"Story " + i, "body", null, null, null, null, null,
+					1000 + i, 1000 + i, 36.16, -86.78));
+			assertNotNull(uri);
+			rowIDs[i] = ContentUris.parseId(uri);
+		}
+		return rowIDs;
+	}
+
+	private static void lookUpAll(final MoocResolver resolver,
+			final long[] rowIDs) throws Exception {
+		for (int i = 0; i < LOOKUPS; i++) {
+			assertNotNull(resolver.getStoryDataViaRowID(rowIDs[i
+					% rowIDs.length]));
+		}
+	}
+
+	/*
+	 * QUERIES small queries, by login ID, returning the rows found in all.
+	 */
+	private static int queryAll(final MoocResolver resolver) throws Exception {
+		int rows = 0;
+		for (int i = 0; i < QUERIES; i++) {
+			final ArrayList<StoryData> stories = resolver.queryStoryData(null,
+					MoocSchema.Story.Cols.LOGIN_ID + " = ? AND "
+							+ MoocSchema.Story.Cols.STORY_TIME + " = ?",
+					new String[] { String.valueOf(1 + i % 4),
+							String.valueOf(1000 + i % INSERTS) }, null);
+			rows += stories.size();
+		}
+		return rows;
+	}
+}
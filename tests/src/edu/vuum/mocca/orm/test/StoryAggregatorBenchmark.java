@@ -0,0 +1,139 @@
+
+package edu.vuum.mocca.orm.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import android.database.MatrixCursor;
+import android.util.Log;
+import edu.vuum.mocca.orm.StoryAggregator;
+import edu.vuum.mocca.orm.StoryAggregator.Counts;
+import edu.vuum.mocca.orm.StoryAggregator.TagReducer;
+import edu.vuum.mocca.orm.StorySnapshot;
+import edu.vuum.mocca.orm.StorySnapshot.Histogram;
+import junit.framework.TestCase;
+
+/**
+ * Checks that StoryAggregator gives the same results on any number of
+ * threads, and benchmarks how the aggregates scale from 1 to N threads (N
+ * being the number of processors, at least 4). The times are logged under
+ * the tag of this class.
+ */
+public class StoryAggregatorBenchmark extends TestCase {
+
+	private static final String LOG_TAG = StoryAggregatorBenchmark.class
+			.getSimpleName();
+
+	private static final int ROWS = 200000;
+	private static final int ROUNDS = 5;
+
+	private static final String[] TAGS = { "park", "beach", "family",
+			"school", "trip", "food", "music", "work" };
+
+	private StorySnapshot snapshot;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		snapshot = snapshot(ROWS);
+	}
+
+	public void testPerTagCountsTagListNotTags() throws Exception {
+		final MatrixCursor cursor = new MatrixCursor(StorySnapshot.PROJECTION);
+		// TAGS (free-form) and TAG_LIST (tags_table) disagree: TAG_LIST counts
+		cursor.addRow(row(1, "park, beach", "park"));
+		cursor.addRow(row(2, "park", "park,beach"));
+		cursor.addRow(row(3, "park", null));
+		final StorySnapshot small = StorySnapshot.fromCursor(cursor);
+		cursor.close();
+
+		final TagReducer perTag = StoryAggregator.perTag(small);
+		final Counts counts = new StoryAggregator(1).aggregate(small, perTag);
+		assertEquals(2, counts.size());
+		for (long key = 0; key < counts.size(); key++) {
+			final String tag = perTag.getTag(key);
+			assertEquals(tag, "park".equals(tag) ? 2 : 1, counts.get(key));
+		}
+	}
+
+	public void testScaling() throws Exception {
+		final int maxThreads = Math.max(4, Runtime.getRuntime()
+				.availableProcessors());
+		Histogram expected = null;
+		long serialNanos = 0;
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			final StoryAggregator aggregator = new StoryAggregator(threads);
+			try {
+				// warm up, and check the result
+				final Histogram histogram = aggregateAll(aggregator);
+				if (expected == null) {
+					expected = histogram;
+				} else {
+					assertTrue(Arrays.equals(expected.keys, histogram.keys));
+					assertTrue(Arrays.equals(expected.counts, histogram.counts));
+				}
+
+				final long started = System.nanoTime();
+				for (int i = 0; i < ROUNDS; i++) {
+					aggregateAll(aggregator);
+				}
+				final long nanos = (System.nanoTime() - started) / ROUNDS;
+				if (threads == 1) {
+					serialNanos = nanos;
+				}
+				Log.i(LOG_TAG, "rows=" + ROWS + " threads=" + threads + ": "
+						+ (nanos / 1000000) + " ms, speedup "
+						+ ((double) serialNanos / nanos));
+			} finally {
+				aggregator.shutdown();
+			}
+		}
+	}
+
+	/*
+	 * The aggregates per tag, per login and per geo cell, the first as a
+	 * Histogram to compare runs with.
+	 */
+	private Histogram aggregateAll(final StoryAggregator aggregator)
+			throws InterruptedException {
+		final Counts perTag = aggregator.aggregate(snapshot,
+				StoryAggregator.perTag(snapshot));
+		aggregator.aggregate(snapshot, StoryAggregator.perLogin());
+		aggregator.aggregate(snapshot, StoryAggregator.perGeoCell(0.01));
+		return perTag.toHistogram();
+	}
+
+	private static StorySnapshot snapshot(final int rows) {
+		final Random random = new Random(17);
+		final MatrixCursor cursor = new MatrixCursor(StorySnapshot.PROJECTION,
+				rows);
+		for (int i = 0; i < rows; i++) {
+			final StringBuilder tagList = new StringBuilder();
+			for (String tag : TAGS) {
+				if (random.nextInt(4) == 0) {
+					tagList.append((tagList.length() > 0) ? "," : "").append(
+							tag);
+				}
+			}
+			final Object[] row = row(i + 1, null,
+					(tagList.length() > 0) ? tagList.toString() : null);
+			row[1] = Long.valueOf(random.nextInt(50));
+			row[7] = Double.valueOf(36 + random.nextDouble());
+			row[8] = Double.valueOf(-87 + random.nextDouble());
+			cursor.addRow(row);
+		}
+		final StorySnapshot rValue = StorySnapshot.fromCursor(cursor);
+		cursor.close();
+		return rValue;
+	}
+
+	/*
+	 * A row in StorySnapshot.PROJECTION order.
+	 */
+	private static Object[] row(final long id, final String tags,
+			final String tagList) {
+		return new Object[] { Long.valueOf(id), Long.valueOf(1),
+				Long.valueOf(id), tags, tagList, Long.valueOf(id * 1000),
+				Long.valueOf(id * 1000), Double.valueOf(0), Double.valueOf(0) };
+	}
+}
@@ -0,0 +1,176 @@
+
+package edu.vuum.mocca.orm.test;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+import edu.vuum.mocca.orm.StoryCreator;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.StoryRowMapper;
+import edu.vuum.mocca.provider.MoocSchema;
+import junit.framework.TestCase;
+
+/**
+ * Benchmark of mapping cursor rows to StoryData with the column indices
+ * resolved once per cursor (StoryRowMapper), against looking all 14 up again
+ * for every row (a copy of the former StoryCreator.getStoryDataFromCursor).
+ * The times are logged under the tag of this class.
+ */
+public class StoryRowMapperBenchmark extends TestCase {
+
+	private static final String LOG_TAG = StoryRowMapperBenchmark.class
+			.getSimpleName();
+
+	private static final int ROWS = 5000;
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 10;
+
+	public void testMapperMatchesPerRowLookup() {
+		final Cursor cursor = stories(10);
+		try {
+			final StoryRowMapper mapper = new StoryRowMapper(cursor);
+			while (cursor.moveToNext()) {
+				assertEquals(getStoryDataPerRowLookup(cursor).toString(),
+						mapper.map().toString());
+				assertEquals(StoryCreator.getStoryDataFromCursor(cursor)
+						.toString(), mapper.map().toString());
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testPartialProjectionDefaults() {
+		final MatrixCursor cursor = new MatrixCursor(new String[] {
+				MoocSchema.Story.Cols.LOGIN_ID, MoocSchema.Story.Cols.TITLE });
+		cursor.addRow(new Object[] { Long.valueOf(7), "title" });
+		try {
+			assertTrue(cursor.moveToFirst());
+			final StoryData story = new StoryRowMapper(cursor).map();
+			assertEquals(7, story.loginId);
+			assertEquals("title", story.title);
+			// left out of the projection
+			assertEquals(-1, story.KEY_ID);
+			assertEquals(0, story.storyId);
+			assertEquals(0, story.creationTime);
+			assertEquals(0, story.storyTime);
+			assertEquals(0.0, story.latitude, 0);
+			assertEquals(0.0, story.longitude, 0);
+			assertNull(story.body);
+			assertNull(story.audioLink);
+			assertNull(story.videoLink);
+			assertNull(story.imageName);
+			assertNull(story.imageLink);
+			assertNull(story.tags);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	public void testMappingSpeed() {
+		final Cursor cursor = stories(ROWS);
+		try {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				mapOnce(cursor);
+				lookUpPerRow(cursor);
+			}
+			long once = 0;
+			long perRow = 0;
+			for (int i = 0; i < ROUNDS; i++) {
+				long started = System.nanoTime();
+				mapOnce(cursor);
+				once += System.nanoTime() - started;
+				started = System.nanoTime();
+				lookUpPerRow(cursor);
+				perRow += System.nanoTime() - started;
+			}
+			Log.i(LOG_TAG, "rows=" + ROWS + " indices once: "
+					+ (once / ROUNDS / ROWS) + " ns/row, per row: "
+					+ (perRow / ROUNDS / ROWS) + " ns/row");
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static long mapOnce(final Cursor cursor) {
+		long sum = 0;
+		cursor.moveToPosition(-1);
+		final StoryRowMapper mapper = new StoryRowMapper(cursor);
+		while (cursor.moveToNext()) {
+			sum += mapper.map().storyId;
+		}
+		return sum;
+	}
+
+	private static long lookUpPerRow(final Cursor cursor) {
+		long sum = 0;
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext()) {
+			sum += getStoryDataPerRowLookup(cursor).storyId;
+		}
+		return sum;
+	}
+
+	/*
+	 * StoryCreator.getStoryDataFromCursor() as it was before StoryRowMapper:
+	 * the 14 column indices looked up again for each row.
+	 */
+	private static StoryData getStoryDataPerRowLookup(Cursor cursor) {
+
+		long rowID = cursor.getLong(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.ID));
+		long loginId = cursor.getLong(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.LOGIN_ID));
+		long storyId = cursor.getLong(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.STORY_ID));
+		String title = cursor.getString(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.TITLE));
+		String body = cursor.getString(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.BODY));
+		String audioLink = cursor.getString(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.AUDIO_LINK));
+		String videoLink = cursor.getString(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.VIDEO_LINK));
+		String imageName = cursor.getString(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.IMAGE_NAME));
+		String imageMetaData = cursor.getString(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.IMAGE_LINK));
+		String tags = cursor.getString(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.TAGS));
+		long creationTime = cursor.getLong(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.CREATION_TIME));
+		long storyTime = cursor.getLong(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.STORY_TIME));
+		double latitude = cursor.getDouble(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.LATITUDE));
+		double longitude = cursor.getDouble(cursor
+				.getColumnIndex(MoocSchema.Story.Cols.LONGITUDE));
+
+		// construct the returned object
+		StoryData rValue = new StoryData(rowID, loginId, storyId, title, body,
+				audioLink, videoLink, imageName, imageMetaData, tags,
+				creationTime, storyTime, latitude, longitude);
+
+		return rValue;
+	}
+
+	/*
+	 * A cursor of 'rows' stories, with every StoryData column.
+	 */
+	private static Cursor stories(final int rows) {
+		final MatrixCursor cursor = new MatrixCursor(
+				MoocSchema.Story.ALL_COLUMN_NAMES, rows);
+		for (int i = 0; i < rows; i++) {
+			final StoryData story = new StoryData(i + 1, 1, i, "title " + i,
+					"body of story " + i, null, null, "image" + i,
+					"content://image/" + i, "park,beach", 1000L * i,
+					1000L * i, 36.1 + i * 1e-4, -86.8);
+			cursor.addRow(new Object[] { story.KEY_ID, story.loginId,
+					story.storyId, story.title, story.body, story.audioLink,
+					story.videoLink, story.imageName, story.imageLink,
+					story.tags, story.creationTime, story.storyTime,
+					story.latitude, story.longitude });
+		}
+		return cursor;
+	}
+}
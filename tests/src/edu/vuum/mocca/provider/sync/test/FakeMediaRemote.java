@@ -0,0 +1,209 @@
+
+package edu.vuum.mocca.provider.sync.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.auth.AuthenticationException;
+
+import edu.vuum.mocca.provider.MoocMediaStore;
+import edu.vuum.mocca.provider.sync.MediaRemote;
+
+/**
+ * A MediaRemote keeping the server's blobs in a MoocMediaStore of its own,
+ * and the pieces of unfinished uploads in memory. dropConnectionAfter() has
+ * the connection drop in the middle of a later piece, as a flaky network
+ * would: the piece is lost, those acknowledged before are kept. The blobs
+ * asked about are logged, in order.
+ */
+public class FakeMediaRemote implements MediaRemote {
+
+    private final MoocMediaStore store;
+    // the pieces acknowledged so far, by hash, of blobs not complete yet
+    private final Map<String, ByteArrayOutputStream> uploads = new HashMap<String, ByteArrayOutputStream>();
+
+    // bytes the connection carries before it drops, or -1 for no drop
+    private long dropAfter = -1;
+    private long bytesReceived = 0;
+    private long bytesSent = 0;
+    private long lastDownloadOffset = -1;
+    // the hash of each getUploadOffset() and openDownload()
+    private final List<String> requests = new ArrayList<String>();
+
+    /**
+     * Constructor
+     *
+     * @param dir
+     *            where the server's blobs are kept, not the app's files
+     *            directory
+     */
+    public FakeMediaRemote(File dir) {
+        store = new MoocMediaStore(dir);
+    }
+
+    public synchronized long getUploadOffset(final String authToken,
+            final String hash) throws IOException, AuthenticationException {
+        checkAuthToken(authToken);
+        requests.add(hash);
+        return offsetOf(hash);
+    }
+
+    public synchronized void uploadChunk(final String authToken,
+            final String hash, final long offset, final byte[] buffer,
+            final int count, final boolean last) throws IOException,
+            AuthenticationException {
+        checkAuthToken(authToken);
+        if (offset != offsetOf(hash)) {
+            throw new IOException("Piece of " + hash + " at " + offset
+                    + ", expected at " + offsetOf(hash));
+        }
+        carry(count);
+        ByteArrayOutputStream upload = uploads.get(hash);
+        if (upload == null) {
+            upload = new ByteArrayOutputStream();
+            uploads.put(hash, upload);
+        }
+        upload.write(buffer, 0, count);
+        bytesReceived += count;
+        if (last) {
+            uploads.remove(hash);
+            final String stored = store.put(new ByteArrayInputStream(upload
+                    .toByteArray()));
+            if (!stored.equals(hash)) {
+                throw new IOException("Content of " + hash + " has hash "
+                        + stored);
+            }
+        }
+    }
+
+    public synchronized InputStream openDownload(final String authToken,
+            final String hash, final long offset) throws IOException,
+            AuthenticationException {
+        checkAuthToken(authToken);
+        requests.add(hash);
+        if (!store.contains(hash)) {
+            throw new FileNotFoundException(hash);
+        }
+        lastDownloadOffset = offset;
+        final InputStream in = new FileInputStream(store.fileFor(hash));
+        long skipped = 0;
+        while (skipped < offset) {
+            final long count = in.skip(offset - skipped);
+            if (count <= 0) {
+                in.close();
+                throw new IOException("Offset " + offset + " past the end of "
+                        + hash);
+            }
+            skipped += count;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final byte[] one = new byte[1];
+                return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset,
+                    final int count) throws IOException {
+                synchronized (FakeMediaRemote.this) {
+                    final int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        carry(read);
+                        bytesSent += read;
+                    }
+                    return read;
+                }
+            }
+        };
+    }
+
+    /**
+     * Have the connection drop once it has carried some more bytes, whether
+     * sent or received.
+     *
+     * @param bytes
+     */
+    public synchronized void dropConnectionAfter(final long bytes) {
+        dropAfter = bytes;
+    }
+
+    /**
+     * Store a blob on the server, as another device would have uploaded it.
+     *
+     * @param content
+     * @return its hash
+     * @throws IOException
+     */
+    public synchronized String putBlob(final byte[] content)
+            throws IOException {
+        return store.put(new ByteArrayInputStream(content));
+    }
+
+    /**
+     * @param hash
+     * @return the server's file of the blob, if it has all of it
+     */
+    public File fileFor(final String hash) {
+        return store.fileFor(hash);
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized long getLastDownloadOffset() {
+        return lastDownloadOffset;
+    }
+
+    /**
+     * @return the blobs uploads and downloads were asked for, in order
+     */
+    public synchronized List<String> getRequests() {
+        return new ArrayList<String>(requests);
+    }
+
+    private long offsetOf(final String hash) {
+        if (store.contains(hash)) {
+            return BLOB_COMPLETE;
+        }
+        final ByteArrayOutputStream upload = uploads.get(hash);
+        return (upload == null) ? 0 : upload.size();
+    }
+
+    /*
+     * Count bytes carried by the connection, dropping it (once) if it carried
+     * its share.
+     */
+    private void carry(final int count) throws IOException {
+        if (dropAfter < 0) {
+            return;
+        }
+        if (count > dropAfter) {
+            dropAfter = -1;
+            throw new IOException("Connection dropped");
+        }
+        dropAfter -= count;
+    }
+
+    private static void checkAuthToken(final String authToken)
+            throws AuthenticationException {
+        if (!FakeSyncRemote.AUTH_TOKEN.equals(authToken)) {
+            throw new AuthenticationException("Unknown auth token");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+
+package edu.vuum.mocca.provider.sync.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.auth.AuthenticationException;
+
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.TagsData;
+import edu.vuum.mocca.provider.MoocSchema;
+import edu.vuum.mocca.provider.sync.ChangePage;
+import edu.vuum.mocca.provider.sync.RemoteChange;
+import edu.vuum.mocca.provider.sync.SyncRemote;
+
+/**
+ * An in-memory SyncRemote: the server's rows by key, and a log of every
+ * change made to them, the change token being a position in the log. Tests
+ * change the server's rows directly, as another device would, with
+ * putStory(), putTags() and deleteStory().
+ */
+public class FakeSyncRemote implements SyncRemote {
+
+    public static final String AUTH_TOKEN = "fake-auth-token";
+
+    // the STORY_IDs the server gives new stories start after this
+    private static final long FIRST_STORY_ID = 1000;
+
+    // the current state of each row (an UPSERT or a DELETE), by key
+    private final Map<String, RemoteChange> rows = new HashMap<String, RemoteChange>();
+    // every change, in order
+    private final List<RemoteChange> log = new ArrayList<RemoteChange>();
+    private long lastVersion = 0;
+    private long lastStoryId = FIRST_STORY_ID;
+    private int pushCount = 0;
+
+    public synchronized ChangePage getChanges(final String authToken,
+            final String changeToken, final int limit) throws IOException,
+            AuthenticationException {
+        checkAuthToken(authToken);
+        final int start = (changeToken == null) ? 0 : Integer
+                .parseInt(changeToken);
+        final int end = Math.min(log.size(), start + limit);
+        return new ChangePage(new ArrayList<RemoteChange>(log.subList(start,
+                end)), String.valueOf(end), end < log.size());
+    }
+
+    public synchronized List<RemoteChange> pushChanges(
+            final String authToken, final List<RemoteChange> changes)
+            throws IOException, AuthenticationException {
+        checkAuthToken(authToken);
+        pushCount++;
+        final List<RemoteChange> results = new ArrayList<RemoteChange>();
+        for (RemoteChange change : changes) {
+            if (MoocSchema.Story.isLocalStoryId(change.storyId)) {
+                if (change.entity != RemoteChange.STORY
+                        || change.operation != RemoteChange.UPSERT) {
+                    throw new IOException("Provisional STORY_ID in " + change);
+                }
+                final StoryData story = change.story.clone();
+                story.storyId = ++lastStoryId;
+                results.add(apply(RemoteChange.upsertStory(story, 0)));
+                continue;
+            }
+            final RemoteChange current = rows.get(change.getKey());
+            final long version = (current == null) ? 0 : current.version;
+            if (change.version != version) {
+                // the server wins; a row it never had is as if deleted
+                results.add((current != null) ? current : deleted(change,
+                        change.version));
+            } else {
+                results.add(apply(change));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Add or replace a story, as another device would.
+     *
+     * @param story
+     * @return the server's version of it
+     */
+    public synchronized long putStory(final StoryData story) {
+        return apply(RemoteChange.upsertStory(story.clone(), 0)).version;
+    }
+
+    /**
+     * Add a tag, as another device would.
+     *
+     * @param tags
+     * @return the server's version of it
+     */
+    public synchronized long putTags(final TagsData tags) {
+        return apply(RemoteChange.upsertTags(tags.clone(), 0)).version;
+    }
+
+    /**
+     * Delete a story, as another device would.
+     *
+     * @param loginId
+     * @param storyId
+     */
+    public synchronized void deleteStory(final long loginId,
+            final long storyId) {
+        apply(RemoteChange.deleteStory(loginId, storyId, 0));
+    }
+
+    /**
+     * @param loginId
+     * @param storyId
+     * @return the server's story, or null if it has none (or deleted it)
+     */
+    public synchronized StoryData getStory(final long loginId,
+            final long storyId) {
+        final RemoteChange row = rows.get(RemoteChange.deleteStory(loginId,
+                storyId, 0).getKey());
+        return (row == null) ? null : row.story;
+    }
+
+    /**
+     * @param loginId
+     * @param storyId
+     * @param tag
+     * @return the server's tag, or null if it has none (or deleted it)
+     */
+    public synchronized TagsData getTags(final long loginId,
+            final long storyId, final String tag) {
+        final RemoteChange row = rows.get(RemoteChange.deleteTags(loginId,
+                storyId, tag, 0).getKey());
+        return (row == null) ? null : row.tags;
+    }
+
+    /**
+     * @return the number of stories the server has
+     */
+    public synchronized int getStoryCount() {
+        int count = 0;
+        for (RemoteChange row : rows.values()) {
+            if (row.entity == RemoteChange.STORY
+                    && row.operation == RemoteChange.UPSERT) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of pushChanges() calls so far
+     */
+    public synchronized int getPushCount() {
+        return pushCount;
+    }
+
+    /*
+     * Make a change at the next version, logging it.
+     */
+    private RemoteChange apply(final RemoteChange change) {
+        final RemoteChange applied = change.withVersion(++lastVersion);
+        rows.put(applied.getKey(), applied);
+        log.add(applied);
+        return applied;
+    }
+
+    private static RemoteChange deleted(final RemoteChange change,
+            final long version) {
+        return (change.entity == RemoteChange.STORY) ? RemoteChange
+                .deleteStory(change.loginId, change.storyId, version)
+                : RemoteChange.deleteTags(change.loginId, change.storyId,
+                        change.tag, version);
+    }
+
+    private static void checkAuthToken(final String authToken)
+            throws AuthenticationException {
+        if (!AUTH_TOKEN.equals(authToken)) {
+            throw new AuthenticationException("Unknown auth token "
+                    + authToken);
+        }
+    }
+}
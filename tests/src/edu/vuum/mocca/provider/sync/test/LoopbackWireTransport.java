@@ -0,0 +1,94 @@
+
+package edu.vuum.mocca.provider.sync.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.auth.AuthenticationException;
+
+import edu.vuum.mocca.provider.sync.ChangePage;
+import edu.vuum.mocca.provider.sync.RemoteChange;
+import edu.vuum.mocca.provider.sync.SyncRemote;
+import edu.vuum.mocca.provider.sync.WireSyncRemote;
+import edu.vuum.mocca.provider.sync.WireTransport;
+
+/**
+ * A WireTransport answering in process, as a server would: it decodes each
+ * request, hands it to a SyncRemote (e.g. a FakeSyncRemote), and encodes the
+ * answer. It counts the bytes each way, and the requests sent uncompressed.
+ */
+public class LoopbackWireTransport implements WireTransport {
+
+    private final SyncRemote server;
+    private final boolean compress;
+
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+    private int uncompressedRequests = 0;
+
+    /**
+     * Constructor
+     *
+     * @param server
+     *            what answers the requests
+     * @param compress
+     *            to GZIP the answers
+     */
+    public LoopbackWireTransport(SyncRemote server, boolean compress) {
+        this.server = server;
+        this.compress = compress;
+    }
+
+    public InputStream exchange(final String path, final String authToken,
+            final Map<String, String> parameters, final byte[] body,
+            final Map<String, String> responseHeaders) throws IOException,
+            AuthenticationException {
+        final List<RemoteChange> answer;
+        if (PATH_CHANGES.equals(path)) {
+            if (body != null) {
+                throw new IOException("A body sent to " + path);
+            }
+            final ChangePage page = server.getChanges(authToken,
+                    parameters.get(PARAMETER_CHANGE_TOKEN),
+                    Integer.parseInt(parameters.get(PARAMETER_LIMIT)));
+            responseHeaders.put(HEADER_CHANGE_TOKEN, page.nextToken);
+            responseHeaders.put(HEADER_HAS_MORE, String.valueOf(page.hasMore));
+            answer = page.changes;
+        } else if (PATH_PUSH.equals(path)) {
+            bytesSent += body.length;
+            if (!isCompressed(body)) {
+                uncompressedRequests++;
+            }
+            answer = server.pushChanges(authToken,
+                    WireSyncRemote.decode(new ByteArrayInputStream(body)));
+        } else {
+            throw new IOException("No such path: " + path);
+        }
+        final byte[] response = WireSyncRemote.encode(answer, compress);
+        bytesReceived += response.length;
+        return new ByteArrayInputStream(response);
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public int getUncompressedRequests() {
+        return uncompressedRequests;
+    }
+
+    /*
+     * Whether a body starts with the GZIP magic, 1f 8b.
+     */
+    private static boolean isCompressed(final byte[] body) {
+        return body.length >= 2 && (body[0] & 0xff) == 0x1f
+                && (body[1] & 0xff) == 0x8b;
+    }
+}
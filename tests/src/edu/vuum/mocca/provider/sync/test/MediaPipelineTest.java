@@ -0,0 +1,188 @@
+
+package edu.vuum.mocca.provider.sync.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.provider.MoocMediaStore;
+import edu.vuum.mocca.provider.MoocProvider;
+import edu.vuum.mocca.provider.MoocSchema;
+import edu.vuum.mocca.provider.sync.MediaPipeline;
+import edu.vuum.mocca.provider.sync.MediaRemote;
+import edu.vuum.mocca.provider.sync.MediaTransfer;
+
+/**
+ * The blobs a MediaPipeline moves between a real MoocProvider and a
+ * FakeMediaRemote: in LINKED_AS order, each in the right direction (an empty
+ * stored blob too), and each once; a blob linked while it runs too.
+ */
+public class MediaPipelineTest extends ProviderTestCase2<MoocProvider> {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int PAGE_SIZE = 2;
+
+    private File serverDir;
+    private MoocMediaStore store;
+    private FakeMediaRemote remote;
+
+    public MediaPipelineTest() {
+        super(MoocProvider.class, MoocSchema.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // the directory the provider's store uses
+        store = new MoocMediaStore(getMockContext().getFilesDir());
+        serverDir = new File(getContext().getCacheDir(),
+                MediaPipelineTest.class.getSimpleName());
+        delete(serverDir);
+        remote = new FakeMediaRemote(serverDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(serverDir);
+        super.tearDown();
+    }
+
+    public void testBlobsMovedByPriorityAndDirection() throws Exception {
+        final Random random = new Random(37);
+        // linked as a video only, stored here, and empty
+        final String other = store.put(new ByteArrayInputStream(new byte[0]));
+        registerMedia(other);
+        insertStory(null, MoocSchema.Media.uriForHash(other).toString(), null);
+        // linked as an audio, on the server only
+        final byte[] audioContent = new byte[3 * CHUNK_SIZE];
+        random.nextBytes(audioContent);
+        final String audio = remote.putBlob(audioContent);
+        insertStory(MoocSchema.Media.uriForHash(audio).toString(), null, null);
+        // linked as an image, stored here
+        final byte[] imageContent = new byte[2 * CHUNK_SIZE + 1];
+        random.nextBytes(imageContent);
+        final String image = store.put(new ByteArrayInputStream(imageContent));
+        registerMedia(image);
+        insertStory(null, null, MoocSchema.Media.uriForHash(image).toString());
+
+        assertEquals(MoocSchema.Media.LINKED_AS_IMAGE, linkedAs(image));
+        assertEquals(MoocSchema.Media.LINKED_AS_AUDIO, linkedAs(audio));
+        assertEquals(MoocSchema.Media.LINKED_AS_OTHER, linkedAs(other));
+
+        assertEquals(3, runPipeline().stats.numEntries);
+
+        // one at a time: by priority, not by _id
+        assertEquals(Arrays.asList(image, audio, other), remote.getRequests());
+        assertEquals(MediaRemote.BLOB_COMPLETE, remote.getUploadOffset(
+                FakeSyncRemote.AUTH_TOKEN, image));
+        assertEquals(MediaRemote.BLOB_COMPLETE, remote.getUploadOffset(
+                FakeSyncRemote.AUTH_TOKEN, other));
+        assertTrue(store.contains(audio));
+        assertEquals(audioContent.length, store.fileFor(audio).length());
+        assertEquals(0, count(MoocSchema.Media.Cols.UPLOADED + " = 0"));
+
+        // nothing left to move
+        final int requests = remote.getRequests().size();
+        assertEquals(0, runPipeline().stats.numEntries);
+        assertEquals(requests, remote.getRequests().size());
+    }
+
+    public void testBlobLinkedLaterIsMoved() throws Exception {
+        final Random random = new Random(41);
+        // registered first, so with the lower _id, but not linked yet
+        final byte[] laterContent = new byte[CHUNK_SIZE];
+        random.nextBytes(laterContent);
+        final String later = store.put(new ByteArrayInputStream(laterContent));
+        registerMedia(later);
+        final byte[] firstContent = new byte[CHUNK_SIZE];
+        random.nextBytes(firstContent);
+        final String first = store.put(new ByteArrayInputStream(firstContent));
+        registerMedia(first);
+        insertStory(null, null, MoocSchema.Media.uriForHash(first).toString());
+
+        final SyncResult syncResult = new SyncResult();
+        final MediaPipeline pipeline = newPipeline();
+        pipeline.start();
+        // pending now, below the _id the first read may have got to
+        insertStory(null, null, MoocSchema.Media.uriForHash(later).toString());
+        pipeline.poke();
+        pipeline.finish(syncResult);
+        assertFalse(syncResult.databaseError);
+
+        assertEquals(2, syncResult.stats.numEntries);
+        assertEquals(MediaRemote.BLOB_COMPLETE, remote.getUploadOffset(
+                FakeSyncRemote.AUTH_TOKEN, later));
+        assertEquals(0, count(MoocSchema.Media.Cols.UPLOADED + " = 0"));
+    }
+
+    private MediaPipeline newPipeline() {
+        return new MediaPipeline(getMockContentResolver(), new MediaTransfer(
+                store, remote, CHUNK_SIZE), FakeSyncRemote.AUTH_TOKEN,
+                PAGE_SIZE, 1, 1);
+    }
+
+    private SyncResult runPipeline() throws Exception {
+        final SyncResult syncResult = new SyncResult();
+        final MediaPipeline pipeline = newPipeline();
+        pipeline.start();
+        pipeline.finish(syncResult);
+        assertFalse(syncResult.databaseError);
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        return syncResult;
+    }
+
+    private void registerMedia(final String hash) {
+        final ContentValues values = new ContentValues();
+        values.put(MoocSchema.Media.Cols.HASH, hash);
+        assertNotNull(getMockContentResolver().insert(
+                MoocSchema.Media.CONTENT_URI, values));
+    }
+
+    private void insertStory(final String audioLink, final String videoLink,
+            final String imageLink) {
+        getMockContentResolver().insert(
+                MoocSchema.Story.CONTENT_URI,
+                new StoryData(1, 0, "title", "body", audioLink, videoLink,
+                        null, imageLink, null, 1000, 1000, 0, 0).getCV());
+    }
+
+    private int linkedAs(final String hash) {
+        final Cursor cursor = getMockContentResolver().query(
+                MoocSchema.Media.CONTENT_URI,
+                new String[] { MoocSchema.Media.Cols.LINKED_AS },
+                MoocSchema.Media.Cols.HASH + " = ?", new String[] { hash },
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int count(final String selection) {
+        final Cursor cursor = getMockContentResolver().query(
+                MoocSchema.Media.CONTENT_URI, null, selection, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
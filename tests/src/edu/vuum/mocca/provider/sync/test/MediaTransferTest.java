@@ -0,0 +1,133 @@
+
+package edu.vuum.mocca.provider.sync.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import edu.vuum.mocca.provider.MoocMediaStore;
+import edu.vuum.mocca.provider.sync.MediaRemote;
+import edu.vuum.mocca.provider.sync.MediaTransfer;
+
+/**
+ * Transfers of a blob through a MediaTransfer and a FakeMediaRemote whose
+ * connection drops in the middle of a chunk: the next transfer goes on from
+ * the last chunk the receiving side kept, and sends nothing twice.
+ */
+public class MediaTransferTest extends AndroidTestCase {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int BLOB_SIZE = 10 * CHUNK_SIZE + 1000;
+
+    private File dir;
+    private MoocMediaStore store;
+    private FakeMediaRemote remote;
+    private MediaTransfer transfer;
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(getContext().getCacheDir(),
+                MediaTransferTest.class.getSimpleName());
+        delete(dir);
+        store = new MoocMediaStore(new File(dir, "local"));
+        remote = new FakeMediaRemote(new File(dir, "server"));
+        transfer = new MediaTransfer(store, remote, CHUNK_SIZE);
+        content = new byte[BLOB_SIZE];
+        new Random(31).nextBytes(content);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(dir);
+        super.tearDown();
+    }
+
+    public void testUploadResumesAfterDroppedChunk() throws Exception {
+        final String hash = store.put(new ByteArrayInputStream(content));
+        remote.dropConnectionAfter(3 * CHUNK_SIZE + 100);
+        try {
+            transfer.upload(FakeSyncRemote.AUTH_TOKEN, hash);
+            fail("upload went through a dropped connection");
+        } catch (IOException e) {
+            // expected
+        }
+        // the checkpoint: the chunks the server acknowledged
+        assertEquals(3 * CHUNK_SIZE,
+                remote.getUploadOffset(FakeSyncRemote.AUTH_TOKEN, hash));
+
+        assertEquals(BLOB_SIZE - 3 * CHUNK_SIZE,
+                transfer.upload(FakeSyncRemote.AUTH_TOKEN, hash));
+        assertEquals(MediaRemote.BLOB_COMPLETE,
+                remote.getUploadOffset(FakeSyncRemote.AUTH_TOKEN, hash));
+        assertEquals(BLOB_SIZE, remote.getBytesReceived());
+        assertContent(remote.fileFor(hash));
+
+        // the server has it all: nothing is sent
+        assertEquals(0, transfer.upload(FakeSyncRemote.AUTH_TOKEN, hash));
+    }
+
+    public void testDownloadResumesAfterDroppedChunk() throws Exception {
+        final String hash = remote.putBlob(content);
+        remote.dropConnectionAfter(5 * CHUNK_SIZE + 10);
+        try {
+            transfer.download(FakeSyncRemote.AUTH_TOKEN, hash);
+            fail("download went through a dropped connection");
+        } catch (IOException e) {
+            // expected
+        }
+        // the checkpoint: the chunks kept in the partial file
+        assertFalse(store.contains(hash));
+        assertEquals(5 * CHUNK_SIZE, store.partialFileFor(hash).length());
+
+        assertTrue(transfer.download(FakeSyncRemote.AUTH_TOKEN, hash));
+        assertEquals(5 * CHUNK_SIZE, remote.getLastDownloadOffset());
+        assertTrue(store.contains(hash));
+        assertContent(store.fileFor(hash));
+        assertFalse(store.partialFileFor(hash).exists());
+    }
+
+    public void testEmptyBlob() throws Exception {
+        content = new byte[0];
+        final String hash = store.put(new ByteArrayInputStream(content));
+        assertEquals(0, transfer.upload(FakeSyncRemote.AUTH_TOKEN, hash));
+        assertEquals(MediaRemote.BLOB_COMPLETE,
+                remote.getUploadOffset(FakeSyncRemote.AUTH_TOKEN, hash));
+        assertContent(remote.fileFor(hash));
+    }
+
+    public void testMissingBlobIsNotDownloaded() throws Exception {
+        final String hash = new MoocMediaStore(new File(dir, "other"))
+                .put(new ByteArrayInputStream(content));
+        assertFalse(transfer.download(FakeSyncRemote.AUTH_TOKEN, hash));
+        assertFalse(store.contains(hash));
+    }
+
+    private void assertContent(final File file) throws IOException {
+        assertEquals(content.length, file.length());
+        final InputStream in = new FileInputStream(file);
+        try {
+            for (int i = 0; i < content.length; i++) {
+                assertEquals(content[i], (byte) in.read());
+            }
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
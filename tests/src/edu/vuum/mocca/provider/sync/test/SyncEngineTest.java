@@ -0,0 +1,263 @@
+
+package edu.vuum.mocca.provider.sync.test;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.StoryRowMapper;
+import edu.vuum.mocca.orm.TagsData;
+import edu.vuum.mocca.provider.MoocProvider;
+import edu.vuum.mocca.provider.MoocSchema;
+import edu.vuum.mocca.provider.sync.SyncEngine;
+import edu.vuum.mocca.provider.sync.SyncRemote;
+import edu.vuum.mocca.provider.sync.WireSyncRemote;
+
+/**
+ * Push and pull through a SyncEngine, between a real MoocProvider and a
+ * FakeSyncRemote, with pages small enough that every step takes several;
+ * directly, and through a WireSyncRemote and a LoopbackWireTransport.
+ */
+public class SyncEngineTest extends ProviderTestCase2<MoocProvider> {
+
+    private static final int PAGE_SIZE = 2;
+    private static final long LOGIN_ID = 1;
+    private static final long OTHER_LOGIN_ID = 2;
+
+    private FakeSyncRemote remote;
+    // what the SyncEngine talks to: the remote, or a WireSyncRemote of it
+    private SyncRemote syncRemote;
+    private MemoryTokenStore tokenStore;
+    private ContentProviderClient provider;
+
+    /*
+     * A TokenStore keeping its values in memory, for one test.
+     */
+    private static class MemoryTokenStore implements SyncEngine.TokenStore {
+        private String changeToken = null;
+        private long journalSequence = -1;
+
+        public String getChangeToken() {
+            return changeToken;
+        }
+
+        public void setChangeToken(String changeToken) {
+            this.changeToken = changeToken;
+        }
+
+        public long getJournalSequence() {
+            return journalSequence;
+        }
+
+        public void setJournalSequence(long sequence) {
+            journalSequence = sequence;
+        }
+    }
+
+    public SyncEngineTest() {
+        super(MoocProvider.class, MoocSchema.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        remote = new FakeSyncRemote();
+        syncRemote = remote;
+        tokenStore = new MemoryTokenStore();
+        provider = getMockContentResolver().acquireContentProviderClient(
+                MoocSchema.AUTHORITY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        provider.release();
+        super.tearDown();
+    }
+
+    public void testNewLocalStoriesKeepTheirOwnRows() throws Exception {
+        final String[] titles = { "first", "second", "third" };
+        final String[] tags = { "park", "beach", "park" };
+        final long[] rowIds = new long[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            rowIds[i] = insertLocalStory(titles[i], tags[i]);
+        }
+
+        sync();
+
+        assertEquals(titles.length, remote.getStoryCount());
+        assertEquals(titles.length, count(MoocSchema.Story.CONTENT_URI, null));
+        for (int i = 0; i < titles.length; i++) {
+            final StoryData local = localStory(MoocSchema.Story.Cols.ID
+                    + " = ?", String.valueOf(rowIds[i]));
+            assertFalse(MoocSchema.Story.isLocalStoryId(local.storyId));
+            assertEquals(titles[i], local.title);
+            assertEquals(titles[i],
+                    remote.getStory(LOGIN_ID, local.storyId).title);
+            // the tags moved to the story's new STORY_ID, and were sent
+            assertEquals(1, count(MoocSchema.Tags.CONTENT_URI,
+                    MoocSchema.Tags.Cols.STORY_ID + " = "
+                            + local.storyId));
+            assertNotNull(remote.getTags(LOGIN_ID, local.storyId, tags[i]));
+        }
+        assertEquals(0, count(MoocSchema.Story.CONTENT_URI,
+                MoocSchema.Story.Cols.DIRTY + " > 0"));
+        assertEquals(0, count(MoocSchema.Tags.CONTENT_URI,
+                MoocSchema.Tags.Cols.DIRTY + " > 0"));
+
+        // nothing left to send
+        final int pushes = remote.getPushCount();
+        sync();
+        assertEquals(pushes, remote.getPushCount());
+        assertEquals(titles.length, remote.getStoryCount());
+    }
+
+    public void testPullAndServerWins() throws Exception {
+        for (long storyId = 1; storyId <= 5; storyId++) {
+            remote.putStory(story(OTHER_LOGIN_ID, storyId, "from server "
+                    + storyId));
+        }
+        remote.putTags(new TagsData(OTHER_LOGIN_ID, 3, "school"));
+
+        sync();
+
+        assertEquals(5, count(MoocSchema.Story.CONTENT_URI, null));
+        assertEquals("from server 3", storyByKey(3).title);
+        assertEquals(1, count(MoocSchema.Tags.CONTENT_URI, null));
+
+        // edited on both sides: the server's edit wins
+        final ContentValues edit = new ContentValues();
+        edit.put(MoocSchema.Story.Cols.TITLE, "local edit");
+        assertEquals(1, getMockContentResolver().update(
+                MoocSchema.Story.CONTENT_URI, edit,
+                MoocSchema.Story.ALL_KEY_CLAUSE, keyArgs(3)));
+        remote.putStory(story(OTHER_LOGIN_ID, 3, "server edit"));
+        // edited locally only: the local edit is sent
+        edit.put(MoocSchema.Story.Cols.TITLE, "local edit");
+        getMockContentResolver().update(MoocSchema.Story.CONTENT_URI, edit,
+                MoocSchema.Story.ALL_KEY_CLAUSE, keyArgs(4));
+
+        sync();
+
+        assertEquals("server edit", storyByKey(3).title);
+        assertEquals("server edit", remote.getStory(OTHER_LOGIN_ID, 3).title);
+        assertEquals("local edit", storyByKey(4).title);
+        assertEquals("local edit", remote.getStory(OTHER_LOGIN_ID, 4).title);
+
+        // deleted locally: the tombstone deletes it on the server
+        getMockContentResolver().delete(MoocSchema.Story.CONTENT_URI,
+                MoocSchema.Story.ALL_KEY_CLAUSE, keyArgs(1));
+        // deleted on the server: deleted locally
+        remote.deleteStory(OTHER_LOGIN_ID, 2);
+
+        sync();
+
+        assertNull(remote.getStory(OTHER_LOGIN_ID, 1));
+        assertNull(storyByKey(2));
+        assertEquals(3, count(MoocSchema.Story.CONTENT_URI, null));
+        assertEquals(3, remote.getStoryCount());
+        assertEquals(0, count(MoocSchema.Deleted.CONTENT_URI, null));
+    }
+
+    public void testNewLocalStoriesOverTheWire() throws Exception {
+        final LoopbackWireTransport transport = overTheWire();
+        testNewLocalStoriesKeepTheirOwnRows();
+        assertAllCompressed(transport);
+    }
+
+    public void testPullAndServerWinsOverTheWire() throws Exception {
+        final LoopbackWireTransport transport = overTheWire();
+        testPullAndServerWins();
+        assertAllCompressed(transport);
+    }
+
+    /*
+     * Have the SyncEngine talk to the remote through the WireFormat.
+     */
+    private LoopbackWireTransport overTheWire() {
+        final LoopbackWireTransport transport = new LoopbackWireTransport(
+                remote, true);
+        syncRemote = new WireSyncRemote(transport);
+        return transport;
+    }
+
+    private static void assertAllCompressed(
+            final LoopbackWireTransport transport) {
+        assertTrue(transport.getBytesSent() > 0);
+        assertTrue(transport.getBytesReceived() > 0);
+        assertEquals(0, transport.getUncompressedRequests());
+    }
+
+    private void sync() throws Exception {
+        final SyncResult syncResult = new SyncResult();
+        new SyncEngine(provider, syncRemote, tokenStore, PAGE_SIZE).sync(
+                FakeSyncRemote.AUTH_TOKEN, syncResult);
+        assertFalse(syncResult.databaseError);
+    }
+
+    /*
+     * Insert a story as the app does, without a STORY_ID, and a tag of it;
+     * return the story's _id.
+     */
+    private long insertLocalStory(final String title, final String tag) {
+        final Uri uri = getMockContentResolver().insert(
+                MoocSchema.Story.CONTENT_URI,
+                story(LOGIN_ID, 0, title).getCV());
+        final long rowId = ContentUris.parseId(uri);
+        final StoryData inserted = localStory(MoocSchema.Story.Cols.ID
+                + " = ?", String.valueOf(rowId));
+        assertEquals(MoocSchema.Story.localStoryId(rowId), inserted.storyId);
+        getMockContentResolver().insert(MoocSchema.Tags.CONTENT_URI,
+                new TagsData(LOGIN_ID, inserted.storyId, tag).getCV());
+        return rowId;
+    }
+
+    private StoryData storyByKey(final long storyId) {
+        final String[] args = keyArgs(storyId);
+        return localStory(MoocSchema.Story.ALL_KEY_CLAUSE, args);
+    }
+
+    private static String[] keyArgs(final long storyId) {
+        return new String[] { String.valueOf(OTHER_LOGIN_ID),
+                String.valueOf(storyId) };
+    }
+
+    /*
+     * The only story matching the selection, or null.
+     */
+    private StoryData localStory(final String selection,
+            final String... selectionArgs) {
+        final Cursor cursor = getMockContentResolver().query(
+                MoocSchema.Story.CONTENT_URI,
+                MoocSchema.Story.ALL_COLUMN_NAMES, selection, selectionArgs,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            assertEquals(1, cursor.getCount());
+            return new StoryRowMapper(cursor).map();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int count(final Uri uri, final String selection) {
+        final Cursor cursor = getMockContentResolver().query(uri, null,
+                selection, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static StoryData story(final long loginId, final long storyId,
+            final String title) {
+        return new StoryData(loginId, storyId, title, "body", null, null,
+                null, null, null, 1000, 1000, 36.16, -86.78);
+    }
+}
@@ -0,0 +1,158 @@
+
+package edu.vuum.mocca.provider.sync.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.TagsData;
+import edu.vuum.mocca.provider.sync.RemoteChange;
+import edu.vuum.mocca.provider.sync.WireFormat;
+import edu.vuum.mocca.provider.sync.WireReader;
+import edu.vuum.mocca.provider.sync.WireWriter;
+import junit.framework.TestCase;
+
+/**
+ * Round trips through WireWriter and WireReader, and streams a WireReader
+ * must reject with an IOException.
+ */
+public class WireCodecTest extends TestCase {
+
+    // record kinds of WireFormat
+    private static final int STORY_UPSERT = 1;
+    private static final int TAGS_UPSERT = 3;
+
+    public void testRoundTrip() throws Exception {
+        final List<RemoteChange> changes = new ArrayList<RemoteChange>();
+        changes.add(RemoteChange.upsertStory(new StoryData(1, 7, "title",
+                "body \u00e9\u4e2d", null, "", "image", "content://x/1",
+                "park,beach", 1000, 900, 36.1234567, -86.7654321), 12));
+        // a provisional STORY_ID, and a version going backwards
+        changes.add(RemoteChange.upsertStory(new StoryData(1, -3, null,
+                null, null, null, null, null, null, 0, 0, 0, 0), 0));
+        changes.add(RemoteChange.upsertTags(new TagsData(1, 7, "park"), 13));
+        changes.add(RemoteChange.upsertTags(new TagsData(2, 7, "park"), 14));
+        changes.add(RemoteChange.deleteTags(2, 7, "park", 15));
+        changes.add(RemoteChange.deleteStory(2, 8, 16));
+
+        for (boolean compress : new boolean[] { false, true }) {
+            final WireReader reader = new WireReader(new ByteArrayInputStream(
+                    encode(changes, compress)));
+            try {
+                for (RemoteChange expected : changes) {
+                    assertSameChange(expected, reader.read());
+                }
+                assertNull(reader.read());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    public void testCutOffStream() throws Exception {
+        final List<RemoteChange> changes = new ArrayList<RemoteChange>();
+        changes.add(RemoteChange.upsertTags(new TagsData(1, 7, "park"), 1));
+        final byte[] bytes = encode(changes, false);
+        final WireReader reader = new WireReader(new ByteArrayInputStream(
+                bytes, 0, bytes.length - 1));
+        try {
+            reader.read();
+            reader.read();
+            fail("read a cut off stream");
+        } catch (EOFException e) {
+            // expected
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testStringLengthOverflowIsRejected() throws Exception {
+        // a title length varint of 2^63, negative as a long
+        assertRejected(stream(STORY_UPSERT, 0, 0, 0, 0x80, 0x80, 0x80, 0x80,
+                0x80, 0x80, 0x80, 0x80, 0x80, 0x01));
+    }
+
+    public void testInternedNumberOverflowIsRejected() throws Exception {
+        // an interned reference varint of 2^63 + 5, negative as a long
+        assertRejected(stream(TAGS_UPSERT, 0, 0, 0, 0x85, 0x80, 0x80, 0x80,
+                0x80, 0x80, 0x80, 0x80, 0x80, 0x01));
+    }
+
+    public void testUnknownInternedNumberIsRejected() throws Exception {
+        assertRejected(stream(TAGS_UPSERT, 0, 0, 0, 0x07));
+    }
+
+    private static byte[] encode(final List<RemoteChange> changes,
+            final boolean compress) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final WireWriter writer = new WireWriter(bytes, compress);
+        try {
+            for (RemoteChange change : changes) {
+                writer.write(change);
+            }
+        } finally {
+            writer.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * A stream of the header and the given bytes.
+     */
+    private static byte[] stream(final int... record) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(WireFormat.MAGIC, 0, WireFormat.MAGIC.length);
+        bytes.write(WireFormat.VERSION);
+        for (int b : record) {
+            bytes.write(b);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void assertRejected(final byte[] stream) throws Exception {
+        final WireReader reader = new WireReader(new ByteArrayInputStream(
+                stream));
+        try {
+            reader.read();
+            fail("read a corrupt stream");
+        } catch (IOException e) {
+            // expected, and not a RuntimeException
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void assertSameChange(final RemoteChange expected,
+            final RemoteChange actual) {
+        assertNotNull(actual);
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expected.tag, actual.tag);
+        if (expected.story == null) {
+            assertNull(actual.story);
+        } else {
+            final StoryData story = expected.story;
+            assertEquals(story.title, actual.story.title);
+            assertEquals(story.body, actual.story.body);
+            assertEquals(story.audioLink, actual.story.audioLink);
+            assertEquals(story.videoLink, actual.story.videoLink);
+            assertEquals(story.imageName, actual.story.imageName);
+            assertEquals(story.imageLink, actual.story.imageLink);
+            assertEquals(story.tags, actual.story.tags);
+            assertEquals(story.creationTime, actual.story.creationTime);
+            assertEquals(story.storyTime, actual.story.storyTime);
+            // LATITUDE and LONGITUDE are sent to 1e-7 degrees
+            assertEquals(expected.story.latitude, actual.story.latitude, 1e-7);
+            assertEquals(expected.story.longitude, actual.story.longitude,
+                    1e-7);
+        }
+        if (expected.tags == null) {
+            assertNull(actual.tags);
+        } else {
+            assertEquals(expected.tags.toString(), actual.tags.toString());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+
+package edu.vuum.mocca.provider.sync.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.orm.TagsData;
+import edu.vuum.mocca.provider.sync.RemoteChange;
+import edu.vuum.mocca.provider.sync.WireSyncRemote;
+
+/**
+ * Benchmark of the WireFormat against JSON, for the same page of changes:
+ * the size of each encoding, plain and GZIP compressed, and how fast each is
+ * encoded and decoded. The results are logged under the tag of this class.
+ */
+public class WireFormatBenchmark extends TestCase {
+
+    private static final String LOG_TAG = WireFormatBenchmark.class
+            .getSimpleName();
+
+    private static final int STORIES = 1000;
+    private static final int TAGS_PER_STORY = 3;
+    private static final int ROUNDS = 5;
+
+    private static final String[] TAG_NAMES = { "park", "beach", "school",
+            "family", "holiday", "music", "food", "friends" };
+
+    private List<RemoteChange> changes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Random random = new Random(29);
+        changes = new ArrayList<RemoteChange>();
+        for (int i = 1; i <= STORIES; i++) {
+            final long loginId = 1 + random.nextInt(4);
+            final StringBuilder tags = new StringBuilder();
+            for (int j = 0; j < TAGS_PER_STORY; j++) {
+                tags.append(j == 0 ? "" : ",").append(
+                        TAG_NAMES[(i + j) % TAG_NAMES.length]);
+            }
+            changes.add(RemoteChange.upsertStory(new StoryData(loginId, i,
+                    "Story " + i, "What happened on day " + random.nextInt(365)
+                            + ", told at some length.", null, null, "image"
+                            + i + ".jpg", "content://media/" + i,
+                    tags.toString(), 1380000000000L + i * 60000L,
+                    1380000000000L + i * 60000L, 36 + random.nextDouble(),
+                    -87 + random.nextDouble()), i));
+            for (int j = 0; j < TAGS_PER_STORY; j++) {
+                changes.add(RemoteChange.upsertTags(new TagsData(loginId, i,
+                        TAG_NAMES[(i + j) % TAG_NAMES.length]), i));
+            }
+        }
+    }
+
+    public void testSizeAndSpeed() throws Exception {
+        final byte[] wire = WireSyncRemote.encode(changes, false);
+        final byte[] wireGzip = WireSyncRemote.encode(changes, true);
+        final byte[] json = encodeJson(changes, false);
+        final byte[] jsonGzip = encodeJson(changes, true);
+        Log.i(LOG_TAG, changes.size() + " changes: wire " + wire.length
+                + " B, wire+gzip " + wireGzip.length + " B, json "
+                + json.length + " B, json+gzip " + jsonGzip.length + " B");
+        assertTrue(wire.length < json.length);
+        assertTrue(wireGzip.length < wire.length);
+
+        for (boolean compress : new boolean[] { false, true }) {
+            final String wireName = compress ? "wire+gzip" : "wire";
+            final String jsonName = compress ? "json+gzip" : "json";
+
+            long started = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                WireSyncRemote.encode(changes, compress);
+            }
+            logRate(wireName + " encode", System.nanoTime() - started);
+            started = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                encodeJson(changes, compress);
+            }
+            logRate(jsonName + " encode", System.nanoTime() - started);
+
+            final byte[] wireBytes = compress ? wireGzip : wire;
+            final byte[] jsonBytes = compress ? jsonGzip : json;
+            started = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                assertEquals(changes.size(), WireSyncRemote.decode(
+                        new ByteArrayInputStream(wireBytes)).size());
+            }
+            logRate(wireName + " decode", System.nanoTime() - started);
+            started = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                assertEquals(changes.size(), decodeJson(jsonBytes, compress)
+                        .size());
+            }
+            logRate(jsonName + " decode", System.nanoTime() - started);
+        }
+    }
+
+    private void logRate(final String what, final long nanos) {
+        Log.i(LOG_TAG, what + ": "
+                + (changes.size() * ROUNDS * 1000000000L / Math.max(1, nanos))
+                + " changes/s");
+    }
+
+    /*
+     * The changes as the JSON array a JSON API would exchange.
+     */
+    private static byte[] encodeJson(final List<RemoteChange> changes,
+            final boolean compress) throws IOException, JSONException {
+        final JSONArray array = new JSONArray();
+        for (RemoteChange change : changes) {
+            final JSONObject object = new JSONObject();
+            object.put("entity", change.entity);
+            object.put("operation", change.operation);
+            object.put("version", change.version);
+            object.put("loginId", change.loginId);
+            object.put("storyId", change.storyId);
+            if (change.tag != null) {
+                object.put("tag", change.tag);
+            }
+            if (change.story != null) {
+                final StoryData story = change.story;
+                final JSONObject row = new JSONObject();
+                putIfSet(row, "title", story.title);
+                putIfSet(row, "body", story.body);
+                putIfSet(row, "audioLink", story.audioLink);
+                putIfSet(row, "videoLink", story.videoLink);
+                putIfSet(row, "imageName", story.imageName);
+                putIfSet(row, "imageLink", story.imageLink);
+                putIfSet(row, "tags", story.tags);
+                row.put("creationTime", story.creationTime);
+                row.put("storyTime", story.storyTime);
+                row.put("latitude", story.latitude);
+                row.put("longitude", story.longitude);
+                object.put("story", row);
+            }
+            array.put(object);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream out = compress ? new GZIPOutputStream(bytes)
+                : bytes;
+        try {
+            out.write(array.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void putIfSet(final JSONObject object, final String name,
+            final String value) throws JSONException {
+        if (value != null) {
+            object.put(name, value);
+        }
+    }
+
+    private static List<RemoteChange> decodeJson(final byte[] bytes,
+            final boolean compress) throws IOException, JSONException {
+        final InputStream in = compress ? new GZIPInputStream(
+                new ByteArrayInputStream(bytes)) : new ByteArrayInputStream(
+                bytes);
+        final StringBuilder text = new StringBuilder();
+        final Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            final char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+        } finally {
+            reader.close();
+        }
+        final JSONArray array = new JSONArray(text.toString());
+        final List<RemoteChange> changes = new ArrayList<RemoteChange>(
+                array.length());
+        for (int i = 0; i < array.length(); i++) {
+            final JSONObject object = array.getJSONObject(i);
+            final long version = object.getLong("version");
+            final long loginId = object.getLong("loginId");
+            final long storyId = object.getLong("storyId");
+            final boolean upsert = object.getInt("operation") == RemoteChange.UPSERT;
+            if (object.getInt("entity") == RemoteChange.TAGS) {
+                final String tag = object.getString("tag");
+                changes.add(upsert ? RemoteChange.upsertTags(new TagsData(
+                        loginId, storyId, tag), version) : RemoteChange
+                        .deleteTags(loginId, storyId, tag, version));
+            } else if (upsert) {
+                final JSONObject row = object.getJSONObject("story");
+                changes.add(RemoteChange.upsertStory(new StoryData(loginId,
+                        storyId, row.optString("title", null), row.optString(
+                                "body", null), row.optString("audioLink",
+                                null), row.optString("videoLink", null), row
+                                .optString("imageName", null), row.optString(
+                                "imageLink", null), row.optString("tags",
+                                null), row.getLong("creationTime"), row
+                                .getLong("storyTime"), row
+                                .getDouble("latitude"), row
+                                .getDouble("longitude")), version));
+            } else {
+                changes.add(RemoteChange.deleteStory(loginId, storyId, version));
+            }
+        }
+        return changes;
+    }
+}
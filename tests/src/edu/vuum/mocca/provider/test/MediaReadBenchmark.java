@@ -0,0 +1,188 @@
+
+package edu.vuum.mocca.provider.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.MappedByteBuffer;
+import java.util.Random;
+
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+import edu.vuum.mocca.provider.MoocMediaStore;
+import edu.vuum.mocca.provider.MoocProvider;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * Benchmark of reading a large media blob through MoocProvider: the whole
+ * file, random ranges (uriForRange), a memory map of the store, and an upload
+ * followed through the media_upload pipe while it is written. The rates are
+ * logged under the tag of this class.
+ */
+public class MediaReadBenchmark extends ProviderTestCase2<MoocProvider> {
+
+    private static final String LOG_TAG = MediaReadBenchmark.class
+            .getSimpleName();
+
+    private static final int BLOB_SIZE = 16 * 1024 * 1024;
+    private static final int RANGE_SIZE = 64 * 1024;
+    private static final int RANGES = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private byte[] content;
+    private MoocMediaStore store;
+
+    public MediaReadBenchmark() {
+        super(MoocProvider.class, MoocSchema.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        content = new byte[BLOB_SIZE];
+        new Random(19).nextBytes(content);
+        // the directory the provider's store uses
+        store = new MoocMediaStore(getMockContext().getFilesDir());
+    }
+
+    public void testUploadType() {
+        assertEquals(MoocSchema.Media.UPLOAD_MIME_TYPE,
+                getMockContentResolver().getType(
+                        MoocSchema.Media.uriForUpload("upload-1")));
+    }
+
+    public void testReadSpeed() throws Exception {
+        final String hash = store.put(new ByteArrayInputStream(content));
+        final ContentValues values = new ContentValues();
+        values.put(MoocSchema.Media.Cols.HASH, hash);
+        getMockContentResolver().insert(MoocSchema.Media.CONTENT_URI, values);
+
+        long started = System.nanoTime();
+        final ParcelFileDescriptor file = getMockContentResolver()
+                .openFileDescriptor(MoocSchema.Media.uriForHash(hash), "r");
+        assertEquals(BLOB_SIZE,
+                drain(new ParcelFileDescriptor.AutoCloseInputStream(file)));
+        logRate("whole file", BLOB_SIZE, System.nanoTime() - started);
+
+        final Random random = new Random(23);
+        final byte[] range = new byte[RANGE_SIZE];
+        started = System.nanoTime();
+        for (int i = 0; i < RANGES; i++) {
+            final int offset = random.nextInt(BLOB_SIZE - RANGE_SIZE);
+            final AssetFileDescriptor asset = getMockContentResolver()
+                    .openAssetFileDescriptor(
+                            MoocSchema.Media.uriForRange(hash, offset,
+                                    RANGE_SIZE), "r");
+            final InputStream in = asset.createInputStream();
+            try {
+                readFully(in, range);
+                assertEquals(-1, in.read());
+            } finally {
+                in.close();
+            }
+            for (int j = 0; j < RANGE_SIZE; j++) {
+                assertEquals(content[offset + j], range[j]);
+            }
+        }
+        logRate("random " + RANGE_SIZE + " byte ranges", (long) RANGES
+                * RANGE_SIZE, System.nanoTime() - started);
+
+        started = System.nanoTime();
+        final MappedByteBuffer map = store.map(hash, 0, -1);
+        long sum = 0;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        while (map.hasRemaining()) {
+            final int count = Math.min(buffer.length, map.remaining());
+            map.get(buffer, 0, count);
+            sum += buffer[count - 1];
+        }
+        logRate("memory map (" + sum + ")", BLOB_SIZE, System.nanoTime()
+                - started);
+    }
+
+    public void testUploadStreamSpeed() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        final String uploadId = "benchmark-upload";
+        final PipedOutputStream source = new PipedOutputStream();
+        final PipedInputStream in = new PipedInputStream(source);
+        final String[] hash = new String[1];
+        final Thread putter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    hash[0] = store.put(uploadId, in);
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "put failed", ex);
+                }
+            }
+        };
+        putter.start();
+
+        final long started = System.nanoTime();
+        // put() registers the upload before reading, so once the pipe's
+        // buffer is drained by it the upload can be followed
+        source.write(content, 0, BUFFER_SIZE);
+        final ParcelFileDescriptor upload = getMockContentResolver()
+                .openFileDescriptor(MoocSchema.Media.uriForUpload(uploadId),
+                        "r");
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    source.write(content, BUFFER_SIZE, BLOB_SIZE - BUFFER_SIZE);
+                    source.close();
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "write failed", ex);
+                }
+            }
+        };
+        writer.start();
+        assertEquals(BLOB_SIZE,
+                drain(new ParcelFileDescriptor.AutoCloseInputStream(upload)));
+        final long nanos = System.nanoTime() - started;
+        writer.join();
+        putter.join();
+
+        assertNotNull(hash[0]);
+        assertTrue(store.contains(hash[0]));
+        logRate("upload followed while written", BLOB_SIZE, nanos);
+    }
+
+    private static long drain(final InputStream in) throws IOException {
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+            }
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readFully(final InputStream in, final byte[] buffer)
+            throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int count = in.read(buffer, offset, buffer.length - offset);
+            assertTrue(count > 0);
+            offset += count;
+        }
+    }
+
+    private static void logRate(final String what, final long bytes,
+            final long nanos) {
+        Log.i(LOG_TAG, what + ": " + (bytes * 1000L / Math.max(1, nanos))
+                + " MB/s");
+    }
+}
@@ -0,0 +1,213 @@
+
+package edu.vuum.mocca.provider.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Build;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.provider.MoocProvider;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * Stress test of MoocProvider's concurrency: many reader threads query while
+ * a single writer inserts batches. Readers take no lock and (with
+ * write-ahead logging) run on their own connections, so each must only ever
+ * see whole committed batches, and never a count that goes back.
+ * <p>
+ * testReadThroughput measures the read throughput for 1, 2 and 4 readers
+ * under the same writer load, and logs it under the tag of this class. From
+ * Honeycomb write-ahead logging must be on and, given more than one
+ * processor, 4 readers must beat 1 by MIN_SPEEDUP.
+ */
+public class MoocProviderConcurrencyTest extends ProviderTestCase2<MoocProvider> {
+
+    private static final String LOG_TAG = MoocProviderConcurrencyTest.class
+            .getSimpleName();
+
+    private static final int BATCH_SIZE = 20;
+    private static final int BATCHES = 50;
+    private static final int READERS = 4;
+
+    // how long each reader count is measured for by testReadThroughput
+    private static final long MEASURE_MILLIS = 2000;
+    // least throughput of READERS readers, relative to a single one
+    private static final double MIN_SPEEDUP = 1.2;
+
+    private static final String[] ID_PROJECTION = { MoocSchema.Story.Cols.ID };
+
+    // failures of the reader and writer threads, checked by the test thread
+    private final List<Throwable> mFailures = Collections
+            .synchronizedList(new ArrayList<Throwable>());
+
+    public MoocProviderConcurrencyTest() {
+        super(MoocProvider.class, MoocSchema.AUTHORITY);
+    }
+
+    public void testReadersSeeWholeBatchesWhileWriting() throws Exception {
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < READERS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int last = 0;
+                        while (writing.get()) {
+                            final int count = countStories();
+                            assertTrue("Count went back from " + last + " to "
+                                    + count, count >= last);
+                            assertEquals("Saw part of a batch", 0, count
+                                    % BATCH_SIZE);
+                            last = count;
+                            reads.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        mFailures.add(t);
+                    }
+                }
+            }, "reader-" + i));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int batch = 0; batch < BATCHES; batch++) {
+                        insertBatch(batch);
+                    }
+                } catch (Throwable t) {
+                    mFailures.add(t);
+                } finally {
+                    writing.set(false);
+                }
+            }
+        }, "writer"));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNoFailures();
+        assertEquals(BATCH_SIZE * BATCHES, countStories());
+        assertTrue("Readers made no progress", reads.get() > 0);
+    }
+
+    public void testReadThroughput() throws Exception {
+        final boolean concurrent = getProvider().isConcurrentReadsEnabled();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            assertTrue("Write-ahead logging is off", concurrent);
+        }
+        double single = 0;
+        double most = 0;
+        for (int readers = 1; readers <= READERS; readers *= 2) {
+            final double perSecond = measureReads(readers);
+            Log.i(LOG_TAG, "readers=" + readers + " queries/s=" + perSecond);
+            if (readers == 1) {
+                single = perSecond;
+            }
+            most = perSecond;
+        }
+        assertNoFailures();
+        if (concurrent && Runtime.getRuntime().availableProcessors() > 1) {
+            assertTrue(READERS + " readers: " + most + " queries/s, 1 reader: "
+                    + single, most >= single * MIN_SPEEDUP);
+        }
+    }
+
+    /*
+     * Queries per second of the given number of reader threads, while a
+     * writer keeps inserting batches.
+     */
+    private double measureReads(final int readers) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            countStories();
+                            reads.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        mFailures.add(t);
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int batch = 0; running.get(); batch++) {
+                        insertBatch(batch);
+                    }
+                } catch (Throwable t) {
+                    mFailures.add(t);
+                }
+            }
+        }));
+
+        final long started = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(MEASURE_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - started;
+        return reads.get() * 1e9 / elapsed;
+    }
+
+    private void insertBatch(final int batch) {
+        final ContentValues[] values = new ContentValues[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            values[i] = new StoryData(1, batch * BATCH_SIZE + i + 1, "title "
+                    + i, "body of story " + i, null, null, null, null, null,
+                    batch, batch, 0, 0).getCV();
+        }
+        assertEquals(BATCH_SIZE, getMockContentResolver().bulkInsert(
+                MoocSchema.Story.CONTENT_URI, values));
+    }
+
+    private int countStories() {
+        final Cursor cursor = getMockContentResolver().query(
+                MoocSchema.Story.CONTENT_URI, ID_PROJECTION, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertNoFailures() {
+        if (mFailures.isEmpty() == false) {
+            final AssertionError error = new AssertionError(mFailures.size()
+                    + " thread(s) failed, first: " + mFailures.get(0));
+            error.initCause(mFailures.get(0));
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+
+package edu.vuum.mocca.provider.test;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.provider.MoocProvider;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * A local story is written once: its provisional STORY_ID is set by the
+ * insert itself, so each story inserted (one at a time, in bulk, or upserted)
+ * makes a single MoocSchema.Changes entry.
+ */
+public class MoocProviderJournalTest extends ProviderTestCase2<MoocProvider> {
+
+    private static final int SINGLE = 3;
+    private static final int BULK = 5;
+    private static final int UPSERTED = 2;
+
+    public MoocProviderJournalTest() {
+        super(MoocProvider.class, MoocSchema.AUTHORITY);
+    }
+
+    public void testOneJournalEntryPerInsertedStory() {
+        for (int i = 0; i < SINGLE; i++) {
+            assertNotNull(getMockContentResolver().insert(
+                    MoocSchema.Story.CONTENT_URI, story("single " + i)));
+        }
+        final ContentValues[] bulk = new ContentValues[BULK];
+        for (int i = 0; i < BULK; i++) {
+            bulk[i] = story("bulk " + i);
+        }
+        assertEquals(BULK, getMockContentResolver().bulkInsert(
+                MoocSchema.Story.CONTENT_URI, bulk));
+        for (int i = 0; i < UPSERTED; i++) {
+            assertNotNull(getMockContentResolver().insert(
+                    MoocSchema.Story.UPSERT_URI, story("upserted " + i)));
+        }
+
+        final int stories = SINGLE + BULK + UPSERTED;
+        final Cursor changes = getMockContentResolver().query(
+                MoocSchema.Changes.CONTENT_URI,
+                new String[] { MoocSchema.Changes.Cols.OPERATION },
+                MoocSchema.Changes.Cols.TABLE + " = ?",
+                new String[] { MoocSchema.Story.TABLE_NAME }, null);
+        try {
+            assertEquals(stories, changes.getCount());
+            while (changes.moveToNext()) {
+                assertEquals(MoocSchema.Changes.OPERATION_INSERT,
+                        changes.getString(0));
+            }
+        } finally {
+            changes.close();
+        }
+
+        // each keyed by its own _id
+        final Cursor keys = getMockContentResolver().query(
+                MoocSchema.Story.CONTENT_URI,
+                new String[] { MoocSchema.Story.Cols.ID,
+                        MoocSchema.Story.Cols.STORY_ID }, null, null, null);
+        try {
+            assertEquals(stories, keys.getCount());
+            while (keys.moveToNext()) {
+                assertEquals(MoocSchema.Story.localStoryId(keys.getLong(0)),
+                        keys.getLong(1));
+            }
+        } finally {
+            keys.close();
+        }
+    }
+
+    private static ContentValues story(final String title) {
+        return new StoryData(1, 0, title, "body", null, null, null, null,
+                null, 1000, 1000, 36.16, -86.78).getCV();
+    }
+}
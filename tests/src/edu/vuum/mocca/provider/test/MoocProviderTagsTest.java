@@ -0,0 +1,136 @@
+
+package edu.vuum.mocca.provider.test;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import edu.vuum.mocca.orm.TagsData;
+import edu.vuum.mocca.provider.MoocProvider;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * Tags are all key (the unique tags_key_idx): a duplicate is never stored,
+ * and inserting one is not an error. Through Story.TAGGED_URI a story gets
+ * only its own tags, even among the local stories of one login.
+ */
+public class MoocProviderTagsTest extends ProviderTestCase2<MoocProvider> {
+
+    public MoocProviderTagsTest() {
+        super(MoocProvider.class, MoocSchema.AUTHORITY);
+    }
+
+    public void testInsertOfDuplicateReturnsExistingRow() {
+        final Uri first = getMockContentResolver().insert(
+                MoocSchema.Tags.CONTENT_URI, new TagsData(1, 2, "park").getCV());
+        final Uri second = getMockContentResolver().insert(
+                MoocSchema.Tags.CONTENT_URI, new TagsData(1, 2, "park").getCV());
+
+        assertNotNull(first);
+        assertEquals(first, second);
+        assertEquals(1, countTags());
+    }
+
+    public void testBatchWithDuplicateIsApplied() throws Exception {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation
+                .newInsert(MoocSchema.Tags.CONTENT_URI)
+                .withValues(new TagsData(1, 2, "park").getCV()).build());
+        operations.add(ContentProviderOperation
+                .newInsert(MoocSchema.Tags.CONTENT_URI)
+                .withValues(new TagsData(1, 2, "beach").getCV()).build());
+        operations.add(ContentProviderOperation
+                .newInsert(MoocSchema.Tags.CONTENT_URI)
+                .withValues(new TagsData(1, 2, "park").getCV()).build());
+
+        final ContentProviderResult[] results = getMockContentResolver()
+                .applyBatch(MoocSchema.AUTHORITY, operations);
+
+        assertEquals(3, results.length);
+        assertEquals(results[0].uri, results[2].uri);
+        assertEquals(2, countTags());
+    }
+
+    public void testLocalStoriesGetOnlyTheirOwnTags() {
+        final long first = insertLocalStory("first");
+        final long second = insertLocalStory("second");
+        assertTrue(first != second);
+        getMockContentResolver().insert(MoocSchema.Tags.CONTENT_URI,
+                new TagsData(1, first, "park").getCV());
+        getMockContentResolver().insert(MoocSchema.Tags.CONTENT_URI,
+                new TagsData(1, second, "beach").getCV());
+        // a tag of no one story
+        getMockContentResolver().insert(MoocSchema.Tags.CONTENT_URI,
+                new TagsData(1, 0, "park").getCV());
+
+        final Uri park = MoocSchema.Story.TAGGED_URI.buildUpon()
+                .appendQueryParameter(MoocSchema.Story.QUERY_PARAMETER_TAG,
+                        "park").build();
+        final Cursor tagged = queryTagged(park);
+        try {
+            assertEquals(1, tagged.getCount());
+            assertTrue(tagged.moveToFirst());
+            assertEquals("first", tagged.getString(0));
+            assertEquals("park", tagged.getString(1));
+        } finally {
+            tagged.close();
+        }
+
+        final Cursor all = queryTagged(MoocSchema.Story.TAGGED_URI);
+        try {
+            assertEquals(2, all.getCount());
+            while (all.moveToNext()) {
+                assertEquals("first".equals(all.getString(0)) ? "park"
+                        : "beach", all.getString(1));
+            }
+        } finally {
+            all.close();
+        }
+    }
+
+    /*
+     * Insert a story as the app does, without a STORY_ID; return the
+     * STORY_ID it was given.
+     */
+    private long insertLocalStory(final String title) {
+        final ContentValues values = new ContentValues();
+        values.put(MoocSchema.Story.Cols.LOGIN_ID, 1);
+        values.put(MoocSchema.Story.Cols.TITLE, title);
+        final Uri uri = getMockContentResolver().insert(
+                MoocSchema.Story.CONTENT_URI, values);
+        final Cursor cursor = getMockContentResolver().query(
+                MoocSchema.Story.CONTENT_URI,
+                new String[] { MoocSchema.Story.Cols.STORY_ID },
+                MoocSchema.Story.Cols.ID + " = ?",
+                new String[] { String.valueOf(ContentUris.parseId(uri)) },
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor queryTagged(final Uri uri) {
+        return getMockContentResolver().query(
+                uri,
+                new String[] { MoocSchema.Story.Cols.TITLE,
+                        MoocSchema.Story.TAG_LIST }, null, null, null);
+    }
+
+    private int countTags() {
+        final Cursor cursor = getMockContentResolver().query(
+                MoocSchema.Tags.CONTENT_URI, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
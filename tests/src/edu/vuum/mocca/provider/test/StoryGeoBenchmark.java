@@ -0,0 +1,171 @@
+
+package edu.vuum.mocca.provider.test;
+
+import java.util.Random;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+import edu.vuum.mocca.orm.StoryData;
+import edu.vuum.mocca.provider.MoocProvider;
+import edu.vuum.mocca.provider.MoocSchema;
+
+/**
+ * GEO_BAND maintenance, and a benchmark of location queries: the story_geo
+ * URI (through the GEO_BAND, LONGITUDE index) against the same bounding box
+ * as a plain selection on story_table, which scans it. The times are logged
+ * under the tag of this class.
+ * <p>
+ * The table is seeded with STORIES rows, 1,000,000 unless the system
+ * property "edu.vuum.mocca.provider.test.StoryGeoBenchmark.stories" says
+ * otherwise: below that the scan is too cheap for the index to show.
+ */
+public class StoryGeoBenchmark extends ProviderTestCase2<MoocProvider> {
+
+    private static final String LOG_TAG = StoryGeoBenchmark.class
+            .getSimpleName();
+
+    private static final int STORIES = Integer.getInteger(
+            StoryGeoBenchmark.class.getName() + ".stories", 1000000)
+            .intValue();
+    // stories per bulkInsert(), so that the seed is never all in memory
+    private static final int CHUNK = 10000;
+    private static final int QUERIES = 100;
+
+    // stories are spread over about 200km around this point, queries cover
+    // about 2km
+    private static final double CENTER_LAT = 36.16;
+    private static final double CENTER_LON = -86.78;
+    private static final double SPREAD = 1.0;
+    private static final double BOX = 0.01;
+
+    private static final String[] PROJECTION = { MoocSchema.Story.Cols.ID,
+            MoocSchema.Story.Cols.LATITUDE, MoocSchema.Story.Cols.GEO_BAND };
+
+    private static final String BOX_SELECTION = MoocSchema.Story.Cols.LATITUDE
+            + " BETWEEN ? AND ? AND " + MoocSchema.Story.Cols.LONGITUDE
+            + " BETWEEN ? AND ?";
+
+    public StoryGeoBenchmark() {
+        super(MoocProvider.class, MoocSchema.AUTHORITY);
+    }
+
+    public void testGeoBandFollowsLatitude() {
+        final Uri story = getMockContentResolver().insert(
+                MoocSchema.Story.CONTENT_URI,
+                story(1, CENTER_LAT, CENTER_LON).getCV());
+        assertEquals(MoocSchema.Story.geoBand(CENTER_LAT), geoBand(story));
+
+        final ContentValues moved = new ContentValues();
+        moved.put(MoocSchema.Story.Cols.LATITUDE, -33.87);
+        getMockContentResolver().update(story, moved, null, null);
+        assertEquals(MoocSchema.Story.geoBand(-33.87), geoBand(story));
+
+        final ContentValues retitled = new ContentValues();
+        retitled.put(MoocSchema.Story.Cols.TITLE, "renamed");
+        getMockContentResolver().update(story, retitled, null, null);
+        assertEquals(MoocSchema.Story.geoBand(-33.87), geoBand(story));
+    }
+
+    public void testLocationQuerySpeed() {
+        final Random random = new Random(42);
+        long insertNanos = 0;
+        for (int seeded = 0; seeded < STORIES; seeded += CHUNK) {
+            final ContentValues[] values = new ContentValues[Math.min(CHUNK,
+                    STORIES - seeded)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = story(seeded + i + 1,
+                        CENTER_LAT + (random.nextDouble() - 0.5) * SPREAD,
+                        CENTER_LON + (random.nextDouble() - 0.5) * SPREAD)
+                        .getCV();
+            }
+            final long insertStarted = System.nanoTime();
+            assertEquals(values.length, getMockContentResolver().bulkInsert(
+                    MoocSchema.Story.CONTENT_URI, values));
+            insertNanos += System.nanoTime() - insertStarted;
+        }
+
+        long indexed = 0;
+        long scanned = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            final double minLat = CENTER_LAT + (random.nextDouble() - 0.5)
+                    * SPREAD;
+            final double minLon = CENTER_LON + (random.nextDouble() - 0.5)
+                    * SPREAD;
+
+            long started = System.nanoTime();
+            final int byIndex = count(getMockContentResolver().query(
+                    boxUri(minLat, minLat + BOX, minLon, minLon + BOX),
+                    PROJECTION, null, null, null));
+            indexed += System.nanoTime() - started;
+
+            started = System.nanoTime();
+            final int byScan = count(getMockContentResolver().query(
+                    MoocSchema.Story.CONTENT_URI,
+                    PROJECTION,
+                    BOX_SELECTION,
+                    new String[] { String.valueOf(minLat),
+                            String.valueOf(minLat + BOX),
+                            String.valueOf(minLon),
+                            String.valueOf(minLon + BOX) }, null));
+            scanned += System.nanoTime() - started;
+
+            assertEquals(byScan, byIndex);
+        }
+        Log.i(LOG_TAG, "stories=" + STORIES + " insert: "
+                + (insertNanos / STORIES) + " ns/story, box query by index: "
+                + (indexed / QUERIES / 1000) + " us, by scan: "
+                + (scanned / QUERIES / 1000) + " us, scan/index "
+                + ((double) scanned / Math.max(1, indexed)));
+    }
+
+    private static StoryData story(final long storyId, final double latitude,
+            final double longitude) {
+        return new StoryData(1, storyId, "title", "body", null, null, null,
+                null, null, 0, 0, latitude, longitude);
+    }
+
+    private static Uri boxUri(final double minLat, final double maxLat,
+            final double minLon, final double maxLon) {
+        return MoocSchema.Story.GEO_URI
+                .buildUpon()
+                .appendQueryParameter(
+                        MoocSchema.Story.QUERY_PARAMETER_MIN_LATITUDE,
+                        String.valueOf(minLat))
+                .appendQueryParameter(
+                        MoocSchema.Story.QUERY_PARAMETER_MAX_LATITUDE,
+                        String.valueOf(maxLat))
+                .appendQueryParameter(
+                        MoocSchema.Story.QUERY_PARAMETER_MIN_LONGITUDE,
+                        String.valueOf(minLon))
+                .appendQueryParameter(
+                        MoocSchema.Story.QUERY_PARAMETER_MAX_LONGITUDE,
+                        String.valueOf(maxLon)).build();
+    }
+
+    private int geoBand(final Uri story) {
+        final Cursor cursor = getMockContentResolver().query(
+                MoocSchema.Story.CONTENT_URI, PROJECTION,
+                MoocSchema.Story.Cols.ID + " = ?",
+                new String[] { String.valueOf(ContentUris.parseId(story)) },
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(cursor
+                    .getColumnIndex(MoocSchema.Story.Cols.GEO_BAND));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int count(final Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}